@@ -22,6 +22,7 @@ import org.commcare.suite.model.Profile;
 import org.commcare.suite.model.PropertySetter;
 import org.commcare.suite.model.SessionDatum;
 import org.commcare.suite.model.Suite;
+import org.commcare.util.AppSnapshot;
 import org.commcare.util.CommCarePlatform;
 import org.javarosa.core.io.BufferedInputStream;
 import org.javarosa.core.io.StreamsUtil;
@@ -34,6 +35,7 @@ import org.javarosa.core.services.PropertyManager;
 import org.javarosa.core.services.locale.Localization;
 import org.javarosa.core.services.properties.Property;
 import org.javarosa.core.services.storage.IStorageIndexedFactory;
+import org.javarosa.core.services.storage.IStorageIterator;
 import org.javarosa.core.services.storage.IStorageUtilityIndexed;
 import org.javarosa.core.services.storage.StorageManager;
 import org.javarosa.core.services.storage.util.DummyIndexedStorageUtility;
@@ -303,7 +305,54 @@ public class CommCareConfigEngine {
         return platform;
     }
 
+    /**
+     * Write a snapshot of the installed app's forms and suites, which later engines using the
+     * same storage can initialize from (see useSnapshot)
+     */
+    public void writeSnapshot(File file) throws IOException {
+        AppSnapshot.write(platform.getStorageManager(), getInstalledAppVersion(), file);
+    }
+
+    /**
+     * Initialize suites and load forms from the snapshot at the provided location rather than
+     * from storage. Must be called before initEnvironment.
+     *
+     * @return Whether the snapshot was used. Snapshots are ignored if they are missing or were
+     * written for a different version of the app than the one installed.
+     */
+    public boolean useSnapshot(File file, PrototypeFactory prototypeFactory) {
+        if (!file.exists()) {
+            return false;
+        }
+        AppSnapshot snapshot;
+        try {
+            snapshot = AppSnapshot.open(file, prototypeFactory);
+        } catch (IOException e) {
+            print.println("Couldn't open app snapshot: " + e.getMessage());
+            return false;
+        }
+        if (snapshot.getAppVersion() != getInstalledAppVersion()) {
+            return false;
+        }
+        platform.setSnapshot(snapshot);
+        return true;
+    }
+
+    private int getInstalledAppVersion() {
+        IStorageUtilityIndexed<Profile> profileStorage =
+                platform.getStorageManager().getStorage(Profile.STORAGE_KEY);
+        IStorageIterator<Profile> iterator = profileStorage.iterate();
+        return iterator.hasMore() ? iterator.nextRecord().getVersion() : -1;
+    }
+
     public FormDef loadFormByXmlns(String xmlns) {
+        AppSnapshot snapshot = platform.getSnapshot();
+        if (snapshot != null) {
+            FormDef form = snapshot.readFormByXmlns(xmlns);
+            if (form != null) {
+                return form;
+            }
+        }
         IStorageUtilityIndexed<FormDef> formStorage = platform.getStorageManager().getStorage(FormDef.STORAGE_KEY);
         return formStorage.getRecordForValue("XMLNS", xmlns);
     }
@@ -0,0 +1,96 @@
+package org.commcare;
+
+import org.commcare.cases.model.Case;
+import org.javarosa.core.api.ClassNameHasher;
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.test.FormParseInit;
+import org.javarosa.core.util.externalizable.ExtUtil;
+import org.javarosa.core.util.externalizable.Hasher;
+import org.javarosa.core.util.externalizable.PrototypeFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.HashSet;
+
+/**
+ * Measures deserializing a large form definition and a case database's worth of cases, which
+ * is dominated by resolving and instantiating the classes of polymorphic fields.
+ */
+@State(Scope.Benchmark)
+public class DeserializeFormAndCases {
+
+    private static final int CASE_COUNT = 10000;
+
+    private PrototypeFactory factory;
+    private byte[] serializedForm;
+    private byte[][] serializedCases;
+
+    @Setup
+    public void setUp() {
+        // Serialize everything while recording the classes which need to be registered
+        RecordingHasher hasher = new RecordingHasher();
+        PrototypeFactory.setStaticHasher(hasher);
+
+        FormDef form = new FormParseInit("/app_performance/large_tdh_form.xml").getFormDef();
+        serializedForm = ExtUtil.serialize(form);
+
+        serializedCases = new byte[CASE_COUNT][];
+        for (int i = 0; i < CASE_COUNT; i++) {
+            Case c = new Case("case " + i, "patient");
+            c.setCaseId("case_id_" + i);
+            c.setUserId("user_id");
+            c.setProperty("age", String.valueOf(i % 90));
+            c.setProperty("village", "village_" + (i % 50));
+            c.setIndex("parent", "household", "household_" + (i / 4));
+            serializedCases[i] = ExtUtil.serialize(c);
+        }
+
+        factory = new PrototypeFactory(hasher.classNames);
+    }
+
+    @Benchmark
+    public void deserializeForm(Blackhole blackhole) throws Exception {
+        blackhole.consume(ExtUtil.deserialize(serializedForm, FormDef.class, factory));
+    }
+
+    @Benchmark
+    public void deserializeCases(Blackhole blackhole) throws Exception {
+        for (byte[] serializedCase : serializedCases) {
+            blackhole.consume(ExtUtil.deserialize(serializedCase, Case.class, factory));
+        }
+    }
+
+    private static class RecordingHasher extends Hasher {
+        private final Hasher hasher = new ClassNameHasher();
+        final HashSet<String> classNames = new HashSet<>();
+
+        @Override
+        public int getHashSize() {
+            return hasher.getHashSize();
+        }
+
+        @Override
+        public byte[] getHash(Class c) {
+            classNames.add(c.getName());
+            return hasher.getClassHashValue(c);
+        }
+    }
+
+    // Execute using:
+    //  java -jar build\libs\commcare-core-jmh.jar -wi 5 -i 5 DeserializeFormAndCases
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(DeserializeFormAndCases.class.getSimpleName())
+                .forks(1)
+                .build();
+
+        new Runner(opt).run();
+    }
+}
@@ -0,0 +1,70 @@
+package org.commcare;
+
+import org.javarosa.core.model.condition.EvaluationContext;
+import org.javarosa.core.model.data.UncastData;
+import org.javarosa.core.model.instance.FormInstance;
+import org.javarosa.core.model.instance.TreeElement;
+import org.javarosa.core.model.instance.TreeReference;
+import org.javarosa.xpath.XPathParseTool;
+import org.javarosa.xpath.expr.XPathPathExpr;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures building a fixture with tens of thousands of items and expanding a reference to all
+ * of them, both of which look every item up by name and multiplicity.
+ */
+@State(Scope.Benchmark)
+public class ExpandWideFixture {
+
+    private static final int ITEM_COUNT = 50000;
+
+    private EvaluationContext context;
+    private TreeReference items;
+
+    @Setup
+    public void setUp() throws Exception {
+        context = new EvaluationContext(new FormInstance(buildFixture()));
+        items = ((XPathPathExpr)XPathParseTool.parseXPath("/items/item")).getReference();
+    }
+
+    private static TreeElement buildFixture() {
+        TreeElement root = new TreeElement("items");
+        for (int i = 0; i < ITEM_COUNT; i++) {
+            TreeElement item = new TreeElement("item", i);
+            TreeElement name = new TreeElement("name");
+            name.setValue(new UncastData("item " + i));
+            item.addChild(name);
+            root.addChild(item);
+        }
+        return root;
+    }
+
+    @Benchmark
+    public void buildFixture(Blackhole blackhole) {
+        blackhole.consume(buildFixture());
+    }
+
+    @Benchmark
+    public void expandAllItems(Blackhole blackhole) {
+        blackhole.consume(context.expandReference(items));
+    }
+
+    // Execute using:
+    //  java -jar build\libs\commcare-core-jmh.jar -wi 5 -i 5 ExpandWideFixture
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(ExpandWideFixture.class.getSimpleName())
+                .forks(1)
+                .build();
+
+        new Runner(opt).run();
+    }
+}
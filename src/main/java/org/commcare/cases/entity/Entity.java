@@ -102,11 +102,11 @@ public class Entity<T> {
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < data.length; i++) {
+        for (int i = 0; i < getNumFields(); i++) {
             sb.append("\n").append(i).append("\n");
-            sb.append("Data: ").append(data[i]).append("|");
-            if (sortData[i] != null) {
-                sb.append("SortData: ").append(sortData[i]).append("|");
+            sb.append("Data: ").append(getField(i)).append("|");
+            if (getSortField(i) != null) {
+                sb.append("SortData: ").append(getSortField(i)).append("|");
             }
             sb.append("IsValidField: ").append(isValidField(i));
         }
@@ -0,0 +1,18 @@
+package org.commcare.cases.entity;
+
+import org.javarosa.core.model.instance.TreeReference;
+
+import java.util.List;
+
+/**
+ * Receives entities from NodeEntityFactory.loadEntities as each chunk of them is evaluated, so
+ * they can be shown before the rest are ready.
+ */
+public interface EntityLoadListener {
+    /**
+     * Called on the thread which is loading the entities, once per chunk, in order.
+     *
+     * @param firstIndex The index of the chunk's first entity among all of the entities
+     */
+    void onEntitiesLoaded(int firstIndex, List<Entity<TreeReference>> entities);
+}
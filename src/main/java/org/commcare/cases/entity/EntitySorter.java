@@ -7,33 +7,112 @@ import org.javarosa.core.services.Logger;
 import org.javarosa.xpath.XPathTypeMismatchException;
 import org.javarosa.xpath.expr.FunctionUtils;
 
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class EntitySorter implements Comparator<Entity<TreeReference>> {
+    /**
+     * Lists shorter than this are sorted on one thread even when a parallel sort is asked for
+     */
+    public static final int MIN_PARALLEL_SORT_SIZE = 8192;
+
+    private static final int KIND_TEXT = 0;
+    private static final int KIND_NUMBER = 1;
+    private static final int KIND_RAW = 2;
+
     private final DetailField[] detailFields;
     private final boolean reverseSort;
     private final int[] fieldIndicesToSortBy;
     private boolean hasWarned;
     private EntitySortNotificationInterface notifier;
 
+    // Per sort field, in the order they're sorted by
+    private final int[] kinds;
+    private final boolean[] reversed;
+    private final boolean[] blanksLast;
+
     public EntitySorter(DetailField[] detailFields, boolean reverseSort, int[] fieldIndicesToSortBy,
                         EntitySortNotificationInterface notifier) {
         this.detailFields = detailFields;
         this.fieldIndicesToSortBy = fieldIndicesToSortBy;
         this.reverseSort = reverseSort;
         this.notifier = notifier;
+
+        kinds = new int[fieldIndicesToSortBy.length];
+        reversed = new boolean[fieldIndicesToSortBy.length];
+        blanksLast = new boolean[fieldIndicesToSortBy.length];
+        for (int i = 0; i < fieldIndicesToSortBy.length; i++) {
+            DetailField field = detailFields[fieldIndicesToSortBy[i]];
+            int sortType = field.getSortType();
+            if (sortType == Constants.DATATYPE_TEXT) {
+                kinds[i] = KIND_TEXT;
+            } else if (sortType == Constants.DATATYPE_INTEGER || sortType == Constants.DATATYPE_DECIMAL) {
+                kinds[i] = KIND_NUMBER;
+            } else {
+                kinds[i] = KIND_RAW;
+            }
+            reversed[i] = (field.getSortDirection() == DetailField.DIRECTION_DESCENDING) ^ reverseSort;
+            blanksLast[i] = field.showBlanksLastInSort();
+        }
     }
 
+    /**
+     * Compares two entities by decoding both of their sort keys. Sorting a whole list is far
+     * cheaper through sort, which decodes each entity's keys only once.
+     */
     @Override
     public int compare(Entity<TreeReference> object1, Entity<TreeReference> object2) {
-        for (int fieldIndex : fieldIndicesToSortBy) {
-            boolean reverse = (detailFields[fieldIndex].getSortDirection() == DetailField.DIRECTION_DESCENDING) ^ reverseSort;
-            int cmp = getCmp(object1, object2, fieldIndex, reverse);
-            if (cmp != 0) {
-                return cmp;
-            }
+        return compareKeys(new SortKey(object1), new SortKey(object2));
+    }
+
+    /**
+     * Sort the entities in place, in the same order as sorting them with this comparator
+     */
+    public void sort(List<Entity<TreeReference>> entities) {
+        sort(entities, false);
+    }
+
+    /**
+     * Sort the entities in place, in the same order as sorting them with this comparator
+     *
+     * @param parallel Whether to spread the sort across the available processors, if there
+     *                 are enough entities to be worth it
+     */
+    public void sort(List<Entity<TreeReference>> entities, boolean parallel) {
+        sort(entities, parallel ? Runtime.getRuntime().availableProcessors() : 1);
+    }
+
+    /**
+     * Sort the entities in place, in the same order as sorting them with this comparator.
+     *
+     * Each entity's sort fields are read and converted to their sort type once, up front, and
+     * the sort itself then only compares those keys.
+     *
+     * @param threads How many threads to spread the sort across once there are at least
+     *                MIN_PARALLEL_SORT_SIZE entities. Only the comparisons are spread out:
+     *                entities are read on the calling thread.
+     */
+    public void sort(List<Entity<TreeReference>> entities, int threads) {
+        SortKey[] keys = new SortKey[entities.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = new SortKey(entities.get(i));
+        }
+
+        Comparator<SortKey> keyComparator = this::compareKeys;
+        if (threads > 1 && keys.length >= MIN_PARALLEL_SORT_SIZE) {
+            parallelSort(keys, keyComparator, threads);
+        } else {
+            Arrays.sort(keys, keyComparator);
+        }
+
+        for (int i = 0; i < keys.length; i++) {
+            entities.set(i, keys[i].entity);
         }
-        return 0;
     }
 
     /**
@@ -42,87 +121,169 @@ public class EntitySorter implements Comparator<Entity<TreeReference>> {
      * -If object1 < object2, this method should return a negative number
      * -If object1 > object2, this method should return a positive number
      *
-     * @param reverse - If true, then the rules above are inverted
+     * and then inverted for fields which are sorted in reverse.
      */
-    private int getCmp(Entity<TreeReference> object1, Entity<TreeReference> object2, int index,
-                       boolean reverse) {
-        String a1 = object1.getSortField(index);
-        String a2 = object2.getSortField(index);
-
-        // If one of these is null, we need to get the field in the same index, not the field in SortType
-        if (a1 == null) {
-            a1 = object1.getFieldString(index);
-        }
-        if (a2 == null) {
-            a2 = object2.getFieldString(index);
-        }
+    private int compareKeys(SortKey key1, SortKey key2) {
+        for (int i = 0; i < kinds.length; i++) {
+            // The user's 'blanks' preference is independent of the specified sort order, so
+            // don't factor in the reverse sort here
+            if (key1.blank[i]) {
+                if (!key2.blank[i]) {
+                    return blanksLast[i] ? 1 : -1;
+                }
+                continue;
+            } else if (key2.blank[i]) {
+                return blanksLast[i] ? -1 : 1;
+            }
 
-        boolean showBlanksLast = detailFields[index].showBlanksLastInSort();
-        // The user's 'blanks' preference is independent of the specified sort order, so don't
-        // factor in the 'reverse' parameter here
-        if (a1.equals("")) {
-            if (a2.equals("")) {
-                return 0;
+            int cmp;
+            if (kinds[i] == KIND_NUMBER) {
+                cmp = Double.compare(key1.numbers[i], key2.numbers[i]);
             } else {
-                // a1 is blank and a2 is not
-                return showBlanksLast ? 1 : -1;
+                cmp = key1.text[i].compareTo(key2.text[i]);
+            }
+            if (cmp != 0) {
+                return reversed[i] ? -cmp : cmp;
             }
-        } else if (a2.equals("")) {
-            // a2 is blank and a1 is not
-            return showBlanksLast? -1 : 1;
         }
+        return 0;
+    }
+
+    /**
+     * Sort runs of the keys on separate threads, then merge neighbouring runs until there's
+     * only one. Merges prefer the earlier run on ties, so the sort is stable like Arrays.sort.
+     */
+    private static void parallelSort(SortKey[] keys, final Comparator<SortKey> comparator, int threads) {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            int runLength = (keys.length + threads - 1) / threads;
+            SortKey[] from = keys;
+            SortKey[] to = new SortKey[keys.length];
+            Future<?>[] tasks = new Future<?>[threads];
 
-        int sortType = detailFields[index].getSortType();
-        Comparable c1 = applyType(sortType, a1);
-        Comparable c2 = applyType(sortType, a2);
+            int taskCount = 0;
+            for (int start = 0; start < keys.length; start += runLength) {
+                final int runStart = start;
+                final int runEnd = Math.min(keys.length, start + runLength);
+                tasks[taskCount++] = executor.submit(() -> Arrays.sort(keys, runStart, runEnd, comparator));
+            }
+            await(tasks, taskCount);
 
-        if (c1 == null || c2 == null) {
-            // Don't do something smart here, just bail.
-            return -1;
+            for (; runLength < keys.length; runLength *= 2) {
+                final SortKey[] source = from;
+                final SortKey[] target = to;
+                taskCount = 0;
+                for (int start = 0; start < keys.length; start += 2 * runLength) {
+                    final int left = start;
+                    final int middle = Math.min(keys.length, start + runLength);
+                    final int end = Math.min(keys.length, start + 2 * runLength);
+                    tasks[taskCount++] = executor.submit(() -> merge(source, target, left, middle, end, comparator));
+                }
+                await(tasks, taskCount);
+                from = target;
+                to = source;
+            }
+
+            if (from != keys) {
+                System.arraycopy(from, 0, keys, 0, keys.length);
+            }
+        } finally {
+            executor.shutdown();
         }
+    }
 
-        return (reverse ? -1 : 1) * c1.compareTo(c2);
+    private static void merge(SortKey[] source, SortKey[] target, int left, int middle, int end,
+                              Comparator<SortKey> comparator) {
+        int i = left;
+        int j = middle;
+        for (int k = left; k < end; k++) {
+            if (j >= end || (i < middle && comparator.compare(source[i], source[j]) <= 0)) {
+                target[k] = source[i++];
+            } else {
+                target[k] = source[j++];
+            }
+        }
     }
 
-    private Comparable applyType(int sortType, String value) {
-        try {
-            if (sortType == Constants.DATATYPE_TEXT) {
-                return value.toLowerCase();
-            } else if (sortType == Constants.DATATYPE_INTEGER) {
-                //Double int compares just fine here and also
-                //deals with NaN's appropriately
-
-                double ret = FunctionUtils.toInt(value);
-                if (Double.isNaN(ret)) {
-                    String[] stringArgs = new String[3];
-                    stringArgs[2] = value;
-                    if (!hasWarned) {
-                        notifier.notifyBadFilter(stringArgs);
-                        hasWarned = true;
-                    }
+    private static void await(Future<?>[] tasks, int taskCount) {
+        for (int i = 0; i < taskCount; i++) {
+            try {
+                tasks[i].get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while sorting entities");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException)cause;
                 }
-                return ret;
-            } else if (sortType == Constants.DATATYPE_DECIMAL) {
-                double ret = FunctionUtils.toDouble(value);
-                if (Double.isNaN(ret)) {
-
-                    String[] stringArgs = new String[3];
-                    stringArgs[2] = value;
-                    if (!hasWarned) {
-                        notifier.notifyBadFilter(stringArgs);
-                        hasWarned = true;
-                    }
-                }
-                return ret;
+                throw new RuntimeException(cause);
+            }
+        }
+    }
+
+    private double toNumber(int sortType, String value) {
+        double ret;
+        try {
+            //Double compares ints just fine here and also
+            //deals with NaN's appropriately
+            if (sortType == Constants.DATATYPE_INTEGER) {
+                ret = FunctionUtils.toInt(value);
             } else {
-                //Hrmmmm :/ Handle better?
-                return value;
+                ret = FunctionUtils.toDouble(value);
             }
         } catch (XPathTypeMismatchException e) {
             //XPathErrorLogger.INSTANCE.logErrorToCurrentApp(e);
             Logger.exception("Exception when sorting case list.", e);
             e.printStackTrace();
-            return null;
+            // Sorted along with values which aren't numbers
+            return Double.NaN;
+        }
+        if (Double.isNaN(ret)) {
+            String[] stringArgs = new String[3];
+            stringArgs[2] = value;
+            if (!hasWarned) {
+                notifier.notifyBadFilter(stringArgs);
+                hasWarned = true;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * An entity's values for each of the fields being sorted by, in the form they compare in
+     */
+    private final class SortKey {
+        private final Entity<TreeReference> entity;
+        private final boolean[] blank;
+        private final String[] text;
+        private final double[] numbers;
+
+        private SortKey(Entity<TreeReference> entity) {
+            this.entity = entity;
+            blank = new boolean[kinds.length];
+            text = new String[kinds.length];
+            numbers = new double[kinds.length];
+
+            for (int i = 0; i < kinds.length; i++) {
+                int index = fieldIndicesToSortBy[i];
+                String value = entity.getSortField(index);
+                // If this is null, we need to get the field in the same index, not the field in SortType
+                if (value == null) {
+                    value = entity.getFieldString(index);
+                }
+
+                if (value.equals("")) {
+                    blank[i] = true;
+                } else if (kinds[i] == KIND_TEXT) {
+                    text[i] = value.toLowerCase();
+                } else if (kinds[i] == KIND_NUMBER) {
+                    numbers[i] = toNumber(detailFields[index].getSortType(), value);
+                } else {
+                    //Hrmmmm :/ Handle better?
+                    text[i] = value;
+                }
+            }
         }
     }
 }
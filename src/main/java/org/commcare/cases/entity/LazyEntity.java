@@ -0,0 +1,106 @@
+package org.commcare.cases.entity;
+
+import org.javarosa.core.model.condition.EvaluationContext;
+import org.javarosa.core.model.instance.TreeReference;
+
+/**
+ * An entity which evaluates its fields the first time they're asked for, rather than when
+ * it's created, and keeps the results.
+ *
+ * The fields used for sorting are evaluated up front, since sorting reads them for every
+ * entity anyway. The entity holds on to its evaluation context until every field has been
+ * evaluated, so fields may be evaluated on a different thread than the entity was created on.
+ */
+public class LazyEntity extends Entity<TreeReference> {
+
+    private final NodeEntityFactory factory;
+    private EvaluationContext nodeContext;
+
+    private final Object[] data;
+    private final String[] sortData;
+    private final boolean[] relevancyData;
+    private final boolean[] evaluated;
+    private int unevaluatedCount;
+    private Boolean shouldReceiveFocus;
+
+    LazyEntity(NodeEntityFactory factory, EvaluationContext nodeContext, TreeReference t,
+               String extraKey, int[] eagerFieldIndices) {
+        super(t, extraKey);
+        this.factory = factory;
+        this.nodeContext = nodeContext;
+
+        int length = factory.getDetail().getHeaderForms().length;
+        data = new Object[length];
+        sortData = new String[length];
+        relevancyData = new boolean[length];
+        evaluated = new boolean[length];
+        unevaluatedCount = length;
+
+        for (int index : eagerFieldIndices) {
+            ensureEvaluated(index);
+        }
+    }
+
+    private synchronized void ensureEvaluated(int i) {
+        if (evaluated[i]) {
+            return;
+        }
+        factory.evaluateField(i, nodeContext, data, sortData, relevancyData);
+        evaluated[i] = true;
+        unevaluatedCount--;
+        releaseContextIfDone();
+    }
+
+    private void releaseContextIfDone() {
+        if (unevaluatedCount == 0 && shouldReceiveFocus != null) {
+            nodeContext = null;
+        }
+    }
+
+    /**
+     * @return Whether the field at the given index has been evaluated yet
+     */
+    public synchronized boolean isFieldEvaluated(int i) {
+        return evaluated[i];
+    }
+
+    @Override
+    public Object getField(int i) {
+        ensureEvaluated(i);
+        return data[i];
+    }
+
+    @Override
+    public boolean isValidField(int fieldIndex) {
+        ensureEvaluated(fieldIndex);
+        return relevancyData[fieldIndex] && !data[fieldIndex].equals("");
+    }
+
+    @Override
+    public String getSortField(int i) {
+        ensureEvaluated(i);
+        return sortData[i];
+    }
+
+    @Override
+    public int getNumFields() {
+        return data.length;
+    }
+
+    @Override
+    public Object[] getData() {
+        for (int i = 0; i < data.length; i++) {
+            ensureEvaluated(i);
+        }
+        return data;
+    }
+
+    @Override
+    public synchronized boolean shouldReceiveFocus() {
+        if (shouldReceiveFocus == null) {
+            shouldReceiveFocus = factory.getDetail().evaluateFocusFunction(nodeContext);
+            releaseContextIfDone();
+        }
+        return shouldReceiveFocus;
+    }
+}
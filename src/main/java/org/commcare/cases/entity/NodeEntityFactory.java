@@ -12,18 +12,29 @@ import org.javarosa.core.model.utils.InstrumentationUtils;
 import org.javarosa.xpath.XPathException;
 import org.javarosa.xpath.parser.XPathSyntaxException;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author ctsims
  */
 public class NodeEntityFactory {
+    /**
+     * How many entities loadEntities evaluates and hands over at a time by default
+     */
+    public static final int DEFAULT_LOAD_CHUNK_SIZE = 100;
+
     private boolean mEntitySetInitialized = false;
-    private static final Object mPreparationLock = new Object();
+    private final Object mPreparationLock = new Object();
 
     protected final EvaluationContext ec;
     protected final Detail detail;
     private ReducingTraceReporter traceReporter;
+    private boolean lazyFieldEvaluation;
+    private int[] eagerFieldIndices;
 
     public NodeEntityFactory(Detail d, EvaluationContext ec) {
         this.detail = d;
@@ -34,50 +45,230 @@ public class NodeEntityFactory {
         this.traceReporter = new ReducingTraceReporter(false);
     }
 
+    /**
+     * Have the factory return entities which only evaluate the fields used for sorting up
+     * front, and evaluate each other field the first time it's asked for. Useful when only a
+     * few of the entities will ever be displayed.
+     */
+    public void enableLazyFieldEvaluation() {
+        this.lazyFieldEvaluation = true;
+    }
+
     public Detail getDetail() {
         return detail;
     }
 
     public Entity<TreeReference> getEntity(TreeReference data) {
-        EvaluationContext nodeContext = new EvaluationContext(ec, data);
+        return getEntity(data, ec);
+    }
+
+    /**
+     * Evaluate the entity for the provided reference in a context derived from the provided
+     * one, which is either the factory's own context or one derived from it for a single
+     * loading thread.
+     */
+    protected Entity<TreeReference> getEntity(TreeReference data, EvaluationContext baseContext) {
+        EvaluationContext nodeContext = new EvaluationContext(baseContext, data);
         if (traceReporter != null) {
             nodeContext.setDebugModeOn(traceReporter);
         }
         detail.populateEvaluationContextVariables(nodeContext);
 
-        int length = detail.getHeaderForms().length;
         String extraKey = loadCalloutDataMapKey(nodeContext);
+        if (lazyFieldEvaluation) {
+            return new LazyEntity(this, nodeContext, data, extraKey, getEagerFieldIndices());
+        }
 
+        int length = detail.getHeaderForms().length;
         Object[] fieldData = new Object[length];
         String[] sortData = new String[length];
         boolean[] relevancyData = new boolean[length];
-        int count = 0;
-        for (DetailField f : detail.getFields()) {
-            try {
-                fieldData[count] = f.getTemplate().evaluate(nodeContext);
-                Text sortText = f.getSort();
-                if (sortText == null) {
-                    sortData[count] = null;
-                } else {
-                    sortData[count] = sortText.evaluate(nodeContext);
-                }
-                relevancyData[count] = f.isRelevant(nodeContext);
-            } catch (XPathSyntaxException e) {
-                /**
-                 * TODO: 25/06/17 remove catch blocks from here
-                 * We are wrapping the original exception in a new XPathException to avoid
-                 * refactoring large number of functions caused by throwing XPathSyntaxException here.
-                 */
-                XPathException xe = new XPathException(e);
-                throw xe;
-            }
-            count++;
+        for (int i = 0; i < length; i++) {
+            evaluateField(i, nodeContext, fieldData, sortData, relevancyData);
         }
 
         return new Entity<>(fieldData, sortData, relevancyData, data, extraKey,
                 detail.evaluateFocusFunction(nodeContext));
     }
 
+    /**
+     * Evaluate the display, sort and relevancy values of one of the detail's fields into the
+     * provided arrays
+     */
+    void evaluateField(int index, EvaluationContext nodeContext, Object[] fieldData,
+                       String[] sortData, boolean[] relevancyData) {
+        DetailField f = detail.getFields()[index];
+        try {
+            fieldData[index] = f.getTemplate().evaluate(nodeContext);
+            Text sortText = f.getSort();
+            if (sortText == null) {
+                sortData[index] = null;
+            } else {
+                sortData[index] = sortText.evaluate(nodeContext);
+            }
+            relevancyData[index] = f.isRelevant(nodeContext);
+        } catch (XPathSyntaxException e) {
+            /**
+             * TODO: 25/06/17 remove catch blocks from here
+             * We are wrapping the original exception in a new XPathException to avoid
+             * refactoring large number of functions caused by throwing XPathSyntaxException here.
+             */
+            XPathException xe = new XPathException(e);
+            throw xe;
+        }
+    }
+
+    /**
+     * @return The fields lazy entities evaluate up front: the ones the detail sorts by
+     */
+    private int[] getEagerFieldIndices() {
+        if (eagerFieldIndices == null) {
+            eagerFieldIndices = detail.getOrderedFieldIndicesForSorting();
+        }
+        return eagerFieldIndices;
+    }
+
+    /**
+     * Evaluate the entities for the provided references, a chunk at a time, handing each chunk
+     * to the listener as soon as it's ready.
+     *
+     * With more than one thread, chunks are evaluated on a pool of workers which each have
+     * their own evaluation context, derived from the factory's, and share its query context.
+     * The query caches in this codebase can be used from several threads at once, but the
+     * instances being read, and the storage behind them, also have to support concurrent
+     * reads. Entities are still handed over in order, on the calling thread, so the first
+     * chunk can be shown while the rest are being evaluated.
+     *
+     * Tracing is not thread safe, so with debug trace output on this always uses one thread.
+     *
+     * @param references The references to evaluate entities for, usually from
+     *                   expandReferenceList
+     * @param threads    How many threads to evaluate entities on
+     * @param chunkSize  How many entities to evaluate and hand over at a time
+     * @param listener   Receives each chunk of entities, and may be null
+     * @return All of the entities, in the same order as their references
+     */
+    public List<Entity<TreeReference>> loadEntities(List<TreeReference> references, int threads,
+                                                    int chunkSize, EntityLoadListener listener) {
+        int chunkCount = (references.size() + chunkSize - 1) / chunkSize;
+        List<Entity<TreeReference>> entities = new ArrayList<>(references.size());
+        if (threads <= 1 || chunkCount <= 1 || traceReporter != null) {
+            for (int chunk = 0; chunk < chunkCount; chunk++) {
+                List<Entity<TreeReference>> loaded = loadChunk(references, chunk, chunkSize, ec);
+                entities.addAll(loaded);
+                if (listener != null) {
+                    listener.onEntitiesLoaded(chunk * chunkSize, loaded);
+                }
+            }
+            return entities;
+        }
+
+        ChunkedEntityLoad load = new ChunkedEntityLoad(references, chunkCount, chunkSize);
+        int workers = Math.min(threads, chunkCount);
+        ExecutorService executor = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "entity-loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            for (int i = 0; i < workers; i++) {
+                executor.execute(load);
+            }
+            for (int chunk = 0; chunk < chunkCount; chunk++) {
+                List<Entity<TreeReference>> loaded = load.awaitChunk(chunk);
+                entities.addAll(loaded);
+                if (listener != null) {
+                    listener.onEntitiesLoaded(chunk * chunkSize, loaded);
+                }
+            }
+        } finally {
+            load.cancel();
+            executor.shutdown();
+        }
+        return entities;
+    }
+
+    private List<Entity<TreeReference>> loadChunk(List<TreeReference> references, int chunk,
+                                                  int chunkSize, EvaluationContext baseContext) {
+        int end = Math.min(references.size(), (chunk + 1) * chunkSize);
+        List<Entity<TreeReference>> loaded = new ArrayList<>(end - chunk * chunkSize);
+        for (int i = chunk * chunkSize; i < end; i++) {
+            loaded.add(getEntity(references.get(i), baseContext));
+        }
+        return loaded;
+    }
+
+    /**
+     * The chunks of one call to loadEntities. Each worker thread runs this, taking the next
+     * chunk nobody has started on until there are none left, so chunks finish roughly in order.
+     */
+    private class ChunkedEntityLoad implements Runnable {
+        private final List<TreeReference> references;
+        private final List<Entity<TreeReference>>[] chunks;
+        private final int chunkSize;
+        private final AtomicInteger nextChunk = new AtomicInteger();
+        private Throwable failure;
+
+        @SuppressWarnings("unchecked")
+        ChunkedEntityLoad(List<TreeReference> references, int chunkCount, int chunkSize) {
+            this.references = references;
+            this.chunks = new List[chunkCount];
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        public void run() {
+            EvaluationContext workerContext = new EvaluationContext(ec, ec.getContextRef());
+            int chunk;
+            while ((chunk = nextChunk.getAndIncrement()) < chunks.length) {
+                List<Entity<TreeReference>> loaded;
+                try {
+                    loaded = loadChunk(references, chunk, chunkSize, workerContext);
+                } catch (RuntimeException | Error e) {
+                    synchronized (this) {
+                        if (failure == null) {
+                            failure = e;
+                        }
+                        notifyAll();
+                    }
+                    cancel();
+                    return;
+                }
+                synchronized (this) {
+                    chunks[chunk] = loaded;
+                    notifyAll();
+                }
+            }
+        }
+
+        synchronized List<Entity<TreeReference>> awaitChunk(int chunk) {
+            while (chunks[chunk] == null) {
+                if (failure instanceof Error) {
+                    throw (Error)failure;
+                } else if (failure != null) {
+                    throw (RuntimeException)failure;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while loading entities");
+                }
+            }
+            List<Entity<TreeReference>> loaded = chunks[chunk];
+            // The caller holds on to the entities, so there's no need to keep them here too
+            chunks[chunk] = null;
+            return loaded;
+        }
+
+        /**
+         * Stop workers from starting on any more chunks
+         */
+        void cancel() {
+            nextChunk.set(chunks.length);
+        }
+    }
+
     /**
      * Evaluate the lookup's 'template' detail block and use result as key for
      * attaching external (callout) data to the entity.
@@ -14,11 +14,21 @@ public abstract class SortableEntityAdapter implements EntitySortNotificationInt
     private Detail detail;
     private int[] currentSort = {};
     private boolean reverseSort = false;
+    private final boolean parallelSort;
 
     public SortableEntityAdapter(List<Entity<TreeReference>> entityList, Detail detail,
                                  boolean sortByDefault) {
+        this(entityList, detail, sortByDefault, false);
+    }
+
+    /**
+     * @param parallelSort Whether to sort long lists on several threads
+     */
+    public SortableEntityAdapter(List<Entity<TreeReference>> entityList, Detail detail,
+                                 boolean sortByDefault, boolean parallelSort) {
         this.entities = entityList;
         this.detail = detail;
+        this.parallelSort = parallelSort;
 
         int[] orderedFieldsForSorting = determineFieldsForSortingInOrder();
         if (sortByDefault && orderedFieldsForSorting.length != 0) {
@@ -49,8 +59,8 @@ public abstract class SortableEntityAdapter implements EntitySortNotificationInt
         this.reverseSort = reverse;
         currentSort = fields;
 
-        java.util.Collections.sort(this.entities,
-                new EntitySorter(detail.getFields(), reverseSort, currentSort, this));
+        new EntitySorter(detail.getFields(), reverseSort, currentSort, this)
+                .sort(this.entities, parallelSort);
     }
 
     public int[] getCurrentSort() {
@@ -9,9 +9,13 @@ import org.javarosa.core.model.data.StringData;
 import org.javarosa.core.model.data.UncastData;
 import org.javarosa.core.model.instance.TreeElement;
 import org.javarosa.core.model.instance.TreeReference;
+import org.javarosa.core.model.instance.utils.ITreeVisitor;
 import org.javarosa.core.model.utils.PreloadUtils;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.Enumeration;
+import java.util.HashSet;
 import java.util.Vector;
 
 /**
@@ -104,7 +108,7 @@ public class CaseChildElement extends StorageBackedChildElement<Case> implements
     }
 
     private TreeElement buildAndCacheInternalTree(Case c) {
-        TreeElement cacheBuilder = new TreeElement("case");
+        CaseTreeElement cacheBuilder = new CaseTreeElement();
         cacheBuilder.setMult(this.mult);
 
         cacheBuilder.setAttribute(null, nameId, c.getCaseId());
@@ -134,14 +138,15 @@ public class CaseChildElement extends StorageBackedChildElement<Case> implements
         scratch.setAnswer(new DateData(c.getLastModified()));
         cacheBuilder.addChild(scratch);
 
-        setCaseProperties(c, cacheBuilder);
-
+        int propertiesEnd = cacheBuilder.getNumChildren();
         TreeElement index = buildIndexTreeElement(c, done);
         cacheBuilder.addChild(index);
 
         TreeElement attachments = buildAttachmentTreeElement(c, done);
         cacheBuilder.addChild(attachments);
 
+        cacheBuilder.buildPropertiesLazily(c, propertiesEnd);
+
         cacheBuilder.setParent(this.parent);
         done[0] = true;
 
@@ -149,23 +154,153 @@ public class CaseChildElement extends StorageBackedChildElement<Case> implements
         return cacheBuilder;
     }
 
-    private void setCaseProperties(Case c, TreeElement cacheBuilder) {
-        for (Enumeration en = c.getProperties().keys(); en.hasMoreElements(); ) {
-            String key = (String)en.nextElement();
+    /**
+     * The cached tree for a case, which only builds the elements for the case's properties as
+     * they are looked up by name. Anything walking over all of the children first builds the
+     * elements for every remaining property.
+     *
+     * Property elements are kept ahead of the index and attachment elements, in the same place
+     * they would have been built eagerly.
+     */
+    private class CaseTreeElement extends TreeElement {
+        private Case c;
+        private HashSet<String> unbuiltProperties;
+        private int propertiesEnd;
+
+        CaseTreeElement() {
+            super("case");
+        }
+
+        /**
+         * Start building the provided case's properties on demand, once all of the other
+         * children are in place.
+         *
+         * @param propertiesEnd The position of the child which property elements are placed
+         *                      before
+         */
+        void buildPropertiesLazily(Case c, int propertiesEnd) {
+            this.c = c;
+            this.propertiesEnd = propertiesEnd;
+        }
+
+        private synchronized void buildProperty(String name) {
+            if (c == null) {
+                return;
+            }
+            if (TreeReference.NAME_WILDCARD.equals(name)) {
+                buildAllProperties();
+                return;
+            }
+            if (unbuiltProperties == null) {
+                unbuiltProperties = new HashSet<>();
+                for (Enumeration en = c.getProperties().keys(); en.hasMoreElements(); ) {
+                    String key = (String)en.nextElement();
+
+                    //this is an unfortunate complication of our internal model
+                    if (!LAST_MODIFIED_KEY.equals(key)) {
+                        unbuiltProperties.add(key);
+                    }
+                }
+            }
+            if (unbuiltProperties.remove(name)) {
+                addPropertyElement(name);
+            }
+        }
 
-            //this is an unfortunate complication of our internal model
-            if (LAST_MODIFIED_KEY.equals(key)) {
-                continue;
+        private synchronized void buildAllProperties() {
+            if (c == null) {
+                return;
             }
+            for (Enumeration en = c.getProperties().keys(); en.hasMoreElements(); ) {
+                String key = (String)en.nextElement();
+                if (!LAST_MODIFIED_KEY.equals(key) &&
+                        (unbuiltProperties == null || unbuiltProperties.contains(key))) {
+                    addPropertyElement(key);
+                }
+            }
+            c = null;
+            unbuiltProperties = null;
+        }
 
-            TreeElement scratch = new TreeElement(parent.intern(key));
+        private void addPropertyElement(String key) {
+            TreeElement scratch = new TreeElement(CaseChildElement.this.parent.intern(key));
             Object temp = c.getProperty(key);
             if (temp instanceof String) {
                 scratch.setValue(new UncastData((String)temp));
             } else {
                 scratch.setValue(PreloadUtils.wrapIndeterminedObject(temp));
             }
-            cacheBuilder.addChild(scratch, true);
+            // Every property has its own name, so each is the first of its name
+            scratch.setMult(0);
+            scratch.setParent(this);
+            scratch.setInstanceName(getInstanceName());
+            insertChildAt(scratch, propertiesEnd++);
+        }
+
+        @Override
+        public TreeElement getChild(String name, int multiplicity) {
+            buildProperty(name);
+            return super.getChild(name, multiplicity);
+        }
+
+        @Override
+        public Vector<TreeElement> getChildrenWithName(String name) {
+            buildProperty(name);
+            return super.getChildrenWithName(name);
+        }
+
+        @Override
+        public int getChildMultiplicity(String name) {
+            buildProperty(name);
+            return super.getChildMultiplicity(name);
+        }
+
+        @Override
+        public int getNumChildren() {
+            buildAllProperties();
+            return super.getNumChildren();
+        }
+
+        @Override
+        public TreeElement getChildAt(int i) {
+            buildAllProperties();
+            return super.getChildAt(i);
+        }
+
+        @Override
+        public void accept(ITreeVisitor visitor) {
+            buildAllProperties();
+            super.accept(visitor);
+        }
+
+        @Override
+        public TreeElement shallowCopy() {
+            buildAllProperties();
+            return super.shallowCopy();
+        }
+
+        @Override
+        public TreeElement deepCopy(boolean includeTemplates) {
+            buildAllProperties();
+            return super.deepCopy(includeTemplates);
+        }
+
+        @Override
+        public void writeExternal(DataOutputStream out) throws IOException {
+            buildAllProperties();
+            super.writeExternal(out);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            buildAllProperties();
+            return super.equals(o);
+        }
+
+        @Override
+        public int hashCode() {
+            buildAllProperties();
+            return super.hashCode();
         }
     }
 
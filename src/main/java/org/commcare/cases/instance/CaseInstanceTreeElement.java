@@ -58,6 +58,13 @@ public class CaseInstanceTreeElement extends StorageInstanceTreeElement<Case, Ca
         return filter;
     }
 
+    @Override
+    protected boolean canScanIndexValues(String filterIndex) {
+        //Case indices aren't guaranteed to be stored as metadata fields on the case record
+        //(they may live in their own table), so they can only be matched exactly
+        return !filterIndex.startsWith(Case.INDEX_CASE_INDEX_PRE);
+    }
+
     @Override
     protected Hashtable<XPathPathExpr, String> getStorageIndexMap() {
         Hashtable<XPathPathExpr, String> indices = new Hashtable<>();
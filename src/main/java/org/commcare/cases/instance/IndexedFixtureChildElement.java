@@ -11,6 +11,7 @@ import org.javarosa.core.model.data.UncastData;
 import org.javarosa.core.model.instance.TreeElement;
 import org.javarosa.core.model.instance.TreeReference;
 import org.javarosa.core.model.trace.EvaluationTrace;
+import org.javarosa.core.util.RecordIdSet;
 import org.javarosa.model.xform.XPathReference;
 
 import java.util.HashMap;
@@ -140,20 +141,28 @@ public class IndexedFixtureChildElement extends StorageBackedChildElement<Storag
                                                            String recordObjectKey,
                                                            String[] metaFields,
                                                            QueryContext context) {
-        Pair<String, LinkedHashSet<Integer>> tranche =
-                recordSetCache.getRecordSetForRecordId(recordSetKey, recordId);
+        // Threads sharing the cache may have gotten here together, so only the first one to
+        // take the lock loads the records
+        synchronized (recordObjectCache) {
+            if (recordObjectCache.isLoaded(recordObjectKey, recordId)) {
+                return recordObjectCache.getLoadedRecordObject(recordObjectKey, recordId);
+            }
+
+            Pair<String, RecordIdSet> tranche =
+                    recordSetCache.getRecordSetForRecordId(recordSetKey, recordId);
 
-        EvaluationTrace loadTrace =
-                new EvaluationTrace(String.format("Model [%s]: Limited Scope Partial Bulk Load [%s}",
-                        recordObjectKey,tranche.first));
+            EvaluationTrace loadTrace =
+                    new EvaluationTrace(String.format("Model [%s]: Limited Scope Partial Bulk Load [%s}",
+                            recordObjectKey,tranche.first));
 
-        LinkedHashSet<Integer>  body = tranche.second;
-        parent.getStorage().bulkReadMetadata(body, metaFields, recordObjectCache.getLoadedCaseMap(recordObjectKey));
-        loadTrace.setOutcome("Loaded: " + body.size());
+            LinkedHashSet<Integer>  body = tranche.second.toLinkedHashSet();
+            parent.getStorage().bulkReadMetadata(body, metaFields, recordObjectCache.getLoadedCaseMap(recordObjectKey));
+            loadTrace.setOutcome("Loaded: " + body.size());
 
-        context.reportTrace(loadTrace);
+            context.reportTrace(loadTrace);
 
-        return recordObjectCache.getLoadedRecordObject(recordObjectKey, recordId);
+            return recordObjectCache.getLoadedRecordObject(recordObjectKey, recordId);
+        }
     }
 
     private String[] readSingleRecordMetadataFromStorage(int recordId, String[] metaFields, QueryContext context) {
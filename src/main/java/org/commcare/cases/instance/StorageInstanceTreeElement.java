@@ -15,6 +15,7 @@ import org.javarosa.core.services.storage.IStorageIterator;
 import org.javarosa.core.services.storage.IStorageUtilityIndexed;
 import org.javarosa.core.util.DataUtil;
 import org.javarosa.core.util.Interner;
+import org.javarosa.core.util.RecordIdSet;
 import org.javarosa.core.util.externalizable.Externalizable;
 
 import java.util.LinkedHashSet;
@@ -283,23 +284,27 @@ public abstract class StorageInstanceTreeElement<Model extends Externalizable, T
         RecordObjectCache<Model> recordObjectCache = getRecordObjectCacheIfRelevant(context);
 
         if(recordObjectCache != null) {
-            if (recordObjectCache.isLoaded(storageCacheKey, recordId)) {
-                return recordObjectCache.getLoadedRecordObject(storageCacheKey, recordId);
-            }
-
-            if (canLoadRecordFromGroup(recordSetCache, getStorageCacheName(), recordId)) {
-                Pair<String, LinkedHashSet<Integer>> tranche =
-                        recordSetCache.getRecordSetForRecordId(storageCacheKey, recordId);
-                EvaluationTrace loadTrace =
-                        new EvaluationTrace(String.format("Model [%s]: Bulk Load [%s}",
-                                this.getStorageCacheName(),tranche.first));
-
-                LinkedHashSet<Integer>  body = tranche.second;
-                storage.bulkRead(body, recordObjectCache.getLoadedCaseMap(storageCacheKey));
-                loadTrace.setOutcome("Loaded: " + body.size());
-                context.reportTrace(loadTrace);
-
-                return recordObjectCache.getLoadedRecordObject(storageCacheKey, recordId);
+            // Held across the bulk read so that threads sharing the cache don't both load the
+            // same records, or read the map while it's being filled
+            synchronized (recordObjectCache) {
+                if (recordObjectCache.isLoaded(storageCacheKey, recordId)) {
+                    return recordObjectCache.getLoadedRecordObject(storageCacheKey, recordId);
+                }
+
+                if (canLoadRecordFromGroup(recordSetCache, getStorageCacheName(), recordId)) {
+                    Pair<String, RecordIdSet> tranche =
+                            recordSetCache.getRecordSetForRecordId(storageCacheKey, recordId);
+                    EvaluationTrace loadTrace =
+                            new EvaluationTrace(String.format("Model [%s]: Bulk Load [%s}",
+                                    this.getStorageCacheName(),tranche.first));
+
+                    LinkedHashSet<Integer>  body = tranche.second.toLinkedHashSet();
+                    storage.bulkRead(body, recordObjectCache.getLoadedCaseMap(storageCacheKey));
+                    loadTrace.setOutcome("Loaded: " + body.size());
+                    context.reportTrace(loadTrace);
+
+                    return recordObjectCache.getLoadedRecordObject(storageCacheKey, recordId);
+                }
             }
         }
 
@@ -8,8 +8,10 @@ import org.javarosa.core.util.externalizable.ExtUtil;
 import org.javarosa.core.util.externalizable.ExtWrapList;
 import org.javarosa.core.util.externalizable.ExtWrapMapPoly;
 import org.javarosa.core.util.externalizable.ExtWrapNullable;
+import org.javarosa.core.util.externalizable.LazyExternalizable;
 import org.javarosa.core.util.externalizable.PrototypeFactory;
 
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
@@ -23,9 +25,14 @@ import java.util.Vector;
  * as it demonstrated by the "userid" field. This prevents problems with datatype
  * representation across versions.
  *
+ * Cases read lazily from a record only decode their header fields (id, type, name, status, and
+ * date opened) up front. Their indices and properties, which include the owner id, are decoded
+ * together the first time either is used. Subclasses accessing those fields directly need to
+ * call decodeLazyFields first.
+ *
  * @author Clayton Sims
  */
-public class Case implements Persistable, IMetaData {
+public class Case implements Persistable, IMetaData, LazyExternalizable {
     public static final String USER_ID_KEY = "userid";
     public static final String EXTERNAL_ID_KEY = "external_id";
     public static final String STORAGE_KEY = "CASE";
@@ -53,6 +60,14 @@ public class Case implements Persistable, IMetaData {
 
     protected Vector<CaseIndex> indices = new Vector<>();
 
+    /**
+     * The record this case was lazily read from while its indices and properties are still
+     * undecoded, along with where they start in it
+     */
+    private volatile byte[] undecodedRecord;
+    private int undecodedOffset;
+    private PrototypeFactory undecodedFactory;
+
     /**
      * NOTE: This constructor is for serialization only.
      */
@@ -103,18 +118,22 @@ public class Case implements Persistable, IMetaData {
     }
 
     public String getUserId() {
+        decodeLazyFields();
         return (String)data.get(USER_ID_KEY);
     }
 
     public void setUserId(String id) {
+        decodeLazyFields();
         data.put(USER_ID_KEY, id);
     }
 
     public String getExternalId() {
+        decodeLazyFields();
         return (String)data.get(EXTERNAL_ID_KEY);
     }
 
     public void setExternalId(String id) {
+        decodeLazyFields();
         data.put(EXTERNAL_ID_KEY, id);
     }
 
@@ -136,18 +155,71 @@ public class Case implements Persistable, IMetaData {
 
     @Override
     public void readExternal(DataInputStream in, PrototypeFactory pf) throws IOException, DeserializationException {
+        undecodedRecord = null;
+        readHeader(in, pf);
+        readIndicesAndProperties(in, pf);
+    }
+
+    @Override
+    public void readExternalLazily(byte[] record, PrototypeFactory pf) throws IOException, DeserializationException {
+        undecodedRecord = null;
+        ByteArrayInputStream bytes = new ByteArrayInputStream(record);
+        readHeader(new DataInputStream(bytes), pf);
+
+        undecodedOffset = record.length - bytes.available();
+        undecodedFactory = pf;
+        undecodedRecord = record;
+    }
+
+    private void readHeader(DataInputStream in, PrototypeFactory pf) throws IOException, DeserializationException {
         typeId = ExtUtil.readString(in);
         id = ExtUtil.nullIfEmpty(ExtUtil.readString(in));
         name = ExtUtil.nullIfEmpty(ExtUtil.readString(in));
         closed = ExtUtil.readBool(in);
         dateOpened = (Date)ExtUtil.read(in, new ExtWrapNullable(Date.class), pf);
         recordId = ExtUtil.readInt(in);
+    }
+
+    private void readIndicesAndProperties(DataInputStream in, PrototypeFactory pf) throws IOException, DeserializationException {
         indices = (Vector<CaseIndex>)ExtUtil.read(in, new ExtWrapList(CaseIndex.class), pf);
         data = (Hashtable)ExtUtil.read(in, new ExtWrapMapPoly(String.class, true), pf);
     }
 
+    /**
+     * Decode this case's indices and properties if it was read lazily and they haven't been
+     * decoded yet.
+     */
+    protected void decodeLazyFields() {
+        if (undecodedRecord == null) {
+            return;
+        }
+        synchronized (this) {
+            byte[] record = undecodedRecord;
+            if (record == null) {
+                return;
+            }
+            try {
+                readIndicesAndProperties(new DataInputStream(new ByteArrayInputStream(record,
+                        undecodedOffset, record.length - undecodedOffset)), undecodedFactory);
+            } catch (IOException | DeserializationException e) {
+                throw new RuntimeException("Couldn't decode the properties of case " + id + ": " + e.getMessage());
+            }
+            undecodedFactory = null;
+            undecodedRecord = null;
+        }
+    }
+
+    /**
+     * @return Whether this case was read lazily and its indices and properties haven't been
+     * decoded yet
+     */
+    public boolean hasUndecodedFields() {
+        return undecodedRecord != null;
+    }
+
     @Override
     public void writeExternal(DataOutputStream out) throws IOException {
+        decodeLazyFields();
         ExtUtil.writeString(out, typeId);
         ExtUtil.writeString(out, ExtUtil.emptyIfNull(id));
         ExtUtil.writeString(out, ExtUtil.emptyIfNull(name));
@@ -159,6 +231,7 @@ public class Case implements Persistable, IMetaData {
     }
 
     public void setProperty(String key, Object value) {
+        decodeLazyFields();
         this.data.put(key, value);
     }
 
@@ -166,6 +239,7 @@ public class Case implements Persistable, IMetaData {
         if ("case-id".equals(key)) {
             return id;
         }
+        decodeLazyFields();
         return data.get(key);
     }
 
@@ -181,6 +255,7 @@ public class Case implements Persistable, IMetaData {
     }
 
     public Hashtable getProperties() {
+        decodeLazyFields();
         return data;
     }
 
@@ -235,6 +310,7 @@ public class Case implements Persistable, IMetaData {
      * Returns true if an index was replaced, false if an index was not
      */
     public boolean setIndex(CaseIndex index) {
+        decodeLazyFields();
         boolean indexReplaced = false;
         //remove existing indices at this name
         for (CaseIndex i : this.indices) {
@@ -249,19 +325,23 @@ public class Case implements Persistable, IMetaData {
     }
 
     public Vector<CaseIndex> getIndices() {
+        decodeLazyFields();
         return indices;
     }
 
     public void updateAttachment(String attachmentName, String reference) {
+        decodeLazyFields();
         data.put(ATTACHMENT_PREFIX + attachmentName, reference);
     }
 
     public String getAttachmentSource(String attachmentName) {
+        decodeLazyFields();
         return (String)data.get(ATTACHMENT_PREFIX + attachmentName);
     }
 
     //this is so terrible it hurts. We'll be redoing this
     public Vector<String> getAttachments() {
+        decodeLazyFields();
         Vector<String> attachments = new Vector<>();
         for (Enumeration en = data.keys(); en.hasMoreElements(); ) {
             String name = (String)en.nextElement();
@@ -273,6 +353,7 @@ public class Case implements Persistable, IMetaData {
     }
 
     public void removeAttachment(String attachmentName) {
+        decodeLazyFields();
         data.remove(ATTACHMENT_PREFIX + attachmentName);
     }
 
@@ -285,10 +366,12 @@ public class Case implements Persistable, IMetaData {
         if (lastModified == null) {
             throw new NullPointerException("Case date last modified cannot be null");
         }
+        decodeLazyFields();
         data.put(LAST_MODIFIED, lastModified);
     }
 
     public Date getLastModified() {
+        decodeLazyFields();
         if (!data.containsKey(LAST_MODIFIED)) {
             return getDateOpened();
         }
@@ -303,6 +386,7 @@ public class Case implements Persistable, IMetaData {
      * @param indexName The name of a case index that should be removed.
      */
     public boolean removeIndex(String indexName) {
+        decodeLazyFields();
         CaseIndex toRemove = null;
 
         for (CaseIndex index : indices) {
@@ -0,0 +1,130 @@
+package org.commcare.cases.query;
+
+import org.commcare.cases.util.StorageBackedTreeRoot;
+import org.javarosa.core.model.condition.EvaluationContext;
+import org.javarosa.core.model.instance.AbstractTreeElement;
+import org.javarosa.core.model.instance.DataInstance;
+import org.javarosa.core.model.instance.TreeReference;
+import org.javarosa.core.model.trace.EvaluationTrace;
+import org.javarosa.core.util.RecordIdSet;
+import org.javarosa.model.xform.XPathReference;
+
+import java.util.Vector;
+
+/**
+ * Answers aggregates over nodesets of storage backed elements (cases, indexed fixture entries)
+ * straight from storage, without expanding the nodeset into references.
+ *
+ * This works when every predicate on the storage backed elements can be answered by the query
+ * planner, e.g. count(instance('casedb')/casedb/case[@case_type='x'][@status='open']), and
+ * for values, when the value is read from an index which storage can read in bulk, e.g.
+ * sum(instance('prices')/prices/price[@type='x']/@cost) for an indexed @cost.
+ *
+ * Storage backed elements are always relevant, so the nodeset's own relevancy filtering has no
+ * effect on them. Indices only hold the first element of a given name in each record, so as
+ * with filtering on them, value aggregates assume there's only one such element.
+ */
+public class AggregatePushdown {
+
+    /**
+     * @return The number of nodes the reference matches, or -1 if storage can't answer that
+     */
+    public static int count(TreeReference ref, DataInstance instance, EvaluationContext ec) {
+        StorageBackedTreeRoot root = getStorageRoot(ref, ref.size() - 1, instance, ec);
+        if (root == null) {
+            return -1;
+        }
+        RecordIdSet ids = getMatchingRecords(root, ref, ref.size() - 1, ec);
+        if (ids == null) {
+            return -1;
+        }
+        reportTrace(ec, root, "Count", ids.size());
+        return ids.size();
+    }
+
+    /**
+     * @return The value of each node the reference matches, in no particular order, or null if
+     * storage can't answer that
+     */
+    public static String[] values(TreeReference ref, DataInstance instance, EvaluationContext ec) {
+        int valueStep = ref.size() - 1;
+        if (valueStep < 1 || ref.getPredicate(valueStep) != null) {
+            return null;
+        }
+        StorageBackedTreeRoot root = getStorageRoot(ref, valueStep - 1, instance, ec);
+        if (root == null) {
+            return null;
+        }
+
+        String valuePath;
+        int valueMult = ref.getMultiplicity(valueStep);
+        if (valueMult == TreeReference.INDEX_ATTRIBUTE) {
+            valuePath = "@" + ref.getName(valueStep);
+        } else if (valueMult == TreeReference.INDEX_UNBOUND) {
+            valuePath = ref.getName(valueStep);
+        } else {
+            return null;
+        }
+        String index = root.getScannableIndex(XPathReference.getPathExpr(valuePath));
+        if (index == null) {
+            return null;
+        }
+
+        RecordIdSet ids = getMatchingRecords(root, ref, valueStep - 1, ec);
+        if (ids == null) {
+            return null;
+        }
+        String[] values = root.readIndexValues(ids, index);
+        if (values == null) {
+            return null;
+        }
+        for (String value : values) {
+            // Blank values can't be told apart from missing nodes, which the nodeset would skip
+            if (value == null || "".equals(value)) {
+                return null;
+            }
+        }
+        reportTrace(ec, root, "Values [" + index + "]", values.length);
+        return values;
+    }
+
+    /**
+     * @return The storage backed root whose children are the given step of the reference, if
+     * the reference leads to one without any predicates along the way
+     */
+    private static StorageBackedTreeRoot getStorageRoot(TreeReference ref, int childStep,
+                                                        DataInstance instance, EvaluationContext ec) {
+        if (!ref.isAbsolute() || childStep < 1) {
+            return null;
+        }
+        for (int i = 0; i < childStep; i++) {
+            if (ref.getPredicate(i) != null) {
+                return null;
+            }
+        }
+
+        Vector<TreeReference> parents = ec.expandReference(ref.getSubReference(childStep - 1));
+        if (parents == null || parents.size() != 1) {
+            return null;
+        }
+        AbstractTreeElement parent = instance.resolveReference(parents.elementAt(0), ec);
+        if (parent instanceof StorageBackedTreeRoot) {
+            return (StorageBackedTreeRoot)parent;
+        }
+        return null;
+    }
+
+    private static RecordIdSet getMatchingRecords(StorageBackedTreeRoot root, TreeReference ref,
+                                                  int childStep, EvaluationContext ec) {
+        return root.tryBatchChildIdFetch(ref.getName(childStep), ref.getMultiplicity(childStep),
+                ref.getPredicate(childStep), ec);
+    }
+
+    private static void reportTrace(EvaluationContext ec, StorageBackedTreeRoot root,
+                                    String aggregate, int size) {
+        EvaluationTrace trace = new EvaluationTrace(String.format("Storage [%s] Aggregate %s",
+                root.getStorageCacheName(), aggregate));
+        trace.setOutcome("Records: " + size);
+        ec.getCurrentQueryContext().reportTrace(trace);
+    }
+}
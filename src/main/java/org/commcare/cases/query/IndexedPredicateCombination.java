@@ -0,0 +1,33 @@
+package org.commcare.cases.query;
+
+/**
+ * An indexed predicate combination is a boolean 'and' or 'or' of two other profiles, each of
+ * which is itself a check against an index on the current platform.
+ *
+ * IE:
+ *
+ * index = 'a' or index = 'b'
+ * index_one = 'a' and index_two &gt; 3
+ *
+ * Since the combination stands in for a single predicate, it is processed (and removed) as a
+ * single profile.
+ */
+
+public class IndexedPredicateCombination implements PredicateProfile {
+    public static final int AND = 0;
+    public static final int OR = 1;
+
+    public final int op;
+    public final PredicateProfile left;
+    public final PredicateProfile right;
+
+    public IndexedPredicateCombination(int op, PredicateProfile left, PredicateProfile right) {
+        this.op = op;
+        this.left = left;
+        this.right = right;
+    }
+
+    public String getKey() {
+        return left.getKey() + "|" + right.getKey();
+    }
+}
@@ -0,0 +1,28 @@
+package org.commcare.cases.query;
+
+/**
+ * An indexed prefix lookup is a check for whether a value which is indexed on the current
+ * platform begins with a provided string.
+ *
+ * IE:
+ *
+ * starts-with(index, 'ab')
+ */
+
+public class IndexedPrefixLookup implements PredicateProfile {
+    public final String key;
+    public final String prefix;
+
+    public IndexedPrefixLookup(String key, String prefix) {
+        this.key = key;
+        this.prefix = prefix;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public boolean matches(String indexedValue) {
+        return indexedValue.startsWith(prefix);
+    }
+}
@@ -0,0 +1,65 @@
+package org.commcare.cases.query;
+
+import org.javarosa.xpath.expr.FunctionUtils;
+import org.javarosa.xpath.expr.XPathEqExpr;
+
+/**
+ * An indexed value comparison is a singular key/value check where the key being checked is
+ * indexed by the current platform, but where the check isn't an exact match.
+ *
+ * IE:
+ *
+ * index != 'a'
+ * index &gt; 5
+ *
+ * Matching follows the same coercion rules as the XPath operators the comparison was
+ * profiled from, so '!=' compares with XPath equality semantics and the ordering operators
+ * compare numerically.
+ */
+
+public class IndexedValueComparison implements PredicateProfile {
+    public static final int NOT_EQUAL = 0;
+    public static final int LESS_THAN = 1;
+    public static final int LESS_THAN_OR_EQUAL = 2;
+    public static final int GREATER_THAN = 3;
+    public static final int GREATER_THAN_OR_EQUAL = 4;
+
+    public final String key;
+    public final int op;
+    public final Object value;
+
+    public IndexedValueComparison(String key, int op, Object value) {
+        this.key = key;
+        this.op = op;
+        this.value = value;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @param indexedValue the value of this profile's index for a single record
+     * @return whether the record satisfies the comparison
+     */
+    public boolean matches(String indexedValue) {
+        if (op == NOT_EQUAL) {
+            return !XPathEqExpr.testEquality(indexedValue, value);
+        }
+
+        double fa = FunctionUtils.toNumeric(indexedValue);
+        double fb = FunctionUtils.toNumeric(value);
+        switch (op) {
+            case LESS_THAN:
+                return fa < fb;
+            case LESS_THAN_OR_EQUAL:
+                return fa <= fb;
+            case GREATER_THAN:
+                return fa > fb;
+            case GREATER_THAN_OR_EQUAL:
+                return fa >= fb;
+            default:
+                throw new IllegalStateException("Unknown comparison operator " + op);
+        }
+    }
+}
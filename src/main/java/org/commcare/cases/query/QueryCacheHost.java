@@ -17,6 +17,9 @@ import java.util.HashMap;
  * context so that once the large dataset query is over, the small N dataset doesn't keep the
  * memory reserved as it proceeds.
  *
+ * A host may be shared by several threads evaluating in the same context, so it, and the caches
+ * it holds, can be used from several threads at once.
+ *
  * Created by ctsims on 1/26/2017.
  */
 
@@ -37,7 +40,7 @@ public class QueryCacheHost {
      * Gets a usable copy of the query cache type provided, and if one does not exist,
      * create one at the current cache level.
      */
-    public <T extends QueryCache> T getQueryCache(Class<T> cacheType) {
+    public synchronized <T extends QueryCache> T getQueryCache(Class<T> cacheType) {
         T t = getQueryCacheOrNull(cacheType);
         if(t != null) {
             return t;
@@ -57,7 +60,7 @@ public class QueryCacheHost {
      * Get the query cache object provided if one has been created in the current context, or any
      * parent contexts. If not, return null and do not instantiate a new query cache.
      */
-    public <T extends QueryCache> T getQueryCacheOrNull(Class<T> cacheType) {
+    public synchronized <T extends QueryCache> T getQueryCacheOrNull(Class<T> cacheType) {
         if (cacheEntries.containsKey(cacheType)) {
             return (T)cacheEntries.get(cacheType);
         } else if (parent != null) {
@@ -37,8 +37,6 @@ public class QueryContext {
 
     private QueryCacheHost cache;
 
-    private QueryContext potentialSpawnedContext;
-
     /**
      * Context scope roughly keeps track of "how many times is the current query possibly going to
      * run". For instance, when evaluating an xpath like
@@ -68,12 +66,7 @@ public class QueryContext {
      * if the magnitude of the new query exceeds the parent sufficiently
      */
     public QueryContext checkForDerivativeContextAndReturn(int newScope) {
-        QueryContext newContext;
-
-        //TODO: I think we may need to clear the spanwed context's spawned context (maybe?) if it
-        // was generated
-        potentialSpawnedContext = null;
-        newContext = new QueryContext(this);
+        QueryContext newContext = new QueryContext(this);
         newContext.contextScope = newScope;
 
         if (dominates(newContext.contextScope, this.contextScope)) {
@@ -99,10 +92,11 @@ public class QueryContext {
      */
     public QueryContext testForInlineScopeEscalation(int newScope) {
         if (dominates(newScope, contextScope)) {
-            potentialSpawnedContext = new QueryContext(this);
-            potentialSpawnedContext.contextScope = newScope;
-            reportContextEscalation(potentialSpawnedContext, "Temporary");
-            return potentialSpawnedContext;
+            // Kept local, since other threads may be escalating from this context at the same time
+            QueryContext spawnedContext = new QueryContext(this);
+            spawnedContext.contextScope = newScope;
+            reportContextEscalation(spawnedContext, "Temporary");
+            return spawnedContext;
         } else {
             return this;
         }
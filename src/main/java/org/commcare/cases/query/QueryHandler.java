@@ -1,6 +1,7 @@
 package org.commcare.cases.query;
 
 import org.javarosa.core.model.condition.EvaluationContext;
+import org.javarosa.core.util.RecordIdSet;
 import org.javarosa.xpath.expr.XPathExpression;
 
 import java.util.Collection;
@@ -80,9 +81,27 @@ public interface QueryHandler<T> {
      * If for some reason the query set cannot be run against the current context, this method
      * can return null, which will signal the the query couldn't be run and no predicates have
      * been evaluated.
+     *
+     * Handlers which produce their matches as a RecordIdSet should return its list view, which
+     * the planner will unwrap without copying the ids.
      */
     List<Integer> loadProfileMatches(T querySet, QueryContext queryContext);
 
+    /**
+     * Same as loadProfileMatches(querySet, queryContext), but with the ids of the records which
+     * earlier profiles in the same lookup have already narrowed the result down to.
+     *
+     * Any ids returned outside of the candidate set are dropped by the planner, so handlers
+     * which would otherwise have to read every record (like scans) can restrict their reads to
+     * the candidates.
+     *
+     * @param candidates the ids already selected, or null if nothing has been selected yet
+     */
+    default List<Integer> loadProfileMatches(T querySet, QueryContext queryContext,
+                                             RecordIdSet candidates) {
+        return loadProfileMatches(querySet, queryContext);
+    }
+
     /**
      * Given a succesful profile match, this method updates the predicateprofiles to remove profiles
      * that no longer need to be evaluated.
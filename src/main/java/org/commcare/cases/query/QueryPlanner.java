@@ -2,6 +2,7 @@ package org.commcare.cases.query;
 
 import org.javarosa.core.model.condition.EvaluationContext;
 import org.javarosa.core.model.trace.EvaluationTrace;
+import org.javarosa.core.util.RecordIdSet;
 import org.javarosa.xpath.expr.XPathExpression;
 
 import java.util.Collection;
@@ -18,31 +19,138 @@ import java.util.Vector;
 
 public class QueryPlanner {
 
+    /**
+     * Default selectivity estimates (the expected fraction of records which will match) for
+     * each kind of profile. Without statistics about the values in each index these follow the
+     * classic defaults for relational planners: an equality check is assumed to match one in
+     * ten records, and an open range one in three.
+     */
+    private static final double EQUALITY_SELECTIVITY = 0.1;
+    private static final double INEQUALITY_SELECTIVITY = 1 - EQUALITY_SELECTIVITY;
+    private static final double RANGE_SELECTIVITY = 1.0 / 3;
+    private static final double PREFIX_SELECTIVITY = 0.2;
+    private static final double UNKNOWN_SELECTIVITY = 1.0;
+
     private List<QueryHandler> handlers = new Vector<>();
 
     /**
      * @param profiles the predicate profiles to be attempted to run
      * @param currentQueryContext the QueryContext of the current lookup
-     * @return null if the query could not be handled by this planner
+     * @return the ids of the matching records, or null if the query could not be handled by
+     * this planner
      *
      * Note: Should profiles that have been run should be removed by the handler
      */
-    public List<Integer> attemptProfiledQuery(Vector<PredicateProfile> profiles,
-                                                QueryContext currentQueryContext){
+    public RecordIdSet attemptProfiledQuery(Vector<PredicateProfile> profiles,
+                                            QueryContext currentQueryContext){
+        return attemptProfiledQuery(profiles, currentQueryContext, null);
+    }
+
+    /**
+     * Collects the plans each handler offers for the pending profiles and runs the one
+     * expected to match the fewest records, falling back to the next if a handler can't run its
+     * plan. Plans which are expected to be equally selective are run in order of the handlers'
+     * expected runtime.
+     *
+     * @param selectedElements the ids already selected by earlier profiles in this lookup, or
+     *                         null if there aren't any
+     */
+    public RecordIdSet attemptProfiledQuery(Vector<PredicateProfile> profiles,
+                                            QueryContext currentQueryContext,
+                                            RecordIdSet selectedElements) {
+        Vector<CandidatePlan> plans = new Vector<>();
         for (int i = 0 ; i < handlers.size() ; ++i) {
             QueryHandler handler = handlers.get(i);
             Object queryPlan = handler.profileHandledQuerySet(profiles);
             if (queryPlan != null) {
-                List<Integer> retVal = handler.loadProfileMatches(queryPlan, currentQueryContext);
-                if (retVal != null) {
-                    handler.updateProfiles(queryPlan, profiles);
-                    return retVal;
-                }
+                plans.add(new CandidatePlan(handler, queryPlan,
+                        estimatePlanSelectivity(handler, queryPlan, profiles)));
+            }
+        }
+        // Stable, so handlers keep their runtime order among plans with the same estimate
+        Collections.sort(plans, (first, second) -> Double.compare(first.selectivity, second.selectivity));
+
+        for (CandidatePlan plan : plans) {
+            List<Integer> retVal =
+                    plan.handler.loadProfileMatches(plan.queryPlan, currentQueryContext, selectedElements);
+            if (retVal != null) {
+                plan.handler.updateProfiles(plan.queryPlan, profiles);
+                return RecordIdSet.fromCollection(retVal);
             }
         }
         return null;
     }
 
+    private static final class CandidatePlan {
+        private final QueryHandler handler;
+        private final Object queryPlan;
+        private final double selectivity;
+
+        private CandidatePlan(QueryHandler handler, Object queryPlan, double selectivity) {
+            this.handler = handler;
+            this.queryPlan = queryPlan;
+            this.selectivity = selectivity;
+        }
+    }
+
+    /**
+     * @return the estimated fraction of records matching every profile the provided plan would
+     * process, found by letting the handler remove them from a copy of the pending profiles
+     */
+    private static double estimatePlanSelectivity(QueryHandler handler, Object queryPlan,
+                                                  Vector<PredicateProfile> profiles) {
+        Vector<PredicateProfile> remaining = new Vector<>(profiles);
+        handler.updateProfiles(queryPlan, remaining);
+        double selectivity = 1.0;
+        for (PredicateProfile profile : profiles) {
+            if (!remaining.contains(profile)) {
+                selectivity *= estimateSelectivity(profile);
+            }
+        }
+        return selectivity;
+    }
+
+    /**
+     * Orders the provided profiles so that the ones expected to match the fewest records are
+     * processed first. Since each processed profile narrows the result set, running the most
+     * selective lookups first keeps intermediate results small, and lets the lookup end early
+     * if no records are left.
+     *
+     * Profiles with the same estimate keep their relative order.
+     */
+    public void orderBySelectivity(Vector<PredicateProfile> profiles) {
+        Collections.sort(profiles, (first, second) ->
+                Double.compare(estimateSelectivity(first), estimateSelectivity(second)));
+    }
+
+    /**
+     * @return an estimate of the fraction of records which the provided profile will match
+     */
+    public static double estimateSelectivity(PredicateProfile profile) {
+        if (profile instanceof IndexedValueLookup) {
+            return EQUALITY_SELECTIVITY;
+        } else if (profile instanceof IndexedSetMemberLookup) {
+            return Math.min(1.0, EQUALITY_SELECTIVITY * ((IndexedSetMemberLookup)profile).valueSet.length);
+        } else if (profile instanceof IndexedValueComparison) {
+            if (((IndexedValueComparison)profile).op == IndexedValueComparison.NOT_EQUAL) {
+                return INEQUALITY_SELECTIVITY;
+            }
+            return RANGE_SELECTIVITY;
+        } else if (profile instanceof IndexedPrefixLookup) {
+            return PREFIX_SELECTIVITY;
+        } else if (profile instanceof IndexedPredicateCombination) {
+            IndexedPredicateCombination combination = (IndexedPredicateCombination)profile;
+            double left = estimateSelectivity(combination.left);
+            double right = estimateSelectivity(combination.right);
+            if (combination.op == IndexedPredicateCombination.AND) {
+                return left * right;
+            } else {
+                return left + right - left * right;
+            }
+        }
+        return UNKNOWN_SELECTIVITY;
+    }
+
     public void addQueryHandler(QueryHandler handler) {
         handlers.add(handler);
         Collections.sort(handlers, (first, second) -> first.getExpectedRuntime() - second.getExpectedRuntime());
@@ -49,7 +49,7 @@ public class ScopeLimitedReferenceRequestCache implements QueryCache {
 
     }
 
-    public void addTreeReferencesToLimitedScope(Set<TreeReference> references) {
+    public synchronized void addTreeReferencesToLimitedScope(Set<TreeReference> references) {
         for (TreeReference reference : references) {
             String instanceName = reference.getInstanceName();
             if (instanceName == null) {
@@ -72,14 +72,14 @@ public class ScopeLimitedReferenceRequestCache implements QueryCache {
      * @returns true if an instance has a limited scope to report, and has not explicitly informed
      * the cache that it should be excluded from future requests.
      */
-    public boolean isInstancePotentiallyScopeLimited(String instanceName) {
+    public synchronized boolean isInstancePotentiallyScopeLimited(String instanceName) {
         return instanceNameToReferenceSetMap.containsKey(instanceName) && !excludedInstances.contains(instanceName);
     }
 
     /**
      * Get all of the in-scope tree references for the provided instance
      */
-    public Set<TreeReference> getInScopeReferences(String instanceName) {
+    public synchronized Set<TreeReference> getInScopeReferences(String instanceName) {
         return instanceNameToReferenceSetMap.get(instanceName);
     }
 
@@ -87,19 +87,19 @@ public class ScopeLimitedReferenceRequestCache implements QueryCache {
      * Signal that the scope limit is  unhelpful for the provided instance. Will prevent
      * that instance from being included in future requests to isInstancePotentiallyScopeLimited
      */
-    public void setScopeLimitUnhelpful(String instanceName) {
+    public synchronized void setScopeLimitUnhelpful(String instanceName) {
         excludedInstances.add(instanceName);
     }
 
 
-    public TreeElement getCachedElementIfExists(String instanceName, int recordId) {
+    public synchronized TreeElement getCachedElementIfExists(String instanceName, int recordId) {
         if (!treeElementCache.containsKey(instanceName) || !treeElementCache.get(instanceName).containsKey(recordId)) {
             return null;
         }
         return treeElementCache.get(instanceName).get(recordId);
     }
 
-    public void cacheElement(String instanceName, int recordId, TreeElement element) {
+    public synchronized void cacheElement(String instanceName, int recordId, TreeElement element) {
         treeElementCache.get(instanceName).put(recordId, element);
     }
 
@@ -111,7 +111,7 @@ public class ScopeLimitedReferenceRequestCache implements QueryCache {
      * tree references it is responsible for in the limited scope using a partial load rather
      * than a full model load.
      */
-    public void setInternalScopeLimit(String instanceName, String[] columnNameCacheLoads) {
+    public synchronized void setInternalScopeLimit(String instanceName, String[] columnNameCacheLoads) {
         this.instanceScopeLimitCache.put(instanceName, columnNameCacheLoads);
         treeElementCache.put(instanceName, new HashMap());
     }
@@ -120,7 +120,7 @@ public class ScopeLimitedReferenceRequestCache implements QueryCache {
      * If the cache has already been provided with a payload for this limited scope request,
      * return it. Otherwises returns null.
      */
-    public String[] getInternalScopedLimit(String instanceName) {
+    public synchronized String[] getInternalScopedLimit(String instanceName) {
         return instanceScopeLimitCache.get(instanceName);
     }
 }
@@ -0,0 +1,318 @@
+package org.commcare.cases.query.handlers;
+
+import org.commcare.cases.query.IndexedPredicateCombination;
+import org.commcare.cases.query.IndexedPrefixLookup;
+import org.commcare.cases.query.IndexedSetMemberLookup;
+import org.commcare.cases.query.IndexedValueComparison;
+import org.commcare.cases.query.IndexedValueLookup;
+import org.commcare.cases.query.PredicateProfile;
+import org.commcare.cases.query.QueryCache;
+import org.commcare.cases.query.QueryContext;
+import org.commcare.cases.query.QueryHandler;
+import org.javarosa.core.model.condition.EvaluationContext;
+import org.javarosa.core.model.trace.EvaluationTrace;
+import org.javarosa.core.services.storage.IStorageIterator;
+import org.javarosa.core.services.storage.IStorageUtilityIndexed;
+import org.javarosa.core.util.DataUtil;
+import org.javarosa.core.util.RecordIdSet;
+import org.javarosa.xpath.expr.XPathEqExpr;
+import org.javarosa.xpath.expr.XPathExpression;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Vector;
+
+/**
+ * Handles indexed predicates which can't be answered with an exact metadata match, like
+ * inequalities, prefix matches, and boolean combinations of indexed checks.
+ *
+ * Rather than evaluating the predicate's XPath against each full model, this handler reads the
+ * relevant index values for every record in storage as a single column and filters them
+ * directly. The columns are kept in a query cache, so further filters over the same index in
+ * the same query context don't return to storage. When earlier lookups have already narrowed
+ * the result down, only the values for the records still selected are read, unless the whole
+ * column is already cached.
+ *
+ * Prefix lookups are answered from storage's ordered index when it is available.
+ *
+ * Exact value and set member lookups are only scanned here when they are part of a
+ * combination, on their own they are left to the platform's own index lookups.
+ */
+
+public class IndexedMetadataScanQueryHandler implements QueryHandler<PredicateProfile> {
+
+    private final IStorageUtilityIndexed<?> storage;
+    private final String storageCacheName;
+
+    public static final class Cache implements QueryCache {
+        private final HashMap<String, int[]> recordIds = new HashMap<>();
+        private final HashMap<String, String[]> columns = new HashMap<>();
+        private final HashMap<String, HashMap<Integer, String[]>> partialColumns = new HashMap<>();
+    }
+
+    public IndexedMetadataScanQueryHandler(IStorageUtilityIndexed<?> storage,
+                                           String storageCacheName) {
+        this.storage = storage;
+        this.storageCacheName = storageCacheName;
+    }
+
+    @Override
+    public int getExpectedRuntime() {
+        return 20;
+    }
+
+    @Override
+    public PredicateProfile profileHandledQuerySet(Vector<PredicateProfile> profiles) {
+        PredicateProfile profile = profiles.elementAt(0);
+        if (profile instanceof IndexedValueComparison ||
+                profile instanceof IndexedPrefixLookup ||
+                profile instanceof IndexedPredicateCombination) {
+            return profile;
+        }
+        return null;
+    }
+
+    @Override
+    public List<Integer> loadProfileMatches(PredicateProfile querySet, QueryContext queryContext) {
+        return loadProfileMatches(querySet, queryContext, null);
+    }
+
+    @Override
+    public List<Integer> loadProfileMatches(PredicateProfile querySet, QueryContext queryContext,
+                                            RecordIdSet candidates) {
+        Cache cache = queryContext.getQueryCache(Cache.class);
+
+        if (querySet instanceof IndexedPrefixLookup) {
+            List<Integer> prefixMatches = loadPrefixMatchesFromIndex((IndexedPrefixLookup)querySet, queryContext);
+            if (prefixMatches != null) {
+                return prefixMatches;
+            }
+        }
+
+        Vector<String> keys = new Vector<>();
+        collectKeys(querySet, keys);
+
+        HashMap<String, String[]> columns = new HashMap<>();
+        int[] ids;
+        // Filled in lazily, possibly by several threads evaluating in the same context
+        synchronized (cache) {
+            boolean scanCandidates = candidates != null && !hasColumns(cache, keys);
+            ids = scanCandidates ? candidates.toArray() : getRecordIds(cache);
+            for (String key : keys) {
+                String[] column = scanCandidates ?
+                        getPartialColumn(cache, key, ids, queryContext) :
+                        getColumn(cache, key, ids, queryContext);
+                if (column == null) {
+                    return null;
+                }
+                columns.put(key, column);
+            }
+        }
+
+        EvaluationTrace trace = new EvaluationTrace(String.format("Storage [%s] Index Scan [%s]",
+                storageCacheName, querySet.getKey()));
+        int[] matches = new int[ids.length];
+        int matchCount = 0;
+        for (int i = 0; i < ids.length; ++i) {
+            if (matches(querySet, columns, i)) {
+                matches[matchCount++] = ids[i];
+            }
+        }
+        trace.setOutcome("Results: " + matchCount);
+        queryContext.reportTrace(trace);
+        return RecordIdSet.fromArray(matches, matchCount).asList();
+    }
+
+    /**
+     * Prefix lookups can be answered from storage's ordered index directly, without reading
+     * the index values for every record.
+     *
+     * @return the matching records, or null if the storage couldn't answer the lookup
+     */
+    private List<Integer> loadPrefixMatchesFromIndex(IndexedPrefixLookup lookup,
+                                                     QueryContext queryContext) {
+        if ("".equals(lookup.prefix)) {
+            return null;
+        }
+
+        EvaluationTrace trace = new EvaluationTrace(String.format("Storage [%s] Ordered Index Lookup [%s]",
+                storageCacheName, lookup.getKey()));
+        RecordIdSet matches;
+        try {
+            matches = RecordIdSet.fromCollection(storage.getIDsInOrder(lookup.getKey(), lookup.prefix));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        trace.setOutcome("Results: " + matches.size());
+        queryContext.reportTrace(trace);
+        return matches.asList();
+    }
+
+    @Override
+    public void updateProfiles(PredicateProfile querySet, Vector<PredicateProfile> profiles) {
+        profiles.remove(querySet);
+    }
+
+    @Override
+    public Collection<PredicateProfile> collectPredicateProfiles(Vector<XPathExpression> predicates,
+                                                                 QueryContext context,
+                                                                 EvaluationContext evaluationContext) {
+        return null;
+    }
+
+    private static void collectKeys(PredicateProfile profile, Vector<String> keys) {
+        if (profile instanceof IndexedPredicateCombination) {
+            collectKeys(((IndexedPredicateCombination)profile).left, keys);
+            collectKeys(((IndexedPredicateCombination)profile).right, keys);
+        } else if (!keys.contains(profile.getKey())) {
+            keys.add(profile.getKey());
+        }
+    }
+
+    private static boolean matches(PredicateProfile profile, HashMap<String, String[]> columns,
+                                   int row) {
+        if (profile instanceof IndexedPredicateCombination) {
+            IndexedPredicateCombination combination = (IndexedPredicateCombination)profile;
+            boolean left = matches(combination.left, columns, row);
+            if (combination.op == IndexedPredicateCombination.AND) {
+                return left && matches(combination.right, columns, row);
+            } else {
+                return left || matches(combination.right, columns, row);
+            }
+        }
+
+        String value = columns.get(profile.getKey())[row];
+        if (profile instanceof IndexedValueComparison) {
+            return ((IndexedValueComparison)profile).matches(value);
+        } else if (profile instanceof IndexedPrefixLookup) {
+            return ((IndexedPrefixLookup)profile).matches(value);
+        } else if (profile instanceof IndexedValueLookup) {
+            return XPathEqExpr.testEquality(value, ((IndexedValueLookup)profile).value);
+        } else if (profile instanceof IndexedSetMemberLookup) {
+            //Same semantics as selected(), the value set was split from a space separated list
+            StringBuilder list = new StringBuilder(" ");
+            for (String member : ((IndexedSetMemberLookup)profile).valueSet) {
+                list.append(member).append(" ");
+            }
+            return list.toString().contains(" " + value.trim() + " ");
+        }
+        throw new IllegalArgumentException("Unsupported profile for index scan: " + profile.getKey());
+    }
+
+    private int[] getRecordIds(Cache cache) {
+        int[] ids = cache.recordIds.get(storageCacheName);
+        if (ids == null) {
+            Vector<Integer> idList = new Vector<>();
+            for (IStorageIterator i = storage.iterate(false); i.hasMore(); ) {
+                idList.add(DataUtil.integer(i.nextID()));
+            }
+            ids = new int[idList.size()];
+            for (int i = 0; i < ids.length; ++i) {
+                ids[i] = idList.elementAt(i);
+            }
+            cache.recordIds.put(storageCacheName, ids);
+        }
+        return ids;
+    }
+
+    /**
+     * @return the values of the provided index for each record id, or null if the index
+     * can't be read from the current storage
+     */
+    private String[] getColumn(Cache cache, String key, int[] ids, QueryContext queryContext) {
+        String cacheKey = storageCacheName + "|" + key;
+        String[] column = cache.columns.get(cacheKey);
+        if (column != null) {
+            return column;
+        }
+
+        EvaluationTrace trace = new EvaluationTrace(String.format("Storage [%s] Index Column Load [%s]",
+                storageCacheName, key));
+        LinkedHashSet<Integer> idSet = new LinkedHashSet<>();
+        for (int id : ids) {
+            idSet.add(DataUtil.integer(id));
+        }
+        HashMap<Integer, String[]> metadata = new HashMap<>();
+        if (!readMetadata(key, idSet, metadata)) {
+            return null;
+        }
+
+        column = buildColumn(ids, metadata);
+        cache.columns.put(cacheKey, column);
+        trace.setOutcome("Loaded: " + column.length);
+        queryContext.reportTrace(trace);
+        return column;
+    }
+
+    private boolean hasColumns(Cache cache, Vector<String> keys) {
+        for (String key : keys) {
+            if (!cache.columns.containsKey(storageCacheName + "|" + key)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the values of the provided index for only the provided record ids, reading only
+     * those which haven't been read for an earlier lookup, or null if the index can't be read
+     * from the current storage
+     */
+    private String[] getPartialColumn(Cache cache, String key, int[] ids, QueryContext queryContext) {
+        String cacheKey = storageCacheName + "|" + key;
+        HashMap<Integer, String[]> metadata = cache.partialColumns.get(cacheKey);
+        if (metadata == null) {
+            metadata = new HashMap<>();
+            cache.partialColumns.put(cacheKey, metadata);
+        }
+
+        LinkedHashSet<Integer> missing = new LinkedHashSet<>();
+        for (int id : ids) {
+            Integer boxed = DataUtil.integer(id);
+            if (!metadata.containsKey(boxed)) {
+                missing.add(boxed);
+            }
+        }
+        if (!missing.isEmpty()) {
+            EvaluationTrace trace = new EvaluationTrace(String.format("Storage [%s] Index Partial Column Load [%s]",
+                    storageCacheName, key));
+            HashMap<Integer, String[]> read = new HashMap<>();
+            if (!readMetadata(key, missing, read)) {
+                return null;
+            }
+            for (Integer id : missing) {
+                // Records without a value are remembered too, so they aren't read again
+                String[] values = read.get(id);
+                metadata.put(id, values == null ? new String[]{null} : values);
+            }
+            trace.setOutcome("Loaded: " + missing.size());
+            queryContext.reportTrace(trace);
+        }
+        return buildColumn(ids, metadata);
+    }
+
+    /**
+     * @return whether the index could be read from the current storage
+     */
+    private boolean readMetadata(String key, LinkedHashSet<Integer> ids,
+                                 HashMap<Integer, String[]> metadata) {
+        try {
+            storage.bulkReadMetadata(ids, new String[]{key}, metadata);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static String[] buildColumn(int[] ids, HashMap<Integer, String[]> metadata) {
+        String[] column = new String[ids.length];
+        for (int i = 0; i < ids.length; ++i) {
+            String[] values = metadata.get(DataUtil.integer(ids[i]));
+            String value = values == null ? null : values[0];
+            column[i] = value == null ? "" : value;
+        }
+        return column;
+    }
+}
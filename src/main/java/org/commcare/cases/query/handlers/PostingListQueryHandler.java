@@ -0,0 +1,180 @@
+package org.commcare.cases.query.handlers;
+
+import org.commcare.cases.query.IndexedPredicateCombination;
+import org.commcare.cases.query.IndexedSetMemberLookup;
+import org.commcare.cases.query.IndexedValueComparison;
+import org.commcare.cases.query.IndexedValueLookup;
+import org.commcare.cases.query.PredicateProfile;
+import org.commcare.cases.query.QueryContext;
+import org.commcare.cases.query.QueryHandler;
+import org.commcare.modern.engine.cases.RecordSetResultCache;
+import org.commcare.modern.util.PerformanceTuningUtil;
+import org.javarosa.core.model.condition.EvaluationContext;
+import org.javarosa.core.model.trace.EvaluationTrace;
+import org.javarosa.core.services.storage.util.MetadataPostingIndex;
+import org.javarosa.core.util.RecordIdBitmap;
+import org.javarosa.core.util.RecordIdSet;
+import org.javarosa.xpath.expr.XPathExpression;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Vector;
+
+/**
+ * Answers indexed predicates from the in-memory posting lists of storage which maintains them.
+ *
+ * Exact matches over several indexes are combined with a bitmap AND, set membership checks
+ * with an OR over the posting lists of each member, and inequalities by removing the matching
+ * posting list from the set of all records. Boolean combinations of those checks are combined
+ * the same way, so none of these lookups need to read any records or metadata.
+ */
+
+public class PostingListQueryHandler implements QueryHandler<Vector<PredicateProfile>> {
+
+    private final MetadataPostingIndex index;
+    private final String storageCacheName;
+
+    public PostingListQueryHandler(MetadataPostingIndex index, String storageCacheName) {
+        this.index = index;
+        this.storageCacheName = storageCacheName;
+    }
+
+    @Override
+    public int getExpectedRuntime() {
+        return 5;
+    }
+
+    @Override
+    public Vector<PredicateProfile> profileHandledQuerySet(Vector<PredicateProfile> profiles) {
+        Vector<PredicateProfile> handled = new Vector<>();
+        if (profiles.elementAt(0) instanceof IndexedValueLookup) {
+            //Batch up all of the exact matches at the head of the queue
+            for (PredicateProfile profile : profiles) {
+                if (!(profile instanceof IndexedValueLookup) || !canAnswer(profile)) {
+                    break;
+                }
+                handled.add(profile);
+            }
+        } else if (canAnswer(profiles.elementAt(0))) {
+            handled.add(profiles.elementAt(0));
+        }
+        return handled.isEmpty() ? null : handled;
+    }
+
+    @Override
+    public List<Integer> loadProfileMatches(Vector<PredicateProfile> querySet, QueryContext queryContext) {
+        String cacheKey = "";
+        for (PredicateProfile profile : querySet) {
+            cacheKey += "|" + describe(profile);
+        }
+
+        EvaluationTrace trace = new EvaluationTrace(String.format("Storage [%s] Posting List Lookup [%s]",
+                storageCacheName, cacheKey));
+        RecordIdBitmap matches;
+        if (querySet.size() > 1) {
+            String[] keys = new String[querySet.size()];
+            Object[] values = new Object[querySet.size()];
+            for (int i = 0; i < keys.length; ++i) {
+                keys[i] = querySet.elementAt(i).getKey();
+                values[i] = ((IndexedValueLookup)querySet.elementAt(i)).value;
+            }
+            matches = index.matchAll(keys, values);
+        } else {
+            matches = evaluate(querySet.elementAt(0));
+        }
+        RecordIdSet ids = matches.toRecordIdSet();
+        trace.setOutcome("Results: " + ids.size());
+        queryContext.reportTrace(trace);
+
+        if (ids.size() > QueryContext.BULK_QUERY_THRESHOLD &&
+                ids.size() < PerformanceTuningUtil.getMaxPrefetchCaseBlock()) {
+            queryContext.getQueryCache(RecordSetResultCache.class).
+                    reportBulkRecordSet(cacheKey, storageCacheName, ids);
+        }
+        return ids.asList();
+    }
+
+    @Override
+    public void updateProfiles(Vector<PredicateProfile> querySet, Vector<PredicateProfile> profiles) {
+        profiles.removeAll(querySet);
+    }
+
+    @Override
+    public Collection<PredicateProfile> collectPredicateProfiles(Vector<XPathExpression> predicates,
+                                                                 QueryContext context,
+                                                                 EvaluationContext evaluationContext) {
+        return null;
+    }
+
+    private boolean canAnswer(PredicateProfile profile) {
+        if (profile instanceof IndexedPredicateCombination) {
+            IndexedPredicateCombination combination = (IndexedPredicateCombination)profile;
+            return canAnswer(combination.left) && canAnswer(combination.right);
+        }
+        if (!index.hasField(profile.getKey())) {
+            return false;
+        }
+        if (profile instanceof IndexedValueLookup) {
+            // Posting lists are keyed by the raw string values. Numbers and booleans compare by
+            // XPath's coercion rules, which are left to the scanning handler.
+            return ((IndexedValueLookup)profile).value instanceof String;
+        } else if (profile instanceof IndexedSetMemberLookup) {
+            //An empty member would match records with no value, which aren't in any posting list
+            for (String member : ((IndexedSetMemberLookup)profile).valueSet) {
+                if ("".equals(member)) {
+                    return false;
+                }
+            }
+            return true;
+        } else if (profile instanceof IndexedValueComparison) {
+            IndexedValueComparison comparison = (IndexedValueComparison)profile;
+            return comparison.op == IndexedValueComparison.NOT_EQUAL
+                    && comparison.value instanceof String && !"".equals(comparison.value);
+        }
+        return false;
+    }
+
+    private RecordIdBitmap evaluate(PredicateProfile profile) {
+        if (profile instanceof IndexedPredicateCombination) {
+            IndexedPredicateCombination combination = (IndexedPredicateCombination)profile;
+            RecordIdBitmap left = evaluate(combination.left);
+            RecordIdBitmap right = evaluate(combination.right);
+            if (combination.op == IndexedPredicateCombination.AND) {
+                return RecordIdBitmap.and(left, right);
+            } else {
+                return RecordIdBitmap.or(left, right);
+            }
+        } else if (profile instanceof IndexedValueLookup) {
+            return getPostingList(profile.getKey(), ((IndexedValueLookup)profile).value);
+        } else if (profile instanceof IndexedSetMemberLookup) {
+            return index.matchAny(profile.getKey(), ((IndexedSetMemberLookup)profile).valueSet);
+        } else {
+            IndexedValueComparison comparison = (IndexedValueComparison)profile;
+            return RecordIdBitmap.andNot(index.getRecords(),
+                    getPostingList(comparison.key, comparison.value));
+        }
+    }
+
+    private RecordIdBitmap getPostingList(String key, Object value) {
+        RecordIdBitmap postingList = index.getMatches(key, value);
+        return postingList == null ? new RecordIdBitmap() : postingList;
+    }
+
+    private static String describe(PredicateProfile profile) {
+        if (profile instanceof IndexedPredicateCombination) {
+            IndexedPredicateCombination combination = (IndexedPredicateCombination)profile;
+            String op = combination.op == IndexedPredicateCombination.AND ? " and " : " or ";
+            return "(" + describe(combination.left) + op + describe(combination.right) + ")";
+        } else if (profile instanceof IndexedValueLookup) {
+            return profile.getKey() + "=" + ((IndexedValueLookup)profile).value;
+        } else if (profile instanceof IndexedSetMemberLookup) {
+            StringBuilder members = new StringBuilder();
+            for (String member : ((IndexedSetMemberLookup)profile).valueSet) {
+                members.append(" ").append(member);
+            }
+            return profile.getKey() + " in [" + members.substring(1) + "]";
+        } else {
+            return profile.getKey() + "!=" + ((IndexedValueComparison)profile).value;
+        }
+    }
+}
@@ -89,7 +89,7 @@ public class CaseQuerySetLookup implements QuerySetLookup {
         Map<TreeReference, Integer> caseQueryIndex;
         Set<Integer> lookupSetBody;
 
-        public Integer lookupQuerySetMatch(QueryContext context, TreeReference currentRef, Map<Integer, Integer> multiplicityMap) {
+        public synchronized Integer lookupQuerySetMatch(QueryContext context, TreeReference currentRef, Map<Integer, Integer> multiplicityMap) {
             if(caseQueryIndex == null) {
                 loadCaseQuerySetCache(context, multiplicityMap);
             }
@@ -112,7 +112,7 @@ public class CaseQuerySetLookup implements QuerySetLookup {
             }
         }
 
-        public Set<Integer> getLookupSetBody(QueryContext context, Map<Integer, Integer> multiplicityMap) {
+        public synchronized Set<Integer> getLookupSetBody(QueryContext context, Map<Integer, Integer> multiplicityMap) {
             if(caseQueryIndex == null) {
                 loadCaseQuerySetCache(context, multiplicityMap);
             }
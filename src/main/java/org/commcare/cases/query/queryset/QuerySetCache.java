@@ -13,11 +13,11 @@ public class QuerySetCache implements QueryCache {
 
     private Map<String, ModelQuerySet> querySetMap = new HashMap<>();
 
-    public ModelQuerySet getModelQuerySet(String querySetId) {
+    public synchronized ModelQuerySet getModelQuerySet(String querySetId) {
         return querySetMap.get(querySetId);
     }
 
-    public void addModelQuerySet(String querySetId, ModelQuerySet set) {
+    public synchronized void addModelQuerySet(String querySetId, ModelQuerySet set) {
         querySetMap.put(querySetId, set);
     }
 }
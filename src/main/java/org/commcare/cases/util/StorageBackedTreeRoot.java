@@ -5,25 +5,33 @@ import org.commcare.cases.query.IndexedSetMemberLookup;
 import org.commcare.cases.query.IndexedValueLookup;
 import org.commcare.cases.query.PredicateProfile;
 import org.commcare.cases.query.handlers.BasicStorageBackedCachingQueryHandler;
+import org.commcare.cases.query.handlers.IndexedMetadataScanQueryHandler;
+import org.commcare.cases.query.handlers.PostingListQueryHandler;
 import org.commcare.modern.engine.cases.RecordSetResultCache;
 import org.commcare.modern.util.PerformanceTuningUtil;
 import org.javarosa.core.model.condition.EvaluationContext;
 import org.javarosa.core.model.instance.AbstractTreeElement;
 import org.javarosa.core.model.instance.TreeReference;
 import org.javarosa.core.model.trace.EvaluationTrace;
+import org.javarosa.core.services.storage.IPostingListIndexed;
 import org.javarosa.core.services.storage.IStorageUtilityIndexed;
 import org.javarosa.core.util.DataUtil;
+import org.javarosa.core.util.RecordIdSet;
 import org.javarosa.xpath.expr.FunctionUtils;
+import org.javarosa.xpath.expr.XPathBoolExpr;
+import org.javarosa.xpath.expr.XPathCmpExpr;
 import org.javarosa.xpath.expr.XPathEqExpr;
 import org.javarosa.xpath.expr.XPathExpression;
 import org.javarosa.xpath.expr.XPathPathExpr;
 import org.javarosa.xpath.expr.XPathSelectedFunc;
+import org.javarosa.xpath.expr.XPathStartsWithFunc;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.LinkedHashSet;
-import java.util.List;
 import java.util.Vector;
 
 /**
@@ -39,7 +47,7 @@ public abstract class StorageBackedTreeRoot<T extends AbstractTreeElement> imple
     /**
      * Super basic cache for Key/Index responses from the DB
      */
-    private Hashtable<String, LinkedHashSet<Integer>> mIndexResultCache = new Hashtable<>();
+    private Hashtable<String, RecordIdSet> mIndexResultCache = new Hashtable<>();
 
     /**
      * Get the key/value meta lookups for the most recent batch fetch. Used to prime a couple
@@ -65,6 +73,42 @@ public abstract class StorageBackedTreeRoot<T extends AbstractTreeElement> imple
     public Collection<TreeReference> tryBatchChildFetch(String name, int mult,
                                                         Vector<XPathExpression> predicates,
                                                         EvaluationContext evalContext) {
+        RecordIdSet selectedElements = batchChildIdFetch(name, mult, predicates, evalContext);
+        if (selectedElements == null) {
+            return null;
+        }
+        return buildReferencesFromFetchResults(selectedElements);
+    }
+
+    /**
+     * Identify the records of this root's children which match all of the provided predicates
+     * using only storage lookups, without building references to them.
+     *
+     * @param predicates The predicates to match, which are left untouched
+     * @return The ids of the matching records, or null if any of the predicates can't be
+     * answered from storage
+     */
+    public RecordIdSet tryBatchChildIdFetch(String name, int mult,
+                                            Vector<XPathExpression> predicates,
+                                            EvaluationContext evalContext) {
+        if (predicates == null || predicates.isEmpty()) {
+            return null;
+        }
+        Vector<XPathExpression> remaining = new Vector<>(predicates);
+        RecordIdSet selectedElements = batchChildIdFetch(name, mult, remaining, evalContext);
+        if (selectedElements == null || !remaining.isEmpty()) {
+            return null;
+        }
+        return selectedElements;
+    }
+
+    /**
+     * @return The ids of the records matching the predicates which could be answered from
+     * storage, which are removed from the predicates vector, or null if none could be.
+     */
+    private RecordIdSet batchChildIdFetch(String name, int mult,
+                                          Vector<XPathExpression> predicates,
+                                          EvaluationContext evalContext) {
         //Restrict what we'll handle for now. All we want to deal with is predicate expressions on case blocks
         if (!name.equals(getChildHintName()) || mult != TreeReference.INDEX_UNBOUND || predicates == null) {
             return null;
@@ -87,7 +131,7 @@ public abstract class StorageBackedTreeRoot<T extends AbstractTreeElement> imple
         //For now we are going to skip looking deeper if we trigger
         //any of the planned optimizations
         if(preferredProfiles.size() > 0) {
-            Collection<TreeReference> response = processPredicatesAndPrepareResponse(preferredProfiles,
+            RecordIdSet response = processPredicatesAndPrepareResponse(preferredProfiles,
                     queryContext, predicates);
 
             //For now if there are any results we should press forward. We don't have a meaningful
@@ -104,13 +148,13 @@ public abstract class StorageBackedTreeRoot<T extends AbstractTreeElement> imple
         return processPredicatesAndPrepareResponse(profiles, queryContext, predicates);
     }
 
-    private Collection<TreeReference> processPredicatesAndPrepareResponse(Vector<PredicateProfile> profiles,
-                                                                          QueryContext queryContext,
-                                                                          Vector<XPathExpression> predicates) {
+    private RecordIdSet processPredicatesAndPrepareResponse(Vector<PredicateProfile> profiles,
+                                                            QueryContext queryContext,
+                                                            Vector<XPathExpression> predicates) {
         //Now go through each profile and see if we can match / process any of them. If not, we
         // will return null and move on
         Vector<Integer> toRemove = new Vector<>();
-        Collection<Integer> selectedElements = processPredicates(toRemove, profiles, queryContext);
+        RecordIdSet selectedElements = processPredicates(toRemove, profiles, queryContext);
 
         //if we weren't able to evaluate any predicates, signal that.
         if (selectedElements == null) {
@@ -122,62 +166,180 @@ public abstract class StorageBackedTreeRoot<T extends AbstractTreeElement> imple
             predicates.removeElementAt(toRemove.elementAt(i));
         }
 
-        return buildReferencesFromFetchResults(selectedElements);
+        return selectedElements;
     }
 
     private void collectNativePredicateProfiles(Vector<XPathExpression> predicates,
                                           Hashtable<XPathPathExpr, String> indices,
                                           EvaluationContext evalContext,
                                           Vector<PredicateProfile> optimizations) {
-
-        predicate:
         for (XPathExpression xpe : predicates) {
-            //what we want here is a static evaluation of the expression to see if it consists of evaluating
-            //something we index with something static.
-            if (xpe instanceof XPathEqExpr && ((XPathEqExpr)xpe).op == XPathEqExpr.EQ) {
-                XPathExpression left = ((XPathEqExpr)xpe).a;
-                if (left instanceof XPathPathExpr) {
-                    for (Enumeration en = indices.keys(); en.hasMoreElements(); ) {
-                        XPathPathExpr expr = (XPathPathExpr)en.nextElement();
-                        if (expr.matches(left)) {
-                            String filterIndex = translateFilterExpr(expr, (XPathPathExpr)left, indices);
-
-                            //TODO: We need a way to determine that this value does not also depend on anything in the current context, not
-                            //sure the best way to do that....? Maybe tell the evaluation context to skip out here if it detects a request
-                            //to resolve in a certain area?
-                            Object o = FunctionUtils.unpack(((XPathEqExpr)xpe).b.eval(evalContext));
-                            optimizations.addElement(new IndexedValueLookup(filterIndex, o));
-
-                            continue predicate;
-                        }
-                    }
-                }
-            } else if (xpe instanceof XPathSelectedFunc) {
-                XPathExpression lookupArg = ((XPathSelectedFunc)xpe).args[1];
-                if (lookupArg instanceof XPathPathExpr) {
-                    for (Enumeration en = indices.keys(); en.hasMoreElements(); ) {
-                        XPathPathExpr expr = (XPathPathExpr)en.nextElement();
-                        if (expr.matches(lookupArg)) {
-                            String filterIndex = translateFilterExpr(expr, (XPathPathExpr)lookupArg, indices);
-
-                            //TODO: We need a way to determine that this value does not also depend on anything in the current context, not
-                            //sure the best way to do that....? Maybe tell the evaluation context to skip out here if it detects a request
-                            //to resolve in a certain area?
-                            Object o = FunctionUtils.unpack(((XPathSelectedFunc)xpe).args[0].eval(evalContext));
-
-                            optimizations.addElement(new IndexedSetMemberLookup(filterIndex, o));
-
-                            continue predicate;
-                        }
-                    }
+            PredicateProfile profile = profilePredicate(xpe, indices, evalContext, true);
+
+            //Profiles are processed independently of the order of the predicates, which is only
+            //safe for the predicates up to the first one we can't profile (which might, for
+            //instance, be positional) so once we hit one, just get outta here.
+            if (profile == null) {
+                break;
+            }
+            optimizations.addElement(profile);
+        }
+    }
+
+    /**
+     * Identify whether the provided predicate consists of evaluating something we index against
+     * something static.
+     *
+     * @param topLevel whether the expression is a full predicate rather than part of a boolean
+     *                 combination. Only the existing exact match profiles are produced for a
+     *                 full predicate if the index can't be scanned
+     * @return A profile which can stand in for the predicate, or null if there is no profile
+     * which matches the predicate.
+     */
+    private PredicateProfile profilePredicate(XPathExpression xpe,
+                                              Hashtable<XPathPathExpr, String> indices,
+                                              EvaluationContext evalContext,
+                                              boolean topLevel) {
+        //TODO: We need a way to determine that the values compared do not also depend on anything
+        //in the current context, not sure the best way to do that....? Maybe tell the evaluation
+        //context to skip out here if it detects a request to resolve in a certain area?
+        if (xpe instanceof XPathEqExpr) {
+            XPathEqExpr eqExpr = (XPathEqExpr)xpe;
+            String filterIndex = getFilterIndex(eqExpr.a, indices);
+            if (filterIndex == null) {
+                return null;
+            }
+            if (eqExpr.op == XPathEqExpr.EQ) {
+                if (!topLevel && !canScanIndexValues(filterIndex)) {
+                    return null;
                 }
+                Object o = FunctionUtils.unpack(eqExpr.b.eval(evalContext));
+                return new IndexedValueLookup(filterIndex, o);
+            } else if (canScanIndexValues(filterIndex)) {
+                Object o = FunctionUtils.unpack(eqExpr.b.eval(evalContext));
+                return new IndexedValueComparison(filterIndex, IndexedValueComparison.NOT_EQUAL, o);
+            }
+        } else if (xpe instanceof XPathCmpExpr) {
+            XPathCmpExpr cmpExpr = (XPathCmpExpr)xpe;
+            boolean reversed = false;
+            String filterIndex = getFilterIndex(cmpExpr.a, indices);
+            if (filterIndex == null) {
+                filterIndex = getFilterIndex(cmpExpr.b, indices);
+                reversed = true;
+            }
+            if (filterIndex == null || !canScanIndexValues(filterIndex)) {
+                return null;
+            }
+            Object o = FunctionUtils.unpack((reversed ? cmpExpr.a : cmpExpr.b).eval(evalContext));
+            return new IndexedValueComparison(filterIndex, getComparisonOp(cmpExpr.op, reversed), o);
+        } else if (xpe instanceof XPathStartsWithFunc) {
+            XPathExpression[] args = ((XPathStartsWithFunc)xpe).args;
+            String filterIndex = getFilterIndex(args[0], indices);
+            if (filterIndex == null || !canScanIndexValues(filterIndex)) {
+                return null;
+            }
+            return new IndexedPrefixLookup(filterIndex, FunctionUtils.toString(args[1].eval(evalContext)));
+        } else if (xpe instanceof XPathSelectedFunc) {
+            XPathExpression[] args = ((XPathSelectedFunc)xpe).args;
+            String filterIndex = getFilterIndex(args[1], indices);
+            if (filterIndex == null || (!topLevel && !canScanIndexValues(filterIndex))) {
+                return null;
+            }
+            Object o = FunctionUtils.unpack(args[0].eval(evalContext));
+            return new IndexedSetMemberLookup(filterIndex, o);
+        } else if (xpe instanceof XPathBoolExpr) {
+            XPathBoolExpr boolExpr = (XPathBoolExpr)xpe;
+            PredicateProfile left = profilePredicate(boolExpr.a, indices, evalContext, false);
+            if (left == null) {
+                return null;
+            }
+            PredicateProfile right = profilePredicate(boolExpr.b, indices, evalContext, false);
+            if (right == null) {
+                return null;
             }
+            int op = boolExpr.op == XPathBoolExpr.AND ?
+                    IndexedPredicateCombination.AND : IndexedPredicateCombination.OR;
+            return new IndexedPredicateCombination(op, left, right);
+        }
+        return null;
+    }
 
+    /**
+     * @return the name of the index the provided expression refers to, or null if it doesn't
+     * refer to an indexed value
+     */
+    private String getFilterIndex(XPathExpression expression,
+                                  Hashtable<XPathPathExpr, String> indices) {
+        if (!(expression instanceof XPathPathExpr)) {
+            return null;
+        }
+        for (Enumeration en = indices.keys(); en.hasMoreElements(); ) {
+            XPathPathExpr expr = (XPathPathExpr)en.nextElement();
+            if (expr.matches(expression)) {
+                return translateFilterExpr(expr, (XPathPathExpr)expression, indices);
+            }
+        }
+        return null;
+    }
 
-            //There's only one case where we want to keep moving along, and we would have triggered it if it were going to happen,
-            //so otherwise, just get outta here.
-            break;
+    /**
+     * @param valueExpr A path relative to one of this root's children
+     * @return The name of the index holding the path's value for each child, if the index's
+     * values can be read in bulk, or null
+     */
+    public String getScannableIndex(XPathPathExpr valueExpr) {
+        String index = getFilterIndex(valueExpr, getStorageIndexMap());
+        if (index == null || !canScanIndexValues(index)) {
+            return null;
         }
+        return index;
+    }
+
+    /**
+     * Read an index's values for a set of records in one pass over storage
+     *
+     * @return The values, in the same order as the record ids, or null if storage can't read
+     * the index in bulk
+     */
+    public String[] readIndexValues(RecordIdSet ids, String index) {
+        LinkedHashSet<Integer> idSet = ids.toLinkedHashSet();
+        HashMap<Integer, String[]> metadata = new HashMap<>();
+        try {
+            getStorage().bulkReadMetadata(idSet, new String[]{index}, metadata);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+
+        String[] values = new String[idSet.size()];
+        int i = 0;
+        for (Integer id : idSet) {
+            String[] recordValues = metadata.get(id);
+            values[i++] = recordValues == null ? null : recordValues[0];
+        }
+        return values;
+    }
+
+    private static int getComparisonOp(int cmpOp, boolean reversed) {
+        switch (cmpOp) {
+            case XPathCmpExpr.LT:
+                return reversed ? IndexedValueComparison.GREATER_THAN : IndexedValueComparison.LESS_THAN;
+            case XPathCmpExpr.LTE:
+                return reversed ? IndexedValueComparison.GREATER_THAN_OR_EQUAL : IndexedValueComparison.LESS_THAN_OR_EQUAL;
+            case XPathCmpExpr.GT:
+                return reversed ? IndexedValueComparison.LESS_THAN : IndexedValueComparison.GREATER_THAN;
+            case XPathCmpExpr.GTE:
+                return reversed ? IndexedValueComparison.LESS_THAN_OR_EQUAL : IndexedValueComparison.GREATER_THAN_OR_EQUAL;
+            default:
+                throw new IllegalArgumentException("Unknown comparison operator " + cmpOp);
+        }
+    }
+
+    /**
+     * @return Whether the values of the provided index can be read in bulk from storage as
+     * metadata, which is required to evaluate comparisons other than exact matches against it.
+     */
+    protected boolean canScanIndexValues(String filterIndex) {
+        return true;
     }
 
     protected QueryPlanner getQueryPlanner() {
@@ -194,29 +356,39 @@ public abstract class StorageBackedTreeRoot<T extends AbstractTreeElement> imple
         //TODO: Move the actual indexed query optimization used in this
         //method into its own (or a matching) cache method
         queryPlanner.addQueryHandler(defaultCacher);
+        queryPlanner.addQueryHandler(new IndexedMetadataScanQueryHandler(getStorage(), getStorageCacheName()));
+        if (getStorage() instanceof IPostingListIndexed) {
+            queryPlanner.addQueryHandler(new PostingListQueryHandler(
+                    ((IPostingListIndexed)getStorage()).getPostingIndex(), getStorageCacheName()));
+        }
     }
 
 
-    private Collection<Integer> processPredicates(Vector<Integer> toRemove,
-                                              Vector<PredicateProfile> profiles,
-                                              QueryContext currentQueryContext) {
-        Collection<Integer> selectedElements = null;
+    private RecordIdSet processPredicates(Vector<Integer> toRemove,
+                                          Vector<PredicateProfile> profiles,
+                                          QueryContext currentQueryContext) {
+        RecordIdSet selectedElements = null;
         IStorageUtilityIndexed<?> storage = getStorage();
-        int predicatesProcessed = 0;
+
+        //Each profile stands in for the predicate at the same position. Keep track of those
+        //before the planner reorders them so we know which predicates have been evaluated
+        Vector<PredicateProfile> predicateProfiles = new Vector<>(profiles);
+        getQueryPlanner().orderBySelectivity(profiles);
+
         while (profiles.size() > 0) {
-            int startCount = profiles.size();
-            List<Integer> plannedQueryResults =
-                    this.getQueryPlanner().attemptProfiledQuery(profiles, currentQueryContext);
+            RecordIdSet plannedQueryResults =
+                    this.getQueryPlanner().attemptProfiledQuery(profiles, currentQueryContext,
+                            selectedElements);
 
             if (plannedQueryResults != null) {
                 // merge with any other sets of cases
                 if (selectedElements == null) {
                     selectedElements = plannedQueryResults;
                 } else {
-                    selectedElements = DataUtil.intersection(selectedElements, plannedQueryResults);
+                    selectedElements = selectedElements.intersect(plannedQueryResults);
                 }
             } else {
-                Collection<Integer> cases = null;
+                RecordIdSet cases = null;
                 try {
                     //Get all of the cases that meet this criteria
                     cases = this.getNextIndexMatch(profiles, storage, currentQueryContext);
@@ -229,7 +401,7 @@ public abstract class StorageBackedTreeRoot<T extends AbstractTreeElement> imple
                 if (selectedElements == null) {
                     selectedElements = cases;
                 } else {
-                    selectedElements = DataUtil.intersection(selectedElements, cases);
+                    selectedElements = selectedElements.intersect(cases);
                 }
             }
 
@@ -238,27 +410,34 @@ public abstract class StorageBackedTreeRoot<T extends AbstractTreeElement> imple
                 profiles.clear();
             }
 
-            int numPredicatesRemoved = startCount - profiles.size();
-            for (int i = 0; i < numPredicatesRemoved; ++i) {
+            currentQueryContext = currentQueryContext.testForInlineScopeEscalation(selectedElements.size());
+        }
+
+        for (int i = 0; i < predicateProfiles.size(); ++i) {
+            if (!profiles.contains(predicateProfiles.elementAt(i))) {
                 //Note that this predicate is evaluated and doesn't need to be evaluated in the future.
-                toRemove.addElement(DataUtil.integer(predicatesProcessed));
-                predicatesProcessed++;
+                toRemove.addElement(DataUtil.integer(i));
             }
-            currentQueryContext = currentQueryContext.testForInlineScopeEscalation(selectedElements.size());
         }
         return selectedElements;
     }
 
-    private Collection<TreeReference> buildReferencesFromFetchResults(Collection<Integer> selectedElements) {
+    private Collection<TreeReference> buildReferencesFromFetchResults(RecordIdSet selectedElements) {
         TreeReference base = this.getRef();
 
         initStorageCache();
 
-        Vector<TreeReference> filtered = new Vector<>();
-        for (Integer i : selectedElements) {
+        //Return the references in document order, regardless of the order of the record ids
+        int[] realIndices = new int[selectedElements.size()];
+        for (int i = 0; i < realIndices.length; ++i) {
+            realIndices[i] = objectIdMapping.get(DataUtil.integer(selectedElements.get(i)));
+        }
+        Arrays.sort(realIndices);
+
+        Vector<TreeReference> filtered = new Vector<>(realIndices.length);
+        for (int realIndex : realIndices) {
             //this takes _waaaaay_ too long, we need to refactor this
             TreeReference ref = base.clone();
-            int realIndex = objectIdMapping.get(i);
             ref.add(this.getChildHintName(), realIndex);
             filtered.addElement(ref);
         }
@@ -277,11 +456,11 @@ public abstract class StorageBackedTreeRoot<T extends AbstractTreeElement> imple
      * @param profiles    A vector of pending optimizations to be attempted. The keys should be processed left->right
      * @param storage The storage to be processed
      * @param currentQueryContext
-     * @return A Vector of integer ID's for records in the provided storage which match one or more of the keys provided.
+     * @return The ID's of records in the provided storage which match one or more of the keys provided.
      * @throws IllegalArgumentException If there was no index matching possible on the provided key and the key/value vectors
      *                                  won't be shortened.
      */
-    protected Collection<Integer> getNextIndexMatch(Vector<PredicateProfile> profiles,
+    protected RecordIdSet getNextIndexMatch(Vector<PredicateProfile> profiles,
                                                     IStorageUtilityIndexed<?> storage,
                                                     QueryContext currentQueryContext) throws IllegalArgumentException {
         int numKeysToProcess = this.getNumberOfBatchableKeysInProfileSet(profiles);
@@ -311,13 +490,12 @@ public abstract class StorageBackedTreeRoot<T extends AbstractTreeElement> imple
 
         String storageTreeName = this.getStorageCacheName();
 
-        LinkedHashSet<Integer> ids;
+        RecordIdSet ids;
         if(mIndexResultCache.containsKey(cacheKey)) {
             ids = mIndexResultCache.get(cacheKey);
         } else {
             EvaluationTrace trace = new EvaluationTrace(String.format("Storage [%s] Key Lookup [%s]", storageTreeName, keyDescription));
-            ids = new LinkedHashSet<>();
-            storage.getIDsForValues(namesToMatch, valuesToMatch, ids);
+            ids = storage.getIDSetForValues(namesToMatch, valuesToMatch);
             trace.setOutcome("Results: " + ids.size());
             currentQueryContext.reportTrace(trace);
 
@@ -14,5 +14,26 @@ public interface BitCache {
 
     InputStream retrieveCache() throws IOException;
 
+    /**
+     * @return The cached bytes, starting from the given offset into them. Caches which can't
+     * seek read through the bytes before the offset.
+     */
+    default InputStream retrieveCache(long offset) throws IOException {
+        InputStream stream = retrieveCache();
+        long remaining = offset;
+        while (remaining > 0) {
+            long skipped = stream.skip(remaining);
+            if (skipped <= 0) {
+                // skip() may give up early, so fall back to reading to tell if the end was hit
+                if (stream.read() == -1) {
+                    break;
+                }
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+        return stream;
+    }
+
     void release();
 }
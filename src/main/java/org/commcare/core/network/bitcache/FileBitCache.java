@@ -10,8 +10,12 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.util.Date;
 
 import javax.crypto.Cipher;
@@ -19,11 +23,19 @@ import javax.crypto.CipherInputStream;
 import javax.crypto.CipherOutputStream;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
 
 /**
+ * Caches a payload in an encrypted temp file. The file starts with a random IV, which is followed
+ * by the payload encrypted in AES counter mode, so reading can start from any block by working
+ * out that block's counter.
+ *
  * @author ctsims
  */
 public class FileBitCache implements BitCache {
+    private static final String TRANSFORMATION = "AES/CTR/NoPadding";
+    private static final int BLOCK_SIZE = 16;
+
     private BitCacheFactory.CacheDirSetup cacheDirSetup;
     private SecretKey key;
     private File temp;
@@ -45,12 +57,15 @@ public class FileBitCache implements BitCache {
     public OutputStream getCacheStream() throws IOException {
         //generate write key/cipher
         try {
-            Cipher encrypter = Cipher.getInstance("AES");
+            byte[] iv = new byte[BLOCK_SIZE];
+            new SecureRandom().nextBytes(iv);
+            Cipher encrypter = Cipher.getInstance(TRANSFORMATION);
 
-            encrypter.init(Cipher.ENCRYPT_MODE, key);
+            encrypter.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
 
             //stream file 
             FileOutputStream fos = new FileOutputStream(temp);
+            fos.write(iv);
             CipherOutputStream cos = new CipherOutputStream(fos, encrypter);
 
             return new BufferedOutputStream(cos, 1024);
@@ -63,20 +78,43 @@ public class FileBitCache implements BitCache {
         } catch (InvalidKeyException e) {
             e.printStackTrace();
             throw new RuntimeException(e);
+        } catch (InvalidAlgorithmParameterException e) {
+            e.printStackTrace();
+            throw new RuntimeException(e);
         }
     }
 
     @Override
     public InputStream retrieveCache() throws IOException {
+        return retrieveCache(0);
+    }
+
+    @Override
+    public InputStream retrieveCache(long offset) throws IOException {
         try {
-            //generate read key/cipher
-            Cipher decrypter = Cipher.getInstance("AES");
-            decrypter.init(Cipher.DECRYPT_MODE, key);
+            //Only the block holding the offset needs to be read from the start
+            long blockStart = offset - offset % BLOCK_SIZE;
 
             //process
             FileInputStream fis = new FileInputStream(temp);
-            BufferedInputStream bis = new BufferedInputStream(fis, 4096);
-            return new CipherInputStream(bis, decrypter);
+            try {
+                byte[] iv = new byte[BLOCK_SIZE];
+                readFully(fis, iv);
+
+                //generate read key/cipher
+                Cipher decrypter = Cipher.getInstance(TRANSFORMATION);
+                decrypter.init(Cipher.DECRYPT_MODE, key,
+                        new IvParameterSpec(counterForBlock(iv, blockStart / BLOCK_SIZE)));
+
+                fis.getChannel().position(BLOCK_SIZE + blockStart);
+                BufferedInputStream bis = new BufferedInputStream(fis, 4096);
+                CipherInputStream cis = new CipherInputStream(bis, decrypter);
+                skipDecrypted(cis, offset - blockStart);
+                return cis;
+            } catch (IOException | RuntimeException | GeneralSecurityException e) {
+                fis.close();
+                throw e;
+            }
         } catch (NoSuchAlgorithmException e) {
             e.printStackTrace();
             throw new RuntimeException(e);
@@ -86,6 +124,39 @@ public class FileBitCache implements BitCache {
         } catch (InvalidKeyException e) {
             e.printStackTrace();
             throw new RuntimeException(e);
+        } catch (InvalidAlgorithmParameterException e) {
+            e.printStackTrace();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return The counter CTR mode encrypts the given block of the payload with, which is the IV
+     * taken as a 128 bit number with the block's index added to it
+     */
+    private static byte[] counterForBlock(byte[] iv, long block) {
+        byte[] sum = new BigInteger(1, iv).add(BigInteger.valueOf(block)).toByteArray();
+        byte[] counter = new byte[BLOCK_SIZE];
+        int length = Math.min(sum.length, BLOCK_SIZE);
+        System.arraycopy(sum, sum.length - length, counter, BLOCK_SIZE - length, length);
+        return counter;
+    }
+
+    private static void readFully(InputStream stream, byte[] buffer) throws IOException {
+        int read = 0;
+        while (read < buffer.length) {
+            int count = stream.read(buffer, read, buffer.length - read);
+            if (count == -1) {
+                throw new IOException("Cache file ended before its IV");
+            }
+            read += count;
+        }
+    }
+
+    private static void skipDecrypted(InputStream stream, long count) throws IOException {
+        //CipherInputStream only skips what it has already decrypted, so read past the bytes
+        while (count > 0 && stream.read() != -1) {
+            count--;
         }
     }
 
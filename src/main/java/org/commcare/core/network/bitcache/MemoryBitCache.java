@@ -37,6 +37,13 @@ public class MemoryBitCache implements BitCache {
         return new ByteArrayInputStream(data);
     }
 
+    @Override
+    public InputStream retrieveCache(long offset) {
+        retrieveCache();
+        int start = (int)Math.min(offset, data.length);
+        return new ByteArrayInputStream(data, start, data.length - start);
+    }
+
     @Override
     public void release() {
         bos = null;
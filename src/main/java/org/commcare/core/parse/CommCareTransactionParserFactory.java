@@ -56,6 +56,8 @@ public class CommCareTransactionParserFactory implements TransactionParserFactor
 
     protected final UserSandbox sandbox;
     protected boolean isBulkProcessingEnabled = false;
+    private int indexedFixtureBatchSize = 0;
+    private boolean storeIndexedFixtureCopies = true;
 
     private int requests = 0;
 
@@ -104,7 +106,8 @@ public class CommCareTransactionParserFactory implements TransactionParserFactor
             processedFixtures.add(id);
             if (isIndexed) {
                 FixtureIndexSchema schema = fixtureSchemas.get(id);
-                return new IndexedFixtureXmlParser(parser, id, schema, sandbox);
+                return new IndexedFixtureXmlParser(parser, id, schema, sandbox,
+                        indexedFixtureBatchSize, storeIndexedFixtureCopies);
             } else {
                 return fixtureParser.getParser(parser);
             }
@@ -135,6 +138,22 @@ public class CommCareTransactionParserFactory implements TransactionParserFactor
         return null;
     }
 
+    /**
+     * Parse indexed fixtures one entry at a time, writing them to storage in batches of the
+     * provided size, instead of reading each whole fixture into memory first. If a fixture fails
+     * to parse, the entries before the failure will already have replaced its previous contents.
+     *
+     * @param storeFullCopies Whether to keep storing a copy of each whole indexed fixture in
+     *                        normal fixture storage, which requires holding it in memory
+     */
+    public void enableIndexedFixtureStreaming(int batchSize, boolean storeFullCopies) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Indexed fixture batch size must be positive");
+        }
+        indexedFixtureBatchSize = batchSize;
+        storeIndexedFixtureCopies = storeFullCopies;
+    }
+
     protected void req() {
         requests++;
         reportProgress(requests);
@@ -32,6 +32,8 @@ public class DataModelPullParser extends ElementParser<Boolean> {
     private final InputStream is;
     private final String requiredRootEnvelope = null;
     private final CommCareOTARestoreListener rListener;
+    private final RestoreCheckpointer checkpointer;
+    private int transactionCount = 0;
 
     public DataModelPullParser(InputStream is, TransactionParserFactory factory) throws InvalidStructureException, IOException {
         this(is, factory, false);
@@ -50,13 +52,22 @@ public class DataModelPullParser extends ElementParser<Boolean> {
     }
 
     public DataModelPullParser(InputStream is, TransactionParserFactory factory, boolean failfast, boolean deep, CommCareOTARestoreListener rListener) throws InvalidStructureException, IOException {
-        super(ElementParser.instantiateParser(is));
+        this(is, factory, failfast, deep, rListener, null);
+    }
+
+    /**
+     * @param checkpointer Checkpoints the restore's progress as it goes, and resumes it from an
+     *                     earlier checkpoint if it was made with one. May be null.
+     */
+    public DataModelPullParser(InputStream is, TransactionParserFactory factory, boolean failfast, boolean deep, CommCareOTARestoreListener rListener, RestoreCheckpointer checkpointer) throws InvalidStructureException, IOException {
+        super(ElementParser.instantiateParser(checkpointer == null ? is : checkpointer.track(is)));
         this.is = is;
         this.failfast = failfast;
         this.factory = factory;
         errors = new Vector<>();
         this.deep = deep;
         this.rListener = rListener;
+        this.checkpointer = checkpointer;
     }
 
     @Override
@@ -86,7 +97,7 @@ public class DataModelPullParser extends ElementParser<Boolean> {
 
             LinkedHashSet<TransactionParser> parsersUsed = new LinkedHashSet<>();
             //Go through each child of the root element
-            parseBlock(rootName, parsersUsed);
+            parseBlock(rootName, parsersUsed, true);
 
             for (TransactionParser parser : parsersUsed) {
                 if (failfast) {
@@ -117,7 +128,11 @@ public class DataModelPullParser extends ElementParser<Boolean> {
         }
     }
 
-    private void parseBlock(String root, LinkedHashSet<TransactionParser> parsers) throws InvalidStructureException, IOException, XmlPullParserException, UnfullfilledRequirementsException {
+    /**
+     * @param topLevel Whether root is the restore's root element, whose children are the
+     *                 points the restore can be checkpointed between
+     */
+    private void parseBlock(String root, LinkedHashSet<TransactionParser> parsers, boolean topLevel) throws InvalidStructureException, IOException, XmlPullParserException, UnfullfilledRequirementsException {
         int parsedCounter = 0;
         while (this.nextTagInBlock(root)) {
             if (listenerSet()) {
@@ -134,12 +149,13 @@ public class DataModelPullParser extends ElementParser<Boolean> {
             if (transaction == null) {
                 if (deep) {
                     // nothing to be done for this element, try recursing
-                    parseBlock(name, parsers);
+                    parseBlock(name, parsers, false);
                 } else {
                     this.skipBlock(name);
                 }
             } else {
                 parsers.add(transaction);
+                transactionCount++;
                 if (failfast) {
                     transaction.parse();
                 } else {
@@ -151,6 +167,20 @@ public class DataModelPullParser extends ElementParser<Boolean> {
                     }
                 }
             }
+
+            if (topLevel && checkpointer != null) {
+                checkpoint(parsers);
+            }
+        }
+    }
+
+    private void checkpoint(LinkedHashSet<TransactionParser> parsers) throws InvalidStructureException, IOException, XmlPullParserException {
+        long offset = checkpointer.elementProcessed();
+        if (offset != -1) {
+            for (TransactionParser parser : parsers) {
+                parser.checkpoint();
+            }
+            checkpointer.checkpoint(offset, transactionCount);
         }
     }
 
@@ -0,0 +1,223 @@
+package org.commcare.data.xml;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+
+/**
+ * Passes an XML document through while noting the byte offset just past the end of each child
+ * of the root element, along with the bytes of the root's start tag.
+ *
+ * This only looks for markup, so it relies on the document being in an encoding like UTF-8
+ * where '<', '>' and quotes are single bytes which never show up inside other characters.
+ * Offsets are noted as soon as the bytes are read, which with a buffering parser is well
+ * before the parser gets to them, so they're held until they're asked for.
+ */
+class ElementBoundaryInputStream extends FilterInputStream {
+
+    private static final int TEXT = 0;
+    private static final int MARKUP = 1;
+    private static final int START_TAG = 2;
+    private static final int END_TAG = 3;
+    private static final int COMMENT = 4;
+    private static final int CDATA = 5;
+    private static final int DECLARATION = 6;
+    private static final int INSTRUCTION = 7;
+
+    private long position;
+    private int state = TEXT;
+    private int depth;
+    private int quote;
+    private int previous;
+    // Closing brackets in a CDATA section or dashes in a comment, or the nesting of brackets
+    // in a declaration
+    private int run;
+
+    private ByteArrayOutputStream rootCapture;
+    private volatile byte[] rootStartTag;
+    private final ArrayDeque<Long> boundaries = new ArrayDeque<>();
+
+    /**
+     * @param firstByteOffset The offset to give the stream's first byte
+     */
+    ElementBoundaryInputStream(InputStream in, long firstByteOffset) {
+        super(in);
+        this.position = firstByteOffset;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b != -1) {
+            scan(b);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        int count = super.read(buffer, offset, length);
+        for (int i = 0; i < count; i++) {
+            scan(buffer[offset + i] & 0xFF);
+        }
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // Skipped bytes would go unscanned
+        byte[] buffer = new byte[(int)Math.min(n, 4096)];
+        long skipped = 0;
+        while (skipped < n) {
+            int count = read(buffer, 0, (int)Math.min(buffer.length, n - skipped));
+            if (count == -1) {
+                break;
+            }
+            skipped += count;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private void scan(int b) {
+        position++;
+        switch (state) {
+            case TEXT:
+                if (b == '<') {
+                    state = MARKUP;
+                }
+                break;
+            case MARKUP:
+                startMarkup(b);
+                break;
+            case START_TAG:
+                if (rootCapture != null) {
+                    rootCapture.write(b);
+                }
+                if (quote != 0) {
+                    if (b == quote) {
+                        quote = 0;
+                    }
+                } else if (b == '"' || b == '\'') {
+                    quote = b;
+                } else if (b == '>') {
+                    endStartTag(previous == '/');
+                }
+                previous = b;
+                break;
+            case END_TAG:
+                if (b == '>') {
+                    depth--;
+                    elementEnded();
+                    state = TEXT;
+                }
+                break;
+            case COMMENT:
+                if (b == '-') {
+                    run++;
+                } else {
+                    if (b == '>' && run >= 2) {
+                        state = TEXT;
+                    }
+                    run = 0;
+                }
+                break;
+            case CDATA:
+                if (b == ']') {
+                    run++;
+                } else {
+                    if (b == '>' && run >= 2) {
+                        state = TEXT;
+                    }
+                    run = 0;
+                }
+                break;
+            case DECLARATION:
+                if (run == -1) {
+                    // The byte after "<!"
+                    state = b == '-' ? COMMENT : b == '[' ? CDATA : DECLARATION;
+                    run = 0;
+                } else if (b == '[') {
+                    run++;
+                } else if (b == ']') {
+                    run--;
+                } else if (b == '>' && run <= 0) {
+                    state = TEXT;
+                }
+                break;
+            case INSTRUCTION:
+                if (b == '>' && previous == '?') {
+                    state = TEXT;
+                }
+                previous = b;
+                break;
+        }
+    }
+
+    private void startMarkup(int b) {
+        run = 0;
+        if (b == '/') {
+            state = END_TAG;
+        } else if (b == '?') {
+            state = INSTRUCTION;
+        } else if (b == '!') {
+            // Tell comments, CDATA and declarations apart by the next byte
+            state = DECLARATION;
+            run = -1;
+        } else {
+            state = START_TAG;
+            quote = 0;
+            if (depth == 0 && rootStartTag == null) {
+                rootCapture = new ByteArrayOutputStream();
+                rootCapture.write('<');
+                rootCapture.write(b);
+            }
+        }
+        previous = b;
+    }
+
+    private void endStartTag(boolean empty) {
+        state = TEXT;
+        if (rootCapture != null) {
+            rootStartTag = rootCapture.toByteArray();
+            rootCapture = null;
+        }
+        if (empty) {
+            elementEnded();
+        } else {
+            depth++;
+        }
+    }
+
+    private void elementEnded() {
+        if (depth == 1) {
+            synchronized (boundaries) {
+                boundaries.addLast(position);
+            }
+        }
+    }
+
+    /**
+     * @return The offset just past the end of the next child of the root element which hasn't
+     * been asked for yet, or -1 if no more have been read
+     */
+    long nextBoundary() {
+        synchronized (boundaries) {
+            Long boundary = boundaries.pollFirst();
+            return boundary == null ? -1 : boundary;
+        }
+    }
+
+    /**
+     * @return The root element's start tag, or null if it hasn't been read
+     */
+    byte[] getRootStartTag() {
+        return rootStartTag;
+    }
+}
@@ -0,0 +1,83 @@
+package org.commcare.data.xml;
+
+import org.javarosa.core.util.externalizable.DeserializationException;
+import org.javarosa.core.util.externalizable.ExtUtil;
+import org.javarosa.core.util.externalizable.Externalizable;
+import org.javarosa.core.util.externalizable.PrototypeFactory;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * How far a restore got: everything before a byte offset in the restore payload has been
+ * parsed and written to storage, and processing can pick back up from that offset.
+ *
+ * Offsets always fall between two children of the restore's root element. The root's start
+ * tag is kept so the rest of the payload can be parsed with the same namespaces as before.
+ */
+public class RestoreCheckpoint implements Externalizable {
+    private long byteOffset;
+    private long elementCount;
+    private long transactionCount;
+    private byte[] rootStartTag;
+
+    public RestoreCheckpoint() {
+
+    }
+
+    RestoreCheckpoint(long byteOffset, long elementCount, long transactionCount, byte[] rootStartTag) {
+        this.byteOffset = byteOffset;
+        this.elementCount = elementCount;
+        this.transactionCount = transactionCount;
+        this.rootStartTag = rootStartTag;
+    }
+
+    /**
+     * @return The offset, in bytes from the start of the restore payload, to resume reading from
+     */
+    public long getByteOffset() {
+        return byteOffset;
+    }
+
+    /**
+     * @return How many children of the root element have been processed
+     */
+    public long getElementCount() {
+        return elementCount;
+    }
+
+    /**
+     * @return How many transactions have been parsed and committed
+     */
+    public long getTransactionCount() {
+        return transactionCount;
+    }
+
+    byte[] getRootStartTag() {
+        return rootStartTag;
+    }
+
+    @Override
+    public void readExternal(DataInputStream in, PrototypeFactory pf)
+            throws IOException, DeserializationException {
+        byteOffset = ExtUtil.readNumeric(in);
+        elementCount = ExtUtil.readNumeric(in);
+        transactionCount = ExtUtil.readNumeric(in);
+        rootStartTag = ExtUtil.readBytes(in);
+    }
+
+    @Override
+    public void writeExternal(DataOutputStream out) throws IOException {
+        ExtUtil.writeNumeric(out, byteOffset);
+        ExtUtil.writeNumeric(out, elementCount);
+        ExtUtil.writeNumeric(out, transactionCount);
+        ExtUtil.writeBytes(out, rootStartTag);
+    }
+
+    @Override
+    public String toString() {
+        return "Restore checkpoint at byte " + byteOffset + " after " + elementCount +
+                " elements and " + transactionCount + " transactions";
+    }
+}
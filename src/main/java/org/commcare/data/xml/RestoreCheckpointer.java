@@ -0,0 +1,113 @@
+package org.commcare.data.xml;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+
+/**
+ * Has a DataModelPullParser checkpoint its progress through a restore, so that a restore which
+ * fails partway through can be resumed from its last checkpoint rather than started again.
+ *
+ * Checkpoints are taken between children of the restore's root element, once at least the
+ * configured number of bytes has been processed since the last one. Before each checkpoint is
+ * handed to the store, every transaction parser used so far writes out anything it's holding
+ * on to, so a checkpoint is only as durable as the storage those parsers write to: if the
+ * restore's writes are rolled back on failure, so is everything its checkpoints describe.
+ *
+ * To resume, cache the restore payload (e.g. in a FileBitCache, which can read from an
+ * offset), keep the payload and its latest checkpoint across the failure, and parse the
+ * payload from the checkpoint's byte offset onward with a checkpointer created from it.
+ * Transactions before the checkpoint aren't parsed again, so parsers which gather state across
+ * a whole restore will only see the transactions after it.
+ */
+public class RestoreCheckpointer {
+
+    private final Store store;
+    private final long intervalBytes;
+    private final RestoreCheckpoint resumeFrom;
+
+    private ElementBoundaryInputStream tracker;
+    private long lastCheckpointOffset;
+    private long elementCount;
+    private long checkpointCount;
+
+    /**
+     * @param intervalBytes How many bytes of the restore to process between checkpoints
+     */
+    public RestoreCheckpointer(Store store, long intervalBytes) {
+        this(store, intervalBytes, null);
+    }
+
+    /**
+     * @param resumeFrom The checkpoint to resume the restore from, or null to start it afresh.
+     *                   The stream being parsed must start at the checkpoint's byte offset.
+     */
+    public RestoreCheckpointer(Store store, long intervalBytes, RestoreCheckpoint resumeFrom) {
+        if (intervalBytes < 1) {
+            throw new IllegalArgumentException("Checkpoint interval must be at least one byte: " + intervalBytes);
+        }
+        this.store = store;
+        this.intervalBytes = intervalBytes;
+        this.resumeFrom = resumeFrom;
+    }
+
+    /**
+     * Start tracking where the restore's elements end in the stream which will be parsed
+     */
+    InputStream track(InputStream stream) {
+        if (tracker != null) {
+            throw new IllegalStateException("A restore checkpointer can only be used for one restore");
+        }
+        if (resumeFrom == null) {
+            tracker = new ElementBoundaryInputStream(stream, 0);
+        } else {
+            // Reopen the root element so the rest of its children parse as they would have
+            byte[] rootStartTag = resumeFrom.getRootStartTag();
+            InputStream resumed = new SequenceInputStream(new ByteArrayInputStream(rootStartTag), stream);
+            tracker = new ElementBoundaryInputStream(resumed, resumeFrom.getByteOffset() - rootStartTag.length);
+            lastCheckpointOffset = resumeFrom.getByteOffset();
+            elementCount = resumeFrom.getElementCount();
+        }
+        return tracker;
+    }
+
+    /**
+     * Note that the parser has finished with another child of the root element
+     *
+     * @return The offset just past the end of that child if a checkpoint is due there, or -1
+     */
+    long elementProcessed() {
+        elementCount++;
+        long offset = tracker.nextBoundary();
+        if (offset == -1 || offset - lastCheckpointOffset < intervalBytes) {
+            return -1;
+        }
+        return offset;
+    }
+
+    void checkpoint(long offset, long transactionsCommitted) throws IOException {
+        long transactionCount = transactionsCommitted;
+        if (resumeFrom != null) {
+            transactionCount += resumeFrom.getTransactionCount();
+        }
+        store.save(new RestoreCheckpoint(offset, elementCount, transactionCount, tracker.getRootStartTag()));
+        lastCheckpointOffset = offset;
+        checkpointCount++;
+    }
+
+    /**
+     * @return How many checkpoints have been saved
+     */
+    public long getCheckpointCount() {
+        return checkpointCount;
+    }
+
+    /**
+     * Keeps the checkpoints a restore takes somewhere they'll outlast it. Only the latest
+     * checkpoint is ever needed.
+     */
+    public interface Store {
+        void save(RestoreCheckpoint checkpoint) throws IOException;
+    }
+}
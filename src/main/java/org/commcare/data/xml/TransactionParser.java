@@ -25,4 +25,13 @@ public abstract class TransactionParser<T> extends ElementParser<T> {
             InvalidStructureException {
 
     }
+
+    /**
+     * Write out anything this parser is holding on to for later, so that a restore
+     * checkpointed now won't need any of the transactions before the checkpoint again.
+     */
+    protected void checkpoint() throws IOException, XmlPullParserException,
+            InvalidStructureException {
+
+    }
 }
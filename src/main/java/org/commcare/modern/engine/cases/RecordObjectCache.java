@@ -11,6 +11,9 @@ import java.util.HashMap;
  * Used by other optimizations to isolate doing bulk loads and ensure that they are relevant
  * when they occur
  *
+ * Bulk loads fill the map from getLoadedCaseMap directly, so they should hold this cache's lock
+ * while they do, as the cache's own methods do.
+ *
  * Created by ctsims on 6/22/2017.
  */
 
@@ -18,15 +21,15 @@ public class RecordObjectCache<T> implements QueryCache {
 
     private HashMap<String,HashMap<Integer, T>> caches = new HashMap<>();
 
-    public boolean isLoaded(String storageSetID, int recordId) {
+    public synchronized boolean isLoaded(String storageSetID, int recordId) {
         return getCache(storageSetID).containsKey(recordId);
     }
 
-    public HashMap<Integer, T> getLoadedCaseMap(String storageSetID) {
+    public synchronized HashMap<Integer, T> getLoadedCaseMap(String storageSetID) {
         return getCache(storageSetID);
     }
 
-    public T getLoadedRecordObject(String storageSetID, int recordId) {
+    public synchronized T getLoadedRecordObject(String storageSetID, int recordId) {
         return getCache(storageSetID).get(recordId);
     }
 
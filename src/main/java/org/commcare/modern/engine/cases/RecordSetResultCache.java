@@ -2,9 +2,10 @@ package org.commcare.modern.engine.cases;
 
 import org.commcare.cases.query.QueryCache;
 import org.commcare.modern.util.Pair;
+import org.javarosa.core.util.RecordIdSet;
 
 import java.util.HashMap;
-import java.util.LinkedHashSet;
+import java.util.Set;
 
 /**
  * A record set result cache keeps track of different sets of "Bulk" record which are
@@ -21,7 +22,7 @@ import java.util.LinkedHashSet;
 
 public class RecordSetResultCache implements QueryCache {
 
-    private HashMap<String,Pair<String, LinkedHashSet<Integer>>> bulkFetchBodies = new HashMap<>();
+    private HashMap<String,Pair<String, RecordIdSet>> bulkFetchBodies = new HashMap<>();
 
     /**
      * Report a set of bulk records that are likely to be needed as a group.
@@ -31,7 +32,7 @@ public class RecordSetResultCache implements QueryCache {
      * @param storageSetID The name of the Storage where the records are stored.
      * @param ids The record set ID's
      */
-    public void reportBulkRecordSet(String key, String storageSetID, LinkedHashSet<Integer> ids) {
+    public synchronized void reportBulkRecordSet(String key, String storageSetID, RecordIdSet ids) {
         String fullKey = key +"|" + storageSetID;
         if (bulkFetchBodies.containsKey(fullKey)) {
             return;
@@ -39,6 +40,14 @@ public class RecordSetResultCache implements QueryCache {
         bulkFetchBodies.put(fullKey, new Pair<>(storageSetID, ids));
     }
 
+    public synchronized void reportBulkRecordSet(String key, String storageSetID, Set<Integer> ids) {
+        String fullKey = key +"|" + storageSetID;
+        if (bulkFetchBodies.containsKey(fullKey)) {
+            return;
+        }
+        bulkFetchBodies.put(fullKey, new Pair<>(storageSetID, RecordIdSet.fromCollection(ids)));
+    }
+
     public boolean hasMatchingRecordSet(String recordSetName, int recordId) {
         return getRecordSetForRecordId(recordSetName, recordId) != null;
     }
@@ -51,12 +60,12 @@ public class RecordSetResultCache implements QueryCache {
      * If multiple record set results contain the provided record, this method will return the
      * result of the smallest size.
      */
-    public Pair<String, LinkedHashSet<Integer>> getRecordSetForRecordId(String recordSetName,
-                                                                        int recordId) {
-        Pair<String, LinkedHashSet<Integer>> match = null;
+    public synchronized Pair<String, RecordIdSet> getRecordSetForRecordId(String recordSetName,
+                                                             int recordId) {
+        Pair<String, RecordIdSet> match = null;
         for (String key : bulkFetchBodies.keySet()) {
-            Pair<String, LinkedHashSet<Integer>> tranche = bulkFetchBodies.get(key);
-            if (tranche.second.contains(recordId) && tranche.first.equals(recordSetName)) {
+            Pair<String, RecordIdSet> tranche = bulkFetchBodies.get(key);
+            if (tranche.first.equals(recordSetName) && tranche.second.contains(recordId)) {
                 if(match == null || (tranche.second.size() < match.second.size())) {
                     match = new Pair<>(key, tranche.second);
                 }
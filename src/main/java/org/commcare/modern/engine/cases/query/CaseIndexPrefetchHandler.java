@@ -67,19 +67,22 @@ public class CaseIndexPrefetchHandler implements QueryHandler<IndexedValueLookup
         String value = (String)querySet.value;
 
         Cache cache = context.getQueryCache(Cache.class);
-        if(!cache.currentlyFetchedIndexKeys.contains(indexName)) {
-            if(context.getScope() < BULK_LOAD_THRESHOLD) {
-                return null;
+        // Another thread in the same context may be prefetching this index
+        synchronized (cache) {
+            if(!cache.currentlyFetchedIndexKeys.contains(indexName)) {
+                if(context.getScope() < BULK_LOAD_THRESHOLD) {
+                    return null;
+                }
+
+                EvaluationTrace trace = new EvaluationTrace("Index Bulk Prefetch [" + indexName + "]");
+                int indexFetchSize = mCaseIndexTable.loadIntoIndexTable(cache.indexCache, indexName);
+                trace.setOutcome("Loaded: " + indexFetchSize);
+                context.reportTrace(trace);
+                cache.currentlyFetchedIndexKeys.add(indexName);
             }
-
-            EvaluationTrace trace = new EvaluationTrace("Index Bulk Prefetch [" + indexName + "]");
-            int indexFetchSize = mCaseIndexTable.loadIntoIndexTable(cache.indexCache, indexName);
-            trace.setOutcome("Loaded: " + indexFetchSize);
-            context.reportTrace(trace);
-            cache.currentlyFetchedIndexKeys.add(indexName);
+            String cacheKey = indexName + "|" + value;
+            return cache.indexCache.get(cacheKey);
         }
-        String cacheKey = indexName + "|" + value;
-        return cache.indexCache.get(cacheKey);
     }
 
     @Override
@@ -9,10 +9,12 @@ package org.commcare.modern.util;
 
 public class PerformanceTuningUtil {
     private static int MAX_PREFETCH_CASE_BLOCK = -1;
+    private static long MAX_BULK_BACKLOG_BYTES = -1;
 
-    private static final long MB_64 = 64 * 1024 * 2014;
-    private static final long MB_256 = 256 * 1024 * 2014;
-    private static final long MB_1024 = 1024 * 1024 * 2014;
+    private static final long MB = 1024 * 1024;
+    private static final long MB_64 = 64 * MB;
+    private static final long MB_256 = 256 * MB;
+    private static final long MB_1024 = 1024 * MB;
 
     /**
      * Update the constant size of cases eligible for batch "pre-fetch" in db ops. This
@@ -68,4 +70,42 @@ public class PerformanceTuningUtil {
         }
         return MAX_PREFETCH_CASE_BLOCK;
     }
+
+    /**
+     * Update the estimated amount of memory which bulk parsers can fill with buffered elements
+     * before processing them, no matter how many elements that is.
+     */
+    public static void updateMaxBulkBacklogBytes(long newMaxBytes) {
+        MAX_BULK_BACKLOG_BYTES = newMaxBytes;
+    }
+
+    /**
+     * @return A heuristic for the largest safe amount of memory for bulk parsers to buffer
+     * elements in, based on a provided amount of memory which should be available for
+     * optimizations.
+     */
+    public static long guessLargestSupportedBulkBacklogFromHeap(long availableMemoryInBytes) {
+        if (availableMemoryInBytes == 0 || availableMemoryInBytes == -1) {
+            return 8 * MB;
+        } else if (availableMemoryInBytes <= MB_64) {
+            return 2 * MB;
+        } else if (availableMemoryInBytes <= MB_256) {
+            return 8 * MB;
+        } else if (availableMemoryInBytes <= MB_1024) {
+            return 32 * MB;
+        } else {
+            return 64 * MB;
+        }
+    }
+
+    /**
+     * @return The estimated number of bytes of buffered elements which will trigger a bulk
+     * parser to process its buffer.
+     */
+    public static long getMaxBulkBacklogBytes() {
+        if (MAX_BULK_BACKLOG_BYTES == -1) {
+            updateMaxBulkBacklogBytes(guessLargestSupportedBulkBacklogFromHeap(Runtime.getRuntime().maxMemory()));
+        }
+        return MAX_BULK_BACKLOG_BYTES;
+    }
 }
@@ -32,7 +32,14 @@ public class SuiteInstaller extends CacheInstaller<Suite> {
     public boolean initialize(CommCarePlatform platform, boolean isUpgrade) throws
             IOException, InvalidReferenceException, InvalidStructureException,
             XmlPullParserException, UnfullfilledRequirementsException {
-        platform.registerSuite(storage(platform).read(cacheLocation));
+        Suite suite = null;
+        if (platform.getSnapshot() != null) {
+            suite = platform.getSnapshot().getSuite(cacheLocation);
+        }
+        if (suite == null) {
+            suite = storage(platform).read(cacheLocation);
+        }
+        platform.registerSuite(suite);
         return true;
     }
 
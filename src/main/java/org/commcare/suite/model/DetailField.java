@@ -115,7 +115,7 @@ public class DetailField implements Externalizable {
         }
 
         if (parsedRelevancy == null) {
-            parsedRelevancy = XPathParseTool.parseXPath(relevancy);
+            parsedRelevancy = XPathParseTool.parseCompiledXPath(relevancy);
         }
 
         return FunctionUtils.toBoolean(parsedRelevancy.eval(context));
@@ -342,7 +342,7 @@ public class Text implements Externalizable, DetailTemplate, XPathAnalyzable {
     public void ensureCacheIsParsed() throws XPathSyntaxException {
         if (cacheParse == null) {
             //Do an XPath cast to a string as part of the operation.
-            cacheParse = XPathParseTool.parseXPath("string(" + argument + ")");
+            cacheParse = XPathParseTool.parseCompiledXPath("string(" + argument + ")");
         }
     }
 
@@ -0,0 +1,228 @@
+package org.commcare.util;
+
+import org.commcare.suite.model.Suite;
+import org.javarosa.core.io.ByteBufferInputStream;
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.services.storage.IStorageIterator;
+import org.javarosa.core.services.storage.IStorageUtilityIndexed;
+import org.javarosa.core.services.storage.StorageManager;
+import org.javarosa.core.util.externalizable.DeserializationException;
+import org.javarosa.core.util.externalizable.ExtUtil;
+import org.javarosa.core.util.externalizable.PrototypeFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * A single file holding the forms and suites of one version of an installed app, which is
+ * memory mapped when opened so that starting a session doesn't need to read them out of
+ * storage.
+ *
+ * Records are kept in the compact serialization format and are only deserialized when first
+ * requested, straight out of the mapped file. Suites are deserialized once and shared by every
+ * user of the snapshot, along with the details, fields, and texts inside of them, so they must
+ * not be modified. Forms hold the state of the session they are filled out in, so each request
+ * for one deserializes a new copy.
+ *
+ * A snapshot records the version of the app it was written for, which callers should compare
+ * against the installed app before using it.
+ */
+public class AppSnapshot {
+
+    private static final int MAGIC = 0x43435350;
+    private static final int FORMAT_VERSION = 1;
+
+    private final MappedByteBuffer buffer;
+    private final PrototypeFactory factory;
+    private final int appVersion;
+    private final int recordsStart;
+
+    private final HashMap<Integer, Region> suiteRegions = new HashMap<>();
+    private final HashMap<String, Region> formRegionsByXmlns = new HashMap<>();
+    private final HashMap<Integer, Suite> suites = new HashMap<>();
+
+    private AppSnapshot(MappedByteBuffer buffer, PrototypeFactory factory) throws IOException {
+        this.buffer = buffer;
+        this.factory = factory;
+
+        ByteBufferInputStream headerStream = new ByteBufferInputStream(buffer.duplicate());
+        DataInputStream header = new DataInputStream(headerStream);
+        if (header.readInt() != MAGIC) {
+            throw new IOException("Not an app snapshot");
+        }
+        if (header.readInt() != FORMAT_VERSION) {
+            throw new IOException("App snapshot was written in an unsupported format");
+        }
+        appVersion = header.readInt();
+
+        int suiteCount = header.readInt();
+        for (int i = 0; i < suiteCount; i++) {
+            suiteRegions.put(header.readInt(), new Region(header.readInt(), header.readInt()));
+        }
+        int formCount = header.readInt();
+        for (int i = 0; i < formCount; i++) {
+            formRegionsByXmlns.put(header.readUTF(), new Region(header.readInt(), header.readInt()));
+        }
+        recordsStart = headerStream.getPosition();
+    }
+
+    /**
+     * Write a snapshot of the forms and suites currently installed in the provided storage.
+     * The snapshot is written to a temporary file which then replaces the target, so a snapshot
+     * that's already in use is never partially overwritten.
+     *
+     * @param appVersion The version of the app being snapshotted
+     */
+    public static void write(StorageManager storageManager, int appVersion, File file) throws IOException {
+        ArrayList<byte[]> records = new ArrayList<>();
+
+        IStorageUtilityIndexed suiteStorage = storageManager.getStorage(Suite.STORAGE_KEY);
+        ArrayList<Integer> suiteIds = new ArrayList<>();
+        for (IStorageIterator it = suiteStorage.iterate(); it.hasMore(); ) {
+            int id = it.nextID();
+            suiteIds.add(id);
+            records.add(ExtUtil.serializeCompact(suiteStorage.read(id)));
+        }
+
+        IStorageUtilityIndexed formStorage = storageManager.getStorage(FormDef.STORAGE_KEY);
+        ArrayList<FormDef> forms = new ArrayList<>();
+        HashMap<String, Integer> xmlnsCounts = new HashMap<>();
+        for (IStorageIterator it = formStorage.iterate(); it.hasMore(); ) {
+            FormDef form = (FormDef)formStorage.read(it.nextID());
+            forms.add(form);
+            String xmlns = (String)form.getMetaData("XMLNS");
+            Integer count = xmlnsCounts.get(xmlns);
+            xmlnsCounts.put(xmlns, count == null ? 1 : count + 1);
+        }
+        // Forms whose xmlns doesn't identify them on its own are left out, so that looking them
+        // up falls back to storage, which decides what happens to an ambiguous xmlns
+        ArrayList<String> formXmlns = new ArrayList<>();
+        for (FormDef form : forms) {
+            String xmlns = (String)form.getMetaData("XMLNS");
+            if (xmlns != null && xmlnsCounts.get(xmlns) == 1) {
+                formXmlns.add(xmlns);
+                records.add(ExtUtil.serializeCompact(form));
+            }
+        }
+
+        File partial = new File(file.getPath() + ".partial");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(partial)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(appVersion);
+
+            // Records follow the header, with offsets counted from the end of the header
+            int offset = 0;
+            out.writeInt(suiteIds.size());
+            for (int i = 0; i < suiteIds.size(); i++) {
+                out.writeInt(suiteIds.get(i));
+                out.writeInt(offset);
+                out.writeInt(records.get(i).length);
+                offset += records.get(i).length;
+            }
+            out.writeInt(formXmlns.size());
+            for (int i = 0; i < formXmlns.size(); i++) {
+                byte[] record = records.get(suiteIds.size() + i);
+                out.writeUTF(formXmlns.get(i));
+                out.writeInt(offset);
+                out.writeInt(record.length);
+                offset += record.length;
+            }
+
+            for (byte[] record : records) {
+                out.write(record);
+            }
+        } finally {
+            out.close();
+        }
+
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Couldn't replace the app snapshot at " + file.getPath());
+        }
+        if (!partial.renameTo(file)) {
+            throw new IOException("Couldn't move the app snapshot into place at " + file.getPath());
+        }
+    }
+
+    /**
+     * Map the snapshot at the provided location into memory. The file stays mapped for as long
+     * as the snapshot is reachable.
+     */
+    public static AppSnapshot open(File file, PrototypeFactory factory) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            return new AppSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), factory);
+        } finally {
+            // The mapping remains valid after the file is closed
+            raf.close();
+        }
+    }
+
+    public int getAppVersion() {
+        return appVersion;
+    }
+
+    /**
+     * @return The suite stored under the provided record id when the snapshot was written, or
+     * null if it isn't part of the snapshot. The suite is shared and must not be modified.
+     */
+    public Suite getSuite(int recordId) {
+        synchronized (suites) {
+            Suite suite = suites.get(recordId);
+            if (suite == null) {
+                Region region = suiteRegions.get(recordId);
+                if (region == null) {
+                    return null;
+                }
+                suite = (Suite)read(region, Suite.class);
+                suites.put(recordId, suite);
+            }
+            return suite;
+        }
+    }
+
+    /**
+     * @return A new copy of the form with the provided xmlns, or null if it isn't part of the
+     * snapshot. Forms which share their xmlns with another form aren't part of the snapshot.
+     */
+    public FormDef readFormByXmlns(String xmlns) {
+        Region region = formRegionsByXmlns.get(xmlns);
+        if (region == null) {
+            return null;
+        }
+        return (FormDef)read(region, FormDef.class);
+    }
+
+    private Object read(Region region, Class type) {
+        ByteBuffer record = buffer.duplicate();
+        record.position(recordsStart + region.offset);
+        record.limit(recordsStart + region.offset + region.length);
+        try {
+            return ExtUtil.deserializeCompact(record.slice(), type, factory);
+        } catch (IOException | DeserializationException e) {
+            throw new RuntimeException("Couldn't read " + type.getSimpleName() + " from app snapshot: " + e.getMessage());
+        }
+    }
+
+    private static class Region {
+        final int offset;
+        final int length;
+
+        Region(int offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
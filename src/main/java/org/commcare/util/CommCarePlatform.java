@@ -46,6 +46,7 @@ public class CommCarePlatform {
     private Profile cachedProfile;
 
     private OfflineUserRestore offlineUserRestore;
+    private AppSnapshot snapshot;
 
     private StorageManager storageManager;
     private PropertyManager propertyManager;
@@ -120,6 +121,19 @@ public class CommCarePlatform {
         this.cachedProfile = p;
     }
 
+    /**
+     * Provide a snapshot of the installed app which resources are initialized from, rather
+     * than from storage, where possible. It must have been written for the installed version
+     * of the app.
+     */
+    public void setSnapshot(AppSnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    public AppSnapshot getSnapshot() {
+        return snapshot;
+    }
+
     public void registerSuite(Suite s) {
         installedSuites.addElement(s);
     }
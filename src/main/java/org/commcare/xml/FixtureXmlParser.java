@@ -76,18 +76,7 @@ public class FixtureXmlParser extends TransactionParser<FormInstance> {
 
         //If we're using storage, deal properly
         if (storage != null) {
-            int recordId = -1;
-            Vector<Integer> matchingFixtures = storage.getIDsForValue(FormInstance.META_ID, fixtureId);
-            if (matchingFixtures.size() > 0) {
-                //find all fixtures with the same user
-                Vector<Integer> matchingUsers = storage.getIDsForValue(FormInstance.META_XMLNS, ExtUtil.emptyIfNull(userId));
-                for (Integer i : matchingFixtures) {
-                    if (matchingUsers.indexOf(i) != -1) {
-                        recordId = i;
-                    }
-                }
-            }
-
+            int recordId = getStoredFixtureId(storage, fixtureId, userId);
             if (recordId != -1) {
                 if (!overwrite) {
                     //parse it out, but don't write anything to memory if one already exists
@@ -99,6 +88,26 @@ public class FixtureXmlParser extends TransactionParser<FormInstance> {
         return Pair.create(instance, true);
     }
 
+    /**
+     * @return The record id of the fixture with the provided id already stored for the provided
+     * user, or -1 if there isn't one
+     */
+    protected static int getStoredFixtureId(IStorageUtilityIndexed<FormInstance> storage,
+                                            String fixtureId, String userId) {
+        int recordId = -1;
+        Vector<Integer> matchingFixtures = storage.getIDsForValue(FormInstance.META_ID, fixtureId);
+        if (matchingFixtures.size() > 0) {
+            //find all fixtures with the same user
+            Vector<Integer> matchingUsers = storage.getIDsForValue(FormInstance.META_XMLNS, ExtUtil.emptyIfNull(userId));
+            for (Integer i : matchingFixtures) {
+                if (matchingUsers.indexOf(i) != -1) {
+                    recordId = i;
+                }
+            }
+        }
+        return recordId;
+    }
+
     @Override
     protected void commit(FormInstance parsed) throws IOException {
         storage().write(parsed);
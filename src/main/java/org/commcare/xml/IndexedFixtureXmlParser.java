@@ -5,6 +5,7 @@ import org.commcare.cases.model.StorageIndexedTreeElementModel;
 import org.commcare.core.interfaces.UserSandbox;
 import org.commcare.data.xml.TransactionParser;
 import org.commcare.modern.util.Pair;
+import org.javarosa.core.model.data.UncastData;
 import org.javarosa.core.model.instance.FormInstance;
 import org.javarosa.core.model.instance.TreeElement;
 import org.javarosa.core.services.storage.IStorageUtilityIndexed;
@@ -15,7 +16,10 @@ import org.kxml2.io.KXmlParser;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -28,6 +32,12 @@ import java.util.Set;
  * ('product-list', 'products', 'product') to be able to reconstruct the
  * fixture instance
  *
+ * By default the whole fixture is parsed into memory before any of it is
+ * written. Large fixtures can instead be streamed, with entries parsed one at
+ * a time and written out in batches, and the copy of the whole fixture kept in
+ * normal fixture storage can be skipped so that nothing but the current batch
+ * is held in memory.
+ *
  * @author Phillip Mates (pmates@dimagi.com)
  */
 public class IndexedFixtureXmlParser extends TransactionParser<StorageIndexedTreeElementModel> {
@@ -36,14 +46,29 @@ public class IndexedFixtureXmlParser extends TransactionParser<StorageIndexedTre
     private final Set<String> columnIndices;
     private final UserSandbox sandbox;
     private final String fixtureName;
+    private final int entryBatchSize;
+    private final boolean storeFullCopy;
     private IStorageUtilityIndexed<StorageIndexedTreeElementModel> indexedFixtureStorage;
     private IStorageUtilityIndexed<FormInstance> normalFixtureStorage;
 
     public IndexedFixtureXmlParser(KXmlParser parser, String fixtureId,
                                    FixtureIndexSchema schema, UserSandbox sandbox) {
+        this(parser, fixtureId, schema, sandbox, 0, true);
+    }
+
+    /**
+     * @param entryBatchSize How many entries to hold in memory before writing them to storage,
+     *                       or 0 to parse the whole fixture before writing any of it
+     * @param storeFullCopy  Whether to also store the whole fixture in normal fixture storage
+     */
+    public IndexedFixtureXmlParser(KXmlParser parser, String fixtureId,
+                                   FixtureIndexSchema schema, UserSandbox sandbox,
+                                   int entryBatchSize, boolean storeFullCopy) {
         super(parser);
         this.sandbox = sandbox;
         this.fixtureName = fixtureId;
+        this.entryBatchSize = entryBatchSize;
+        this.storeFullCopy = storeFullCopy;
 
         if (schema == null) {
             // don't create any table indices if there was no fixture index schema
@@ -66,21 +91,101 @@ public class IndexedFixtureXmlParser extends TransactionParser<StorageIndexedTre
 
         if (nextTagInBlock("fixture")) {
             // only commit fixtures with bodies to storage
-            TreeElement root = new TreeElementParser(parser, 0, fixtureName).parse();
-            processRoot(root);
+            TreeElement root;
+            if (entryBatchSize > 0) {
+                root = streamRoot();
+            } else {
+                root = new TreeElementParser(parser, 0, fixtureName).parse();
+                processRoot(root);
+            }
 
             // commit whole instance to normal fixture storage to allow for
             // migrations going forward, if ever needed
             String userId = parser.getAttributeValue(null, "user_id");
-            Pair<FormInstance, Boolean> instanceAndCommitStatus =
-                    FixtureXmlParser.setupInstance(getNormalFixtureStorage(),
-                            root, fixtureName, userId, true);
-            commitToNormalStorage(instanceAndCommitStatus.first);
+            if (storeFullCopy) {
+                Pair<FormInstance, Boolean> instanceAndCommitStatus =
+                        FixtureXmlParser.setupInstance(getNormalFixtureStorage(),
+                                root, fixtureName, userId, true);
+                commitToNormalStorage(instanceAndCommitStatus.first);
+            } else {
+                // don't leave a copy from an earlier sync behind
+                int staleCopy = FixtureXmlParser.getStoredFixtureId(getNormalFixtureStorage(), fixtureName, userId);
+                if (staleCopy != -1) {
+                    getNormalFixtureStorage().remove(staleCopy);
+                }
+            }
         }
 
         return null;
     }
 
+    /**
+     * Parse the fixture's root element one entry at a time, writing entries out each time a
+     * batch of them has been parsed.
+     *
+     * @return The root element, which only holds the entries if a full copy of the fixture is
+     * being stored
+     */
+    private TreeElement streamRoot() throws InvalidStructureException, IOException,
+            XmlPullParserException, UnfullfilledRequirementsException {
+        int depth = parser.getDepth();
+        TreeElement root = new TreeElement(parser.getName(), 0);
+        root.setInstanceName(fixtureName);
+        for (int i = 0; i < parser.getAttributeCount(); ++i) {
+            root.setAttribute(parser.getAttributeNamespace(i), parser.getAttributeName(i), parser.getAttributeValue(i));
+        }
+
+        String entryName = null;
+        HashMap<String, Integer> multiplicities = new HashMap<>();
+        List<StorageIndexedTreeElementModel> batch = new ArrayList<>();
+
+        while (parser.getDepth() >= depth) {
+            int event = this.nextNonWhitespace();
+            if (event == KXmlParser.END_TAG) {
+                break;
+            } else if (event == KXmlParser.TEXT) {
+                root.setValue(new UncastData(parser.getText().trim()));
+            } else if (event == KXmlParser.START_TAG) {
+                String name = parser.getName();
+                Integer previous = multiplicities.get(name);
+                int multiplicity = previous == null ? 0 : previous + 1;
+                multiplicities.put(name, multiplicity);
+
+                TreeElement entry = new TreeElementParser(parser, multiplicity, fixtureName).parse();
+                if (storeFullCopy) {
+                    root.addChild(entry);
+                }
+
+                if (entryName == null) {
+                    entryName = name;
+                    writeFixtureIndex(root, entryName);
+                }
+                if (entryName.equals(name)) {
+                    batch.add(new StorageIndexedTreeElementModel(indices, entry));
+                    if (batch.size() >= entryBatchSize) {
+                        commitBatch(batch);
+                    }
+                }
+            } else {
+                throw new InvalidStructureException("Exception while trying to parse an XML Tree, got something other than tags and text", parser);
+            }
+        }
+
+        if (entryName == null) {
+            sandbox.getIndexedFixtureStorage(fixtureName).removeAll();
+        } else {
+            commitBatch(batch);
+        }
+        return root;
+    }
+
+    private void commitBatch(List<StorageIndexedTreeElementModel> batch) throws IOException {
+        for (StorageIndexedTreeElementModel model : batch) {
+            commit(model);
+        }
+        batch.clear();
+    }
+
     private void processRoot(TreeElement root) throws IOException {
         if (root.hasChildren()) {
             String entryName = root.getChildAt(0).getName();
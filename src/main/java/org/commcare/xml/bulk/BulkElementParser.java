@@ -1,6 +1,8 @@
 package org.commcare.xml.bulk;
 
 import org.commcare.data.xml.TransactionParser;
+import org.commcare.modern.util.PerformanceTuningUtil;
+import org.javarosa.core.model.data.IAnswerData;
 import org.javarosa.core.model.instance.TreeElement;
 import org.javarosa.xml.TreeElementParser;
 import org.javarosa.xml.util.InvalidStructureException;
@@ -39,29 +41,76 @@ import java.util.TreeMap;
  *
  * performBulkWrite - Write the processed models to storage
  *
+ * The buffer is processed once it holds more elements than the current batch size, or once
+ * the estimated memory taken by its elements passes a limit based on the heap. Unless a batch
+ * size is set explicitly, it's adjusted as the restore goes on: batches keep growing while
+ * doing so lowers the time the bulk read and write take per element, and shrink when it raises
+ * it.
+ *
  * Created by ctsims on 3/14/2017.
  */
 
 public abstract class BulkElementParser<T> extends TransactionParser<TreeElement> {
 
+    private static final int MIN_BULK_TRIGGER = 50;
+
+    // How much the time per element has to change between batches to be taken as a trend
+    // rather than noise
+    private static final double LATENCY_TOLERANCE = 0.1;
+
+    // Rough sizes of the objects behind buffered elements, in bytes
+    private static final int ELEMENT_OVERHEAD = 160;
+    private static final int STRING_OVERHEAD = 40;
+
     protected int bulkTrigger = 500;
+    private long bulkMemoryTrigger = PerformanceTuningUtil.getMaxBulkBacklogBytes();
+    private boolean adaptBulkTrigger = true;
+
     private List<TreeElement> currentBulkElementBacklog = new ArrayList<>();
     private Set<String> currentBulkReadSet = new HashSet<>();
     private Map<String, T> currentOperatingSet = new HashMap<>();
     private LinkedHashMap<String, T> writeLog = new LinkedHashMap<>();
 
     private int currentBulkReadCount = 0;
+    private long currentBacklogBytes = 0;
+
+    private final BulkFlushStats flushStats = new BulkFlushStats();
+
+    // The latest batch which was processed for holding a full batch of elements, and the batch
+    // size it was gathered with
+    private int fullBatchCount = 0;
+    private int fullBatchTrigger;
+    private long fullBatchReadNanos;
+    private long fullBatchWriteNanos;
+    private double previousNanosPerElement = -1;
+    private boolean growingBulkTrigger = true;
 
     public BulkElementParser(KXmlParser parser) {
         super(parser);
+        flushStats.setBatchSize(bulkTrigger);
     }
 
     /**
-     * Sets the count at which the parser should trigger processing the current buffer
+     * Sets the count at which the parser should trigger processing the current buffer, which
+     * will then no longer be adjusted as the parser goes
      * @param newTriggerCount
      */
     protected void setBulkProcessTrigger(int newTriggerCount) {
         this.bulkTrigger = newTriggerCount;
+        this.adaptBulkTrigger = false;
+        flushStats.setBatchSize(newTriggerCount);
+    }
+
+    /**
+     * Sets the estimated number of bytes of buffered elements at which the parser should
+     * trigger processing the current buffer, regardless of how many elements it holds
+     */
+    protected void setBulkProcessMemoryTrigger(long newTriggerBytes) {
+        this.bulkMemoryTrigger = newTriggerBytes;
+    }
+
+    public BulkFlushStats getFlushStats() {
+        return flushStats;
     }
 
     @Override
@@ -73,30 +122,122 @@ public abstract class BulkElementParser<T> extends TransactionParser<TreeElement
         requestModelReadsForElement(subElement, currentBulkReadSet);
         currentBulkElementBacklog.add(subElement);
         currentBulkReadCount++;
+        currentBacklogBytes += estimateSize(subElement);
 
-        if (currentBulkReadCount > bulkTrigger) {
-            processCurrentBuffer();
+        boolean full = currentBulkReadCount > bulkTrigger;
+        boolean overMemory = currentBacklogBytes > bulkMemoryTrigger;
+        if (full || overMemory) {
+            processBuffer(full, overMemory);
         }
         return subElement;
     }
 
     public void processCurrentBuffer() throws IOException, XmlPullParserException,
             InvalidStructureException {
+        processBuffer(false, false);
+    }
+
+    private void processBuffer(boolean full, boolean overMemory) throws IOException,
+            XmlPullParserException, InvalidStructureException {
+        int gatheredWithTrigger = bulkTrigger;
+        adaptBulkTrigger();
+        flushStats.setBatchSize(bulkTrigger);
+
+        int elementCount = currentBulkReadCount;
+        long readStart = System.nanoTime();
         currentOperatingSet = new HashMap<>();
         performBulkRead(currentBulkReadSet, currentOperatingSet);
+        long readNanos = System.nanoTime() - readStart;
         for (TreeElement t : currentBulkElementBacklog) {
             processBufferedElement(t, currentOperatingSet, writeLog);
         }
+
+        if (elementCount > 0) {
+            flushStats.recordFlush(elementCount, currentBacklogBytes, full, overMemory, readNanos);
+        }
+        // Batches cut short by memory don't say anything about the batch size
+        boolean timeBatch = full && !overMemory;
+        if (timeBatch) {
+            fullBatchCount = elementCount;
+            fullBatchTrigger = gatheredWithTrigger;
+            fullBatchReadNanos = readNanos;
+        }
+
+        long writeStart = System.nanoTime();
         performBulkWrite(writeLog);
+        long writeNanos = System.nanoTime() - writeStart;
+        flushStats.recordWrite(writeNanos);
+        if (timeBatch) {
+            fullBatchWriteNanos = writeNanos;
+        }
         clearState();
     }
 
+    /**
+     * Grow or shrink the batch size depending on whether the last full batch took more or less
+     * time per element than the one before it. Batches keep changing size in the same
+     * direction while that makes them faster, turn around when it makes them slower, and hold
+     * their size while it makes no real difference.
+     *
+     * The buffer being processed was already gathered by the time the batch before it is
+     * timed, so a batch gathered before the last change of size is ignored rather than
+     * being taken as the result of that change.
+     */
+    private void adaptBulkTrigger() {
+        if (!adaptBulkTrigger || fullBatchCount == 0) {
+            return;
+        }
+        double nanosPerElement = (double)(fullBatchReadNanos + fullBatchWriteNanos) / fullBatchCount;
+        fullBatchCount = 0;
+        if (fullBatchTrigger != bulkTrigger) {
+            return;
+        }
+
+        if (previousNanosPerElement > 0) {
+            if (nanosPerElement > previousNanosPerElement * (1 + LATENCY_TOLERANCE)) {
+                growingBulkTrigger = !growingBulkTrigger;
+            } else if (nanosPerElement > previousNanosPerElement * (1 - LATENCY_TOLERANCE)) {
+                previousNanosPerElement = nanosPerElement;
+                return;
+            }
+        }
+        previousNanosPerElement = nanosPerElement;
+
+        int maxBulkTrigger = Math.max(MIN_BULK_TRIGGER, PerformanceTuningUtil.getMaxPrefetchCaseBlock());
+        int newTrigger = growingBulkTrigger ? bulkTrigger * 2 : bulkTrigger / 2;
+        bulkTrigger = Math.min(maxBulkTrigger, Math.max(MIN_BULK_TRIGGER, newTrigger));
+    }
+
+    /**
+     * @return A rough estimate of the memory taken up by a buffered element, in bytes
+     */
+    protected long estimateSize(TreeElement element) {
+        long size = ELEMENT_OVERHEAD + estimateSize(element.getName());
+        for (int i = 0; i < element.getAttributeCount(); i++) {
+            size += ELEMENT_OVERHEAD + estimateSize(element.getAttributeName(i)) +
+                    estimateSize(element.getAttributeValue(i));
+        }
+        IAnswerData value = element.getValue();
+        if (value != null) {
+            size += estimateSize(value.uncast().getString());
+        }
+        for (int i = 0; i < element.getNumChildren(); i++) {
+            size += estimateSize(element.getChildAt(i));
+        }
+        return size;
+    }
+
+    private static long estimateSize(String string) {
+        return string == null ? 0 : STRING_OVERHEAD + 2L * string.length();
+    }
+
     protected void clearState() {
         currentBulkElementBacklog.clear();
         currentBulkReadSet.clear();
         currentOperatingSet.clear();
         writeLog.clear();
         currentBulkReadCount = 0;
+        currentBacklogBytes = 0;
     }
 
     @Override
@@ -105,6 +246,12 @@ public abstract class BulkElementParser<T> extends TransactionParser<TreeElement
         processCurrentBuffer();
     }
 
+    @Override
+    protected void checkpoint() throws IOException, XmlPullParserException,
+            InvalidStructureException {
+        processCurrentBuffer();
+    }
+
 
     @Override
     protected void commit(TreeElement parsed) throws IOException, InvalidStructureException {
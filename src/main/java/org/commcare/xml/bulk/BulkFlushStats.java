@@ -0,0 +1,103 @@
+package org.commcare.xml.bulk;
+
+/**
+ * Running totals of the buffers a BulkElementParser has processed, for monitoring how well its
+ * batches are sized.
+ *
+ * Write times are recorded once each write finishes, which during a pipelined restore can be
+ * after the buffer it wrote has otherwise been processed.
+ */
+public class BulkFlushStats {
+
+    private long flushes;
+    private long countTriggeredFlushes;
+    private long memoryTriggeredFlushes;
+    private long elements;
+    private long estimatedBytes;
+    private long largestBacklogBytes;
+    private long readNanos;
+    private volatile long writeNanos;
+    private int batchSize;
+
+    void recordFlush(int elementCount, long backlogBytes, boolean countTriggered,
+                     boolean memoryTriggered, long readTime) {
+        flushes++;
+        if (countTriggered) {
+            countTriggeredFlushes++;
+        }
+        if (memoryTriggered) {
+            memoryTriggeredFlushes++;
+        }
+        elements += elementCount;
+        estimatedBytes += backlogBytes;
+        largestBacklogBytes = Math.max(largestBacklogBytes, backlogBytes);
+        readNanos += readTime;
+    }
+
+    void recordWrite(long writeTime) {
+        writeNanos += writeTime;
+    }
+
+    void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @return How many non-empty buffers have been processed
+     */
+    public long getFlushCount() {
+        return flushes;
+    }
+
+    /**
+     * @return How many buffers were processed because they held as many elements as a batch
+     */
+    public long getCountTriggeredFlushCount() {
+        return countTriggeredFlushes;
+    }
+
+    /**
+     * @return How many buffers were processed because of the estimated memory they held
+     */
+    public long getMemoryTriggeredFlushCount() {
+        return memoryTriggeredFlushes;
+    }
+
+    public long getFlushedElementCount() {
+        return elements;
+    }
+
+    /**
+     * @return The estimated size of all of the elements which have been buffered, in bytes
+     */
+    public long getFlushedBytes() {
+        return estimatedBytes;
+    }
+
+    public long getLargestBacklogBytes() {
+        return largestBacklogBytes;
+    }
+
+    public long getBulkReadMillis() {
+        return readNanos / 1000000;
+    }
+
+    public long getBulkWriteMillis() {
+        return writeNanos / 1000000;
+    }
+
+    /**
+     * @return The number of elements the parser currently buffers before processing them
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    @Override
+    public String toString() {
+        return flushes + " flushes (" + countTriggeredFlushes + " full, " + memoryTriggeredFlushes +
+                " over memory) of " + elements + " elements, ~" + estimatedBytes + " bytes, largest ~" +
+                largestBacklogBytes + " bytes; read " + getBulkReadMillis() + "ms, wrote " +
+                getBulkWriteMillis() + "ms; batch size " + batchSize;
+    }
+}
@@ -12,6 +12,7 @@ import org.javarosa.core.model.condition.Constraint;
 import org.javarosa.core.model.condition.EvaluationContext;
 import org.javarosa.core.model.condition.IConditionExpr;
 import org.javarosa.core.model.condition.IFunctionHandler;
+import org.javarosa.core.model.condition.InstanceReadSet;
 import org.javarosa.core.model.condition.Recalculate;
 import org.javarosa.core.model.condition.Triggerable;
 import org.javarosa.core.model.data.IAnswerData;
@@ -54,10 +55,12 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -122,6 +125,38 @@ public class FormDef implements IFormElement, IMetaData,
      */
     private HashMap<TreeReference, Condition> conditionRepeatTargetIndex;
 
+    /**
+     * The position of each triggerable in the topologically ordered triggerables list. Sets of
+     * triggerables are kept as bitsets of these ordinals while cascading, so a set bit scan
+     * visits them in an order which respects their dependencies.
+     */
+    private IdentityHashMap<Triggerable, Integer> triggerableOrdinals;
+
+    /**
+     * For each triggerable (by ordinal) the triggerables which depend directly on its targets,
+     * not counting dependencies on children of the targets
+     */
+    private BitSet[] targetDependents;
+
+    /**
+     * The full set of triggerables to be evaluated when the value at a (generic) reference
+     * changes, for references whose cascade doesn't depend on the contents of the instance
+     */
+    private HashMap<TreeReference, BitSet> triggerClosures;
+
+    /**
+     * When dependency tracking is enabled, what each triggerable read the last time it was
+     * evaluated at each of its context nodes
+     */
+    private TriggerableDependencyTracker dependencyTracker;
+    private boolean useDependencyTracking;
+
+    /**
+     * A repeat entry which has been added to the instance, but whose own cascade hasn't been
+     * run yet. Cascades triggered by its insert actions treat it as a new node.
+     */
+    private TreeReference insertingRepeatEntry;
+
     public EvaluationContext exprEvalContext;
 
     // XML ID's cannot start with numbers, so this should never conflict
@@ -203,6 +238,7 @@ public class FormDef implements IFormElement, IMetaData,
      */
     public void setInstance(FormInstance fi) {
         mainInstance = fi;
+        clearTriggerableDependencies();
         fi.setFormId(getID());
         this.setEvaluationContext(new EvaluationContext(null));
         attachControlsToInstanceData();
@@ -326,7 +362,7 @@ public class FormDef implements IFormElement, IMetaData,
 
     public void setValue(IAnswerData data, TreeReference ref, TreeElement node) {
         setAnswer(data, node);
-        triggerTriggerables(ref);
+        triggerTriggerables(ref, false);
         //TODO: pre-populate fix-count repeats here?
     }
 
@@ -378,7 +414,9 @@ public class FormDef implements IFormElement, IMetaData,
 
         this.getMainInstance().cleanCache();
 
-        triggerTriggerables(deleteRef);
+        // The positions of later repeat entries have shifted, so what was read where is stale
+        clearTriggerableDependencies();
+        triggerTriggerables(deleteRef, true);
         return newIndex;
     }
 
@@ -409,10 +447,15 @@ public class FormDef implements IFormElement, IMetaData,
 
         // Fire jr-insert events before "calculate"s
         triggeredDuringInsert.removeAllElements();
-        actionController.triggerActionsFromEvent(Action.EVENT_JR_INSERT, this, repeatContextRef, this);
+        insertingRepeatEntry = repeatContextRef;
+        try {
+            actionController.triggerActionsFromEvent(Action.EVENT_JR_INSERT, this, repeatContextRef, this);
+        } finally {
+            insertingRepeatEntry = null;
+        }
 
         // trigger conditions that depend on the creation of this new node
-        triggerTriggerables(repeatContextRef);
+        triggerTriggerables(repeatContextRef, true);
 
         // trigger conditions for the node (and sub-nodes)
         initTriggerablesRootedBy(repeatContextRef, triggeredDuringInsert);
@@ -565,8 +608,10 @@ public class FormDef implements IFormElement, IMetaData,
             }
         }
 
-        // trigger conditions that depend on the creation of these new nodes
-        triggerTriggerables(destRef);
+        // trigger conditions that depend on the creation of these new nodes. Existing nodes
+        // may have been reordered, so previously tracked reads can't be relied on
+        clearTriggerableDependencies();
+        triggerTriggerables(destRef, true);
 
         // initialize conditions for the node (and sub-nodes)
         // NOTE PLM: the following trigger initialization doesn't cascade to
@@ -607,6 +652,7 @@ public class FormDef implements IFormElement, IMetaData,
             // The triggerable isn't being added in any order, so topological
             // sorting has been disrupted
             triggerables.add(t);
+            triggerableOrdinals = null;
 
             for (TreeReference trigger : t.getTriggers()) {
                 TreeReference predicatelessTrigger = t.widenContextToAndClearPredicates(trigger);
@@ -683,6 +729,42 @@ public class FormDef implements IFormElement, IMetaData,
         // to Drew)
 
         buildConditionRepeatTargetIndex();
+        buildTriggerableOrdinals();
+    }
+
+    /**
+     * Number the (sorted) triggerables and precompute which triggerables depend directly on
+     * each one's targets.
+     */
+    private void buildTriggerableOrdinals() {
+        triggerableOrdinals = new IdentityHashMap<>(triggerables.size());
+        for (int i = 0; i < triggerables.size(); i++) {
+            triggerableOrdinals.put(triggerables.get(i), DataUtil.integer(i));
+        }
+
+        targetDependents = new BitSet[triggerables.size()];
+        for (int i = 0; i < triggerables.size(); i++) {
+            Triggerable t = triggerables.get(i);
+            BitSet dependents = new BitSet();
+            if (t.canCascade()) {
+                for (TreeReference target : t.getTargets()) {
+                    addOrdinalsTriggeredBy(target, dependents);
+                }
+            }
+            targetDependents[i] = dependents;
+        }
+        triggerClosures = new HashMap<>();
+        if (useDependencyTracking) {
+            dependencyTracker = new TriggerableDependencyTracker(triggerables.size());
+        }
+    }
+
+    private int getTriggerableOrdinal(Triggerable t) {
+        if (triggerableOrdinals == null) {
+            // Triggerables were added since the form was finalized, so go by the current order
+            buildTriggerableOrdinals();
+        }
+        return triggerableOrdinals.get(t);
     }
 
     private void buildPartialOrdering(List<Pair<Triggerable, Triggerable>> partialOrdering) {
@@ -800,6 +882,71 @@ public class FormDef implements IFormElement, IMetaData,
         }
     }
 
+    /**
+     * Add the ordinals of all of the triggerables which will need to be evaluated when the
+     * triggerable with the provided ordinal is fired.
+     *
+     * @return False if the triggerables added depend on the current contents of the instance,
+     * rather than only on the structure of the form
+     */
+    private boolean addTriggeredOrdinals(int ordinal,
+                                         BitSet destination,
+                                         boolean isRepeatEntryInit) {
+        Triggerable t = triggerables.get(ordinal);
+        destination.or(targetDependents[ordinal]);
+        if (!t.canCascade() || isRepeatEntryInit || !t.isCascadingToChildren()) {
+            return true;
+        }
+
+        // The children a target cascades to are only known once it has been expanded against
+        // the instance
+        for (TreeReference target : t.getTargets()) {
+            ArrayList<TreeReference> updatedNodes = new ArrayList<>();
+            updatedNodes.add(target);
+            for (TreeReference child : findCascadeReferences(target, updatedNodes)) {
+                addOrdinalsTriggeredBy(child, destination);
+            }
+        }
+        return false;
+    }
+
+    private void addOrdinalsTriggeredBy(TreeReference ref, BitSet destination) {
+        TreeReference predicatelessRef = ref;
+        if (ref.hasPredicates()) {
+            predicatelessRef = ref.removePredicates();
+        }
+        Vector<Triggerable> triggered = triggerIndex.get(predicatelessRef);
+        if (triggered != null) {
+            for (Triggerable triggerable : triggered) {
+                destination.set(getTriggerableOrdinal(triggerable));
+            }
+        }
+    }
+
+    /**
+     * Expand the provided set of triggerables to include everything they (transitively)
+     * trigger.
+     *
+     * @return False if the expanded set depends on the current contents of the instance
+     */
+    private boolean expandTriggeredOrdinals(BitSet triggered, boolean isRepeatEntryInit) {
+        boolean isStatic = true;
+        BitSet dependents = new BitSet(triggerables.size());
+        // Dependents nearly always sort after the triggerable they depend on, so a single
+        // forward scan picks up the whole cascade. Step back if one doesn't.
+        for (int i = triggered.nextSetBit(0); i >= 0; i = triggered.nextSetBit(i + 1)) {
+            dependents.clear();
+            isStatic &= addTriggeredOrdinals(i, dependents, isRepeatEntryInit);
+            dependents.andNot(triggered);
+            int firstNew = dependents.nextSetBit(0);
+            triggered.or(dependents);
+            if (firstNew >= 0 && firstNew < i) {
+                i = firstNew - 1;
+            }
+        }
+        return isStatic;
+    }
+
     /**
      * Gather list of generic references to children of a target reference for
      * a triggerable that cascades to its children. This is needed when, for
@@ -995,6 +1142,7 @@ public class FormDef implements IFormElement, IMetaData,
     private void initAllTriggerables() {
         // Use all triggerables because we can assume they are rooted by rootRef
         TreeReference rootRef = TreeReference.rootRef();
+        clearTriggerableDependencies();
 
         Vector<Triggerable> applicable = new Vector<>();
         for (Triggerable triggerable : triggerables) {
@@ -1039,17 +1187,57 @@ public class FormDef implements IFormElement, IMetaData,
      *            changed.
      */
     public void triggerTriggerables(TreeReference ref) {
+        triggerTriggerables(ref, false);
+    }
+
+    /**
+     * @param structureChanged Whether the node at ref was added or removed, rather than just
+     *                         having its value changed
+     */
+    private void triggerTriggerables(TreeReference ref, boolean structureChanged) {
         // turn unambiguous ref into a generic ref to identify what nodes
         // should be triggered by this reference changing
         TreeReference genericRef = ref.genericize();
 
-        // get triggerables which are activated by the generic reference
-        Vector<Triggerable> triggered = triggerIndex.get(genericRef);
-        if (triggered != null) {
-            Vector<Triggerable> triggeredCopy = new Vector<>(triggered);
+        if (triggerableOrdinals == null) {
+            buildTriggerableOrdinals();
+        }
 
-            evaluateTriggerables(triggeredCopy, ref, false);
+        // get triggerables which are activated by the generic reference, along with
+        // everything they cascade to
+        BitSet triggered = triggerClosures.get(genericRef);
+        if (triggered == null) {
+            Vector<Triggerable> directlyTriggered = triggerIndex.get(genericRef);
+            if (directlyTriggered == null) {
+                return;
+            }
+            triggered = toOrdinals(directlyTriggered);
+            if (expandTriggeredOrdinals(triggered, false)) {
+                triggerClosures.put(genericRef, triggered);
+            }
+        }
+
+        TriggerableDependencyTracker.InstanceChanges changes = null;
+        if (dependencyTracker != null) {
+            changes = new TriggerableDependencyTracker.InstanceChanges();
+            if (structureChanged) {
+                changes.structureChanges.addElement(ref);
+            } else {
+                changes.valueChanges.addElement(ref);
+            }
+            if (insertingRepeatEntry != null) {
+                changes.structureChanges.addElement(insertingRepeatEntry);
+            }
+        }
+        evaluateTriggeredOrdinals(triggered, ref, changes);
+    }
+
+    private BitSet toOrdinals(List<Triggerable> triggerableList) {
+        BitSet ordinals = new BitSet(triggerables.size());
+        for (Triggerable t : triggerableList) {
+            ordinals.set(getTriggerableOrdinal(t));
         }
+        return ordinals;
     }
 
     /**
@@ -1060,8 +1248,7 @@ public class FormDef implements IFormElement, IMetaData,
      * the evaluations.
      *
      * @param tv                A vector of all of the trigerrables directly
-     *                          triggered by the value changed. Will be mutated
-     *                          by this method.
+     *                          triggered by the value changed.
      * @param anchorRef         The reference to original value that was updated
      * @param isRepeatEntryInit Don't cascade triggers to children when
      *                          initializing a new repeat entry.  Repeat entry
@@ -1071,21 +1258,26 @@ public class FormDef implements IFormElement, IMetaData,
     private void evaluateTriggerables(List<Triggerable> tv,
                                       TreeReference anchorRef,
                                       boolean isRepeatEntryInit) {
-        // Update the list of triggerables that need to be evaluated.
-        for (int i = 0; i < tv.size(); i++) {
-            // NOTE PLM: tv may grow in size through iteration.
-            Triggerable t = tv.get(i);
-            fillTriggeredElements(t, tv, isRepeatEntryInit);
-        }
+        // Update the set of triggerables that need to be evaluated.
+        BitSet triggered = toOrdinals(tv);
+        expandTriggeredOrdinals(triggered, isRepeatEntryInit);
 
-        // tv should now contain all of the triggerable components which are
+        // 'triggered' now contains all of the triggerable components which are
         // going to need to be addressed by this update.
-        // 'triggerables' is topologically-ordered by dependencies, so evaluate
-        // the triggerables in 'tv' in the order they appear in 'triggerables'
-        for (Triggerable triggerable : triggerables) {
-            if (tv.contains(triggerable)) {
-                evaluateTriggerable(triggerable, anchorRef);
-            }
+        evaluateTriggeredOrdinals(triggered, anchorRef, null);
+    }
+
+    /**
+     * 'triggerables' is topologically-ordered by dependencies, so evaluating the triggerables
+     * in order of their ordinals respects their dependencies
+     *
+     * @param changes The nodes changed so far in this cascade when dependencies are being
+     *                tracked, or null to evaluate the triggerables at every node they apply to
+     */
+    private void evaluateTriggeredOrdinals(BitSet triggered, TreeReference anchorRef,
+                                           TriggerableDependencyTracker.InstanceChanges changes) {
+        for (int i = triggered.nextSetBit(0); i >= 0; i = triggered.nextSetBit(i + 1)) {
+            evaluateTriggerable(triggerables.get(i), anchorRef, changes);
         }
     }
 
@@ -1096,8 +1288,10 @@ public class FormDef implements IFormElement, IMetaData,
      *
      * @param triggerable         The triggerable to be updated
      * @param anchorRef The reference to the value which was changed.
+     * @param changes   The nodes changed so far in the cascade, if dependencies are tracked
      */
-    private void evaluateTriggerable(Triggerable triggerable, TreeReference anchorRef) {
+    private void evaluateTriggerable(Triggerable triggerable, TreeReference anchorRef,
+                                     TriggerableDependencyTracker.InstanceChanges changes) {
         // Contextualize the reference used by the triggerable against the anchor
         TreeReference contextRef = triggerable.narrowContextBy(anchorRef);
 
@@ -1105,8 +1299,40 @@ public class FormDef implements IFormElement, IMetaData,
         // updates. (Multiple nodes can be updated by the same trigger)
         Vector<TreeReference> expandedReferences = exprEvalContext.expandReference(contextRef);
 
+        if (dependencyTracker == null) {
+            for (TreeReference treeReference : expandedReferences) {
+                triggerable.apply(mainInstance, exprEvalContext, treeReference, this);
+            }
+            return;
+        }
+
+        // Only re-apply the triggerable at the nodes where something it read has changed
+        int ordinal = getTriggerableOrdinal(triggerable);
         for (TreeReference treeReference : expandedReferences) {
-            triggerable.apply(mainInstance, exprEvalContext, treeReference, this);
+            if (changes != null && !dependencyTracker.isAffected(ordinal, treeReference, changes)) {
+                continue;
+            }
+
+            InstanceReadSet reads = new InstanceReadSet();
+            EvaluationContext trackingContext =
+                    new EvaluationContext(exprEvalContext, exprEvalContext.getContextRef());
+            trackingContext.trackInstanceReads(reads);
+            triggerable.apply(mainInstance, trackingContext, treeReference, this);
+            dependencyTracker.recordReads(ordinal, treeReference, reads);
+
+            if (changes != null) {
+                Vector<TreeReference> changed = triggerable.isCascadingToChildren() ?
+                        changes.structureChanges : changes.valueChanges;
+                for (TreeReference target : triggerable.getTargets()) {
+                    changed.addElement(target.contextualize(treeReference));
+                }
+            }
+        }
+    }
+
+    private void clearTriggerableDependencies() {
+        if (dependencyTracker != null) {
+            dependencyTracker.clear();
         }
     }
 
@@ -1266,6 +1492,21 @@ public class FormDef implements IFormElement, IMetaData,
         useExpressionCaching = true;
     }
 
+    /**
+     * Track what each triggerable reads from the instance when it is evaluated, so that when a
+     * value changes, triggerables are only re-evaluated at the nodes which read something that
+     * changed, rather than at every node they apply to. Useful for forms with many repeat
+     * entries, where a change in one entry would otherwise re-run calculations in all of them.
+     *
+     * Should be called before the form is initialized.
+     */
+    public void enableDependencyTracking() {
+        useDependencyTracking = true;
+        if (dependencyTracker == null && triggerableOrdinals != null) {
+            dependencyTracker = new TriggerableDependencyTracker(triggerables.size());
+        }
+    }
+
     public String fillTemplateString(String template, TreeReference contextRef) {
         return fillTemplateString(template, contextRef, new Hashtable());
     }
@@ -1975,6 +2216,10 @@ public class FormDef implements IFormElement, IMetaData,
         triggerables = null;
         triggerIndex = null;
         conditionRepeatTargetIndex = null;
+        triggerableOrdinals = null;
+        targetDependents = null;
+        triggerClosures = null;
+        dependencyTracker = null;
         //We may need ths one, actually
         exprEvalContext = null;
     }
@@ -0,0 +1,105 @@
+package org.javarosa.core.model;
+
+import org.javarosa.core.model.condition.InstanceReadSet;
+import org.javarosa.core.model.instance.TreeReference;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Vector;
+
+/**
+ * Remembers which main instance references each triggerable read the last time it was evaluated
+ * at each of its context nodes, so that a cascade can skip re-evaluating a triggerable at nodes
+ * none of whose inputs have changed.
+ *
+ * A context node is (re-)evaluated when it has no recorded reads, when the value of a node it
+ * read has changed, or when a node was added or had its relevancy changed at or above a node or
+ * nodeset it read.
+ *
+ * Recorded reads are only valid as long as every change to the instance is reported through a
+ * cascade. Changes that shift the positions of existing nodes (like deleting a repeat entry)
+ * must clear the tracker instead.
+ */
+class TriggerableDependencyTracker {
+
+    private final ArrayList<HashMap<TreeReference, RecordedReads>> reads;
+
+    TriggerableDependencyTracker(int triggerableCount) {
+        reads = new ArrayList<>(triggerableCount);
+        for (int i = 0; i < triggerableCount; i++) {
+            reads.add(new HashMap<TreeReference, RecordedReads>());
+        }
+    }
+
+    /**
+     * @return Whether the triggerable with the provided ordinal needs to be evaluated at the
+     * context node given the changes made to the instance so far
+     */
+    boolean isAffected(int ordinal, TreeReference contextNode, InstanceChanges changes) {
+        RecordedReads recorded = reads.get(ordinal).get(contextNode);
+        if (recorded == null) {
+            return true;
+        }
+
+        for (TreeReference changed : changes.structureChanges) {
+            if (anyAffectedBy(changed, recorded.nodesets, true) ||
+                    anyAffectedBy(changed, recorded.values, true)) {
+                return true;
+            }
+        }
+        for (TreeReference changed : changes.valueChanges) {
+            // A node's value doesn't include the values of its children or attributes
+            if (anyAffectedBy(changed, recorded.values, false)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void recordReads(int ordinal, TreeReference contextNode, InstanceReadSet readSet) {
+        reads.get(ordinal).put(contextNode,
+                new RecordedReads(readSet.getNodesetReads(), readSet.getValueReads()));
+    }
+
+    void clear() {
+        for (HashMap<TreeReference, RecordedReads> triggerableReads : reads) {
+            triggerableReads.clear();
+        }
+    }
+
+    private static boolean anyAffectedBy(TreeReference changed, TreeReference[] refs,
+                                         boolean includeDescendants) {
+        for (TreeReference ref : refs) {
+            if ((includeDescendants || ref.size() == changed.size()) &&
+                    changed.couldBeAncestorOrSelfOf(ref)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class RecordedReads {
+        final TreeReference[] nodesets;
+        final TreeReference[] values;
+
+        RecordedReads(TreeReference[] nodesets, TreeReference[] values) {
+            this.nodesets = nodesets;
+            this.values = values;
+        }
+    }
+
+    /**
+     * The nodes changed over the course of a single cascade
+     */
+    static class InstanceChanges {
+        /**
+         * Nodes which were added, or whose relevancy may have changed
+         */
+        final Vector<TreeReference> structureChanges = new Vector<>();
+
+        /**
+         * Nodes whose values may have changed
+         */
+        final Vector<TreeReference> valueChanges = new Vector<>();
+    }
+}
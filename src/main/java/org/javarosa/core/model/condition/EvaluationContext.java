@@ -90,6 +90,12 @@ public class EvaluationContext {
 
     private final DataInstance instance;
 
+    /**
+     * When set, collects the main instance references read by expressions evaluated against
+     * this context or any context derived from it
+     */
+    private InstanceReadSet instanceReads;
+
     public EvaluationContext(DataInstance instance) {
         this(instance, new Hashtable<>());
     }
@@ -155,6 +161,7 @@ public class EvaluationContext {
         }
 
         this.expressionCacher = base.expressionCacher;
+        this.instanceReads = base.instanceReads;
         setQueryContext(base.queryContext);
     }
 
@@ -182,6 +189,14 @@ public class EvaluationContext {
         this.expressionCacher = new ExpressionCacher();
     }
 
+    /**
+     * @param maxCacheWeight the bound on the estimated size (in bytes) of all cached
+     *                       expression results
+     */
+    public void enableExpressionCaching(int maxCacheWeight) {
+        this.expressionCacher = new ExpressionCacher(maxCacheWeight);
+    }
+
     public boolean expressionCachingEnabled() {
         return expressionCacher != null;
     }
@@ -190,6 +205,30 @@ public class EvaluationContext {
         return expressionCacher;
     }
 
+    /**
+     * Record the main instance references read by evaluations against this context, and any
+     * contexts derived from it, in the provided set.
+     */
+    public void trackInstanceReads(InstanceReadSet reads) {
+        this.instanceReads = reads;
+    }
+
+    public boolean isTrackingInstanceReads() {
+        return instanceReads != null;
+    }
+
+    public void reportNodesetRead(TreeReference ref) {
+        if (instanceReads != null && ref.getInstanceName() == null) {
+            instanceReads.addNodesetRead(ref);
+        }
+    }
+
+    public void reportValueRead(TreeReference ref) {
+        if (instanceReads != null && ref.getInstanceName() == null) {
+            instanceReads.addValueRead(ref);
+        }
+    }
+
     public void addFunctionHandler(IFunctionHandler fh) {
         functionHandlers.put(fh.getName(), fh);
     }
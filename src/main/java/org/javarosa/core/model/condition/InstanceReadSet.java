@@ -0,0 +1,34 @@
+package org.javarosa.core.model.condition;
+
+import org.javarosa.core.model.instance.TreeReference;
+
+import java.util.HashSet;
+
+/**
+ * The main instance references read while evaluating an expression.
+ *
+ * Reads are split in two kinds. Nodeset reads are the (possibly ambiguous) paths an expression
+ * selected nodes with, which only depend on which nodes exist and are relevant. Value reads are
+ * the nodes whose values were actually unpacked, which also depend on what those nodes hold.
+ */
+public class InstanceReadSet {
+
+    private final HashSet<TreeReference> nodesets = new HashSet<>();
+    private final HashSet<TreeReference> values = new HashSet<>();
+
+    public void addNodesetRead(TreeReference ref) {
+        nodesets.add(ref);
+    }
+
+    public void addValueRead(TreeReference ref) {
+        values.add(ref);
+    }
+
+    public TreeReference[] getNodesetReads() {
+        return nodesets.toArray(new TreeReference[nodesets.size()]);
+    }
+
+    public TreeReference[] getValueReads() {
+        return values.toArray(new TreeReference[values.size()]);
+    }
+}
@@ -0,0 +1,192 @@
+package org.javarosa.core.model.instance;
+
+import java.util.HashMap;
+import java.util.Vector;
+
+/**
+ * Where the children of a TreeElement with a given name sit among its children.
+ *
+ * Children which share a name are nearly always kept together in order of their multiplicity,
+ * optionally alongside a template, so each name maps to the run of positions holding
+ * multiplicities 0 through n - 1 and the position of its template. Names whose children don't
+ * line up that way are marked as irregular and have to be looked up by scanning.
+ *
+ * The index describes one specific vector of children at one size, and is kept in step by
+ * TreeElement as it inserts and removes children.
+ */
+final class ChildNameIndex {
+
+    /**
+     * No child has the requested name and multiplicity
+     */
+    static final int NONE = -1;
+
+    /**
+     * The children with the requested name have to be scanned to find out
+     */
+    static final int UNKNOWN = -2;
+
+    private final HashMap<String, Run> runs = new HashMap<>();
+    private final Vector<TreeElement> children;
+    private int size;
+
+    private ChildNameIndex(Vector<TreeElement> children) {
+        this.children = children;
+    }
+
+    static ChildNameIndex build(Vector<TreeElement> children) {
+        ChildNameIndex index = new ChildNameIndex(children);
+        for (int i = 0; i < children.size(); i++) {
+            index.add(i, children.elementAt(i));
+        }
+        index.size = children.size();
+        return index;
+    }
+
+    /**
+     * @return Whether the index still matches the provided children, as far as can be told
+     * without looking at them
+     */
+    boolean describes(Vector<TreeElement> children) {
+        return this.children == children && size == children.size();
+    }
+
+    /**
+     * @return The position of the child with the provided name and multiplicity, NONE if there
+     * isn't one, or UNKNOWN if the children have to be scanned for it
+     */
+    int positionOf(String name, int multiplicity) {
+        Run run = runs.get(name);
+        if (run == null) {
+            return NONE;
+        }
+        if (!run.regular) {
+            return UNKNOWN;
+        }
+        if (multiplicity == TreeReference.INDEX_TEMPLATE) {
+            return run.template;
+        }
+        if (multiplicity >= 0 && multiplicity < run.count) {
+            return run.start + multiplicity;
+        }
+        return NONE;
+    }
+
+    /**
+     * @return The number of non-template children with the provided name, or UNKNOWN if the
+     * children have to be scanned for them
+     */
+    int countOf(String name) {
+        Run run = runs.get(name);
+        if (run == null) {
+            return 0;
+        }
+        return run.regular ? run.count : UNKNOWN;
+    }
+
+    /**
+     * Add the children with the provided name to the vector, in the order they appear
+     *
+     * @return false if the children have to be scanned for them instead
+     */
+    boolean collect(String name, boolean includeTemplate, Vector<TreeElement> result) {
+        Run run = runs.get(name);
+        if (run == null) {
+            return true;
+        }
+        if (!run.regular) {
+            return false;
+        }
+        boolean addTemplate = includeTemplate && run.template != NONE;
+        if (addTemplate && (run.count == 0 || run.template < run.start)) {
+            result.addElement(children.elementAt(run.template));
+            addTemplate = false;
+        }
+        for (int i = 0; i < run.count; i++) {
+            result.addElement(children.elementAt(run.start + i));
+        }
+        if (addTemplate) {
+            result.addElement(children.elementAt(run.template));
+        }
+        return true;
+    }
+
+    /**
+     * Account for a child which was just inserted at the provided position
+     */
+    void inserted(int position, TreeElement child) {
+        for (Run run : runs.values()) {
+            if (run.template >= position) {
+                run.template++;
+            }
+            if (run.count > 0) {
+                if (run.start >= position) {
+                    run.start++;
+                } else if (position < run.start + run.count) {
+                    // Split a run in two
+                    run.regular = false;
+                }
+            }
+        }
+        add(position, child);
+        size++;
+    }
+
+    /**
+     * Account for a child which was just removed from the provided position
+     */
+    void removed(int position, TreeElement child) {
+        Run removedFrom = runs.get(child.getName());
+        if (removedFrom != null) {
+            if (child.getMult() == TreeReference.INDEX_TEMPLATE && removedFrom.template == position) {
+                removedFrom.template = NONE;
+            } else if (removedFrom.count > 0 && position == removedFrom.start + removedFrom.count - 1 &&
+                    child.getMult() == removedFrom.count - 1) {
+                removedFrom.count--;
+            } else {
+                removedFrom.regular = false;
+            }
+        }
+
+        for (Run run : runs.values()) {
+            if (run.template > position) {
+                run.template--;
+            }
+            if (run.count > 0 && run.start > position) {
+                run.start--;
+            }
+        }
+        size--;
+    }
+
+    private void add(int position, TreeElement child) {
+        Run run = runs.get(child.getName());
+        if (run == null) {
+            run = new Run();
+            runs.put(child.getName(), run);
+        }
+
+        int multiplicity = child.getMult();
+        if (multiplicity == TreeReference.INDEX_TEMPLATE) {
+            if (run.template == NONE) {
+                run.template = position;
+            } else {
+                run.regular = false;
+            }
+        } else if (run.count == 0 && multiplicity == 0) {
+            run.start = position;
+            run.count = 1;
+        } else if (run.count > 0 && multiplicity == run.count && position == run.start + run.count) {
+            run.count++;
+        } else {
+            run.regular = false;
+        }
+    }
+
+    private static class Run {
+        int start;
+        int count;
+        int template = NONE;
+        boolean regular = true;
+    }
+}
@@ -86,6 +86,18 @@ public class TreeElement implements Externalizable, AbstractTreeElement<TreeElem
      */
     private Hashtable<XPathPathExpr, Hashtable<String, TreeElement[]>> mChildStepMapping = null;
 
+    /**
+     * Nodes with at least this many children look their children up by name through an index
+     * rather than by scanning them
+     */
+    private static final int CHILD_INDEX_THRESHOLD = 16;
+
+    /**
+     * Built on the first lookup once there are enough children, and kept up to date as children
+     * are added and removed. Null whenever it needs to be rebuilt.
+     */
+    private volatile ChildNameIndex childIndex = null;
+
     /**
      * TreeElement with null name and 0 multiplicity? (a "hidden root" node?)
      */
@@ -164,6 +176,20 @@ public class TreeElement implements Externalizable, AbstractTreeElement<TreeElem
             }
             return children.elementAt(multiplicity); //droos: i'm suspicious of this
         } else {
+            ChildNameIndex index = getChildIndex();
+            if (index != null) {
+                int position = index.positionOf(name, multiplicity);
+                if (position == ChildNameIndex.NONE) {
+                    return null;
+                } else if (position != ChildNameIndex.UNKNOWN && position < children.size()) {
+                    TreeElement child = children.elementAt(position);
+                    if (child.getMult() == multiplicity && name.equals(child.getName())) {
+                        return child;
+                    }
+                    // Something changed the children behind the index's back
+                    childIndex = null;
+                }
+            }
             for (TreeElement child : children) {
                 if (child.getMult() == multiplicity &&
                         (name.hashCode() == child.getName().hashCode() && name.equals(child.getName()))) {
@@ -186,6 +212,14 @@ public class TreeElement implements Externalizable, AbstractTreeElement<TreeElem
             return v;
         }
 
+        if (!TreeReference.NAME_WILDCARD.equals(name)) {
+            ChildNameIndex index = getChildIndex();
+            if (index != null && index.collect(name, includeTemplate, v)) {
+                return v;
+            }
+            v.removeAllElements();
+        }
+
         for (TreeElement child : children) {
             if ((child.getName().equals(name) || name.equals(TreeReference.NAME_WILDCARD))
                     && (includeTemplate || child.multiplicity != TreeReference.INDEX_TEMPLATE))
@@ -195,6 +229,21 @@ public class TreeElement implements Externalizable, AbstractTreeElement<TreeElem
         return v;
     }
 
+    /**
+     * @return The index of this node's children by name, or null if they should be scanned
+     */
+    private ChildNameIndex getChildIndex() {
+        if (children == null || children.size() < CHILD_INDEX_THRESHOLD) {
+            return null;
+        }
+        ChildNameIndex index = childIndex;
+        if (index == null || !index.describes(children)) {
+            index = ChildNameIndex.build(children);
+            childIndex = index;
+        }
+        return index;
+    }
+
     @Override
     public int getNumChildren() {
         return children == null ? 0 : children.size();
@@ -246,20 +295,54 @@ public class TreeElement implements Externalizable, AbstractTreeElement<TreeElem
         if (child.getMult() == TreeReference.INDEX_TEMPLATE) {
             TreeElement anchor = getChild(child.getName(), 0);
             if (anchor != null) {
-                i = referenceIndexOf(children, anchor);
+                i = indexOfChild(anchor);
             }
         } else if (!assumeUniqueChildNames) {
             TreeElement anchor = getChild(child.getName(),
                     (child.getMult() == 0 ? TreeReference.INDEX_TEMPLATE : child.getMult() - 1));
             if (anchor != null) {
-                i = referenceIndexOf(children, anchor) + 1;
+                i = indexOfChild(anchor) + 1;
             }
         }
-        children.insertElementAt(child, i);
+        insertChildAt(child, i);
 
         initAddedSubNode(child);
     }
 
+    /**
+     * Put the child at the provided position among this node's children, keeping the index of
+     * them up to date. Doesn't make this node the child's parent.
+     */
+    protected void insertChildAt(TreeElement child, int i) {
+        if (children == null) {
+            children = new Vector<>();
+        }
+        ChildNameIndex index = childIndex;
+        boolean indexed = index != null && index.describes(children);
+        children.insertElementAt(child, i);
+
+        if (indexed) {
+            index.inserted(i, child);
+        } else {
+            childIndex = null;
+        }
+    }
+
+    /**
+     * @return The position of the provided child, found through the index of children by name
+     * when there is one
+     */
+    private int indexOfChild(TreeElement child) {
+        ChildNameIndex index = getChildIndex();
+        if (index != null) {
+            int position = index.positionOf(child.getName(), child.getMult());
+            if (position >= 0 && position < children.size() && children.elementAt(position) == child) {
+                return position;
+            }
+        }
+        return referenceIndexOf(children, child);
+    }
+
     /**
      * Implementation of Vector.indexOf that avoids calling TreeElement.equals,
      * which is very slow.
@@ -285,11 +368,31 @@ public class TreeElement implements Externalizable, AbstractTreeElement<TreeElem
         if (children == null) {
             return;
         }
-        children.removeElement(child);
+        int i = children.indexOf(child);
+        if (i != -1) {
+            removeChildAt(i);
+        }
     }
 
     public void removeChildAt(int i) {
+        ChildNameIndex index = childIndex;
+        boolean indexed = index != null && index.describes(children);
+        TreeElement child = children.elementAt(i);
         children.removeElementAt(i);
+
+        if (indexed) {
+            index.removed(i, child);
+        } else {
+            childIndex = null;
+        }
+    }
+
+    /**
+     * Called when a child's name or multiplicity changes, which the index of children by name
+     * can't follow
+     */
+    private void childRenamed() {
+        childIndex = null;
     }
 
     @Override
@@ -572,6 +675,7 @@ public class TreeElement implements Externalizable, AbstractTreeElement<TreeElem
     }
 
     private void readChildrenFromExternal(DataInputStream in, PrototypeFactory pf) throws IOException, DeserializationException {
+        childIndex = null;
         if (!ExtUtil.readBool(in)) {
             children = null;
         } else {
@@ -680,10 +784,7 @@ public class TreeElement implements Externalizable, AbstractTreeElement<TreeElem
                     for (int k = 0; k < newChildren.size(); k++) {
                         TreeElement newChild = child.deepCopy(true);
                         newChild.setMult(k);
-                        if (children == null) {
-                            children = new Vector<>();
-                        }
-                        this.children.insertElementAt(newChild, i + k + 1);
+                        insertChildAt(newChild, i + k + 1);
                         newChild.populate((TreeElement)newChildren.elementAt(k));
                     }
                     i += newChildren.size();
@@ -729,10 +830,7 @@ public class TreeElement implements Externalizable, AbstractTreeElement<TreeElem
                         TreeElement template = f.getMainInstance().getTemplate(child.getRef());
                         TreeElement newChild = template.deepCopy(false);
                         newChild.setMult(k);
-                        if (children == null) {
-                            children = new Vector<>();
-                        }
-                        this.children.insertElementAt(newChild, i + k + 1);
+                        insertChildAt(newChild, i + k + 1);
                         newChild.populateTemplate((TreeElement)newChildren.elementAt(k), f);
                     }
                     i += newChildren.size();
@@ -793,6 +891,9 @@ public class TreeElement implements Externalizable, AbstractTreeElement<TreeElem
     public void setName(String name) {
         expireReferenceCache();
         this.name = name;
+        if (parent instanceof TreeElement) {
+            ((TreeElement)parent).childRenamed();
+        }
     }
 
     @Override
@@ -803,6 +904,9 @@ public class TreeElement implements Externalizable, AbstractTreeElement<TreeElem
     public void setMult(int multiplicity) {
         expireReferenceCache();
         this.multiplicity = multiplicity;
+        if (parent instanceof TreeElement) {
+            ((TreeElement)parent).childRenamed();
+        }
     }
 
     public void setParent(AbstractTreeElement parent) {
@@ -990,6 +1094,7 @@ public class TreeElement implements Externalizable, AbstractTreeElement<TreeElem
         flags = ExtUtil.readInt(in);
         value = (IAnswerData)ExtUtil.read(in, new ExtWrapNullable(new ExtWrapTagged()), pf);
 
+        childIndex = null;
         if (!ExtUtil.readBool(in)) {
             children = null;
         } else {
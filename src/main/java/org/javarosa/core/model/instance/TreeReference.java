@@ -299,7 +299,11 @@ public class TreeReference implements Externalizable, XPathAnalyzable {
      * data.
      */
     private TreeReference cloneWithEmptyData() {
-        return new TreeReference(instanceName, refLevel, contextType);
+        TreeReference newRef = new TreeReference(instanceName, refLevel, contextType);
+        // The constructor derives the context type from the instance name, which would lose
+        // 'current()' based context types
+        newRef.contextType = contextType;
+        return newRef;
     }
 
     /*
@@ -547,6 +551,43 @@ public class TreeReference implements Externalizable, XPathAnalyzable {
         return true;
     }
 
+    /**
+     * Looser than isParentOf: unbound multiplicities and wildcard names on either side match any
+     * step, and predicates are ignored. Used to decide conservatively whether a change to the
+     * nodes this reference points to could affect the nodes the other reference points to.
+     *
+     * @return True if some node this reference could point to is, or is an ancestor of, a node
+     * the other reference could point to.
+     */
+    public boolean couldBeAncestorOrSelfOf(TreeReference other) {
+        if (!isAbsolute() || !other.isAbsolute()) {
+            // Without a fixed position in the instance we can't rule anything out
+            return true;
+        }
+        if (instanceName == null ? other.instanceName != null : !instanceName.equals(other.instanceName)) {
+            return false;
+        }
+        if (size() > other.size()) {
+            return false;
+        }
+
+        for (int i = 0; i < size(); i++) {
+            String name = getName(i);
+            String otherName = other.getName(i);
+            if (!name.equals(otherName) && !NAME_WILDCARD.equals(name) &&
+                    !NAME_WILDCARD.equals(otherName)) {
+                return false;
+            }
+
+            int mult = getMultiplicity(i);
+            int otherMult = other.getMultiplicity(i);
+            if (mult != otherMult && mult != INDEX_UNBOUND && otherMult != INDEX_UNBOUND && i != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * clone and extend a reference by one level
      */
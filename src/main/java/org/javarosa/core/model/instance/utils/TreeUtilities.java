@@ -8,6 +8,7 @@ import org.javarosa.core.util.CacheTable;
 import org.javarosa.core.util.DataUtil;
 import org.javarosa.model.xform.XPathReference;
 import org.javarosa.xpath.XPathException;
+import org.javarosa.xpath.XPathUnsupportedException;
 import org.javarosa.xpath.expr.XPathEqExpr;
 import org.javarosa.xpath.expr.XPathExpression;
 import org.javarosa.xpath.expr.XPathPathExpr;
@@ -92,6 +93,16 @@ public class TreeUtilities {
                 //For now, only cheat when this is a string literal (this basically just means that we're
                 //handling attribute based referencing with very reasonable timing, but it's complex otherwise)
                 if (left instanceof XPathPathExpr && (right instanceof XPathStringLiteral || right instanceof XPathPathExpr)) {
+                    if (evalContext.isTrackingInstanceReads()) {
+                        // The matches below read the children's values without unpacking them
+                        // through the evaluation context, so report the reads here
+                        TreeReference children = parent.getRef().extendRef(name, TreeReference.INDEX_UNBOUND);
+                        try {
+                            evalContext.reportValueRead(((XPathPathExpr)left).getReference().contextualize(children));
+                        } catch (XPathUnsupportedException e) {
+                            evalContext.reportValueRead(children);
+                        }
+                    }
                     String literalMatch = null;
                     if (right instanceof XPathStringLiteral) {
                         literalMatch = ((XPathStringLiteral)right).s;
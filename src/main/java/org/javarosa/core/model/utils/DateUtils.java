@@ -8,6 +8,7 @@ import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -33,6 +34,23 @@ public class DateUtils {
 
     public static final long HOUR_IN_MS = TimeUnit.HOURS.toMillis(1);
     public static final long DAY_IN_MS = TimeUnit.DAYS.toMillis(1);;
+
+    // Dates in these years are worked out with plain arithmetic on the proleptic Gregorian
+    // calendar, which agrees with Calendar everywhere after its switch from the Julian calendar
+    private static final int FIRST_ARITHMETIC_YEAR = 1583;
+    private static final int LAST_ARITHMETIC_YEAR = 9999;
+    private static final long NOT_ARITHMETIC = Long.MIN_VALUE;
+
+    // Results of reading a time in place, alongside the offset in minutes it otherwise returns
+    private static final int NOT_READ = Integer.MIN_VALUE;
+    private static final int NO_OFFSET = Integer.MAX_VALUE;
+    private static final double[] POWERS_OF_TEN =
+            {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15};
+
+    private static final int MAX_CACHED_TIME_ZONES = 64;
+    private static final ConcurrentHashMap<String, TimeZone> timeZones = new ConcurrentHashMap<>();
+    private static final TimeZone UTC = getTimeZone("UTC");
+
     private static final Date EPOCH_DATE = getDate(1970, 1, 1);
     private final static long EPOCH_TIME = roundDate(EPOCH_DATE).getTime();
 
@@ -128,21 +146,36 @@ public class DateUtils {
     }
 
     public static DateFields getFields(Date d, String timezone) {
-        Calendar cd = Calendar.getInstance();
-        cd.setTime(d);
+        return getFields(d.getTime(), timezone);
+    }
+
+    private static DateFields getFields(long time, String timezone) {
+        long local;
         if (timezone != null) {
-            cd.setTimeZone(TimeZone.getTimeZone(timezone));
+            local = time + getTimeZone(timezone).getOffset(time);
         } else if (timezoneOffset() != -1) {
-            return getFields(d, timezoneOffset());
+            local = time + timezoneOffset();
+        } else {
+            local = time + TimeZone.getDefault().getOffset(time);
         }
-        return getFields(cd);
+
+        DateFields fields = new DateFields();
+        if (setFieldsFromLocalTime(local, fields)) {
+            return fields;
+        }
+
+        // Outside of the years the arithmetic covers, fall back to the calendar, which knows
+        // about the Julian calendar and eras. Shifting a UTC calendar by the provider's offset
+        // is the same as viewing it at the shifted time.
+        if (timezone == null && timezoneOffset() != -1) {
+            return getFieldsFromCalendar(time + timezoneOffset(), UTC);
+        }
+        return getFieldsFromCalendar(time, timezone == null ? TimeZone.getDefault() : getTimeZone(timezone));
     }
 
-    private static DateFields getFields(Date d, int timezoneOffset) {
-        Calendar cd = Calendar.getInstance();
-        cd.setTimeZone(TimeZone.getTimeZone("UTC"));
-        cd.setTime(d);
-        cd.add(Calendar.MILLISECOND, timezoneOffset);
+    private static DateFields getFieldsFromCalendar(long time, TimeZone zone) {
+        Calendar cd = Calendar.getInstance(zone);
+        cd.setTimeInMillis(time);
         return getFields(cd);
     }
 
@@ -159,6 +192,65 @@ public class DateUtils {
         return fields;
     }
 
+    /**
+     * Fill in the fields for a time that has already been shifted into its timezone.
+     *
+     * @return false if the time falls outside of the years the arithmetic handles, in which
+     * case the fields are left untouched
+     */
+    private static boolean setFieldsFromLocalTime(long local, DateFields fields) {
+        long epochDay = MathUtils.divLongNotSuck(local, DAY_IN_MS);
+        int millisOfDay = (int)(local - epochDay * DAY_IN_MS);
+
+        // Civil date from a day count, shifted so that years start in March and leap days fall
+        // at the end of them (http://howardhinnant.github.io/date_algorithms.html)
+        long shifted = epochDay + 719468;
+        long era = MathUtils.divLongNotSuck(shifted, 146097);
+        int dayOfEra = (int)(shifted - era * 146097);
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int shiftedMonth = (5 * dayOfYear + 2) / 153;
+        int month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+        long year = era * 400 + yearOfEra + (month <= 2 ? 1 : 0);
+        if (year < FIRST_ARITHMETIC_YEAR || year > LAST_ARITHMETIC_YEAR) {
+            return false;
+        }
+
+        fields.year = (int)year;
+        fields.month = month;
+        fields.day = dayOfYear - (153 * shiftedMonth + 2) / 5 + 1;
+        fields.hour = millisOfDay / 3600000;
+        fields.minute = millisOfDay / 60000 % 60;
+        fields.second = millisOfDay / 1000 % 60;
+        fields.secTicks = millisOfDay % 1000;
+        // The epoch fell on a Thursday
+        fields.dow = (int)MathUtils.modLongNotSuck(epochDay + 4, 7) + 1;
+        return true;
+    }
+
+    /**
+     * @return The time the fields describe as if they were in UTC, or NOT_ARITHMETIC if the
+     * fields are out of range or outside of the years the arithmetic handles, since only the
+     * calendar knows how to roll those over
+     */
+    private static long getLocalTime(DateFields df) {
+        if (df.year < FIRST_ARITHMETIC_YEAR || df.year > LAST_ARITHMETIC_YEAR ||
+                !inRange(df.month, 1, 12) || !inRange(df.day, 1, daysInMonth(df.month - MONTH_OFFSET, df.year)) ||
+                !inRange(df.hour, 0, 23) || !inRange(df.minute, 0, 59) ||
+                !inRange(df.second, 0, 59) || !inRange(df.secTicks, 0, 999)) {
+            return NOT_ARITHMETIC;
+        }
+
+        int year = df.month <= 2 ? df.year - 1 : df.year;
+        int era = year / 400;
+        int yearOfEra = year - era * 400;
+        int dayOfYear = (153 * (df.month > 2 ? df.month - 3 : df.month + 9) + 2) / 5 + df.day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        long epochDay = era * 146097L + dayOfEra - 719468;
+
+        return epochDay * DAY_IN_MS + df.hour * 3600000L + df.minute * 60000L + df.second * 1000L + df.secTicks;
+    }
+
     /**
      * Turn year, month, date into Date object.
      *
@@ -192,28 +284,41 @@ public class DateUtils {
      * @return Date interpretation of DateFields at given timezone
      */
     private static Date getDate(DateFields df, String timezone) {
-        Calendar cd = Calendar.getInstance();
+        return new Date(getTime(df, timezone));
+    }
 
+    private static long getTime(DateFields df, String timezone) {
+        TimeZone zone;
         if (timezone != null) {
-            cd.setTimeZone(TimeZone.getTimeZone(timezone));
+            zone = getTimeZone(timezone);
         } else if (timezoneOffset() != -1) {
-            return getDate(df, timezoneOffset());
+            return getTime(df, timezoneOffset());
+        } else {
+            zone = TimeZone.getDefault();
         }
 
-        cd.set(Calendar.YEAR, df.year);
-        cd.set(Calendar.MONTH, df.month - MONTH_OFFSET);
-        cd.set(Calendar.DAY_OF_MONTH, df.day);
-        cd.set(Calendar.HOUR_OF_DAY, df.hour);
-        cd.set(Calendar.MINUTE, df.minute);
-        cd.set(Calendar.SECOND, df.second);
-        cd.set(Calendar.MILLISECOND, df.secTicks);
+        long local = getLocalTime(df);
+        if (local != NOT_ARITHMETIC) {
+            // Only a zone whose offset doesn't change around the given time maps it to a single
+            // instant without any doubt; times near a transition are resolved the calendar's way
+            int offset = zone.getOffset(local);
+            if (zone.getOffset(local - DAY_IN_MS) == offset && zone.getOffset(local + DAY_IN_MS) == offset) {
+                return local - offset;
+            }
+        }
+        return getTimeFromCalendar(df, zone);
+    }
 
-        return cd.getTime();
+    private static long getTime(DateFields df, int timezoneOffset) {
+        long local = getLocalTime(df);
+        if (local == NOT_ARITHMETIC) {
+            local = getTimeFromCalendar(df, UTC);
+        }
+        return local - timezoneOffset;
     }
 
-    private static Date getDate(DateFields df, int timezoneOffset) {
-        Calendar cd = Calendar.getInstance();
-        cd.setTimeZone(TimeZone.getTimeZone("UTC"));
+    private static long getTimeFromCalendar(DateFields df, TimeZone zone) {
+        Calendar cd = Calendar.getInstance(zone);
 
         cd.set(Calendar.YEAR, df.year);
         cd.set(Calendar.MONTH, df.month - MONTH_OFFSET);
@@ -223,9 +328,22 @@ public class DateUtils {
         cd.set(Calendar.SECOND, df.second);
         cd.set(Calendar.MILLISECOND, df.secTicks);
 
-        cd.add(Calendar.MILLISECOND, -1 * timezoneOffset);
+        return cd.getTimeInMillis();
+    }
 
-        return cd.getTime();
+    /**
+     * TimeZone.getTimeZone looks the zone up and copies it on every call, so the zones that are
+     * asked for by name are kept around. They're never handed out or modified.
+     */
+    private static TimeZone getTimeZone(String id) {
+        TimeZone zone = timeZones.get(id);
+        if (zone == null) {
+            zone = TimeZone.getTimeZone(id);
+            if (timeZones.size() < MAX_CACHED_TIME_ZONES) {
+                timeZones.put(id, zone);
+            }
+        }
+        return zone;
     }
 
     /* ==== FORMATTING DATES/TIMES TO STANDARD STRINGS ==== */
@@ -311,7 +429,12 @@ public class DateUtils {
     }
 
     private static String formatDateISO8601(DateFields f) {
-        return f.year + "-" + intPad(f.month, 2) + "-" + intPad(f.day, 2);
+        StringBuilder sb = new StringBuilder(10);
+        sb.append(f.year).append('-');
+        appendPadded(sb, f.month, 2);
+        sb.append('-');
+        appendPadded(sb, f.day, 2);
+        return sb.toString();
     }
 
     private static String formatDateColloquial(DateFields f) {
@@ -331,7 +454,14 @@ public class DateUtils {
     }
 
     private static String formatTimeISO8601(DateFields f) {
-        String time = intPad(f.hour, 2) + ":" + intPad(f.minute, 2) + ":" + intPad(f.second, 2) + "." + intPad(f.secTicks, 3);
+        StringBuilder time = new StringBuilder(18);
+        appendPadded(time, f.hour, 2);
+        time.append(':');
+        appendPadded(time, f.minute, 2);
+        time.append(':');
+        appendPadded(time, f.second, 2);
+        time.append('.');
+        appendPadded(time, f.secTicks, 3);
 
         int offset;
         if (timezoneOffset() != -1) {
@@ -343,20 +473,21 @@ public class DateUtils {
 
         //NOTE: offset is in millis
         if (offset == 0) {
-            time += "Z";
+            time.append('Z');
         } else {
 
             //Start with sign
-            String offsetSign = offset > 0 ? "+" : "-";
+            time.append(offset > 0 ? '+' : '-');
 
             int value = Math.abs(offset) / 1000 / 60;
 
-            String hrs = intPad(value / 60, 2);
-            String mins = value % 60 != 0 ? ":" + intPad(value % 60, 2) : "";
-
-            time += offsetSign + hrs + mins;
+            appendPadded(time, value / 60, 2);
+            if (value % 60 != 0) {
+                time.append(':');
+                appendPadded(time, value % 60, 2);
+            }
         }
-        return time;
+        return time.toString();
     }
 
     private static String formatTimeColloquial(DateFields f) {
@@ -392,11 +523,11 @@ public class DateUtils {
                 if (c == '%') {            //literal '%'
                     sb.append("%");
                 } else if (c == 'Y') {    //4-digit year
-                    sb.append(intPad(f.year, 4));
+                    appendPadded(sb, f.year, 4);
                 } else if (c == 'y') {    //2-digit year
                     sb.append(intPad(f.year, 4).substring(2));
                 } else if (c == 'm') {    //0-padded month
-                    sb.append(intPad(f.month, 2));
+                    appendPadded(sb, f.month, 2);
                 } else if (c == 'n') {    //numeric month
                     sb.append(f.month);
                 } else if (c == 'B') {    //long text month
@@ -404,19 +535,19 @@ public class DateUtils {
                 } else if (c == 'b') {    //short text month
                     sb.append(stringsSource.monthNamesShort[f.month - 1]);
                 } else if (c == 'd') {    //0-padded day of month
-                    sb.append(intPad(f.day, 2));
+                    appendPadded(sb, f.day, 2);
                 } else if (c == 'e') {    //day of month
                     sb.append(f.day);
                 } else if (c == 'H') {    //0-padded hour (24-hr time)
-                    sb.append(intPad(f.hour, 2));
+                    appendPadded(sb, f.hour, 2);
                 } else if (c == 'h') {    //hour (24-hr time)
                     sb.append(f.hour);
                 } else if (c == 'M') {    //0-padded minute
-                    sb.append(intPad(f.minute, 2));
+                    appendPadded(sb, f.minute, 2);
                 } else if (c == 'S') {    //0-padded second
-                    sb.append(intPad(f.second, 2));
+                    appendPadded(sb, f.second, 2);
                 } else if (c == '3') {    //0-padded millisecond ticks (000-999)
-                    sb.append(intPad(f.secTicks, 3));
+                    appendPadded(sb, f.secTicks, 3);
                 } else if (c == 'A') {    //long text day
                     sb.append(stringsSource.dayNamesLong[f.dow - 1]);
                 } else if (c == 'a') {    //Three letter short text day
@@ -441,13 +572,13 @@ public class DateUtils {
 
     public static Date parseDateTime(String str) {
         DateFields fields = new DateFields();
-        int i = str.indexOf("T");
+        int i = str.indexOf('T');
         if (i != -1) {
-            if (!parseDateAndStore(str.substring(0, i), fields) || !parseTimeAndStore(str.substring(i + 1), fields)) {
+            if (!parseDateAndStore(str, 0, i, fields) || !parseTimeAndStore(str, i + 1, str.length(), fields)) {
                 return null;
             }
         } else {
-            if (!parseDateAndStore(str, fields)) {
+            if (!parseDateAndStore(str, 0, str.length(), fields)) {
                 return null;
             }
         }
@@ -456,18 +587,37 @@ public class DateUtils {
 
     public static Date parseDate(String str) {
         DateFields fields = new DateFields();
-        if (!parseDateAndStore(str, fields)) {
+        if (!parseDateAndStore(str, 0, str.length(), fields)) {
             return null;
         }
         return getDate(fields);
     }
 
     /**
-     * Parse string into date, save result to DateFields argument, and return
-     * true if it was successfully parsed into a valid date.
+     * Parse the part of the string between the offsets into date, save result to DateFields
+     * argument, and return true if it was successfully parsed into a valid date.
+     *
+     * Plain yyyy-mm-dd dates are read in place; anything else is split up and handed to
+     * Integer.parseInt to be read exactly as it always has been.
      *
      * @return Was the string successfully parsed into a valid date
      */
+    private static boolean parseDateAndStore(String str, int start, int end, DateFields df) {
+        int yearEnd = skipDigits(str, start, end);
+        int monthEnd = skipDigits(str, yearEnd + 1, end);
+        int dayEnd = skipDigits(str, monthEnd + 1, end);
+        if (!isNumber(start, yearEnd) || !hasChar(str, yearEnd, end, '-') ||
+                !isNumber(yearEnd + 1, monthEnd) || !hasChar(str, monthEnd, end, '-') ||
+                !isNumber(monthEnd + 1, dayEnd) || dayEnd != end) {
+            return parseDateAndStore(str.substring(start, end), df);
+        }
+
+        df.year = readNumber(str, start, yearEnd);
+        df.month = readNumber(str, yearEnd + 1, monthEnd);
+        df.day = readNumber(str, monthEnd + 1, dayEnd);
+        return df.check();
+    }
+
     private static boolean parseDateAndStore(String dateStr, DateFields df) {
         String[] pieces = DataUtil.splitOnDash(dateStr);
         if (pieces.length != 3) {
@@ -491,7 +641,7 @@ public class DateUtils {
         }
 
         DateFields fields = new DateFields();
-        if (!parseTimeAndStore(str, fields)) {
+        if (!parseTimeAndStore(str, 0, str.length(), fields)) {
             return null;
         }
         return getDate(fields);
@@ -518,6 +668,144 @@ public class DateUtils {
     }
 
 
+    /**
+     * Parse the part of the string between the offsets into a time, which is converted into
+     * the local timezone if it has an offset, and save the result to the DateFields argument.
+     *
+     * Times made up of plain hh:mm[:ss[.sss]] with a Z or [+-]hh[:mm] suffix are read in place;
+     * anything else is split up and read exactly as it always has been.
+     *
+     * @return Was the string successfully interpreted as valid time?
+     */
+    private static boolean parseTimeAndStore(String str, int start, int end, DateFields df) {
+        int offsetMinutes = readTime(str, start, end, df);
+        if (offsetMinutes == NOT_READ) {
+            return parseTimeAndStore(str.substring(start, end), df);
+        }
+
+        if (!df.check()) {
+            return false;
+        }
+        if (offsetMinutes == NO_OFFSET) {
+            return true;
+        }
+
+        DateFields adjusted = getFields(getTime(df, "UTC") + offsetMinutes * 60 * 1000, null);
+        df.hour = adjusted.hour;
+        df.minute = adjusted.minute;
+        df.second = adjusted.second;
+        df.secTicks = adjusted.secTicks;
+
+        return df.check();
+    }
+
+    /**
+     * Read a time in the common form into the fields without checking them.
+     *
+     * @return The number of minutes to add to the time to bring it to UTC, NO_OFFSET if it
+     * didn't have a timezone, or NOT_READ if the time isn't in the common form
+     */
+    private static int readTime(String str, int start, int end, DateFields df) {
+        int hourEnd = skipDigits(str, start, end);
+        int minuteEnd = skipDigits(str, hourEnd + 1, end);
+        if (!isNumber(start, hourEnd) || !hasChar(str, hourEnd, end, ':') || !isNumber(hourEnd + 1, minuteEnd)) {
+            return NOT_READ;
+        }
+
+        int timeEnd = minuteEnd;
+        int secondEnd = -1;
+        int fractionEnd = -1;
+        if (hasChar(str, minuteEnd, end, ':')) {
+            secondEnd = skipDigits(str, minuteEnd + 1, end);
+            if (!isNumber(minuteEnd + 1, secondEnd)) {
+                return NOT_READ;
+            }
+            timeEnd = secondEnd;
+            if (hasChar(str, secondEnd, end, '.')) {
+                fractionEnd = skipDigits(str, secondEnd + 1, end);
+                // Keep to fractions whose value a double division gets exactly right
+                if (fractionEnd == secondEnd + 1 || fractionEnd - minuteEnd - 2 > 15) {
+                    return NOT_READ;
+                }
+                timeEnd = fractionEnd;
+            }
+        }
+
+        int offsetMinutes;
+        if (timeEnd == end) {
+            offsetMinutes = NO_OFFSET;
+        } else if (timeEnd == end - 1 && str.charAt(timeEnd) == 'Z') {
+            offsetMinutes = 0;
+        } else if (hasChar(str, timeEnd, end, '+') || hasChar(str, timeEnd, end, '-')) {
+            int offsetHourEnd = skipDigits(str, timeEnd + 1, end);
+            if (offsetHourEnd - timeEnd - 1 < 1 || offsetHourEnd - timeEnd - 1 > 2) {
+                return NOT_READ;
+            }
+            offsetMinutes = 60 * readNumber(str, timeEnd + 1, offsetHourEnd);
+            if (offsetHourEnd != end) {
+                int offsetMinuteEnd = skipDigits(str, offsetHourEnd + 1, end);
+                if (!hasChar(str, offsetHourEnd, end, ':') || offsetMinuteEnd != end ||
+                        offsetMinuteEnd - offsetHourEnd - 1 < 1 || offsetMinuteEnd - offsetHourEnd - 1 > 2) {
+                    return NOT_READ;
+                }
+                offsetMinutes += readNumber(str, offsetHourEnd + 1, offsetMinuteEnd);
+            }
+            // A positive offset is taken away to get to UTC, and a negative one added
+            if (str.charAt(timeEnd) == '+') {
+                offsetMinutes = -offsetMinutes;
+            }
+        } else {
+            return NOT_READ;
+        }
+
+        df.hour = readNumber(str, start, hourEnd);
+        df.minute = readNumber(str, hourEnd + 1, minuteEnd);
+        if (secondEnd != -1) {
+            if (fractionEnd == -1) {
+                df.second = readNumber(str, minuteEnd + 1, secondEnd);
+                df.secTicks = 0;
+            } else {
+                // Dividing the digits by a power of ten rounds the same way Double.parseDouble
+                // does, so split the seconds up exactly like the fallback below
+                long digits = readNumber(str, minuteEnd + 1, secondEnd);
+                for (int i = secondEnd + 1; i < fractionEnd; i++) {
+                    digits = digits * 10 + (str.charAt(i) - '0');
+                }
+                double fsec = digits / POWERS_OF_TEN[fractionEnd - secondEnd - 1];
+                df.second = (int)fsec;
+                df.secTicks = (int)(1000.0 * (fsec - df.second));
+            }
+        }
+        return offsetMinutes;
+    }
+
+    private static int skipDigits(String str, int start, int end) {
+        int i = start;
+        while (i < end && str.charAt(i) >= '0' && str.charAt(i) <= '9') {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * @return Whether a run of digits between the offsets can be read as an int
+     */
+    private static boolean isNumber(int start, int end) {
+        return end > start && end - start <= 9;
+    }
+
+    private static boolean hasChar(String str, int index, int end, char c) {
+        return index < end && str.charAt(index) == c;
+    }
+
+    private static int readNumber(String str, int start, int end) {
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            value = value * 10 + (str.charAt(i) - '0');
+        }
+        return value;
+    }
+
     private static boolean parseTimeAndStore(String timeStr, DateFields df) {
         // get timezone information first. Make a Datefields set for the possible offset
         // NOTE: DO NOT DO DIRECT COMPUTATIONS AGAINST THIS. It's a holder for hour/minute
@@ -868,10 +1156,23 @@ public class DateUtils {
      * 0's preceding the number.
      */
     public static String intPad(int n, int pad) {
-        String s = String.valueOf(n);
-        while (s.length() < pad)
-            s = "0" + s;
-        return s;
+        StringBuilder sb = new StringBuilder(pad);
+        appendPadded(sb, n, pad);
+        return sb.toString();
+    }
+
+    /**
+     * Append n to the builder with as many 0's in front of it as intPad would add
+     */
+    private static void appendPadded(StringBuilder sb, int n, int pad) {
+        int length = n < 0 ? 2 : 1;
+        for (long rest = Math.abs((long)n); rest >= 10; rest /= 10) {
+            length++;
+        }
+        for (int i = length; i < pad; i++) {
+            sb.append('0');
+        }
+        sb.append(n);
     }
 
     private static boolean inRange(int x, int min, int max) {
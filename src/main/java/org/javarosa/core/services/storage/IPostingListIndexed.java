@@ -0,0 +1,16 @@
+package org.javarosa.core.services.storage;
+
+import org.javarosa.core.services.storage.util.MetadataPostingIndex;
+
+/**
+ * Implemented by storage which keeps an in-memory inverted index of posting lists over the
+ * metadata of its records. Queries can combine the posting lists directly rather than asking the
+ * storage to look up each metadata value on its own.
+ */
+public interface IPostingListIndexed {
+
+    /**
+     * @return the index over this storage's metadata, which must not be modified by callers
+     */
+    MetadataPostingIndex getPostingIndex();
+}
@@ -2,11 +2,14 @@ package org.javarosa.core.services.storage;
 
 import org.javarosa.core.model.condition.RequestAbandonedException;
 import org.javarosa.core.util.InvalidIndexException;
+import org.javarosa.core.util.RecordIdSet;
 import org.javarosa.core.util.externalizable.Externalizable;
 
 import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
 import java.util.NoSuchElementException;
 import java.util.Vector;
 
@@ -193,6 +196,80 @@ public interface IStorageUtilityIndexed<E extends Externalizable> {
     */
     List<Integer> getIDsForValues(String[] metaFieldNames, Object[] values, LinkedHashSet<Integer> returnSet);
 
+    /**
+     * Retrieves the IDs of Externalizable objects in storage for which the fields specified
+     * contain the values specified, as a set of primitive ids.
+     *
+     * @param metaFieldNames A list of metadata field names to match
+     * @param values     The values which must match the field names provided
+     * @return The set of IDs such that retrieving the Externalizable object with any of them
+     * will result in an object for which the fields specified are equal to the value provided.
+     * @throws RuntimeException (Fix this exception type) if the field is unrecognized by the
+     *                          meta data
+     *
+     * The default implementation copies the ids from getIDsForValues, implementations which
+     * can produce them as primitives directly should do so.
+     */
+    default RecordIdSet getIDSetForValues(String[] metaFieldNames, Object[] values) {
+        return RecordIdSet.fromCollection(getIDsForValues(metaFieldNames, values));
+    }
+
+    /**
+     * Retrieves a List of IDs of Externalizable objects in storage for which the value of the
+     * field specified falls within the range provided. Values are compared by their string form.
+     *
+     * @param metaFieldName  The name of a field which should be evaluated
+     * @param lowerBound     The lowest value to be matched, or null if the range has no lower bound
+     * @param includeLower   Whether a value equal to the lower bound should be matched
+     * @param upperBound     The highest value to be matched, or null if the range has no upper bound
+     * @param includeUpper   Whether a value equal to the upper bound should be matched
+     * @return A List of Integer IDs for the matching objects, ordered by the value of the field
+     * @throws IllegalArgumentException if the field is unrecognized by the meta data
+     *
+     * The default implementation reads the field for every record in storage, implementations
+     * which keep their indexes in order should answer from those instead.
+     */
+    default List<Integer> getIDsForRange(String metaFieldName, String lowerBound, boolean includeLower,
+                                         String upperBound, boolean includeUpper) {
+        NavigableMap<String, Vector<Integer>> range = IndexValueScan.readValuesInOrder(this, metaFieldName);
+        if (lowerBound != null) {
+            range = range.tailMap(lowerBound, includeLower);
+        }
+        if (upperBound != null) {
+            range = range.headMap(upperBound, includeUpper);
+        }
+        return IndexValueScan.collectIds(range.values());
+    }
+
+    /**
+     * Retrieves a List of IDs of Externalizable objects in storage for which the value of the
+     * field specified begins with the provided prefix, ordered by the value of the field.
+     * Values are compared by their string form.
+     *
+     * @param metaFieldName The name of a field which should be evaluated
+     * @param prefix        The prefix the value of the field should begin with. If null or empty,
+     *                      the IDs of all objects are returned.
+     * @return A List of Integer IDs for the matching objects, ordered by the value of the field
+     * @throws IllegalArgumentException if the field is unrecognized by the meta data
+     *
+     * Like getIDsForRange, the default implementation reads the field for every record.
+     */
+    default List<Integer> getIDsInOrder(String metaFieldName, String prefix) {
+        NavigableMap<String, Vector<Integer>> index = IndexValueScan.readValuesInOrder(this, metaFieldName);
+        if (prefix == null || "".equals(prefix)) {
+            return IndexValueScan.collectIds(index.values());
+        }
+
+        Vector<Integer> ids = new Vector<>();
+        for (Map.Entry<String, Vector<Integer>> entry : index.tailMap(prefix, true).entrySet()) {
+            if (!entry.getKey().startsWith(prefix)) {
+                break;
+            }
+            ids.addAll(entry.getValue());
+        }
+        return ids;
+    }
+
     /**
      * Retrieves a Externalizable object from the storage which is reference by the unique index fieldName.
      *
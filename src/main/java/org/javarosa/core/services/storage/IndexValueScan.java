@@ -0,0 +1,55 @@
+package org.javarosa.core.services.storage;
+
+import org.javarosa.core.util.DataUtil;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.Vector;
+
+/**
+ * Orders the records of a storage by the value of one of its indexes by reading that index for
+ * every record. Backs the ordered lookups of storage which doesn't keep its indexes in order.
+ */
+final class IndexValueScan {
+
+    private IndexValueScan() {
+    }
+
+    /**
+     * @return The ids of every record in storage, grouped by the string form of their value for
+     * the provided field and ordered by that value
+     */
+    static NavigableMap<String, Vector<Integer>> readValuesInOrder(IStorageUtilityIndexed<?> storage,
+                                                                    String metaFieldName) {
+        LinkedHashSet<Integer> ids = new LinkedHashSet<>();
+        for (IStorageIterator<?> i = storage.iterate(false); i.hasMore(); ) {
+            ids.add(DataUtil.integer(i.nextID()));
+        }
+        HashMap<Integer, String[]> metadata = new HashMap<>();
+        storage.bulkReadMetadata(ids, new String[]{metaFieldName}, metadata);
+
+        TreeMap<String, Vector<Integer>> index = new TreeMap<>();
+        for (Integer id : ids) {
+            String[] values = metadata.get(id);
+            String value = values == null || values[0] == null ? "" : values[0];
+            Vector<Integer> idsForValue = index.get(value);
+            if (idsForValue == null) {
+                idsForValue = new Vector<>();
+                index.put(value, idsForValue);
+            }
+            idsForValue.add(id);
+        }
+        return index;
+    }
+
+    static Vector<Integer> collectIds(Collection<Vector<Integer>> idGroups) {
+        Vector<Integer> ids = new Vector<>();
+        for (Vector<Integer> group : idGroups) {
+            ids.addAll(group);
+        }
+        return ids;
+    }
+}
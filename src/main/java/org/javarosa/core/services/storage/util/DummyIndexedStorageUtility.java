@@ -3,13 +3,17 @@ package org.javarosa.core.services.storage.util;
 import org.javarosa.core.model.condition.RequestAbandonedException;
 import org.javarosa.core.services.storage.EntityFilter;
 import org.javarosa.core.services.storage.IMetaData;
+import org.javarosa.core.services.storage.IPostingListIndexed;
 import org.javarosa.core.services.storage.IStorageIterator;
 import org.javarosa.core.services.storage.IStorageUtilityIndexed;
 import org.javarosa.core.services.storage.Persistable;
 import org.javarosa.core.util.DataUtil;
 import org.javarosa.core.util.InvalidIndexException;
+import org.javarosa.core.util.RecordIdBitmap;
+import org.javarosa.core.util.RecordIdSet;
 import org.javarosa.core.util.externalizable.DeserializationException;
 import org.javarosa.core.util.externalizable.Externalizable;
+import org.javarosa.core.util.externalizable.LazyExternalizable;
 import org.javarosa.core.util.externalizable.PrototypeFactory;
 
 import java.io.ByteArrayInputStream;
@@ -17,20 +21,27 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.util.Collection;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
 import java.util.NoSuchElementException;
 import java.util.Vector;
 
 /**
  * @author ctsims
  */
-public class DummyIndexedStorageUtility<T extends Persistable> implements IStorageUtilityIndexed<T> {
+public class DummyIndexedStorageUtility<T extends Persistable> implements IStorageUtilityIndexed<T>, IPostingListIndexed {
 
-    private final Hashtable<String, Hashtable<Object, Vector<Integer>>> meta = new Hashtable<>();
+    /**
+     * Posting lists for each value of each metadata field, kept up to date as records are
+     * written and removed
+     */
+    private final MetadataPostingIndex meta = new MetadataPostingIndex();
     private final Hashtable<Integer, T> data = new Hashtable<>();
     private int curCount = 0;
     private final Class<T> prototype;
@@ -67,22 +78,41 @@ public class DummyIndexedStorageUtility<T extends Persistable> implements IStora
         }
         IMetaData m = (IMetaData)p;
         for (String key : m.getMetaDataFields()) {
-            if (!meta.containsKey(key)) {
-                meta.put(key, new Hashtable<Object, Vector<Integer>>());
-            }
+            meta.addField(key);
+        }
+    }
+
+    /**
+     * Index an additional metadata field which isn't one of the records' declared metadata
+     * fields, like the case index fields of cases.
+     */
+    public void indexMetaDataField(String fieldName) {
+        if (meta.hasField(fieldName)) {
+            return;
+        }
+        meta.addField(fieldName);
+        for (Enumeration en = data.keys(); en.hasMoreElements(); ) {
+            Integer i = (Integer)en.nextElement();
+            indexRecord(i, data.get(i));
         }
     }
 
+    @Override
+    public MetadataPostingIndex getPostingIndex() {
+        return meta;
+    }
+
     @Override
     public Vector<Integer> getIDsForValue(String fieldName, Object value) {
         //We don't support all index types
-        if (meta.get(fieldName) == null) {
+        if (!meta.hasField(fieldName)) {
             throw new IllegalArgumentException("Unsupported index: " + fieldName + " for storage of " + prototype.getName());
         }
-        if (meta.get(fieldName).get(value) == null) {
+        RecordIdBitmap matches = meta.getMatches(fieldName, value);
+        if (matches == null) {
             return new Vector<>();
         }
-        return meta.get(fieldName).get(value);
+        return new Vector<>(matches.toRecordIdSet().asList());
     }
 
     @Override
@@ -92,47 +122,102 @@ public class DummyIndexedStorageUtility<T extends Persistable> implements IStora
 
     @Override
     public List<Integer> getIDsForValues(String[] fieldNames, Object[] values, LinkedHashSet<Integer> returnSet) {
-        List<Integer> accumulator = null;
-        for (int i = 0; i < fieldNames.length; ++i) {
-            Vector<Integer> matches = getIDsForValue(fieldNames[i], values[i]);
-            if (accumulator == null) {
-                accumulator = new Vector<>(matches);
-            } else {
-                accumulator = DataUtil.intersection(accumulator, matches);
+        List<Integer> matches = new Vector<>(getIDSetForValues(fieldNames, values).asList());
+        returnSet.addAll(matches);
+        return matches;
+    }
+
+    @Override
+    public RecordIdSet getIDSetForValues(String[] fieldNames, Object[] values) {
+        for (String fieldName : fieldNames) {
+            if (!meta.hasField(fieldName)) {
+                throw new IllegalArgumentException("Unsupported index: " + fieldName + " for storage of " + prototype.getName());
             }
         }
+        return meta.matchAll(fieldNames, values).toRecordIdSet();
+    }
+
+    /**
+     * Maintain a sorted index over the provided metadata field, which allows range and ordered
+     * lookups over the field to be answered without walking every value of the field.
+     */
+    public void enableSortedIndex(String fieldName) {
+        checkIndexedField(fieldName);
+        meta.enableSortedIndex(fieldName);
+    }
 
-        returnSet.addAll(accumulator);
-        return accumulator;
+    @Override
+    public List<Integer> getIDsForRange(String fieldName, String lowerBound, boolean includeLower,
+                                        String upperBound, boolean includeUpper) {
+        checkIndexedField(fieldName);
+        NavigableMap<String, RecordIdBitmap> range = meta.getValuesInOrder(fieldName);
+        if (lowerBound != null) {
+            range = range.tailMap(lowerBound, includeLower);
+        }
+        if (upperBound != null) {
+            range = range.headMap(upperBound, includeUpper);
+        }
+        return collectIds(range.values());
+    }
+
+    @Override
+    public List<Integer> getIDsInOrder(String fieldName, String prefix) {
+        checkIndexedField(fieldName);
+        NavigableMap<String, RecordIdBitmap> index = meta.getValuesInOrder(fieldName);
+        if (prefix == null || "".equals(prefix)) {
+            return collectIds(index.values());
+        }
+
+        Vector<Integer> ids = new Vector<>();
+        for (Map.Entry<String, RecordIdBitmap> entry : index.tailMap(prefix, true).entrySet()) {
+            if (!entry.getKey().startsWith(prefix)) {
+                break;
+            }
+            ids.addAll(entry.getValue().toRecordIdSet().asList());
+        }
+        return ids;
+    }
+
+    private void checkIndexedField(String fieldName) {
+        if (!meta.hasField(fieldName)) {
+            throw new IllegalArgumentException("Unsupported index: " + fieldName + " for storage of " + prototype.getName());
+        }
+    }
+
+    private static Vector<Integer> collectIds(Collection<RecordIdBitmap> idSets) {
+        Vector<Integer> ids = new Vector<>();
+        for (RecordIdBitmap idSet : idSets) {
+            ids.addAll(idSet.toRecordIdSet().asList());
+        }
+        return ids;
     }
 
     @Override
     public T getRecordForValue(String fieldName, Object value) throws NoSuchElementException, InvalidIndexException {
-        if (meta.get(fieldName) == null) {
+        if (!meta.hasField(fieldName)) {
             throw new NoSuchElementException("No record matching meta index " + fieldName + " with value " + value);
         }
 
-        Vector<Integer> matches = meta.get(fieldName).get(value);
+        RecordIdBitmap matches = meta.getMatches(fieldName, value);
 
-        if (matches == null || matches.size() == 0) {
+        if (matches == null || matches.isEmpty()) {
             throw new NoSuchElementException("No record matching meta index " + fieldName + " with value " + value);
         }
-        if (matches.size() > 1) {
+        if (matches.cardinality() > 1) {
             throw new InvalidIndexException("Multiple records matching meta index " + fieldName + " with value " + value, fieldName);
         }
 
-        return read(matches.elementAt(0));
+        return read(matches.toRecordIdSet().get(0));
     }
 
     @Override
     public int add(T e) {
         data.put(DataUtil.integer(curCount), e);
+        indexRecord(curCount, e);
 
         // This is not a legit pair of operations;
         curCount++;
 
-        syncMeta();
-
         return curCount - 1;
     }
 
@@ -176,7 +261,11 @@ public class DummyIndexedStorageUtility<T extends Persistable> implements IStora
     public T read(int id) {
         try {
             T t = prototype.newInstance();
-            t.readExternal(new DataInputStream(new ByteArrayInputStream(readBytes(id))), mFactory);
+            if (t instanceof LazyExternalizable) {
+                ((LazyExternalizable)t).readExternalLazily(readBytes(id), mFactory);
+            } else {
+                t.readExternal(new DataInputStream(new ByteArrayInputStream(readBytes(id))), mFactory);
+            }
             return t;
         } catch (IllegalAccessException | InstantiationException | IOException | DeserializationException e) {
             e.printStackTrace();
@@ -203,8 +292,7 @@ public class DummyIndexedStorageUtility<T extends Persistable> implements IStora
     @Override
     public void remove(int id) {
         data.remove(DataUtil.integer(id));
-
-        syncMeta();
+        meta.removeRecord(id);
     }
 
     @Override
@@ -215,6 +303,7 @@ public class DummyIndexedStorageUtility<T extends Persistable> implements IStora
     @Override
     public void removeAll() {
         data.clear();
+        meta.clear();
     }
 
     @Override
@@ -235,60 +324,34 @@ public class DummyIndexedStorageUtility<T extends Persistable> implements IStora
         }
         for (Integer i : removed) {
             data.remove(i);
+            meta.removeRecord(i);
         }
 
-        syncMeta();
-
         return removed;
     }
 
     @Override
     public void update(int id, T e) {
         data.put(DataUtil.integer(id), e);
-        syncMeta();
+        indexRecord(id, e);
     }
 
     @Override
     public void write(Persistable p) {
         if (p.getID() != -1) {
             this.data.put(DataUtil.integer(p.getID()), (T)p);
-            syncMeta();
+            indexRecord(p.getID(), p);
         } else {
             p.setID(curCount);
             this.add((T)p);
         }
     }
 
-    private void syncMeta() {
-        for (Hashtable<Object, Vector<Integer>> metaEntry : meta.values()) {
-            metaEntry.clear();
-        }
-
-        for (Enumeration en = data.keys(); en.hasMoreElements(); ) {
-            Integer i = (Integer)en.nextElement();
-            Externalizable e = data.get(i);
-
-            if (e instanceof IMetaData) {
-                IMetaData m = (IMetaData)e;
-                for (Enumeration keys = meta.keys(); keys.hasMoreElements(); ) {
-                    String key = (String)keys.nextElement();
-
-                    Object value = m.getMetaData(key);
-                    if (value == null) {
-                        continue;
-                    }
-
-                    Hashtable<Object, Vector<Integer>> records = meta.get(key);
-
-                    if (!records.containsKey(value)) {
-                        records.put(value, new Vector<Integer>());
-                    }
-                    Vector<Integer> indices = records.get(value);
-                    if (!indices.contains(i)) {
-                        indices.add(i);
-                    }
-                }
-            }
+    private void indexRecord(int id, Externalizable e) {
+        if (e instanceof IMetaData) {
+            meta.indexRecord(id, (IMetaData)e);
+        } else {
+            meta.removeRecord(id);
         }
     }
 
@@ -0,0 +1,227 @@
+package org.javarosa.core.services.storage.util;
+
+import org.javarosa.core.services.storage.IMetaData;
+import org.javarosa.core.util.RecordIdBitmap;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.Vector;
+
+/**
+ * An in-memory inverted index over the metadata of stored records. For each indexed field, the
+ * ids of the records holding each value are kept in a compressed bitmap (the value's posting
+ * list), so lookups over several fields or several values are answered by combining bitmaps
+ * rather than intersecting lists of ids.
+ *
+ * The index is updated a record at a time as records are written and removed. The values
+ * indexed for each record are remembered, so a record can be reindexed even if the object
+ * holding its old metadata has since been changed in place.
+ *
+ * Fields can also keep their values in sorted order, to answer range and prefix lookups.
+ */
+public class MetadataPostingIndex {
+
+    private final Vector<String> fields = new Vector<>();
+    private final Vector<HashMap<Object, RecordIdBitmap>> postings = new Vector<>();
+    private final HashMap<String, TreeMap<String, RecordIdBitmap>> sortedPostings = new HashMap<>();
+
+    private final HashMap<Integer, Object[]> recordValues = new HashMap<>();
+    private RecordIdBitmap records = new RecordIdBitmap();
+
+    /**
+     * Index the provided field for records which are indexed from now on. Records which are
+     * already indexed need to be reindexed to have their value for the field included.
+     */
+    public void addField(String field) {
+        if (!fields.contains(field)) {
+            fields.add(field);
+            postings.add(new HashMap<Object, RecordIdBitmap>());
+        }
+    }
+
+    public boolean hasField(String field) {
+        return fields.contains(field);
+    }
+
+    /**
+     * Maintain the values of the provided field in sorted order from now on
+     */
+    public void enableSortedIndex(String field) {
+        if (!sortedPostings.containsKey(field)) {
+            sortedPostings.put(field, buildSortedIndex(getPostings(field)));
+        }
+    }
+
+    /**
+     * Add the provided record's metadata to the index, replacing whatever was indexed for the
+     * record previously.
+     */
+    public void indexRecord(int id, IMetaData record) {
+        removeRecord(id);
+
+        Object[] values = new Object[fields.size()];
+        for (int i = 0; i < values.length; ++i) {
+            Object value = record.getMetaData(fields.elementAt(i));
+            if (value != null) {
+                values[i] = value;
+                addPosting(i, value, id);
+            }
+        }
+        recordValues.put(id, values);
+        records.add(id);
+    }
+
+    public void removeRecord(int id) {
+        Object[] values = recordValues.remove(id);
+        if (values == null) {
+            return;
+        }
+        for (int i = 0; i < values.length; ++i) {
+            if (values[i] != null) {
+                removePosting(i, values[i], id);
+            }
+        }
+        records.remove(id);
+    }
+
+    public void clear() {
+        for (HashMap<Object, RecordIdBitmap> fieldPostings : postings) {
+            fieldPostings.clear();
+        }
+        for (TreeMap<String, RecordIdBitmap> sorted : sortedPostings.values()) {
+            sorted.clear();
+        }
+        recordValues.clear();
+        records = new RecordIdBitmap();
+    }
+
+    /**
+     * @return The ids of every indexed record. The returned bitmap must not be modified.
+     */
+    public RecordIdBitmap getRecords() {
+        return records;
+    }
+
+    /**
+     * @return The ids of the records which hold the provided value for the field, or null if
+     * no records hold the value. The returned bitmap must not be modified.
+     * @throws IllegalArgumentException if the field isn't indexed
+     */
+    public RecordIdBitmap getMatches(String field, Object value) {
+        return getPostings(field).get(value);
+    }
+
+    /**
+     * @return A new bitmap of the ids of the records which hold each of the provided values for
+     * the matching fields
+     * @throws IllegalArgumentException if any of the fields aren't indexed
+     */
+    public RecordIdBitmap matchAll(String[] fields, Object[] values) {
+        RecordIdBitmap[] matches = new RecordIdBitmap[fields.length];
+        for (int i = 0; i < fields.length; ++i) {
+            matches[i] = getMatches(fields[i], values[i]);
+            if (matches[i] == null) {
+                return new RecordIdBitmap();
+            }
+        }
+        if (matches.length == 0) {
+            return new RecordIdBitmap();
+        }
+
+        //Start from the smallest posting list to keep the intermediate results small
+        Arrays.sort(matches, (first, second) -> first.cardinality() - second.cardinality());
+        RecordIdBitmap result = matches[0];
+        for (int i = 1; i < matches.length && !result.isEmpty(); ++i) {
+            result = RecordIdBitmap.and(result, matches[i]);
+        }
+        return matches.length == 1 ? result.copy() : result;
+    }
+
+    /**
+     * @return A new bitmap of the ids of the records which hold any of the provided values for
+     * the field
+     * @throws IllegalArgumentException if the field isn't indexed
+     */
+    public RecordIdBitmap matchAny(String field, Object[] values) {
+        HashMap<Object, RecordIdBitmap> fieldPostings = getPostings(field);
+        RecordIdBitmap result = new RecordIdBitmap();
+        for (Object value : values) {
+            RecordIdBitmap matches = fieldPostings.get(value);
+            if (matches != null) {
+                result = RecordIdBitmap.or(result, matches);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return The posting lists of the field's values, ordered by the string form of the values.
+     * The returned map and bitmaps must not be modified.
+     * @throws IllegalArgumentException if the field isn't indexed
+     */
+    public NavigableMap<String, RecordIdBitmap> getValuesInOrder(String field) {
+        TreeMap<String, RecordIdBitmap> sorted = sortedPostings.get(field);
+        if (sorted == null) {
+            //No sorted index is being maintained for this field, so sort the values on demand
+            sorted = buildSortedIndex(getPostings(field));
+        }
+        return sorted;
+    }
+
+    private HashMap<Object, RecordIdBitmap> getPostings(String field) {
+        int index = fields.indexOf(field);
+        if (index == -1) {
+            throw new IllegalArgumentException("Unsupported index: " + field);
+        }
+        return postings.elementAt(index);
+    }
+
+    private void addPosting(int fieldIndex, Object value, int id) {
+        addToPostingList(postings.elementAt(fieldIndex), value, id);
+        TreeMap<String, RecordIdBitmap> sorted = sortedPostings.get(fields.elementAt(fieldIndex));
+        if (sorted != null) {
+            addToPostingList(sorted, String.valueOf(value), id);
+        }
+    }
+
+    private void removePosting(int fieldIndex, Object value, int id) {
+        removeFromPostingList(postings.elementAt(fieldIndex), value, id);
+        TreeMap<String, RecordIdBitmap> sorted = sortedPostings.get(fields.elementAt(fieldIndex));
+        if (sorted != null) {
+            removeFromPostingList(sorted, String.valueOf(value), id);
+        }
+    }
+
+    private static <V> void addToPostingList(Map<V, RecordIdBitmap> postings, V value, int id) {
+        RecordIdBitmap postingList = postings.get(value);
+        if (postingList == null) {
+            postingList = new RecordIdBitmap();
+            postings.put(value, postingList);
+        }
+        postingList.add(id);
+    }
+
+    private static <V> void removeFromPostingList(Map<V, RecordIdBitmap> postings, V value, int id) {
+        RecordIdBitmap postingList = postings.get(value);
+        if (postingList != null) {
+            postingList.remove(id);
+            if (postingList.isEmpty()) {
+                postings.remove(value);
+            }
+        }
+    }
+
+    private static TreeMap<String, RecordIdBitmap> buildSortedIndex(HashMap<Object, RecordIdBitmap> fieldPostings) {
+        TreeMap<String, RecordIdBitmap> sorted = new TreeMap<>();
+        for (Map.Entry<Object, RecordIdBitmap> entry : fieldPostings.entrySet()) {
+            String key = String.valueOf(entry.getKey());
+            RecordIdBitmap existing = sorted.get(key);
+            sorted.put(key, existing == null ? entry.getValue().copy() :
+                    RecordIdBitmap.or(existing, entry.getValue()));
+        }
+        return sorted;
+    }
+}
@@ -1,126 +1,150 @@
 package org.javarosa.core.util;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
-import java.util.Enumeration;
-import java.util.Hashtable;
-import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A Cache Table is a self-purging weak reference store that can be used
  * to maintain a cache of objects keyed by a dynamic type.
  *
- * Cache tables will automatically clean up references to freed week references
- * on an internal schedule, and compact the table size to maintain as small
- * of a footprint as possible.
+ * When the garbage collector frees a cached object, its weak reference is
+ * enqueued on the table's reference queue, and the matching entry is dropped
+ * the next time the table is accessed. No background thread is needed to walk
+ * the table looking for freed references.
  *
- * Cache tables are only available with Weak References to maintain compatibility
- * with j2me runtimes.
+ * Cache tables are safe for concurrent use. Lookups don't lock, and updates
+ * only contend with updates to the same region of the underlying table.
  *
  * @author ctsims
  */
 public class CacheTable<T, K> {
-    private int totalAdditions = 0;
 
-    private Hashtable<T, WeakReference> currentTable;
+    private final ConcurrentHashMap<T, CacheReference<T, K>> currentTable = new ConcurrentHashMap<>();
+    private final ReferenceQueue<K> clearedReferences = new ReferenceQueue<>();
 
-    private static final Vector<WeakReference> caches = new Vector<>();
+    private final AtomicInteger hitCount = new AtomicInteger();
+    private final AtomicInteger missCount = new AtomicInteger();
+    private final AtomicInteger evictionCount = new AtomicInteger();
 
-    private static final Thread cleaner = new Thread(() -> {
-        Vector<Integer> toRemove = new Vector<>();
-        while (true) {
-            try {
-                toRemove.removeAllElements();
-                for (int i = 0; i < caches.size(); ++i) {
-                    CacheTable cache = (CacheTable)caches.elementAt(i).get();
-                    if (cache == null) {
-                        toRemove.addElement(DataUtil.integer(i));
-                    } else {
-                        Hashtable<Object, WeakReference> table = cache.currentTable;
-                        for (Enumeration en = table.keys(); en.hasMoreElements(); ) {
-                            Object key = en.nextElement();
-
-                            synchronized (cache) {
-                                //See whether or not the cached reference has been cleared by the GC
-                                if (table.get(key).get() == null) {
-                                    //If so, remove the entry, it's no longer useful.
-                                    table.remove(key);
-                                }
-                            }
-                        }
-
-                        synchronized (cache) {
-                            //See if our current size is 25% the size of the largest size we've been
-                            //and compact (clone to a new table) if so, since the table maintains the
-                            //largest size it has ever been.
-                            //TODO: 50 is a super arbitrary upper bound
-                            if (cache.totalAdditions > 50 && cache.totalAdditions - cache.currentTable.size() > (cache.currentTable.size() >> 2)) {
-                                Hashtable newTable = new Hashtable(cache.currentTable.size());
-                                int oldMax = cache.totalAdditions;
-                                for (Enumeration en = table.keys(); en.hasMoreElements(); ) {
-                                    Object key = en.nextElement();
-                                    newTable.put(key, cache.currentTable.get(key));
-                                }
-                                cache.currentTable = newTable;
-                                cache.totalAdditions = cache.currentTable.size();
-                            }
-                        }
-
-                    }
-                }
-                for (int id = toRemove.size() - 1; id >= 0; --id) {
-                    caches.removeElementAt(toRemove.elementAt(id));
-                }
-                try {
-                    Thread.sleep(3000);
-                } catch (InterruptedException e) {
-                    // TODO Auto-generated catch block
-                    e.printStackTrace();
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        }
-
-    });
+    /**
+     * A weak reference which remembers the key it was registered under, so the
+     * entry can be removed once the reference is cleared.
+     */
+    private static final class CacheReference<T, K> extends WeakReference<K> {
+        private final T key;
 
-    private static void registerCache(CacheTable table) {
-        caches.addElement(new WeakReference(table));
-        synchronized (cleaner) {
-            if (!cleaner.isAlive()) {
-                cleaner.start();
-            }
+        CacheReference(T key, K referent, ReferenceQueue<K> queue) {
+            super(referent, queue);
+            this.key = key;
         }
     }
 
     public CacheTable() {
         super();
-        currentTable = new Hashtable<>();
-        registerCache(this);
     }
 
-
     public K retrieve(T key) {
-        synchronized (this) {
-            if (!currentTable.containsKey(key)) {
+        purgeClearedReferences();
+        CacheReference<T, K> reference = currentTable.get(key);
+        if (reference == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        K retVal = reference.get();
+        if (retVal == null) {
+            missCount.incrementAndGet();
+            if (currentTable.remove(key, reference)) {
+                evictionCount.incrementAndGet();
+            }
+        } else {
+            hitCount.incrementAndGet();
+        }
+        return retVal;
+    }
+
+    public void register(T key, K item) {
+        purgeClearedReferences();
+        currentTable.put(key, new CacheReference<>(key, item, clearedReferences));
+    }
+
+    /**
+     * Register the provided item unless a live item is already cached under the key.
+     *
+     * @return the item already cached under the key, or null if the provided item was
+     * registered
+     */
+    protected K registerIfAbsent(T key, K item) {
+        purgeClearedReferences();
+        CacheReference<T, K> newReference = new CacheReference<>(key, item, clearedReferences);
+        while (true) {
+            CacheReference<T, K> existing = currentTable.putIfAbsent(key, newReference);
+            if (existing == null) {
+                missCount.incrementAndGet();
                 return null;
             }
-            K retVal = (K)currentTable.get(key).get();
-            if (retVal == null) {
-                currentTable.remove(key);
+            K existingItem = existing.get();
+            if (existingItem != null) {
+                hitCount.incrementAndGet();
+                return existingItem;
+            }
+            if (currentTable.replace(key, existing, newReference)) {
+                missCount.incrementAndGet();
+                evictionCount.incrementAndGet();
+                return null;
             }
-            return retVal;
         }
     }
 
-    public void register(T key, K item) {
-        synchronized (this) {
-            currentTable.put(key, new WeakReference(item));
-            totalAdditions++;
+    /**
+     * Drop the entries for any cached items which have been freed by the garbage collector
+     */
+    private void purgeClearedReferences() {
+        Reference<? extends K> cleared;
+        while ((cleared = clearedReferences.poll()) != null) {
+            CacheReference<T, K> reference = (CacheReference<T, K>)cleared;
+            if (currentTable.remove(reference.key, reference)) {
+                evictionCount.incrementAndGet();
+            }
         }
     }
 
     public void clear(){
         currentTable.clear();
-        caches.removeAllElements();
+        while (clearedReferences.poll() != null) {
+            //drain references to the entries we just removed
+        }
+    }
+
+    /**
+     * @return The number of entries in the table, including entries for items which have been
+     * freed but not yet purged
+     */
+    public int size() {
+        purgeClearedReferences();
+        return currentTable.size();
+    }
+
+    /**
+     * @return The number of lookups which found a live cached item
+     */
+    public int getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return The number of lookups which didn't find a live cached item
+     */
+    public int getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * @return The number of entries which were dropped because their item was freed
+     */
+    public int getEvictionCount() {
+        return evictionCount.get();
     }
 }
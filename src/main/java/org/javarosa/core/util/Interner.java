@@ -19,32 +19,24 @@ public class Interner<K> extends CacheTable<Integer, K> {
      * as expected.
      */
     public K intern(K k) {
-        synchronized (this) {
-            int hash = k.hashCode();
-            K nk = retrieve(hash);
-            if (nk == null) {
-                register(hash, k);
-                return k;
-            }
+        K nk = registerIfAbsent(DataUtil.integer(k.hashCode()), k);
+        if (nk == null) {
+            return k;
+        }
 
-            if (k.equals(nk)) {
-                return nk;
-            } else {
-                //Collision. We should deal with this better for interning (and not manually caching) tables.
-                return k;
-            }
+        if (k.equals(nk)) {
+            return nk;
+        } else {
+            //Collision. We should deal with this better for interning (and not manually caching) tables.
+            return k;
         }
     }
 
     public K retrieve(int key) {
-        synchronized (this) {
-            return super.retrieve(DataUtil.integer(key));
-        }
+        return super.retrieve(DataUtil.integer(key));
     }
 
     public void register(int key, K item) {
-        synchronized (this) {
-            super.register(DataUtil.integer(key), item);
-        }
+        super.register(DataUtil.integer(key), item);
     }
 }
@@ -0,0 +1,443 @@
+package org.javarosa.core.util;
+
+import java.util.Arrays;
+
+/**
+ * A compressed, mutable bitmap of (non-negative) storage record ids, used as the posting list
+ * for a single indexed metadata value.
+ *
+ * Ids are partitioned into chunks of 65536 by their upper 16 bits. Each chunk is stored as a
+ * sorted array of the lower 16 bits while it is sparse, and as a plain 65536 bit bitmap once it
+ * holds more than 4096 ids, which is the point where the bitmap becomes the smaller of the two.
+ * Combining bitmaps works a chunk at a time, and dense chunks are combined a 64 bit word at a
+ * time.
+ */
+public final class RecordIdBitmap {
+
+    private static final int CHUNK_BITS = 16;
+    private static final int CHUNK_MASK = 0xFFFF;
+    private static final int BITMAP_WORDS = (1 << CHUNK_BITS) / 64;
+
+    /**
+     * Chunks which hold more ids than this are stored as bitmaps rather than sorted arrays
+     */
+    private static final int MAX_ARRAY_CHUNK = 4096;
+
+    // Chunk keys (the upper 16 bits of each id) in ascending order, along with each chunk's
+    // contents (either a sorted char[] or a long[] bitmap) and number of ids
+    private char[] keys;
+    private Object[] chunks;
+    private int[] cardinalities;
+    private int chunkCount;
+
+    public RecordIdBitmap() {
+        this(4);
+    }
+
+    private RecordIdBitmap(int capacity) {
+        keys = new char[capacity];
+        chunks = new Object[capacity];
+        cardinalities = new int[capacity];
+    }
+
+    public static RecordIdBitmap fromIds(RecordIdSet ids) {
+        RecordIdBitmap bitmap = new RecordIdBitmap();
+        for (int i = 0; i < ids.size(); ++i) {
+            bitmap.add(ids.get(i));
+        }
+        return bitmap;
+    }
+
+    public RecordIdBitmap copy() {
+        RecordIdBitmap copy = new RecordIdBitmap(Math.max(1, chunkCount));
+        for (int i = 0; i < chunkCount; ++i) {
+            copy.appendCopy(this, i);
+        }
+        return copy;
+    }
+
+    /**
+     * @return true if the id wasn't already present
+     */
+    public boolean add(int id) {
+        checkId(id);
+        char key = (char)(id >>> CHUNK_BITS);
+        char low = (char)(id & CHUNK_MASK);
+        int index = findChunk(key);
+        if (index < 0) {
+            index = -index - 1;
+            insertChunk(index, key, new char[]{low, 0, 0, 0}, 1);
+            return true;
+        }
+
+        Object chunk = chunks[index];
+        if (chunk instanceof long[]) {
+            long[] words = (long[])chunk;
+            long bit = 1L << low;
+            if ((words[low >>> 6] & bit) != 0) {
+                return false;
+            }
+            words[low >>> 6] |= bit;
+            cardinalities[index]++;
+            return true;
+        }
+
+        char[] values = (char[])chunk;
+        int cardinality = cardinalities[index];
+        int position = Arrays.binarySearch(values, 0, cardinality, low);
+        if (position >= 0) {
+            return false;
+        }
+        position = -position - 1;
+        if (cardinality == MAX_ARRAY_CHUNK) {
+            long[] words = toWords(values, cardinality);
+            words[low >>> 6] |= 1L << low;
+            chunks[index] = words;
+        } else {
+            if (cardinality == values.length) {
+                values = Arrays.copyOf(values, Math.min(MAX_ARRAY_CHUNK, cardinality * 2));
+                chunks[index] = values;
+            }
+            System.arraycopy(values, position, values, position + 1, cardinality - position);
+            values[position] = low;
+        }
+        cardinalities[index]++;
+        return true;
+    }
+
+    /**
+     * @return true if the id was present
+     */
+    public boolean remove(int id) {
+        if (id < 0) {
+            return false;
+        }
+        int index = findChunk((char)(id >>> CHUNK_BITS));
+        if (index < 0) {
+            return false;
+        }
+        char low = (char)(id & CHUNK_MASK);
+        Object chunk = chunks[index];
+        int cardinality = cardinalities[index];
+        if (chunk instanceof long[]) {
+            long[] words = (long[])chunk;
+            long bit = 1L << low;
+            if ((words[low >>> 6] & bit) == 0) {
+                return false;
+            }
+            words[low >>> 6] &= ~bit;
+            cardinality--;
+            if (cardinality <= MAX_ARRAY_CHUNK) {
+                chunks[index] = toValues(words, cardinality);
+            }
+        } else {
+            char[] values = (char[])chunk;
+            int position = Arrays.binarySearch(values, 0, cardinality, low);
+            if (position < 0) {
+                return false;
+            }
+            System.arraycopy(values, position + 1, values, position, cardinality - position - 1);
+            cardinality--;
+        }
+
+        if (cardinality == 0) {
+            removeChunk(index);
+        } else {
+            cardinalities[index] = cardinality;
+        }
+        return true;
+    }
+
+    public boolean contains(int id) {
+        if (id < 0) {
+            return false;
+        }
+        int index = findChunk((char)(id >>> CHUNK_BITS));
+        return index >= 0 && chunkContains(index, (char)(id & CHUNK_MASK));
+    }
+
+    public int cardinality() {
+        int cardinality = 0;
+        for (int i = 0; i < chunkCount; ++i) {
+            cardinality += cardinalities[i];
+        }
+        return cardinality;
+    }
+
+    public boolean isEmpty() {
+        return chunkCount == 0;
+    }
+
+    /**
+     * @return the ids which are present in both bitmaps
+     */
+    public static RecordIdBitmap and(RecordIdBitmap first, RecordIdBitmap second) {
+        RecordIdBitmap result = new RecordIdBitmap(Math.max(1, Math.min(first.chunkCount, second.chunkCount)));
+        int i = 0;
+        int j = 0;
+        while (i < first.chunkCount && j < second.chunkCount) {
+            if (first.keys[i] < second.keys[j]) {
+                i++;
+            } else if (first.keys[i] > second.keys[j]) {
+                j++;
+            } else {
+                if (first.chunks[i] instanceof char[]) {
+                    result.appendFiltered(first, i, second, j, true);
+                } else if (second.chunks[j] instanceof char[]) {
+                    result.appendFiltered(second, j, first, i, true);
+                } else {
+                    long[] words = ((long[])first.chunks[i]).clone();
+                    long[] other = (long[])second.chunks[j];
+                    for (int w = 0; w < BITMAP_WORDS; ++w) {
+                        words[w] &= other[w];
+                    }
+                    result.appendWords(first.keys[i], words);
+                }
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the ids which are present in either bitmap
+     */
+    public static RecordIdBitmap or(RecordIdBitmap first, RecordIdBitmap second) {
+        RecordIdBitmap result = new RecordIdBitmap(Math.max(1, first.chunkCount + second.chunkCount));
+        int i = 0;
+        int j = 0;
+        while (i < first.chunkCount || j < second.chunkCount) {
+            if (j == second.chunkCount || (i < first.chunkCount && first.keys[i] < second.keys[j])) {
+                result.appendCopy(first, i++);
+            } else if (i == first.chunkCount || first.keys[i] > second.keys[j]) {
+                result.appendCopy(second, j++);
+            } else {
+                Object left = first.chunks[i];
+                Object right = second.chunks[j];
+                if (left instanceof char[] && right instanceof char[] &&
+                        first.cardinalities[i] + second.cardinalities[j] <= MAX_ARRAY_CHUNK) {
+                    result.appendValues(first.keys[i], mergeValues((char[])left, first.cardinalities[i],
+                            (char[])right, second.cardinalities[j]));
+                } else {
+                    long[] words = first.wordsOf(i);
+                    long[] other = second.wordsOf(j);
+                    if (words == left) {
+                        words = words.clone();
+                    }
+                    for (int w = 0; w < BITMAP_WORDS; ++w) {
+                        words[w] |= other[w];
+                    }
+                    result.appendWords(first.keys[i], words);
+                }
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the ids which are present in the first bitmap but not in the second
+     */
+    public static RecordIdBitmap andNot(RecordIdBitmap first, RecordIdBitmap second) {
+        RecordIdBitmap result = new RecordIdBitmap(Math.max(1, first.chunkCount));
+        int j = 0;
+        for (int i = 0; i < first.chunkCount; ++i) {
+            while (j < second.chunkCount && second.keys[j] < first.keys[i]) {
+                j++;
+            }
+            if (j == second.chunkCount || second.keys[j] != first.keys[i]) {
+                result.appendCopy(first, i);
+            } else if (first.chunks[i] instanceof char[]) {
+                result.appendFiltered(first, i, second, j, false);
+            } else {
+                long[] words = ((long[])first.chunks[i]).clone();
+                long[] other = second.wordsOf(j);
+                for (int w = 0; w < BITMAP_WORDS; ++w) {
+                    words[w] &= ~other[w];
+                }
+                result.appendWords(first.keys[i], words);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the ids in this bitmap as a sorted id set
+     */
+    public RecordIdSet toRecordIdSet() {
+        int[] ids = new int[cardinality()];
+        int count = 0;
+        for (int i = 0; i < chunkCount; ++i) {
+            int high = keys[i] << CHUNK_BITS;
+            Object chunk = chunks[i];
+            if (chunk instanceof char[]) {
+                char[] values = (char[])chunk;
+                for (int v = 0; v < cardinalities[i]; ++v) {
+                    ids[count++] = high | values[v];
+                }
+            } else {
+                long[] words = (long[])chunk;
+                for (int w = 0; w < BITMAP_WORDS; ++w) {
+                    long word = words[w];
+                    while (word != 0) {
+                        ids[count++] = high | (w << 6) | Long.numberOfTrailingZeros(word);
+                        word &= word - 1;
+                    }
+                }
+            }
+        }
+        return RecordIdSet.fromSortedDistinctArray(ids, count);
+    }
+
+    @Override
+    public String toString() {
+        return toRecordIdSet().toString();
+    }
+
+    private static void checkId(int id) {
+        if (id < 0) {
+            throw new IllegalArgumentException("Record ids in a bitmap must be non-negative: " + id);
+        }
+    }
+
+    private int findChunk(char key) {
+        return Arrays.binarySearch(keys, 0, chunkCount, key);
+    }
+
+    private boolean chunkContains(int index, char low) {
+        Object chunk = chunks[index];
+        if (chunk instanceof long[]) {
+            return (((long[])chunk)[low >>> 6] & (1L << low)) != 0;
+        }
+        return Arrays.binarySearch((char[])chunk, 0, cardinalities[index], low) >= 0;
+    }
+
+    private long[] wordsOf(int index) {
+        Object chunk = chunks[index];
+        if (chunk instanceof long[]) {
+            return (long[])chunk;
+        }
+        return toWords((char[])chunk, cardinalities[index]);
+    }
+
+    private void insertChunk(int index, char key, Object chunk, int cardinality) {
+        if (chunkCount == keys.length) {
+            int capacity = Math.max(4, chunkCount * 2);
+            keys = Arrays.copyOf(keys, capacity);
+            chunks = Arrays.copyOf(chunks, capacity);
+            cardinalities = Arrays.copyOf(cardinalities, capacity);
+        }
+        System.arraycopy(keys, index, keys, index + 1, chunkCount - index);
+        System.arraycopy(chunks, index, chunks, index + 1, chunkCount - index);
+        System.arraycopy(cardinalities, index, cardinalities, index + 1, chunkCount - index);
+        keys[index] = key;
+        chunks[index] = chunk;
+        cardinalities[index] = cardinality;
+        chunkCount++;
+    }
+
+    private void removeChunk(int index) {
+        System.arraycopy(keys, index + 1, keys, index, chunkCount - index - 1);
+        System.arraycopy(chunks, index + 1, chunks, index, chunkCount - index - 1);
+        System.arraycopy(cardinalities, index + 1, cardinalities, index, chunkCount - index - 1);
+        chunkCount--;
+        chunks[chunkCount] = null;
+    }
+
+    private void appendChunk(char key, Object chunk, int cardinality) {
+        if (cardinality > 0) {
+            insertChunk(chunkCount, key, chunk, cardinality);
+        }
+    }
+
+    private void appendCopy(RecordIdBitmap source, int index) {
+        Object chunk = source.chunks[index];
+        Object copy = chunk instanceof long[] ? ((long[])chunk).clone() :
+                Arrays.copyOf((char[])chunk, source.cardinalities[index]);
+        appendChunk(source.keys[index], copy, source.cardinalities[index]);
+    }
+
+    private void appendValues(char key, char[] values) {
+        appendChunk(key, values, values.length);
+    }
+
+    /**
+     * Normalizes the provided bitmap chunk back to an array if it has become sparse
+     */
+    private void appendWords(char key, long[] words) {
+        int cardinality = 0;
+        for (long word : words) {
+            cardinality += Long.bitCount(word);
+        }
+        if (cardinality <= MAX_ARRAY_CHUNK) {
+            appendChunk(key, toValues(words, cardinality), cardinality);
+        } else {
+            appendChunk(key, words, cardinality);
+        }
+    }
+
+    /**
+     * Appends the values of an array chunk which are (or aren't) present in another chunk
+     */
+    private void appendFiltered(RecordIdBitmap arraySource, int arrayIndex,
+                                RecordIdBitmap filter, int filterIndex, boolean keepPresent) {
+        char[] values = (char[])arraySource.chunks[arrayIndex];
+        int cardinality = arraySource.cardinalities[arrayIndex];
+        char[] filtered = new char[cardinality];
+        int count = 0;
+        for (int v = 0; v < cardinality; ++v) {
+            if (filter.chunkContains(filterIndex, values[v]) == keepPresent) {
+                filtered[count++] = values[v];
+            }
+        }
+        appendChunk(arraySource.keys[arrayIndex], filtered, count);
+    }
+
+    private static char[] mergeValues(char[] first, int firstCount, char[] second, int secondCount) {
+        char[] merged = new char[firstCount + secondCount];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < firstCount && j < secondCount) {
+            if (first[i] < second[j]) {
+                merged[count++] = first[i++];
+            } else if (first[i] > second[j]) {
+                merged[count++] = second[j++];
+            } else {
+                merged[count++] = first[i];
+                i++;
+                j++;
+            }
+        }
+        while (i < firstCount) {
+            merged[count++] = first[i++];
+        }
+        while (j < secondCount) {
+            merged[count++] = second[j++];
+        }
+        return count == merged.length ? merged : Arrays.copyOf(merged, count);
+    }
+
+    private static long[] toWords(char[] values, int cardinality) {
+        long[] words = new long[BITMAP_WORDS];
+        for (int v = 0; v < cardinality; ++v) {
+            words[values[v] >>> 6] |= 1L << values[v];
+        }
+        return words;
+    }
+
+    private static char[] toValues(long[] words, int cardinality) {
+        char[] values = new char[Math.max(1, cardinality)];
+        int count = 0;
+        for (int w = 0; w < BITMAP_WORDS; ++w) {
+            long word = words[w];
+            while (word != 0) {
+                values[count++] = (char)((w << 6) | Long.numberOfTrailingZeros(word));
+                word &= word - 1;
+            }
+        }
+        return values;
+    }
+}
@@ -0,0 +1,259 @@
+package org.javarosa.core.util;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * An immutable set of storage record ids, kept as a sorted array of primitive ints.
+ *
+ * Query results over large storage sets can hold tens of thousands of record ids, and keeping
+ * them unboxed avoids allocating an Integer for each one every time a set is built, filtered or
+ * combined with another. Membership checks are binary searches, and intersections and unions
+ * are linear merges of the sorted arrays.
+ */
+public final class RecordIdSet {
+
+    public static final RecordIdSet EMPTY = new RecordIdSet(new int[0]);
+
+    /**
+     * When one set is this many times larger than the other, intersecting by searching the
+     * larger set for each member of the smaller one beats walking both sets
+     */
+    private static final int SEARCH_INTERSECTION_RATIO = 16;
+
+    private final int[] ids;
+
+    private RecordIdSet(int[] sortedDistinctIds) {
+        this.ids = sortedDistinctIds;
+    }
+
+    /**
+     * @param ids record ids in any order, possibly with duplicates. The array isn't retained.
+     */
+    public static RecordIdSet fromArray(int... ids) {
+        return fromArray(ids, ids.length);
+    }
+
+    /**
+     * @param ids    record ids in any order, possibly with duplicates. The array isn't retained.
+     * @param length the number of ids at the start of the array to include
+     */
+    public static RecordIdSet fromArray(int[] ids, int length) {
+        if (length == 0) {
+            return EMPTY;
+        }
+        int[] sorted = Arrays.copyOf(ids, length);
+        Arrays.sort(sorted);
+        int distinct = 1;
+        for (int i = 1; i < sorted.length; ++i) {
+            if (sorted[i] != sorted[distinct - 1]) {
+                sorted[distinct++] = sorted[i];
+            }
+        }
+        return new RecordIdSet(distinct == sorted.length ? sorted : Arrays.copyOf(sorted, distinct));
+    }
+
+    /**
+     * Builds a set from a collection of boxed ids. If the collection is a list view of a set,
+     * the set is returned directly without copying.
+     */
+    public static RecordIdSet fromCollection(Collection<Integer> ids) {
+        if (ids instanceof ListView) {
+            return ((ListView)ids).getSet();
+        }
+        int[] values = new int[ids.size()];
+        int count = 0;
+        for (Integer id : ids) {
+            values[count++] = id;
+        }
+        return fromArray(values, count);
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    public boolean isEmpty() {
+        return ids.length == 0;
+    }
+
+    /**
+     * @return the id at the provided position in ascending order
+     */
+    public int get(int index) {
+        return ids[index];
+    }
+
+    public boolean contains(int id) {
+        return Arrays.binarySearch(ids, id) >= 0;
+    }
+
+    /**
+     * @return a copy of the ids in this set, in ascending order
+     */
+    public int[] toArray() {
+        return ids.clone();
+    }
+
+    public RecordIdSet intersect(RecordIdSet other) {
+        if (other.size() < size()) {
+            return other.intersect(this);
+        }
+        if (isEmpty()) {
+            return EMPTY;
+        }
+
+        int[] result = new int[ids.length];
+        int count = 0;
+        if (other.ids.length / ids.length >= SEARCH_INTERSECTION_RATIO) {
+            int from = 0;
+            for (int id : ids) {
+                int position = Arrays.binarySearch(other.ids, from, other.ids.length, id);
+                if (position >= 0) {
+                    result[count++] = id;
+                    from = position + 1;
+                } else {
+                    from = -position - 1;
+                }
+                if (from == other.ids.length) {
+                    break;
+                }
+            }
+        } else {
+            int i = 0;
+            int j = 0;
+            while (i < ids.length && j < other.ids.length) {
+                if (ids[i] < other.ids[j]) {
+                    i++;
+                } else if (ids[i] > other.ids[j]) {
+                    j++;
+                } else {
+                    result[count++] = ids[i];
+                    i++;
+                    j++;
+                }
+            }
+        }
+        return fromSortedDistinctArray(result, count);
+    }
+
+    public RecordIdSet union(RecordIdSet other) {
+        if (other.isEmpty()) {
+            return this;
+        } else if (isEmpty()) {
+            return other;
+        }
+
+        int[] result = new int[ids.length + other.ids.length];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < ids.length && j < other.ids.length) {
+            if (ids[i] < other.ids[j]) {
+                result[count++] = ids[i++];
+            } else if (ids[i] > other.ids[j]) {
+                result[count++] = other.ids[j++];
+            } else {
+                result[count++] = ids[i];
+                i++;
+                j++;
+            }
+        }
+        while (i < ids.length) {
+            result[count++] = ids[i++];
+        }
+        while (j < other.ids.length) {
+            result[count++] = other.ids[j++];
+        }
+        return fromSortedDistinctArray(result, count);
+    }
+
+    /**
+     * Wraps ids which are already sorted and distinct. The array is retained.
+     */
+    static RecordIdSet fromSortedDistinctArray(int[] sortedDistinctIds, int count) {
+        if (count == 0) {
+            return EMPTY;
+        }
+        return new RecordIdSet(count == sortedDistinctIds.length ?
+                sortedDistinctIds : Arrays.copyOf(sortedDistinctIds, count));
+    }
+
+    /**
+     * @return a read-only list view of this set, for APIs which deal in boxed ids. Ids are only
+     * boxed as they are read from the view.
+     */
+    public List<Integer> asList() {
+        return new ListView(this);
+    }
+
+    /**
+     * @return the ids in this set as a new LinkedHashSet, in ascending order
+     */
+    public LinkedHashSet<Integer> toLinkedHashSet() {
+        LinkedHashSet<Integer> set = new LinkedHashSet<>(Math.max(16, (int)(ids.length / .75f) + 1));
+        for (int id : ids) {
+            set.add(DataUtil.integer(id));
+        }
+        return set;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof RecordIdSet && Arrays.equals(ids, ((RecordIdSet)o).ids);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(ids);
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(ids);
+    }
+
+    private static final class ListView extends AbstractList<Integer> {
+        private final RecordIdSet set;
+
+        ListView(RecordIdSet set) {
+            this.set = set;
+        }
+
+        RecordIdSet getSet() {
+            return set;
+        }
+
+        @Override
+        public Integer get(int index) {
+            return DataUtil.integer(set.get(index));
+        }
+
+        @Override
+        public int size() {
+            return set.size();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return o instanceof Integer && set.contains((Integer)o);
+        }
+
+        @Override
+        public int indexOf(Object o) {
+            if (!(o instanceof Integer)) {
+                return -1;
+            }
+            int position = Arrays.binarySearch(set.ids, (Integer)o);
+            return position < 0 ? -1 : position;
+        }
+
+        @Override
+        public int lastIndexOf(Object o) {
+            return indexOf(o);
+        }
+    }
+}
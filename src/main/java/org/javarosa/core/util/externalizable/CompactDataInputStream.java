@@ -0,0 +1,127 @@
+package org.javarosa.core.util.externalizable;
+
+import org.javarosa.core.io.ByteBufferInputStream;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the compact serialization format written by CompactDataOutputStream, which objects'
+ * readExternal methods consume without any changes of their own.
+ *
+ * The string and class tables at the start of the stream are read up front, so the strings are
+ * only decoded once no matter how often they are referenced.
+ *
+ * Streams can be read straight out of a buffer, such as a memory mapped file, without copying it.
+ */
+public class CompactDataInputStream extends DataInputStream {
+
+    private final ByteBufferInputStream body;
+    private final String[] strings;
+    private final byte[][] classHashes;
+    private final Class[] classes;
+
+    public CompactDataInputStream(byte[] data) throws IOException {
+        this(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * @param data A buffer holding the stream from its position onwards, which the stream will
+     *             advance as it reads
+     */
+    public CompactDataInputStream(ByteBuffer data) throws IOException {
+        this(new ByteBufferInputStream(data));
+    }
+
+    private CompactDataInputStream(ByteBufferInputStream body) throws IOException {
+        super(body);
+        this.body = body;
+
+        byte[] magic = new byte[CompactDataOutputStream.MAGIC.length];
+        readFully(magic);
+        if (!PrototypeFactory.compareHash(magic, CompactDataOutputStream.MAGIC)) {
+            throw new IOException("Not a compact serialization stream");
+        }
+        int version = readCount();
+        if (version > CompactDataOutputStream.FORMAT_VERSION) {
+            throw new IOException("Unsupported compact serialization version " + version);
+        }
+
+        strings = new String[readCount()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = ExtUtil.intern(readUTF());
+        }
+
+        classHashes = new byte[readCount()][];
+        classes = new Class[classHashes.length];
+        int hashSize = classHashes.length == 0 ? 0 : readCount();
+        for (int i = 0; i < classHashes.length; i++) {
+            classHashes[i] = new byte[hashSize];
+            readFully(classHashes[i]);
+        }
+    }
+
+    private int readCount() throws IOException {
+        long count = ExtWrapIntEncodingUniform.readValue(this);
+        if (count < 0 || count > Integer.MAX_VALUE) {
+            throw new IOException("Corrupt compact serialization stream");
+        }
+        return (int)count;
+    }
+
+    String readStringReference() throws IOException {
+        int index = readCount();
+        if (index >= strings.length) {
+            throw new IOException("Reference to missing string " + index);
+        }
+        return strings[index];
+    }
+
+    /**
+     * @return The index of the class referenced next in the stream, or -1 if the reference is to
+     * a wrapper type
+     */
+    int readClassReference() throws IOException {
+        int reference = readCount();
+        if (reference > classHashes.length) {
+            throw new IOException("Reference to missing class " + reference);
+        }
+        return reference - 1;
+    }
+
+    Class getReferencedClass(int index, PrototypeFactory pf) throws DeserializationException {
+        Class type = classes[index];
+        if (type == null) {
+            type = pf.getClass(classHashes[index]);
+            if (type == null) {
+                throw new DeserializationException("No datatype registered to serialization code " +
+                        ExtUtil.printBytes(classHashes[index]));
+            }
+            classes[index] = type;
+        }
+        return type;
+    }
+
+    /**
+     * Start reading a length-prefixed section of the stream
+     *
+     * @return A marker to hand back to endFrame once the known part of the section is read
+     */
+    int beginFrame() throws IOException {
+        int length = readCount();
+        return body.getPosition() + length;
+    }
+
+    /**
+     * Skip whatever remains of a section, which was written by a newer version of the class
+     * that was read from it.
+     */
+    void endFrame(int end) throws IOException {
+        int remaining = end - body.getPosition();
+        if (remaining < 0) {
+            throw new IOException("Read past the end of a serialized value");
+        }
+        skipBytes(remaining);
+    }
+}
@@ -0,0 +1,138 @@
+package org.javarosa.core.util.externalizable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Writes the compact serialization format, an opt-in alternative to the default encoding which
+ * objects' writeExternal methods produce without any changes of their own.
+ *
+ * Instead of repeating them wherever they appear, strings written through ExtUtil and the class
+ * tags written for polymorphic values are collected into tables at the start of the stream and
+ * referenced by their position in them. Every tagged Externalizable value is prefixed by its
+ * length, so that readers which don't know about fields appended to a class's serialized form
+ * by a newer version can skip over them.
+ *
+ * Since the tables can only be written once everything else is known, the stream is buffered
+ * in memory and only reaches the underlying stream when finish() is called.
+ *
+ * Streams in this format are read with CompactDataInputStream.
+ */
+public class CompactDataOutputStream extends DataOutputStream {
+
+    /**
+     * Bumped whenever the layout of the stream changes in ways older readers can't handle
+     */
+    public static final int FORMAT_VERSION = 1;
+
+    static final byte[] MAGIC = {(byte)0xC3, (byte)0x5E};
+
+    private final OutputStream target;
+    private final Body body;
+
+    private final HashMap<String, Integer> stringIndices = new HashMap<>();
+    private final ArrayList<String> strings = new ArrayList<>();
+    private final HashMap<Class, Integer> classIndices = new HashMap<>();
+    private final ArrayList<Class> classes = new ArrayList<>();
+
+    public CompactDataOutputStream(OutputStream target) {
+        this(target, new Body());
+    }
+
+    private CompactDataOutputStream(OutputStream target, Body body) {
+        super(body);
+        this.target = target;
+        this.body = body;
+    }
+
+    void writeStringReference(String s) throws IOException {
+        Integer index = stringIndices.get(s);
+        if (index == null) {
+            index = strings.size();
+            strings.add(s);
+            stringIndices.put(s, index);
+        }
+        ExtWrapIntEncodingUniform.writeValue(this, index);
+    }
+
+    /**
+     * Mark the tagged value which follows as a wrapper type, which is what the class reference
+     * zero is reserved for
+     */
+    void writeWrapperReference() throws IOException {
+        ExtWrapIntEncodingUniform.writeValue(this, 0);
+    }
+
+    void writeClassReference(Class type) throws IOException {
+        Integer index = classIndices.get(type);
+        if (index == null) {
+            index = classes.size();
+            classes.add(type);
+            classIndices.put(type, index);
+        }
+        ExtWrapIntEncodingUniform.writeValue(this, index + 1);
+    }
+
+    /**
+     * Start a length-prefixed section of the stream
+     *
+     * @return A marker to hand back to endFrame once the section is written
+     */
+    int beginFrame() {
+        return body.size();
+    }
+
+    void endFrame(int start) {
+        body.insertLength(start);
+    }
+
+    /**
+     * Write the string and class tables, followed by everything written so far, to the
+     * underlying stream.
+     */
+    public void finish() throws IOException {
+        DataOutputStream out = new DataOutputStream(target);
+        out.write(MAGIC);
+        ExtWrapIntEncodingUniform.writeValue(out, FORMAT_VERSION);
+
+        ExtWrapIntEncodingUniform.writeValue(out, strings.size());
+        for (String s : strings) {
+            ExtUtil.writeString(out, s);
+        }
+
+        ExtWrapIntEncodingUniform.writeValue(out, classes.size());
+        if (!classes.isEmpty()) {
+            int hashSize = PrototypeFactory.getClassHashSize();
+            ExtWrapIntEncodingUniform.writeValue(out, hashSize);
+            for (Class type : classes) {
+                out.write(PrototypeFactory.getClassHash(type), 0, hashSize);
+            }
+        }
+
+        body.writeTo(out);
+        out.flush();
+    }
+
+    /**
+     * A growable buffer which can prefix sections already written to it with their length
+     */
+    private static class Body extends ByteArrayOutputStream {
+        Body() {
+            super(1024);
+        }
+
+        void insertLength(int start) {
+            int length = count - start;
+            int prefixLength = ExtWrapIntEncodingUniform.getEncodedLength(length);
+
+            // Grow the buffer by the size of the prefix, then shift the section over to make room
+            write(buf, 0, prefixLength);
+            System.arraycopy(buf, start, buf, start + prefixLength, length);
+            ExtWrapIntEncodingUniform.encode(length, prefixLength, buf, start);
+        }
+    }
+}
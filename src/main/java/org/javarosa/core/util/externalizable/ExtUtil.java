@@ -10,6 +10,7 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.Hashtable;
@@ -29,6 +30,24 @@ public class ExtUtil {
         return baos.toByteArray();
     }
 
+    /**
+     * Serialize the provided object in the compact format, which can only be read back with
+     * deserializeCompact.
+     */
+    public static byte[] serializeCompact(Object o) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try {
+            CompactDataOutputStream out = new CompactDataOutputStream(baos);
+            int frame = out.beginFrame();
+            write(out, o);
+            out.endFrame(frame);
+            out.finish();
+        } catch (IOException ioe) {
+            throw new RuntimeException("IOException writing to ByteArrayOutputStream; shouldn't happen!");
+        }
+        return baos.toByteArray();
+    }
+
     public static int getSize(Object o) {
         return serialize(o).length;
     }
@@ -68,7 +87,7 @@ public class ExtUtil {
     }
 
     public static void writeNumeric(DataOutputStream out, long val) throws IOException {
-        writeNumeric(out, val, new ExtWrapIntEncodingUniform());
+        ExtWrapIntEncodingUniform.writeValue(out, val);
     }
 
     public static void writeNumeric(DataOutputStream out, long val, ExtWrapIntEncoding encoding) throws IOException {
@@ -88,6 +107,10 @@ public class ExtUtil {
     }
 
     public static void writeString(DataOutputStream out, String val) throws IOException {
+        if (out instanceof CompactDataOutputStream) {
+            ((CompactDataOutputStream)out).writeStringReference(val);
+            return;
+        }
         try {
             out.writeUTF(val);
         } catch (UTFDataFormatException e) {
@@ -146,7 +169,7 @@ public class ExtUtil {
     }
 
     public static long readNumeric(DataInputStream in) throws IOException {
-        return readNumeric(in, new ExtWrapIntEncodingUniform());
+        return ExtWrapIntEncodingUniform.readValue(in);
     }
 
     public static long readNumeric(DataInputStream in, ExtWrapIntEncoding encoding) throws IOException {
@@ -186,7 +209,13 @@ public class ExtUtil {
     }
 
     public static String readString(DataInputStream in) throws IOException {
-        String s = in.readUTF();
+        if (in instanceof CompactDataInputStream) {
+            return ((CompactDataInputStream)in).readStringReference();
+        }
+        return intern(in.readUTF());
+    }
+
+    static String intern(String s) {
         return (interning && stringCache != null) ? stringCache.intern(s) : s;
     }
 
@@ -388,6 +417,28 @@ public class ExtUtil {
     }
     ////
 
+    /**
+     * Read an object written by serializeCompact
+     */
+    public static Object deserializeCompact(byte[] data, Class type, PrototypeFactory pf) throws IOException, DeserializationException {
+        return readCompact(new CompactDataInputStream(data), type, pf);
+    }
+
+    /**
+     * Read an object written by serializeCompact out of the provided buffer, starting at its
+     * position
+     */
+    public static Object deserializeCompact(ByteBuffer data, Class type, PrototypeFactory pf) throws IOException, DeserializationException {
+        return readCompact(new CompactDataInputStream(data), type, pf);
+    }
+
+    private static Object readCompact(CompactDataInputStream in, Class type, PrototypeFactory pf) throws IOException, DeserializationException {
+        int frame = in.beginFrame();
+        Object o = read(in, type, pf);
+        in.endFrame(frame);
+        return o;
+    }
+
     @SuppressWarnings("unused")
     public static void attachCacheTable(Interner<String> stringCache) {
         ExtUtil.stringCache = stringCache;
@@ -25,6 +25,15 @@ public class ExtWrapIntEncodingUniform extends ExtWrapIntEncoding {
 
     @Override
     public void readExternal(DataInputStream in, PrototypeFactory pf) throws IOException {
+        val = readValue(in);
+    }
+
+    @Override
+    public void writeExternal(DataOutputStream out) throws IOException {
+        writeValue(out, (Long)val);
+    }
+
+    static long readValue(DataInputStream in) throws IOException {
         long l = 0;
         byte b;
         boolean firstByte = true;
@@ -40,7 +49,7 @@ public class ExtWrapIntEncodingUniform extends ExtWrapIntEncoding {
             l = (l << 7) | (b & 0x7f);
         } while (((b >> 7) & 0x01) == 1);
 
-        val = l;
+        return l;
     }
 
     /**
@@ -49,10 +58,17 @@ public class ExtWrapIntEncodingUniform extends ExtWrapIntEncoding {
      * chunk is serialized as a single byte, where the most-significant bit is set to 1 to indicate
      * there are more bytes to follow, or 0 to indicate the last byte
      */
-    @Override
-    public void writeExternal(DataOutputStream out) throws IOException {
-        long l = ((Long)val);
+    static void writeValue(DataOutputStream out, long l) throws IOException {
+        for (int i = getEncodedLength(l) - 1; i >= 0; i--) {
+            byte chunk = (byte)((l >> (i * 7)) & 0x7f);
+            out.writeByte((i > 0 ? 0x80 : 0x00) | chunk);
+        }
+    }
 
+    /**
+     * @return The number of bytes the provided value is serialized as
+     */
+    static int getEncodedLength(long l) {
         int sig = -1;
         long k;
         do {
@@ -60,10 +76,18 @@ public class ExtWrapIntEncodingUniform extends ExtWrapIntEncoding {
             k = l >> (sig * 7);
         }
         while (k < (-1 << 6) || k > (1 << 6) - 1); //[-64,63] -- the range we can fit into one byte
+        return sig + 1;
+    }
 
-        for (int i = sig; i >= 0; i--) {
+    /**
+     * Serialize a numeric value into the provided array
+     *
+     * @param length The value's encoded length, as given by getEncodedLength
+     */
+    static void encode(long l, int length, byte[] dest, int offset) {
+        for (int i = length - 1; i >= 0; i--) {
             byte chunk = (byte)((l >> (i * 7)) & 0x7f);
-            out.writeByte((i > 0 ? 0x80 : 0x00) | chunk);
+            dest[offset++] = (byte)((i > 0 ? 0x80 : 0x00) | chunk);
         }
     }
 
@@ -9,6 +9,7 @@ import java.util.Hashtable;
 public class ExtWrapTagged extends ExternalizableWrapper {
 
     private static final Hashtable<Class, Integer> WRAPPER_CODES;
+    private static final Hashtable<Integer, Class> WRAPPER_TYPES;
 
     static {
         WRAPPER_CODES = new Hashtable<>();
@@ -19,6 +20,12 @@ public class ExtWrapTagged extends ExternalizableWrapper {
         WRAPPER_CODES.put(ExtWrapMapPoly.class, 0x23);
         WRAPPER_CODES.put(ExtWrapIntEncodingUniform.class, 0x40);
         WRAPPER_CODES.put(ExtWrapIntEncodingSmall.class, 0x41);
+
+        WRAPPER_TYPES = new Hashtable<>();
+        for (Enumeration<Class> e = WRAPPER_CODES.keys(); e.hasMoreElements(); ) {
+            Class t = e.nextElement();
+            WRAPPER_TYPES.put(WRAPPER_CODES.get(t), t);
+        }
     }
 
     /* serialization */
@@ -47,40 +54,59 @@ public class ExtWrapTagged extends ExternalizableWrapper {
     @Override
     public void readExternal(DataInputStream in, PrototypeFactory pf) throws IOException, DeserializationException {
         ExternalizableWrapper type = readTag(in, pf);
-        val = ExtUtil.read(in, type, pf);
+        if (in instanceof CompactDataInputStream && isFramed(type)) {
+            CompactDataInputStream compactIn = (CompactDataInputStream)in;
+            int frame = compactIn.beginFrame();
+            val = ExtUtil.read(in, type, pf);
+            compactIn.endFrame(frame);
+        } else {
+            val = ExtUtil.read(in, type, pf);
+        }
     }
 
     @Override
     public void writeExternal(DataOutputStream out) throws IOException {
         writeTag(out, val);
-        ExtUtil.write(out, val);
+        if (out instanceof CompactDataOutputStream && isFramed(val)) {
+            CompactDataOutputStream compactOut = (CompactDataOutputStream)out;
+            int frame = compactOut.beginFrame();
+            ExtUtil.write(out, val);
+            compactOut.endFrame(frame);
+        } else {
+            ExtUtil.write(out, val);
+        }
+    }
+
+    /**
+     * Whether the provided value (or the type read for it) is an object with its own
+     * serialization, which the compact format allows newer versions to append fields to.
+     */
+    private static boolean isFramed(Object o) {
+        if (o instanceof ExtWrapBase) {
+            ExtWrapBase base = (ExtWrapBase)o;
+            if (base.val == null) {
+                return Externalizable.class.isAssignableFrom(base.type);
+            }
+            o = base.val;
+        }
+        return o instanceof Externalizable && !(o instanceof ExternalizableWrapper);
     }
 
     public static ExternalizableWrapper readTag(DataInputStream in, PrototypeFactory pf) throws IOException, DeserializationException {
+        if (in instanceof CompactDataInputStream) {
+            CompactDataInputStream compactIn = (CompactDataInputStream)in;
+            int classIndex = compactIn.readClassReference();
+            if (classIndex < 0) {
+                return readWrapperTag(in, pf);
+            }
+            return new ExtWrapBase(compactIn.getReferencedClass(classIndex, pf));
+        }
+
         byte[] tag = new byte[PrototypeFactory.getClassHashSize()];
-        in.read(tag, 0, tag.length);
+        in.readFully(tag, 0, tag.length);
 
         if (PrototypeFactory.compareHash(tag, PrototypeFactory.getWrapperTag())) {
-            int wrapperCode = ExtUtil.readInt(in);
-
-            //find wrapper indicated by code
-            ExternalizableWrapper type = null;
-            for (Enumeration e = WRAPPER_CODES.keys(); e.hasMoreElements(); ) {
-                Class t = (Class)e.nextElement();
-                if ((WRAPPER_CODES.get(t)).intValue() == wrapperCode) {
-                    try {
-                        type = (ExternalizableWrapper)PrototypeFactory.getInstance(t);
-                    } catch (CannotCreateObjectException ccoe) {
-                        throw new CannotCreateObjectException("Serious problem: cannot create built-in ExternalizableWrapper [" + t.getName() + "]");
-                    }
-                }
-            }
-            if (type == null) {
-                throw new DeserializationException("Unrecognized ExternalizableWrapper type [" + wrapperCode + "]");
-            }
-
-            type.metaReadExternal(in, pf);
-            return type;
+            return readWrapperTag(in, pf);
         } else {
             Class type = pf.getClass(tag);
             if (type == null) {
@@ -91,9 +117,32 @@ public class ExtWrapTagged extends ExternalizableWrapper {
         }
     }
 
+    private static ExternalizableWrapper readWrapperTag(DataInputStream in, PrototypeFactory pf) throws IOException, DeserializationException {
+        int wrapperCode = ExtUtil.readInt(in);
+
+        //find wrapper indicated by code
+        Class t = WRAPPER_TYPES.get(wrapperCode);
+        if (t == null) {
+            throw new DeserializationException("Unrecognized ExternalizableWrapper type [" + wrapperCode + "]");
+        }
+        ExternalizableWrapper type;
+        try {
+            type = (ExternalizableWrapper)PrototypeFactory.getInstance(t);
+        } catch (CannotCreateObjectException ccoe) {
+            throw new CannotCreateObjectException("Serious problem: cannot create built-in ExternalizableWrapper [" + t.getName() + "]");
+        }
+
+        type.metaReadExternal(in, pf);
+        return type;
+    }
+
     public static void writeTag(DataOutputStream out, Object o) throws IOException {
         if (o instanceof ExternalizableWrapper && !(o instanceof ExtWrapBase)) {
-            out.write(PrototypeFactory.getWrapperTag(), 0, PrototypeFactory.getClassHashSize());
+            if (out instanceof CompactDataOutputStream) {
+                ((CompactDataOutputStream)out).writeWrapperReference();
+            } else {
+                out.write(PrototypeFactory.getWrapperTag(), 0, PrototypeFactory.getClassHashSize());
+            }
             ExtUtil.writeNumeric(out, WRAPPER_CODES.get(o.getClass()));
             ((ExternalizableWrapper)o).metaWriteExternal(out);
         } else {
@@ -111,8 +160,12 @@ public class ExtWrapTagged extends ExternalizableWrapper {
                 type = o.getClass();
             }
 
-            byte[] tag = PrototypeFactory.getClassHash(type); //cache this?
-            out.write(tag, 0, tag.length);
+            if (out instanceof CompactDataOutputStream) {
+                ((CompactDataOutputStream)out).writeClassReference(type);
+            } else {
+                byte[] tag = PrototypeFactory.getClassHash(type);
+                out.write(tag, 0, tag.length);
+            }
         }
     }
 
@@ -0,0 +1,18 @@
+package org.javarosa.core.util.externalizable;
+
+import java.io.IOException;
+
+/**
+ * An object which, when it is read from a complete serialized record rather than from a stream,
+ * can hold on to the record and defer decoding parts of it until they are first used.
+ *
+ * The record must be the exact bytes written by writeExternal, and must not be modified after
+ * it is handed over.
+ */
+public interface LazyExternalizable extends Externalizable {
+
+    /**
+     * Read the object from the provided record, which it may keep a reference to.
+     */
+    void readExternalLazily(byte[] record, PrototypeFactory pf) throws IOException, DeserializationException;
+}
@@ -3,21 +3,38 @@ package org.javarosa.core.util.externalizable;
 import org.javarosa.core.api.ClassNameHasher;
 import org.javarosa.core.model.data.UncastData;
 
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Vector;
+import java.util.Hashtable;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * ProtoType factory for serializing and deserializing persisted classes using
  * their hash codes. To use a non-default hasher, use one of the overriding constructors
  * or call setStaticHasher().
+ *
+ * Classes are looked up by a table keyed on their hash, and the empty constructor of each class
+ * is only looked up once, since both happen for every polymorphic value deserialized.
  */
 public class PrototypeFactory {
 
     private static Hasher mStaticHasher;
 
-    private Vector<Class> classes;
-    private Vector<byte[]> hashes;
+    /**
+     * Hashes computed by the current static hasher, which are reset along with it
+     */
+    private static Hashtable<Class, byte[]> classHashes = new Hashtable<>();
+    private static byte[] wrapperTag;
+
+    private static final ConcurrentHashMap<Class, Constructor> constructors =
+            new ConcurrentHashMap<>();
+
+    private HashMap<ClassHash, Class> classes;
 
     //lazy evaluation
     private HashSet<String> classNames;
@@ -54,8 +71,7 @@ public class PrototypeFactory {
     protected void lazyInit() {
         initialized = true;
 
-        classes = new Vector<>();
-        hashes = new Vector<>();
+        classes = new HashMap<>();
 
         addDefaultClasses();
         addMigratedClasses();
@@ -123,13 +139,7 @@ public class PrototypeFactory {
             lazyInit();
         }
 
-        for (int i = 0; i < classes.size(); i++) {
-            if (compareHash(hash, hashes.elementAt(i))) {
-                return classes.elementAt(i);
-            }
-        }
-
-        return null;
+        return classes.get(new ClassHash(hash));
     }
 
     public Object getInstance(byte[] hash) {
@@ -138,16 +148,51 @@ public class PrototypeFactory {
 
     public static Object getInstance(Class c) {
         try {
-            return c.newInstance();
+            return getEmptyConstructor(c).newInstance();
         } catch (IllegalAccessException iae) {
             throw new CannotCreateObjectException(c.getName() + ": not accessible or no empty constructor");
         } catch (InstantiationException e) {
             throw new CannotCreateObjectException(c.getName() + ": not instantiable");
+        } catch (InvocationTargetException e) {
+            // Surface failures inside the constructor the same way Class.newInstance() did
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            } else if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new CannotCreateObjectException(c.getName() + ": " + cause.getMessage());
         }
     }
 
+    private static Constructor getEmptyConstructor(Class c) {
+        Constructor constructor = constructors.get(c);
+        if (constructor == null) {
+            if (c.isInterface() || Modifier.isAbstract(c.getModifiers())) {
+                throw new CannotCreateObjectException(c.getName() + ": not instantiable");
+            }
+            try {
+                constructor = c.getDeclaredConstructor();
+            } catch (NoSuchMethodException e) {
+                throw new CannotCreateObjectException(c.getName() + ": not accessible or no empty constructor");
+            }
+            constructors.put(c, constructor);
+        }
+        return constructor;
+    }
+
+    /**
+     * @return The hash of the provided class. The returned array is shared, so it must not be
+     * modified.
+     */
     static byte[] getClassHash(Class type) {
-        return mStaticHasher.getClassHashValue(type);
+        Hashtable<Class, byte[]> hashes = classHashes;
+        byte[] hash = hashes.get(type);
+        if (hash == null) {
+            hash = mStaticHasher.getClassHashValue(type);
+            hashes.put(type, hash);
+        }
+        return hash;
     }
 
     static boolean compareHash(byte[] a, byte[] b) {
@@ -166,6 +211,8 @@ public class PrototypeFactory {
 
     public static void setStaticHasher(Hasher staticHasher) {
         mStaticHasher = staticHasher;
+        classHashes = new Hashtable<>();
+        wrapperTag = null;
     }
 
     static int getClassHashSize(){
@@ -173,15 +220,45 @@ public class PrototypeFactory {
     }
 
     protected void storeHash(Class c, byte[] hash){
-        classes.addElement(c);
-        hashes.addElement(hash);
+        classes.put(new ClassHash(hash), c);
     }
 
+    /**
+     * @return The tag marking a wrapper type. The returned array is shared, so it must not be
+     * modified.
+     */
     static byte[] getWrapperTag(){
-        byte[] bytes = new byte[getClassHashSize()];
-        for(int i=0; i< bytes.length; i++){
-            bytes[i] = (byte)0xff;
+        byte[] tag = wrapperTag;
+        if (tag == null || tag.length != getClassHashSize()) {
+            tag = new byte[getClassHashSize()];
+            for (int i = 0; i < tag.length; i++) {
+                tag[i] = (byte)0xff;
+            }
+            wrapperTag = tag;
+        }
+        return tag;
+    }
+
+    /**
+     * Compares class hashes by their contents so they can key a table
+     */
+    private static final class ClassHash {
+        private final byte[] hash;
+        private final int hashCode;
+
+        ClassHash(byte[] hash) {
+            this.hash = hash;
+            this.hashCode = Arrays.hashCode(hash);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof ClassHash && Arrays.equals(hash, ((ClassHash)o).hash);
         }
-        return bytes;
     }
 }
@@ -30,7 +30,7 @@ public class XPathConditional implements IConditionExpr {
 
     public XPathConditional(String xpath) throws XPathSyntaxException {
         hasNow = xpath.contains("now()");
-        this.expr = XPathParseTool.parseXPath(xpath);
+        this.expr = XPathParseTool.parseCompiledXPath(xpath);
         this.xpath = xpath;
     }
 
@@ -1,5 +1,6 @@
 package org.javarosa.xpath;
 
+import org.commcare.cases.query.AggregatePushdown;
 import org.javarosa.core.model.condition.EvaluationContext;
 import org.javarosa.core.model.instance.DataInstance;
 import org.javarosa.core.model.instance.TreeReference;
@@ -110,6 +111,33 @@ public class XPathLazyNodeset extends XPathNodeset {
         }
     }
 
+    /**
+     * @return The number of nodes in this nodeset, if it has been expanded or storage can count
+     * them without expanding it, or -1
+     */
+    public int trySizeWithoutExpanding() {
+        synchronized (evaluated) {
+            if (evaluated) {
+                return super.size();
+            }
+        }
+        return AggregatePushdown.count(unExpandedRef, instance, ec);
+    }
+
+    /**
+     * @return The values of the nodes in this nodeset, in document order if it has been
+     * expanded and in no particular order if storage read them without expanding it, or null
+     * if neither is possible
+     */
+    public Object[] tryValuesWithoutExpanding() {
+        synchronized (evaluated) {
+            if (evaluated) {
+                return super.toArgList();
+            }
+        }
+        return AggregatePushdown.values(unExpandedRef, instance, ec);
+    }
+
     @Override
     public Object[] toArgList() {
         performEvaluation();
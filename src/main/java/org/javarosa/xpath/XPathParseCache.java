@@ -0,0 +1,112 @@
+package org.javarosa.xpath;
+
+import org.commcare.cases.util.LruCache;
+import org.javarosa.xpath.expr.ExpressionCompiler;
+import org.javarosa.xpath.expr.XPathExpression;
+import org.javarosa.xpath.parser.XPathSyntaxException;
+
+/**
+ * A bounded cache of parsed expressions keyed by their text, which lets every caller parsing
+ * the same expression share one tree.
+ *
+ * Shared trees must not be modified by their users. Anything an expression needs to remember
+ * between evaluations is either safe to compute more than once or tied to the instance it was
+ * computed against, so trees can be evaluated by several sessions at once.
+ *
+ * Lookups are thread-safe. Expressions are parsed outside of the cache's lock, so two threads
+ * missing on the same expression may both parse it, with the later tree replacing the earlier.
+ */
+public class XPathParseCache {
+
+    /**
+     * The default bound on the number of expressions held (for each of raw and compiled trees)
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 2048;
+
+    /**
+     * Receives every lookup made against a cache, for collecting metrics
+     */
+    public interface ParseCacheListener {
+        void onHit(String xpath);
+
+        /**
+         * @param parseTimeNanos How long parsing (and compiling) the expression took
+         */
+        void onMiss(String xpath, long parseTimeNanos);
+    }
+
+    private final LruCache<String, XPathExpression> trees;
+    private final LruCache<String, XPathExpression> compiledTrees;
+    private ParseCacheListener listener;
+
+    public XPathParseCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    public XPathParseCache(int maxEntries) {
+        trees = new LruCache<>(maxEntries);
+        compiledTrees = new LruCache<>(maxEntries);
+    }
+
+    public void setListener(ParseCacheListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @return The shared tree for the provided expression
+     */
+    public XPathExpression parse(String xpath) throws XPathSyntaxException {
+        return lookup(xpath, trees, false);
+    }
+
+    /**
+     * @return The shared tree for the provided expression after its constants were folded
+     */
+    public XPathExpression parseCompiled(String xpath) throws XPathSyntaxException {
+        return lookup(xpath, compiledTrees, true);
+    }
+
+    private XPathExpression lookup(String xpath, LruCache<String, XPathExpression> cache,
+                                   boolean compile) throws XPathSyntaxException {
+        ParseCacheListener currentListener = listener;
+        XPathExpression expr = cache.get(xpath);
+        if (expr != null) {
+            if (currentListener != null) {
+                currentListener.onHit(xpath);
+            }
+            return expr;
+        }
+
+        long start = System.nanoTime();
+        expr = XPathParseTool.parseUnsharedXPath(xpath);
+        if (compile) {
+            expr = ExpressionCompiler.compile(expr, null);
+        }
+        cache.put(xpath, expr);
+        if (currentListener != null) {
+            currentListener.onMiss(xpath, System.nanoTime() - start);
+        }
+        return expr;
+    }
+
+    public void clear() {
+        trees.evictAll();
+        compiledTrees.evictAll();
+    }
+
+    public int size() {
+        return trees.size() + compiledTrees.size();
+    }
+
+    public int getHitCount() {
+        return trees.hitCount() + compiledTrees.hitCount();
+    }
+
+    public int getMissCount() {
+        return trees.missCount() + compiledTrees.missCount();
+    }
+
+    public int getEvictionCount() {
+        return trees.evictionCount() + compiledTrees.evictionCount();
+    }
+}
@@ -1,12 +1,58 @@
 package org.javarosa.xpath;
 
+import org.javarosa.xpath.expr.ExpressionCompiler;
 import org.javarosa.xpath.expr.XPathExpression;
 import org.javarosa.xpath.parser.Lexer;
 import org.javarosa.xpath.parser.Parser;
 import org.javarosa.xpath.parser.XPathSyntaxException;
 
 public class XPathParseTool {
+    private static volatile XPathParseCache parseCache = new XPathParseCache();
+
+    /**
+     * Parse an expression, reusing the tree from an earlier parse of the same expression when
+     * it is still cached. The returned tree may be shared, so it must not be modified.
+     */
     public static XPathExpression parseXPath(String xpath) throws XPathSyntaxException {
+        XPathParseCache cache = parseCache;
+        if (cache == null) {
+            return parseUnsharedXPath(xpath);
+        }
+        return cache.parse(xpath);
+    }
+
+    /**
+     * Parse an expression for repeated evaluation, folding its constants if expression
+     * compilation is enabled. The returned tree may be shared, so it must not be modified.
+     */
+    public static XPathExpression parseCompiledXPath(String xpath) throws XPathSyntaxException {
+        if (!ExpressionCompiler.isCompilationEnabled()) {
+            return parseXPath(xpath);
+        }
+        XPathParseCache cache = parseCache;
+        if (cache == null) {
+            return ExpressionCompiler.compile(parseUnsharedXPath(xpath), null);
+        }
+        return cache.parseCompiled(xpath);
+    }
+
+    /**
+     * Parse an expression into a new tree which no other caller has access to
+     */
+    public static XPathExpression parseUnsharedXPath(String xpath) throws XPathSyntaxException {
         return Parser.parse(Lexer.lex(xpath));
     }
+
+    /**
+     * Replace the process-wide parse cache.
+     *
+     * @param cache The new cache, or null to parse every expression from scratch
+     */
+    public static void setParseCache(XPathParseCache cache) {
+        parseCache = cache;
+    }
+
+    public static XPathParseCache getParseCache() {
+        return parseCache;
+    }
 }
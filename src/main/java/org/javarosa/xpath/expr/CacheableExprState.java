@@ -11,12 +11,15 @@ import java.io.IOException;
 
 /**
  * Holder object for all of the state values an InFormCacheableExpr needs to keep track of
+ *
+ * The computed flags are only set once the values they guard have been written, so that an
+ * expression shared between threads never exposes partially computed state.
  */
 public class CacheableExprState implements Externalizable {
 
-    protected boolean computedCacheability;
+    protected volatile boolean computedCacheability;
     protected boolean exprIsCacheable;
-    protected boolean computedContextTypes;
+    protected volatile boolean computedContextTypes;
     protected boolean contextRefIsRelevant;
     protected boolean originalContextRefIsRelevant;
 
@@ -1,25 +1,117 @@
 package org.javarosa.xpath.expr;
 
-import java.util.HashMap;
-import java.util.Map;
+import org.commcare.cases.util.LruCache;
+import org.javarosa.core.model.instance.TreeReference;
+import org.javarosa.xpath.XPathLazyNodeset;
+import org.javarosa.xpath.XPathNodeset;
+
+import java.util.Vector;
 
 /**
+ * Caches the results of in-form expression evaluations.
+ *
+ * The cache is bounded by an estimate of the memory held by the cached values, and evicts the
+ * least recently used results once that bound is exceeded. Hit, miss, and eviction counts are
+ * tracked so the effectiveness of the cache can be measured.
+ *
  * @author Aliza Stone
  */
 public class ExpressionCacher {
 
-    private Map<ExpressionCacheKey, Object> cache;
+    /**
+     * The default bound on the estimated size (in bytes) of all cached values
+     */
+    public static final int DEFAULT_MAX_CACHE_WEIGHT = 4 * 1024 * 1024;
+
+    // Rough per-object estimates (in bytes) used to weigh cached values
+    private static final int ENTRY_OVERHEAD = 64;
+    private static final int STRING_OVERHEAD = 40;
+    private static final int NODESET_OVERHEAD = 48;
+    private static final int REFERENCE_OVERHEAD = 40;
+    private static final int REFERENCE_LEVEL_WEIGHT = 32;
+    private static final int UNEXPANDED_NODESET_WEIGHT = 1024;
+
+    private final LruCache<ExpressionCacheKey, Object> cache;
 
     public ExpressionCacher() {
-        cache = new HashMap<>();
+        this(DEFAULT_MAX_CACHE_WEIGHT);
+    }
+
+    /**
+     * @param maxCacheWeight the bound on the estimated size (in bytes) of all cached values
+     */
+    public ExpressionCacher(int maxCacheWeight) {
+        cache = new LruCache<ExpressionCacheKey, Object>(maxCacheWeight) {
+            @Override
+            protected int sizeOf(ExpressionCacheKey key, Object value) {
+                return estimateWeight(value);
+            }
+        };
     }
 
     public void cache(ExpressionCacheKey cacheKey, Object value) {
-        cache.put(cacheKey, value);
+        // A null result can't be distinguished from a cache miss, so there's no use storing it
+        if (value != null) {
+            cache.put(cacheKey, value);
+        }
     }
 
     public Object getCachedValue(ExpressionCacheKey cacheKey) {
         return cache.get(cacheKey);
     }
 
+    public int getHitCount() {
+        return cache.hitCount();
+    }
+
+    public int getMissCount() {
+        return cache.missCount();
+    }
+
+    public int getEvictionCount() {
+        return cache.evictionCount();
+    }
+
+    /**
+     * @return the estimated size (in bytes) of all of the currently cached values
+     */
+    public int getCacheWeight() {
+        return cache.size();
+    }
+
+    public int getMaxCacheWeight() {
+        return cache.maxSize();
+    }
+
+    /**
+     * @return A rough estimate of the memory (in bytes) held by a cached expression result.
+     * The estimate must not change while the value is cached.
+     */
+    static int estimateWeight(Object value) {
+        if (value instanceof String) {
+            return ENTRY_OVERHEAD + STRING_OVERHEAD + 2 * ((String)value).length();
+        } else if (value instanceof XPathLazyNodeset) {
+            // Measuring a lazy nodeset would force its expansion, and its size can change
+            // once it has been expanded, so use a fixed, pessimistic estimate
+            return ENTRY_OVERHEAD + UNEXPANDED_NODESET_WEIGHT;
+        } else if (value instanceof XPathNodeset) {
+            int weight = ENTRY_OVERHEAD + NODESET_OVERHEAD;
+            Vector<TreeReference> references = ((XPathNodeset)value).getReferences();
+            if (references != null) {
+                for (TreeReference reference : references) {
+                    weight += REFERENCE_OVERHEAD + REFERENCE_LEVEL_WEIGHT * reference.size();
+                }
+            }
+            return weight;
+        }
+        // Booleans, Doubles, Dates, and other small values
+        return ENTRY_OVERHEAD + 16;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ExpressionCacher[weight=%d/%d,hits=%d,misses=%d,evictions=%d]",
+                getCacheWeight(), getMaxCacheWeight(), getHitCount(), getMissCount(),
+                getEvictionCount());
+    }
 }
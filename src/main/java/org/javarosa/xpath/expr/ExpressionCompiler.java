@@ -0,0 +1,196 @@
+package org.javarosa.xpath.expr;
+
+import org.javarosa.core.model.condition.EvaluationContext;
+import org.javarosa.xpath.parser.XPathSyntaxException;
+
+import java.util.HashSet;
+
+/**
+ * An optional pass over freshly parsed expressions which folds sub-expressions that don't depend
+ * on any instance or on the evaluation context into literals, so they are computed once rather
+ * than on every evaluation.
+ *
+ * Folding also applies inside of predicates, where a folded comparison against a literal becomes
+ * eligible for the attribute and indexed lookups that only recognize literal operands.
+ *
+ * The pass rewrites the provided tree in place, so it should only be run over trees which
+ * haven't been shared yet (see XPathParseTool.parseUnsharedXPath). Built-in functions are only
+ * folded when no runtime handler overrides them in the provided evaluation context, so
+ * expressions compiled without a context should only be evaluated in contexts which don't
+ * override built-in functions.
+ */
+public class ExpressionCompiler {
+
+    private static volatile boolean compilationEnabled = false;
+
+    /**
+     * Functions whose result only depends on their arguments
+     */
+    private static final HashSet<Class> PURE_FUNCTIONS = new HashSet<>();
+
+    static {
+        Class[] pure = {XPathAbsFunc.class, XPathAcosFunc.class, XPathAsinFunc.class,
+                XPathAtanFunc.class, XPathAtanTwoFunc.class, XPathBooleanFromStringFunc.class,
+                XPathBooleanFunc.class, XPathCeilingFunc.class, XPathConcatFunc.class,
+                XPathContainsFunc.class, XPathCosFunc.class, XPathDoubleFunc.class,
+                XPathEndsWithFunc.class, XPathExpFunc.class, XPathFalseFunc.class,
+                XPathFloorFunc.class, XPathIfFunc.class, XPathIntFunc.class, XPathLogFunc.class,
+                XPathLogTenFunc.class, XPathLowerCaseFunc.class, XPathNotFunc.class,
+                XPathNumberFunc.class, XPathPiFunc.class, XPathPowFunc.class,
+                XPathReplaceFunc.class, XPathRoundFunc.class, XPathSinFunc.class,
+                XPathSqrtFunc.class, XPathStartsWithFunc.class, XPathStringFunc.class,
+                XPathStringLengthFunc.class, XPathSubstrFunc.class,
+                XPathSubstringAfterFunc.class, XPathSubstringBeforeFunc.class,
+                XPathTanFunc.class, XPathTranslateFunc.class, XPathTrueFunc.class,
+                XPathUpperCaseFunc.class, XpathCoalesceFunc.class};
+        for (Class c : pure) {
+            PURE_FUNCTIONS.add(c);
+        }
+    }
+
+    /**
+     * Turn on (or off) compiling the expressions parsed for conditions, suite texts, and detail
+     * field relevancy conditions.
+     */
+    public static void setCompilationEnabled(boolean enabled) {
+        compilationEnabled = enabled;
+    }
+
+    public static boolean isCompilationEnabled() {
+        return compilationEnabled;
+    }
+
+    /**
+     * Fold the constant sub-expressions of the provided expression.
+     *
+     * @param expr        A parsed expression, which may be modified
+     * @param evalContext The context the expression will be evaluated in, used to avoid folding
+     *                    built-in functions it overrides. May be null.
+     * @return The compiled expression, which is either the provided expression or a literal
+     * replacing it entirely
+     */
+    public static XPathExpression compile(XPathExpression expr, EvaluationContext evalContext) {
+        return new ExpressionCompiler(evalContext).fold(expr);
+    }
+
+    private final EvaluationContext evalContext;
+    private final EvaluationContext foldingContext;
+
+    private ExpressionCompiler(EvaluationContext evalContext) {
+        this.evalContext = evalContext;
+        this.foldingContext = new EvaluationContext(null);
+    }
+
+    private XPathExpression fold(XPathExpression expr) {
+        if (expr instanceof XPathBinaryOpExpr) {
+            return foldBinaryOp((XPathBinaryOpExpr)expr);
+        } else if (expr instanceof XPathUnaryOpExpr) {
+            XPathUnaryOpExpr unaryOp = (XPathUnaryOpExpr)expr;
+            unaryOp.a = fold(unaryOp.a);
+            return isLiteral(unaryOp.a) ? evaluateToLiteral(expr) : expr;
+        } else if (expr instanceof XPathFuncExpr) {
+            return foldFunction((XPathFuncExpr)expr);
+        } else if (expr instanceof XPathPathExpr) {
+            XPathPathExpr path = (XPathPathExpr)expr;
+            if (path.filtExpr != null) {
+                foldFilter(path.filtExpr);
+            }
+            for (XPathStep step : path.steps) {
+                foldAll(step.predicates);
+            }
+            return expr;
+        } else if (expr instanceof XPathFilterExpr) {
+            foldFilter((XPathFilterExpr)expr);
+            return expr;
+        }
+        return expr;
+    }
+
+    private XPathExpression foldBinaryOp(XPathBinaryOpExpr binaryOp) {
+        binaryOp.a = fold(binaryOp.a);
+        binaryOp.b = fold(binaryOp.b);
+        if (binaryOp instanceof XPathUnionExpr) {
+            return binaryOp;
+        }
+
+        if (isLiteral(binaryOp.a)) {
+            if (isLiteral(binaryOp.b)) {
+                return evaluateToLiteral(binaryOp);
+            } else if (binaryOp instanceof XPathBoolExpr) {
+                // The left side alone decides a short-circuited result
+                boolean left = FunctionUtils.toBoolean(binaryOp.a.eval(foldingContext));
+                if ((!left && binaryOp.op == XPathBoolExpr.AND) ||
+                        (left && binaryOp.op == XPathBoolExpr.OR)) {
+                    return toLiteral(left);
+                }
+            }
+        }
+        return binaryOp;
+    }
+
+    private XPathExpression foldFunction(XPathFuncExpr func) {
+        foldAll(func.args);
+        if (!PURE_FUNCTIONS.contains(func.getClass()) ||
+                (evalContext != null && evalContext.getFunctionHandlers().containsKey(func.name))) {
+            return func;
+        }
+        for (XPathExpression arg : func.args) {
+            if (!isLiteral(arg)) {
+                return func;
+            }
+        }
+        return evaluateToLiteral(func);
+    }
+
+    private void foldFilter(XPathFilterExpr filter) {
+        filter.x = fold(filter.x);
+        foldAll(filter.predicates);
+    }
+
+    private void foldAll(XPathExpression[] exprs) {
+        for (int i = 0; i < exprs.length; i++) {
+            exprs[i] = fold(exprs[i]);
+        }
+    }
+
+    /**
+     * @return A literal holding the result of evaluating the provided expression, or the
+     * expression itself if it can't be represented as a literal
+     */
+    private XPathExpression evaluateToLiteral(XPathExpression expr) {
+        Object value;
+        try {
+            value = expr.eval(foldingContext);
+        } catch (RuntimeException e) {
+            // Leave the error to be raised where the expression is actually evaluated
+            return expr;
+        }
+
+        if (value instanceof Boolean) {
+            return toLiteral((Boolean)value);
+        } else if (value instanceof Double) {
+            return new XPathNumericLiteral((Double)value);
+        } else if (value instanceof String) {
+            return new XPathStringLiteral((String)value);
+        }
+        return expr;
+    }
+
+    private static XPathExpression toLiteral(boolean value) {
+        try {
+            if (value) {
+                return new XPathTrueFunc(new XPathExpression[0]);
+            } else {
+                return new XPathFalseFunc(new XPathExpression[0]);
+            }
+        } catch (XPathSyntaxException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static boolean isLiteral(XPathExpression expr) {
+        return expr instanceof XPathNumericLiteral || expr instanceof XPathStringLiteral ||
+                ((expr instanceof XPathTrueFunc || expr instanceof XPathFalseFunc) &&
+                        ((XPathFuncExpr)expr).args.length == 0);
+    }
+}
@@ -4,6 +4,7 @@ import org.javarosa.core.model.utils.DateUtils;
 import org.javarosa.core.util.CacheTable;
 import org.javarosa.core.util.MathUtils;
 import org.javarosa.xpath.IExprDataType;
+import org.javarosa.xpath.XPathLazyNodeset;
 import org.javarosa.xpath.XPathNodeset;
 import org.javarosa.xpath.XPathTypeMismatchException;
 
@@ -112,6 +113,21 @@ public class FunctionUtils {
         return sb.toString();
     }
 
+    /**
+     * Gets the values of a nodeset's nodes for an aggregate which doesn't depend on their
+     * order, reading them straight from storage where possible rather than expanding the
+     * nodeset.
+     */
+    public static Object[] getNodesetValues(XPathNodeset nodeset) {
+        if (nodeset instanceof XPathLazyNodeset) {
+            Object[] values = ((XPathLazyNodeset)nodeset).tryValuesWithoutExpanding();
+            if (values != null) {
+                return values;
+            }
+        }
+        return nodeset.toArgList();
+    }
+
     /**
      * Take in a value (only a string for now, TODO: Extend?) that doesn't
      * have any type information and attempt to infer a more specific type
@@ -18,26 +18,20 @@ import java.util.Set;
  */
 public abstract class InFormCacheableExpr implements XPathAnalyzable {
 
-    private Object justRetrieved;
     CacheableExprState cacheState = new CacheableExprState();
 
-    boolean isCached(EvaluationContext ec) {
-        if (ec.expressionCachingEnabled()) {
-            queueUpCachedValue(ec);
-            return justRetrieved != null;
-        }
-        return false;
-    }
-
-    private void queueUpCachedValue(EvaluationContext ec) {
-        justRetrieved = ec.expressionCacher().getCachedValue(cacheKey(ec));
-    }
-
     /**
-     * queueUpCachedValue must always be called first!
+     * The cached value is returned rather than held on to, since parsed expressions can be
+     * shared by several evaluations at once.
+     *
+     * @return The cached result of this expression in the provided context, or null if there
+     * isn't one
      */
-    Object getCachedValue() {
-        return justRetrieved;
+    Object getCachedValue(EvaluationContext ec) {
+        if (ec.expressionCachingEnabled()) {
+            return ec.expressionCacher().getCachedValue(cacheKey(ec));
+        }
+        return null;
     }
 
     void cache(Object value, EvaluationContext ec) {
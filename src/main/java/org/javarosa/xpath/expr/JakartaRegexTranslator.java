@@ -0,0 +1,186 @@
+package org.javarosa.xpath.expr;
+
+import java.util.HashMap;
+
+/**
+ * Rewrites a pattern written for the Jakarta regexp engine into one which java.util.regex
+ * (compiled with UNIX_LINES) matches the same way.
+ *
+ * The two engines agree on most syntax. Where they don't:
+ * - Jakarta's '$' only matches at the very end of the input, never before a final newline
+ * - Jakarta's \d, \s and \w are defined by Character.isDigit, isWhitespace and isLetterOrDigit
+ * (or '_'), so they match non-ASCII characters. Inside of a character class they're the ASCII
+ * classes [0-9], [ \t\n\r\f] and [a-zA-Z0-9_] instead.
+ * - Jakarta's \b and \B don't count '_' as part of a word
+ * - Jakarta has POSIX classes written outside of brackets, e.g. [:digit:]+
+ * - Jakarta reads escaped letters which it doesn't know as the letter itself, e.g. \e or \Q
+ * - Jakarta reads \0 as an octal escape of at most two more digits
+ * - Jakarta reads '[' and '&' inside of a character class as themselves
+ * - Jakarta reads a '-' starting or ending a character class as a range running from the first
+ * or to the last character, e.g. [a-] matches 'z' but not '-'
+ *
+ * Patterns which Jakarta rejects aren't translated into anything in particular, and
+ * java.util.regex accepts many of them (e.g. (?i) or \p{L}).
+ */
+public class JakartaRegexTranslator {
+
+    private static final String WORD_BOUNDARY =
+            "(?:(?<=\\p{javaLetterOrDigit})(?!\\p{javaLetterOrDigit})|(?<!\\p{javaLetterOrDigit})(?=\\p{javaLetterOrDigit}))";
+    private static final String NON_WORD_BOUNDARY =
+            "(?:(?<=\\p{javaLetterOrDigit})(?=\\p{javaLetterOrDigit})|(?<!\\p{javaLetterOrDigit})(?!\\p{javaLetterOrDigit}))";
+
+    private static final HashMap<String, String> POSIX_CLASSES = new HashMap<>();
+
+    static {
+        POSIX_CLASSES.put("alnum", "\\p{javaLetterOrDigit}");
+        POSIX_CLASSES.put("alpha", "\\p{javaLetter}");
+        POSIX_CLASSES.put("blank", "\\p{javaSpaceChar}");
+        POSIX_CLASSES.put("cntrl", "\\p{Cc}");
+        POSIX_CLASSES.put("digit", "\\p{javaDigit}");
+        POSIX_CLASSES.put("graph", "\\p{S}");
+        POSIX_CLASSES.put("lower", "\\p{javaLowerCase}");
+        POSIX_CLASSES.put("print", "\\P{Cc}");
+        POSIX_CLASSES.put("punct", "\\p{Pd}\\p{Ps}\\p{Pe}\\p{Pc}\\p{Po}");
+        POSIX_CLASSES.put("space", "\\p{javaWhitespace}");
+        POSIX_CLASSES.put("upper", "\\p{javaUpperCase}");
+        POSIX_CLASSES.put("xdigit", "0-9a-fA-F");
+        POSIX_CLASSES.put("javastart", "\\p{javaJavaIdentifierStart}");
+        POSIX_CLASSES.put("javapart", "\\p{javaJavaIdentifierPart}");
+    }
+
+    /**
+     * @return A java.util.regex pattern matching what the provided Jakarta pattern matches
+     */
+    public static String translate(String pattern) {
+        StringBuilder out = new StringBuilder(pattern.length() + 16);
+        boolean inClass = false;
+        int classStart = 0;
+        int i = 0;
+        while (i < pattern.length()) {
+            char c = pattern.charAt(i);
+            if (c == '\\' && i + 1 < pattern.length()) {
+                i = translateEscape(pattern, i + 1, inClass, out);
+                continue;
+            }
+
+            if (inClass) {
+                if (c == ']') {
+                    inClass = false;
+                    out.append(c);
+                } else if (c == '[' || c == '&') {
+                    out.append('\\').append(c);
+                } else if (c == '-' && i + 1 < pattern.length() && pattern.charAt(i + 1) != ']'
+                        && out.length() == classStart) {
+                    out.append("\\x00-");
+                } else if (c == '-' && i + 1 < pattern.length() && pattern.charAt(i + 1) == ']'
+                        && out.length() > classStart) {
+                    out.append("-\\uffff");
+                } else {
+                    out.append(c);
+                }
+            } else if (c == '[') {
+                int posixEnd = posixClassEnd(pattern, i);
+                if (posixEnd != -1) {
+                    String name = pattern.substring(i + 2, posixEnd - 2);
+                    out.append('[').append(POSIX_CLASSES.get(name)).append(']');
+                    i = posixEnd;
+                    continue;
+                }
+                inClass = true;
+                out.append(c);
+                if (i + 1 < pattern.length() && pattern.charAt(i + 1) == '^') {
+                    out.append('^');
+                    i++;
+                }
+                classStart = out.length();
+            } else if (c == '$') {
+                out.append("\\z");
+            } else {
+                out.append(c);
+            }
+            i++;
+        }
+        return out.toString();
+    }
+
+    /**
+     * @param start The index of the character following the backslash
+     * @return The index following the escape
+     */
+    private static int translateEscape(String pattern, int start, boolean inClass, StringBuilder out) {
+        char c = pattern.charAt(start);
+        switch (c) {
+            case 'd':
+                out.append(inClass ? "0-9" : "\\p{javaDigit}");
+                break;
+            case 's':
+                out.append(inClass ? " \\t\\n\\r\\f" : "\\p{javaWhitespace}");
+                break;
+            case 'w':
+                out.append(inClass ? "a-zA-Z0-9_" : "[\\p{javaLetterOrDigit}_]");
+                break;
+            case 'D':
+                out.append(inClass ? "\\D" : "\\P{javaDigit}");
+                break;
+            case 'S':
+                out.append(inClass ? "\\S" : "\\P{javaWhitespace}");
+                break;
+            case 'W':
+                out.append(inClass ? "\\W" : "[^\\p{javaLetterOrDigit}_]");
+                break;
+            case 'b':
+                out.append(inClass ? "\\b" : WORD_BOUNDARY);
+                break;
+            case 'B':
+                out.append(inClass ? "\\B" : NON_WORD_BOUNDARY);
+                break;
+            case 'n':
+            case 't':
+            case 'r':
+            case 'f':
+            case 'x':
+            case 'u':
+                // Same meaning in both, including the hex digits following \x and \\u
+                out.append('\\').append(c);
+                break;
+            case '0':
+                int end = start + 1;
+                int value = 0;
+                while (end < pattern.length() && end < start + 3 && isOctalDigit(pattern.charAt(end))) {
+                    value = value * 8 + (pattern.charAt(end) - '0');
+                    end++;
+                }
+                out.append(value < 16 ? "\\x0" : "\\x").append(Integer.toHexString(value));
+                return end;
+            default:
+                if (c >= '1' && c <= '9') {
+                    // A backreference
+                    out.append('\\').append(c);
+                } else if (Character.isLetterOrDigit(c)) {
+                    out.append(c);
+                } else {
+                    out.append('\\').append(c);
+                }
+        }
+        return start + 1;
+    }
+
+    private static boolean isOctalDigit(char c) {
+        return c >= '0' && c <= '7';
+    }
+
+    /**
+     * @return The index following a POSIX class, e.g. [:digit:], starting at the provided
+     * index, or -1 if there isn't one there
+     */
+    private static int posixClassEnd(String pattern, int start) {
+        if (!pattern.startsWith("[:", start)) {
+            return -1;
+        }
+        int close = pattern.indexOf(":]", start + 2);
+        if (close == -1 || !POSIX_CLASSES.containsKey(pattern.substring(start + 2, close))) {
+            return -1;
+        }
+        return close + 2;
+    }
+}
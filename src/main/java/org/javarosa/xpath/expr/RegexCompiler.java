@@ -0,0 +1,169 @@
+package org.javarosa.xpath.expr;
+
+import org.apache.regexp.RE;
+import org.apache.regexp.RECompiler;
+import org.apache.regexp.REProgram;
+import org.apache.regexp.RESyntaxException;
+import org.commcare.cases.util.LruCache;
+
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Compiles the patterns used by regex(), keeping a bounded cache of compiled patterns keyed by
+ * their text so that a pattern evaluated over and over (e.g. in a constraint or a case list
+ * filter) is only compiled once.
+ *
+ * Patterns are written in the syntax of the Jakarta regexp engine, which regex() has always
+ * used. Matching can optionally be handed to java.util.regex instead, in which case patterns
+ * are translated so that they match just as they do under Jakarta (see JakartaRegexTranslator).
+ *
+ * Compiled patterns are immutable and can be shared between threads; each match gets its own
+ * matcher.
+ */
+public class RegexCompiler {
+
+    /**
+     * The bound on the number of compiled patterns held for each engine
+     */
+    public static final int DEFAULT_MAX_PATTERNS = 256;
+
+    private static volatile boolean javaRegexEnabled = false;
+
+    private static final LruCache<String, CompiledRegex> jakartaPatterns =
+            new LruCache<>(DEFAULT_MAX_PATTERNS);
+    private static final LruCache<String, CompiledRegex> javaPatterns =
+            new LruCache<>(DEFAULT_MAX_PATTERNS);
+
+    /**
+     * A pattern compiled for one of the two engines
+     */
+    public static abstract class CompiledRegex {
+        private final String pattern;
+
+        private CompiledRegex(String pattern) {
+            this.pattern = pattern;
+        }
+
+        /**
+         * @return The pattern this was compiled from, in Jakarta syntax
+         */
+        public String getPattern() {
+            return pattern;
+        }
+
+        /**
+         * @return Whether the pattern matches anywhere in the input
+         */
+        public abstract boolean find(String input);
+
+        public abstract boolean isJavaRegex();
+    }
+
+    private static class JakartaRegex extends CompiledRegex {
+        private final REProgram program;
+
+        private JakartaRegex(String pattern, REProgram program) {
+            super(pattern);
+            this.program = program;
+        }
+
+        @Override
+        public boolean find(String input) {
+            // RE holds the state of a match, so it can't be shared the way its program can
+            return new RE(program).match(input);
+        }
+
+        @Override
+        public boolean isJavaRegex() {
+            return false;
+        }
+    }
+
+    private static class JavaRegex extends CompiledRegex {
+        private final Pattern compiled;
+
+        private JavaRegex(String pattern, Pattern compiled) {
+            super(pattern);
+            this.compiled = compiled;
+        }
+
+        @Override
+        public boolean find(String input) {
+            return compiled.matcher(input).find();
+        }
+
+        @Override
+        public boolean isJavaRegex() {
+            return true;
+        }
+    }
+
+    /**
+     * Turn on (or off) matching regex() patterns with java.util.regex rather than Jakarta
+     */
+    public static void setJavaRegexEnabled(boolean enabled) {
+        javaRegexEnabled = enabled;
+    }
+
+    public static boolean isJavaRegexEnabled() {
+        return javaRegexEnabled;
+    }
+
+    /**
+     * @return The provided pattern compiled for the engine currently in use, from the cache
+     * when possible
+     * @throws IllegalArgumentException If the pattern isn't valid
+     */
+    public static CompiledRegex compile(String pattern) {
+        return compile(pattern, javaRegexEnabled);
+    }
+
+    /**
+     * @param javaRegex Whether to compile the pattern for java.util.regex rather than Jakarta
+     * @return The provided pattern compiled for the requested engine, from the cache when
+     * possible
+     * @throws IllegalArgumentException If the pattern isn't valid
+     */
+    public static CompiledRegex compile(String pattern, boolean javaRegex) {
+        LruCache<String, CompiledRegex> cache = javaRegex ? javaPatterns : jakartaPatterns;
+        CompiledRegex regex = cache.get(pattern);
+        if (regex == null) {
+            // Compiled outside of the cache's lock, so two threads missing on the same pattern
+            // may both compile it
+            regex = javaRegex ? compileJava(pattern) : compileJakarta(pattern);
+            cache.put(pattern, regex);
+        }
+        return regex;
+    }
+
+    private static CompiledRegex compileJakarta(String pattern) {
+        try {
+            return new JakartaRegex(pattern, new RECompiler().compile(pattern));
+        } catch (RESyntaxException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    private static CompiledRegex compileJava(String pattern) {
+        try {
+            // Jakarta's '.' only excludes '\n', like java.util.regex's does in UNIX_LINES mode
+            return new JavaRegex(pattern, Pattern.compile(JakartaRegexTranslator.translate(pattern),
+                    Pattern.UNIX_LINES));
+        } catch (PatternSyntaxException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /**
+     * Drop every cached pattern
+     */
+    public static void clearCache() {
+        jakartaPatterns.evictAll();
+        javaPatterns.evictAll();
+    }
+
+    public static int getCacheSize() {
+        return jakartaPatterns.size() + javaPatterns.size();
+    }
+}
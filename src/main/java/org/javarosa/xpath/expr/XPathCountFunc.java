@@ -2,6 +2,7 @@ package org.javarosa.xpath.expr;
 
 import org.javarosa.core.model.condition.EvaluationContext;
 import org.javarosa.core.model.instance.DataInstance;
+import org.javarosa.xpath.XPathLazyNodeset;
 import org.javarosa.xpath.XPathNodeset;
 import org.javarosa.xpath.XPathTypeMismatchException;
 import org.javarosa.xpath.parser.XPathSyntaxException;
@@ -21,6 +22,13 @@ public class XPathCountFunc extends XPathFuncExpr {
 
     @Override
     public Object evalBody(DataInstance model, EvaluationContext evalContext, Object[] evaluatedArgs) {
+        if (evaluatedArgs[0] instanceof XPathLazyNodeset) {
+            // Storage may be able to count the nodes without building references to all of them
+            int size = ((XPathLazyNodeset)evaluatedArgs[0]).trySizeWithoutExpanding();
+            if (size != -1) {
+                return new Double(size);
+            }
+        }
         if (evaluatedArgs[0] instanceof XPathNodeset) {
             return new Double(((XPathNodeset)evaluatedArgs[0]).size());
         } else {
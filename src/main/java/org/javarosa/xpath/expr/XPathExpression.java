@@ -32,12 +32,9 @@ public abstract class XPathExpression extends InFormCacheableExpr implements Ext
     public Object eval(DataInstance model, EvaluationContext evalContext) {
         evalContext.openTrace(this);
 
-        Object value;
-        boolean fromCache = false;
-        if (isCached(evalContext)) {
-            value = getCachedValue();
-            fromCache = true;
-        } else {
+        Object value = getCachedValue(evalContext);
+        boolean fromCache = value != null;
+        if (!fromCache) {
             value = evalRaw(model, evalContext);
             cache(value, evalContext);
         }
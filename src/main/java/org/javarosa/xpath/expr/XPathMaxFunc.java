@@ -30,7 +30,7 @@ public class XPathMaxFunc extends XPathFuncExpr {
     @Override
     public Object evalBody(DataInstance model, EvaluationContext evalContext, Object[] evaluatedArgs) {
         if (evaluatedArgs.length == 1 && evaluatedArgs[0] instanceof XPathNodeset) {
-            return max(((XPathNodeset)evaluatedArgs[0]).toArgList());
+            return max(FunctionUtils.getNodesetValues((XPathNodeset)evaluatedArgs[0]));
         } else {
             return max(evaluatedArgs);
         }
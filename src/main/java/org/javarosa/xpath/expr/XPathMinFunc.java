@@ -30,7 +30,7 @@ public class XPathMinFunc extends XPathFuncExpr {
     @Override
     public Object evalBody(DataInstance model, EvaluationContext evalContext, Object[] evaluatedArgs) {
         if (evaluatedArgs.length == 1 && evaluatedArgs[0] instanceof XPathNodeset) {
-            return min(((XPathNodeset)evaluatedArgs[0]).toArgList());
+            return min(FunctionUtils.getNodesetValues((XPathNodeset)evaluatedArgs[0]));
         } else {
             return min(evaluatedArgs);
         }
@@ -35,18 +35,26 @@ import org.javarosa.xpath.analysis.XPathAnalyzer;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.text.MessageFormat;
 import java.util.Vector;
 
 public class XPathPathExpr extends XPathExpression {
-    private boolean templatePathChecked = false;
+    /**
+     * The instance whose template paths were last checked. Parsed expressions can be shared
+     * between sessions, so the check is only skipped for the same instance.
+     */
+    private WeakReference<DataInstance> templatePathCheckedFor;
     public static final int INIT_CONTEXT_ROOT = 0;
     public static final int INIT_CONTEXT_RELATIVE = 1;
     public static final int INIT_CONTEXT_EXPR = 2;
 
     public int initContext;
     public XPathStep[] steps;
-    private TreeReference cachedReference;
+    /**
+     * Shared by every evaluation of this path, so it must never be handed out for modification
+     */
+    private volatile TreeReference cachedReference;
 
     //for INIT_CONTEXT_EXPR only
     public XPathFilterExpr filtExpr;
@@ -70,9 +78,13 @@ public class XPathPathExpr extends XPathExpression {
      * - only simple child name tests 'child::name', '.', and '..' allowed.
      * - '../' steps must come before anything else
      *
-     * @return a reference built from this path expression
+     * @return a reference built from this path expression, which the caller is free to modify
      */
     public TreeReference getReference() throws XPathUnsupportedException {
+        return getCachedReference().clone();
+    }
+
+    private TreeReference getCachedReference() throws XPathUnsupportedException {
         if (cachedReference != null) {
             return cachedReference;
         }
@@ -173,7 +185,7 @@ public class XPathPathExpr extends XPathExpression {
 
     @Override
     protected XPathNodeset evalRaw(DataInstance m, EvaluationContext ec) {
-        TreeReference genericRef = getReference();
+        TreeReference genericRef = getCachedReference();
         TreeReference ref;
 
         if (genericRef.getContextType() == TreeReference.CONTEXT_ORIGINAL) {
@@ -182,6 +194,7 @@ public class XPathPathExpr extends XPathExpression {
         } else {
             ref = genericRef.contextualize(ec.getContextRef());
         }
+        ec.reportNodesetRead(ref);
 
         //We don't necessarily know the model we want to be working with until we've contextualized the
         //node
@@ -214,12 +227,16 @@ public class XPathPathExpr extends XPathExpression {
 
         // Error out if a (template) path along the reference starting at the
         // main DataInstance doesn't exist.
+        WeakReference<DataInstance> checkedFor = templatePathCheckedFor;
+        boolean templatePathChecked = checkedFor != null && checkedFor.get() == m;
         if (!templatePathChecked && ref.isAbsolute() && !m.hasTemplatePath(ref)) {
             return XPathNodeset.constructInvalidPathNodeset(ref.toString(), genericRef.toString());
         }
 
-        // only check the template path once, since it is expensive
-        templatePathChecked = true;
+        // only check the template path once per instance, since it is expensive
+        if (!templatePathChecked) {
+            templatePathCheckedFor = new WeakReference<>(m);
+        }
 
         return new XPathLazyNodeset(ref, m, ec);
     }
@@ -229,6 +246,7 @@ public class XPathPathExpr extends XPathExpression {
             //ITEMSET TODO: need to update this; for itemset/copy constraints, need to simulate a whole xml sub-tree here
             return unpackValue(ec.candidateValue);
         } else {
+            ec.reportValueRead(ref);
             AbstractTreeElement node = model.resolveReference(ref, ec);
             if (node == null) {
                 //shouldn't happen -- only existent nodes should be in nodeset
@@ -417,7 +435,7 @@ public class XPathPathExpr extends XPathExpression {
     @Override
     public Object pivot(DataInstance model, EvaluationContext evalContext,
                         Vector<Object> pivots, Object sentinal) throws UnpivotableExpressionException {
-        TreeReference ref = this.getReference();
+        TreeReference ref = getCachedReference();
         //Either concretely the sentinal, or "."
         if (ref.equals(sentinal) || (ref.getRefLevel() == 0)) {
             return sentinal;
@@ -435,7 +453,7 @@ public class XPathPathExpr extends XPathExpression {
     @Override
     public String toPrettyString() {
         try {
-            return getReference().toString(true);
+            return getCachedReference().toString(true);
         } catch(Exception e) {
             return toDebugString();
         }
@@ -484,6 +502,6 @@ public class XPathPathExpr extends XPathExpression {
             return;
         }
         analyzer.doAnalysis(XPathPathExpr.this);
-        getReference().applyAndPropagateAnalyzer(analyzer);
+        getCachedReference().applyAndPropagateAnalyzer(analyzer);
     }
 }
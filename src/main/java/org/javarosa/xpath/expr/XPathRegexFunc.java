@@ -1,7 +1,5 @@
 package org.javarosa.xpath.expr;
 
-import org.apache.regexp.RE;
-import org.apache.regexp.RESyntaxException;
 import org.javarosa.core.model.condition.EvaluationContext;
 import org.javarosa.core.model.instance.DataInstance;
 import org.javarosa.xpath.XPathException;
@@ -12,6 +10,12 @@ public class XPathRegexFunc extends XPathFuncExpr {
     public static final String NAME = "regex";
     private static final int EXPECTED_ARG_COUNT = 2;
 
+    /**
+     * The pattern, compiled when the expression was parsed if it was a string literal. Not
+     * serialized, so deserialized expressions go through RegexCompiler's cache instead.
+     */
+    private volatile RegexCompiler.CompiledRegex literalPattern;
+
     public XPathRegexFunc() {
         name = NAME;
         expectedArgCount = EXPECTED_ARG_COUNT;
@@ -19,11 +23,18 @@ public class XPathRegexFunc extends XPathFuncExpr {
 
     public XPathRegexFunc(XPathExpression[] args) throws XPathSyntaxException {
         super(NAME, args, EXPECTED_ARG_COUNT, true);
+        if (args.length == EXPECTED_ARG_COUNT && args[1] instanceof XPathStringLiteral) {
+            try {
+                literalPattern = RegexCompiler.compile(((XPathStringLiteral)args[1]).s);
+            } catch (IllegalArgumentException e) {
+                // Reported when the expression is evaluated, as it always has been
+            }
+        }
     }
 
     @Override
     public Object evalBody(DataInstance model, EvaluationContext evalContext, Object[] evaluatedArgs) {
-        return regex(evaluatedArgs[0], evaluatedArgs[1]);
+        return regex(evaluatedArgs[0], evaluatedArgs[1], literalPattern);
     }
 
     /**
@@ -31,21 +42,26 @@ public class XPathRegexFunc extends XPathFuncExpr {
      *
      * @param o1 string being matched
      * @param o2 regular expression
+     * @param precompiled the regular expression compiled ahead of time, if it was known then
      */
-    private static Boolean regex(Object o1, Object o2) {
+    private static Boolean regex(Object o1, Object o2, RegexCompiler.CompiledRegex precompiled) {
         String str = FunctionUtils.toString(o1);
         String re = FunctionUtils.toString(o2);
 
-        RE regexp;
-        try {
-            regexp = new RE(re);
-        } catch (RESyntaxException e) {
-            throw new XPathException("The regular expression '" + str + "' is invalid.");
+        RegexCompiler.CompiledRegex regexp = precompiled;
+        // The literal may since have been rewritten, or the engine switched
+        if (regexp == null || !regexp.getPattern().equals(re)
+                || regexp.isJavaRegex() != RegexCompiler.isJavaRegexEnabled()) {
+            try {
+                regexp = RegexCompiler.compile(re);
+            } catch (IllegalArgumentException e) {
+                throw new XPathException("The regular expression '" + str + "' is invalid.");
+            }
         }
 
         boolean result;
         try {
-            result = regexp.match(str);
+            result = regexp.find(str);
         } catch (java.lang.StackOverflowError e) {
             throw new XPathException("The regular expression '" + str + "' took too long to process.");
         }
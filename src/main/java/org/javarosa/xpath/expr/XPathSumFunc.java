@@ -22,7 +22,7 @@ public class XPathSumFunc extends XPathFuncExpr {
     @Override
     public Object evalBody(DataInstance model, EvaluationContext evalContext, Object[] evaluatedArgs) {
         if (evaluatedArgs[0] instanceof XPathNodeset) {
-            return sum(((XPathNodeset)evaluatedArgs[0]).toArgList());
+            return sum(FunctionUtils.getNodesetValues((XPathNodeset)evaluatedArgs[0]));
         } else {
             throw new XPathTypeMismatchException("uses an invalid reference inside a sum function");
         }
@@ -0,0 +1,135 @@
+package org.commcare.backend.suite.model.test;
+
+import org.commcare.resources.model.InstallerFactory;
+import org.commcare.suite.model.Suite;
+import org.commcare.util.AppSnapshot;
+import org.commcare.util.engine.CommCareConfigEngine;
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.services.storage.IStorageIndexedFactory;
+import org.javarosa.core.services.storage.IStorageUtilityIndexed;
+import org.javarosa.core.services.storage.util.DummyIndexedStorageUtility;
+import org.javarosa.core.util.InvalidIndexException;
+import org.javarosa.core.util.externalizable.LivePrototypeFactory;
+import org.javarosa.core.util.externalizable.PrototypeFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests starting an installed app from a snapshot of its forms and suites
+ */
+public class AppSnapshotTest {
+
+    private static final String PLACEHOLDER_XMLNS = "http://commcarehq.org/test/placeholder";
+
+    private PrototypeFactory prototypeFactory;
+    private IStorageIndexedFactory storageFactory;
+    private File snapshotFile;
+
+    @Before
+    public void setUp() throws Exception {
+        prototypeFactory = new LivePrototypeFactory();
+
+        // Every engine shares the same storage, like separate sessions of one installed app
+        final HashMap<String, IStorageUtilityIndexed> storages = new HashMap<>();
+        storageFactory = new IStorageIndexedFactory() {
+            @Override
+            public IStorageUtilityIndexed newStorage(String name, Class type) {
+                IStorageUtilityIndexed storage = storages.get(name);
+                if (storage == null) {
+                    storage = new DummyIndexedStorageUtility(type, prototypeFactory);
+                    storages.put(name, storage);
+                }
+                return storage;
+            }
+        };
+
+        snapshotFile = File.createTempFile("app", ".snapshot");
+        snapshotFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        snapshotFile.delete();
+    }
+
+    @Test
+    public void testSessionsStartFromSnapshot() throws Exception {
+        CommCareConfigEngine installer = newEngine();
+        installer.installAppFromReference("jr://resource/app_structure/profile.ccpr");
+        installer.initEnvironment();
+        assertFalse(installer.useSnapshot(snapshotFile, prototypeFactory));
+        installer.writeSnapshot(snapshotFile);
+
+        CommCareConfigEngine first = newEngine();
+        assertTrue(first.useSnapshot(snapshotFile, prototypeFactory));
+        first.initEnvironment();
+        CommCareConfigEngine second = newEngine();
+        assertTrue(second.useSnapshot(snapshotFile, prototypeFactory));
+        second.initEnvironment();
+
+        assertEquals(installer.getPlatform().getInstalledSuites().size(),
+                first.getPlatform().getInstalledSuites().size());
+        Suite suite = first.getPlatform().getInstalledSuites().firstElement();
+        assertEquals(installer.getPlatform().getInstalledSuites().firstElement().getMenus().size(),
+                suite.getMenus().size());
+
+        FormDef form = first.loadFormByXmlns(PLACEHOLDER_XMLNS);
+        assertNotNull(form);
+        assertEquals(installer.loadFormByXmlns(PLACEHOLDER_XMLNS).getTitle(), form.getTitle());
+        // Forms hold session state, so each session gets its own copy
+        assertNotSame(form, first.loadFormByXmlns(PLACEHOLDER_XMLNS));
+    }
+
+    @Test
+    public void testSuitesAreSharedBetweenSessions() throws Exception {
+        CommCareConfigEngine installer = newEngine();
+        installer.installAppFromReference("jr://resource/app_structure/profile.ccpr");
+        installer.writeSnapshot(snapshotFile);
+
+        CommCareConfigEngine first = newEngine();
+        first.useSnapshot(snapshotFile, prototypeFactory);
+        first.initEnvironment();
+        assertSame(first.getPlatform().getSnapshot().getSuite(0),
+                first.getPlatform().getInstalledSuites().firstElement());
+    }
+
+    @Test
+    public void testFormsSharingAnXmlnsAreReadFromStorage() throws Exception {
+        CommCareConfigEngine installer = newEngine();
+        installer.installAppFromReference("jr://resource/app_structure/profile.ccpr");
+        installer.initEnvironment();
+        IStorageUtilityIndexed<FormDef> formStorage =
+                installer.getPlatform().getStorageManager().getStorage(FormDef.STORAGE_KEY);
+        FormDef duplicate = installer.loadFormByXmlns(PLACEHOLDER_XMLNS);
+        duplicate.setID(-1);
+        formStorage.write(duplicate);
+        installer.writeSnapshot(snapshotFile);
+
+        assertNull(AppSnapshot.open(snapshotFile, prototypeFactory).readFormByXmlns(PLACEHOLDER_XMLNS));
+        CommCareConfigEngine session = newEngine();
+        assertTrue(session.useSnapshot(snapshotFile, prototypeFactory));
+        try {
+            session.loadFormByXmlns(PLACEHOLDER_XMLNS);
+            fail("Forms sharing an xmlns should be as ambiguous as they are in storage");
+        } catch (InvalidIndexException e) {
+            // expected
+        }
+    }
+
+    private CommCareConfigEngine newEngine() {
+        return new CommCareConfigEngine(storageFactory, new InstallerFactory(), System.out);
+    }
+}
@@ -0,0 +1,147 @@
+package org.commcare.cases.entity.test;
+
+import org.commcare.cases.entity.Entity;
+import org.commcare.cases.entity.EntitySorter;
+import org.commcare.suite.model.DetailField;
+import org.javarosa.core.model.Constants;
+import org.javarosa.core.model.instance.TreeReference;
+import org.javarosa.xpath.expr.FunctionUtils;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that sorting entities on precomputed keys, on one thread or several, orders them
+ * just as comparing their raw sort fields does.
+ */
+public class EntitySorterTests {
+
+    private static final String[] NAMES = {"alpha", "Alpha", "beta", "BETA", "gamma", "", "delta"};
+    private static final String[] NUMBERS = {"1", "2.5", "-3", "10", "", "abc", "2", "0"};
+
+    @Test
+    public void keyedSortMatchesFieldComparison() {
+        for (boolean reverse : new boolean[]{false, true}) {
+            DetailField[] fields = fields();
+            int[] sortBy = {0, 1, 2};
+            List<Entity<TreeReference>> entities = entities(2000, 1);
+
+            List<Entity<TreeReference>> expected = new ArrayList<>(entities);
+            Collections.sort(expected, new ReferenceComparator(fields, reverse, sortBy));
+            new EntitySorter(fields, reverse, sortBy, args -> {
+            }).sort(entities, false);
+
+            assertSameOrder(expected, entities);
+        }
+    }
+
+    @Test
+    public void parallelSortMatchesSequentialSort() {
+        DetailField[] fields = fields();
+        int[] sortBy = {1, 0};
+        List<Entity<TreeReference>> sequential = entities(EntitySorter.MIN_PARALLEL_SORT_SIZE * 2 + 17, 2);
+        List<Entity<TreeReference>> parallel = new ArrayList<>(sequential);
+
+        new EntitySorter(fields, false, sortBy, args -> {
+        }).sort(sequential, 1);
+        new EntitySorter(fields, false, sortBy, args -> {
+        }).sort(parallel, 3);
+
+        // Ties are broken by the original order in both, so the orders match exactly
+        assertSameOrder(sequential, parallel);
+    }
+
+    @Test
+    public void warnsOnceAboutBadNumbers() {
+        final int[] warnings = {0};
+        new EntitySorter(fields(), false, new int[]{1}, args -> warnings[0]++)
+                .sort(entities(100, 3), false);
+        assertEquals(1, warnings[0]);
+    }
+
+    private static void assertSameOrder(List<Entity<TreeReference>> expected,
+                                        List<Entity<TreeReference>> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals("Entity " + i, expected.get(i).extraKey, actual.get(i).extraKey);
+        }
+    }
+
+    private static DetailField[] fields() {
+        DetailField.Builder name = new DetailField.Builder();
+        name.setSortType(Constants.DATATYPE_TEXT);
+        name.setShowBlanksLast(true);
+        DetailField.Builder number = new DetailField.Builder();
+        number.setSortType(Constants.DATATYPE_DECIMAL);
+        number.setSortDirection(DetailField.DIRECTION_DESCENDING);
+        DetailField.Builder count = new DetailField.Builder();
+        count.setSortType(Constants.DATATYPE_INTEGER);
+        return new DetailField[]{name.build(), number.build(), count.build()};
+    }
+
+    private static List<Entity<TreeReference>> entities(int count, long seed) {
+        Random random = new Random(seed);
+        List<Entity<TreeReference>> entities = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String name = NAMES[random.nextInt(NAMES.length)];
+            String number = NUMBERS[random.nextInt(NUMBERS.length)];
+            String integer = NUMBERS[random.nextInt(NUMBERS.length)];
+            // Some entities only have display values to sort by
+            String[] sortData = random.nextBoolean() ? new String[]{name, number, integer}
+                    : new String[]{null, number, null};
+            entities.add(new Entity<TreeReference>(new Object[]{name, number, integer}, sortData,
+                    new boolean[]{true, true, true}, null, String.valueOf(i), false));
+        }
+        return entities;
+    }
+
+    /**
+     * Compares entities the way EntitySorter did before it precomputed sort keys
+     */
+    private static class ReferenceComparator implements java.util.Comparator<Entity<TreeReference>> {
+        private final DetailField[] fields;
+        private final boolean reverseSort;
+        private final int[] sortBy;
+
+        ReferenceComparator(DetailField[] fields, boolean reverseSort, int[] sortBy) {
+            this.fields = fields;
+            this.reverseSort = reverseSort;
+            this.sortBy = sortBy;
+        }
+
+        @Override
+        public int compare(Entity<TreeReference> o1, Entity<TreeReference> o2) {
+            for (int index : sortBy) {
+                boolean reverse = (fields[index].getSortDirection() == DetailField.DIRECTION_DESCENDING) ^ reverseSort;
+                String a1 = o1.getSortField(index) == null ? o1.getFieldString(index) : o1.getSortField(index);
+                String a2 = o2.getSortField(index) == null ? o2.getFieldString(index) : o2.getSortField(index);
+                boolean blanksLast = fields[index].showBlanksLastInSort();
+                int cmp;
+                if (a1.equals("") || a2.equals("")) {
+                    cmp = a1.equals(a2) ? 0 : (a1.equals("") == blanksLast ? 1 : -1);
+                } else {
+                    cmp = (reverse ? -1 : 1) * typed(fields[index].getSortType(), a1).compareTo(typed(fields[index].getSortType(), a2));
+                }
+                if (cmp != 0) {
+                    return cmp;
+                }
+            }
+            return 0;
+        }
+
+        private static Comparable typed(int sortType, String value) {
+            if (sortType == Constants.DATATYPE_TEXT) {
+                return value.toLowerCase();
+            } else if (sortType == Constants.DATATYPE_INTEGER) {
+                return FunctionUtils.toInt(value);
+            } else {
+                return FunctionUtils.toDouble(value);
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package org.commcare.cases.entity.test;
+
+import org.commcare.cases.entity.Entity;
+import org.commcare.cases.entity.LazyEntity;
+import org.commcare.cases.entity.NodeEntityFactory;
+import org.commcare.modern.session.SessionWrapper;
+import org.commcare.suite.model.Detail;
+import org.commcare.suite.model.EntityDatum;
+import org.commcare.test.utilities.MockApp;
+import org.javarosa.core.model.condition.EvaluationContext;
+import org.javarosa.core.io.StreamsUtil;
+import org.javarosa.core.model.instance.TreeReference;
+import org.javarosa.core.services.locale.Localization;
+import org.javarosa.core.services.locale.Localizer;
+import org.javarosa.core.services.locale.TableLocaleSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that loading a case list's entities in chunks on several threads, or evaluating their
+ * fields lazily, gives the same entities, in the same order, as loading them one at a time.
+ */
+public class NodeEntityFactoryTests {
+    private SessionWrapper session;
+    private Detail shortDetail;
+    private TreeReference nodeset;
+
+    @Before
+    public void init() throws Exception {
+        MockApp app = new MockApp("/app_performance/");
+        registerLocaleIds("/app_performance/suite.xml");
+        session = app.getSession();
+        session.setCommand("m1-f2");
+        EntityDatum datum = (EntityDatum)session.getNeededDatum();
+        shortDetail = session.getDetail(datum.getShortDetail());
+        nodeset = datum.getNodeset();
+    }
+
+    @After
+    public void tearDown() {
+        // Drop the text ids registered for this app so they don't stand in for text in later tests
+        Localization.init(true);
+    }
+
+    @Test
+    public void chunkedLoadMatchesSequentialLoad() {
+        NodeEntityFactory sequentialFactory = factory();
+        List<Entity<TreeReference>> expected = new ArrayList<>();
+        for (TreeReference reference : sequentialFactory.expandReferenceList(nodeset)) {
+            expected.add(sequentialFactory.getEntity(reference));
+        }
+        assertTrue(expected.size() > 100);
+
+        for (int threads : new int[]{1, 3}) {
+            NodeEntityFactory factory = factory();
+            List<TreeReference> references = factory.expandReferenceList(nodeset);
+            List<Entity<TreeReference>> chunked = new ArrayList<>();
+            List<Integer> firstIndices = new ArrayList<>();
+            List<Entity<TreeReference>> loaded = factory.loadEntities(references, threads, 16,
+                    (firstIndex, entities) -> {
+                        firstIndices.add(firstIndex);
+                        chunked.addAll(entities);
+                    });
+
+            assertSameEntities(expected, loaded);
+            assertSameEntities(expected, chunked);
+            for (int i = 0; i < firstIndices.size(); i++) {
+                assertEquals(i * 16, (int)firstIndices.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void lazyEntitiesOnlyEvaluateSortFieldsUpFront() {
+        NodeEntityFactory eagerFactory = factory();
+        List<Entity<TreeReference>> expected = new ArrayList<>();
+        for (TreeReference reference : eagerFactory.expandReferenceList(nodeset)) {
+            expected.add(eagerFactory.getEntity(reference));
+        }
+
+        NodeEntityFactory lazyFactory = factory();
+        lazyFactory.enableLazyFieldEvaluation();
+        List<Entity<TreeReference>> lazy = new ArrayList<>();
+        for (TreeReference reference : lazyFactory.expandReferenceList(nodeset)) {
+            lazy.add(lazyFactory.getEntity(reference));
+        }
+
+        List<Integer> sortFields = new ArrayList<>();
+        for (int index : shortDetail.getOrderedFieldIndicesForSorting()) {
+            sortFields.add(index);
+        }
+        LazyEntity first = (LazyEntity)lazy.get(0);
+        assertTrue(first.getNumFields() > sortFields.size());
+        for (int i = 0; i < first.getNumFields(); i++) {
+            assertEquals(sortFields.contains(i), first.isFieldEvaluated(i));
+        }
+
+        assertSameEntities(expected, lazy);
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).shouldReceiveFocus(), lazy.get(i).shouldReceiveFocus());
+            for (int field = 0; field < first.getNumFields(); field++) {
+                assertEquals(expected.get(i).isValidField(field), lazy.get(i).isValidField(field));
+            }
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void workerFailuresReachTheCaller() {
+        NodeEntityFactory factory = new NodeEntityFactory(shortDetail, session.getEvaluationContext()) {
+            @Override
+            protected Entity<TreeReference> getEntity(TreeReference data, EvaluationContext baseContext) {
+                if (data.getMultiplicity(data.size() - 1) % 50 == 49) {
+                    throw new IllegalStateException("Couldn't evaluate entity");
+                }
+                return super.getEntity(data, baseContext);
+            }
+        };
+        factory.loadEntities(factory.expandReferenceList(nodeset), 3, 10, null);
+    }
+
+    /**
+     * The app doesn't ship its translations, so have each of its text ids stand in for its text
+     */
+    private void registerLocaleIds(String suitePath) throws Exception {
+        String suite = new String(StreamsUtil.inputStreamToByteArray(
+                getClass().getResourceAsStream(suitePath)), "UTF-8");
+        TableLocaleSource source = new TableLocaleSource();
+        Matcher matcher = Pattern.compile("<locale id=\"([^\"]+)\"").matcher(suite);
+        while (matcher.find()) {
+            source.setLocaleMapping(matcher.group(1), matcher.group(1));
+        }
+        Localizer localizer = Localization.getGlobalLocalizerAdvanced();
+        localizer.registerLocaleResource(localizer.getLocale(), source);
+    }
+
+    private NodeEntityFactory factory() {
+        return new NodeEntityFactory(shortDetail, session.getEvaluationContext());
+    }
+
+    private static void assertSameEntities(List<Entity<TreeReference>> expected,
+                                           List<Entity<TreeReference>> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Entity<TreeReference> expectedEntity = expected.get(i);
+            Entity<TreeReference> actualEntity = actual.get(i);
+            assertEquals(expectedEntity.getElement(), actualEntity.getElement());
+            assertEquals(expectedEntity.getNumFields(), actualEntity.getNumFields());
+            for (int field = 0; field < expectedEntity.getNumFields(); field++) {
+                assertEquals(expectedEntity.getFieldString(field), actualEntity.getFieldString(field));
+                assertEquals(expectedEntity.getSortField(field), actualEntity.getSortField(field));
+            }
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package org.commcare.cases.query;
+
+import org.commcare.cases.model.Case;
+import org.commcare.cases.query.handlers.IndexedMetadataScanQueryHandler;
+import org.javarosa.core.model.condition.EvaluationContext;
+import org.javarosa.core.services.storage.util.DummyIndexedStorageUtility;
+import org.javarosa.core.util.RecordIdSet;
+import org.javarosa.core.util.externalizable.LivePrototypeFactory;
+import org.javarosa.xpath.expr.XPathExpression;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Vector;
+
+/**
+ * Checks that the planner runs the most selective plan on offer, and that the ids selected so
+ * far limit what a scan reads from storage.
+ */
+public class QueryPlannerTests {
+
+    @Test
+    public void mostSelectivePlanIsRun() {
+        IndexedValueLookup first = new IndexedValueLookup("case-type", "person");
+        IndexedValueLookup second = new IndexedValueLookup("owner-id", "owner_one");
+        Vector<PredicateProfile> profiles = new Vector<>(Arrays.asList(first, second));
+
+        QueryPlanner planner = new QueryPlanner();
+        FixedHandler fast = new FixedHandler(1, 1, RecordIdSet.fromArray(1, 2, 3).asList());
+        FixedHandler batched = new FixedHandler(5, 2, RecordIdSet.fromArray(2).asList());
+        planner.addQueryHandler(fast);
+        planner.addQueryHandler(batched);
+
+        RecordIdSet candidates = RecordIdSet.fromArray(2, 4);
+        Assert.assertEquals(RecordIdSet.fromArray(2),
+                planner.attemptProfiledQuery(profiles, new QueryContext(), candidates));
+        Assert.assertTrue(profiles.isEmpty());
+        Assert.assertEquals(0, fast.runs);
+        Assert.assertSame(candidates, batched.lastCandidates);
+    }
+
+    @Test
+    public void nextPlanIsRunIfAPlanCantBe() {
+        Vector<PredicateProfile> profiles = new Vector<>();
+        profiles.add(new IndexedValueLookup("case-type", "person"));
+        profiles.add(new IndexedValueLookup("owner-id", "owner_one"));
+
+        QueryPlanner planner = new QueryPlanner();
+        FixedHandler fast = new FixedHandler(1, 1, RecordIdSet.fromArray(1, 2, 3).asList());
+        FixedHandler batched = new FixedHandler(5, 2, null);
+        planner.addQueryHandler(fast);
+        planner.addQueryHandler(batched);
+
+        Assert.assertEquals(RecordIdSet.fromArray(1, 2, 3),
+                planner.attemptProfiledQuery(profiles, new QueryContext()));
+        Assert.assertEquals(1, batched.runs);
+        Assert.assertEquals(1, profiles.size());
+    }
+
+    @Test
+    public void scanOnlyReadsSelectedRecords() {
+        CountingStorage storage = new CountingStorage();
+        for (int i = 0; i < 10; i++) {
+            Case record = new Case("case" + i, "person");
+            record.setCaseId("case_" + i);
+            record.setUserId(i % 2 == 0 ? "owner_even" : "owner_odd");
+            storage.write(record);
+        }
+        IndexedMetadataScanQueryHandler handler =
+                new IndexedMetadataScanQueryHandler(storage, "case");
+        IndexedValueComparison notEven = new IndexedValueComparison(Case.INDEX_OWNER_ID,
+                IndexedValueComparison.NOT_EQUAL, "owner_even");
+        QueryContext context = new QueryContext();
+
+        Assert.assertEquals(RecordIdSet.fromArray(1, 3).asList(),
+                handler.loadProfileMatches(notEven, context, RecordIdSet.fromArray(1, 2, 3)));
+        Assert.assertEquals(3, storage.idsRead);
+
+        // Only the records which haven't been read yet are read
+        Assert.assertEquals(RecordIdSet.fromArray(3, 5).asList(),
+                handler.loadProfileMatches(notEven, context, RecordIdSet.fromArray(3, 4, 5)));
+        Assert.assertEquals(5, storage.idsRead);
+
+        Assert.assertEquals(RecordIdSet.fromArray(1, 3, 5, 7, 9).asList(),
+                handler.loadProfileMatches(notEven, context));
+        Assert.assertEquals(15, storage.idsRead);
+
+        // Once the whole column is loaded it's scanned instead of reading again, leaving the
+        // planner to drop the ids which weren't selected
+        Assert.assertEquals(RecordIdSet.fromArray(1, 3, 5, 7, 9).asList(),
+                handler.loadProfileMatches(notEven, context, RecordIdSet.fromArray(6, 7)));
+        Assert.assertEquals(15, storage.idsRead);
+    }
+
+    private static class CountingStorage extends DummyIndexedStorageUtility<Case> {
+        private int idsRead;
+
+        private CountingStorage() {
+            super(Case.class, new LivePrototypeFactory());
+        }
+
+        @Override
+        public void bulkReadMetadata(LinkedHashSet recordIds, String[] metaFieldNames,
+                                     HashMap metadataMap) {
+            idsRead += recordIds.size();
+            super.bulkReadMetadata(recordIds, metaFieldNames, metadataMap);
+        }
+    }
+
+    /**
+     * Handles a fixed number of profiles from the head of the queue with a fixed result
+     */
+    private static class FixedHandler implements QueryHandler<Vector<PredicateProfile>> {
+        private final int runtime;
+        private final int handledCount;
+        private final List<Integer> result;
+        private int runs;
+        private RecordIdSet lastCandidates;
+
+        private FixedHandler(int runtime, int handledCount, List<Integer> result) {
+            this.runtime = runtime;
+            this.handledCount = handledCount;
+            this.result = result;
+        }
+
+        @Override
+        public int getExpectedRuntime() {
+            return runtime;
+        }
+
+        @Override
+        public Collection<PredicateProfile> collectPredicateProfiles(Vector<XPathExpression> predicates,
+                                                                     QueryContext context,
+                                                                     EvaluationContext evaluationContext) {
+            return null;
+        }
+
+        @Override
+        public Vector<PredicateProfile> profileHandledQuerySet(Vector<PredicateProfile> profiles) {
+            if (profiles.size() < handledCount) {
+                return null;
+            }
+            return new Vector<>(profiles.subList(0, handledCount));
+        }
+
+        @Override
+        public List<Integer> loadProfileMatches(Vector<PredicateProfile> querySet,
+                                                QueryContext queryContext) {
+            return loadProfileMatches(querySet, queryContext, null);
+        }
+
+        @Override
+        public List<Integer> loadProfileMatches(Vector<PredicateProfile> querySet,
+                                                QueryContext queryContext,
+                                                RecordIdSet candidates) {
+            runs++;
+            lastCandidates = candidates;
+            return result;
+        }
+
+        @Override
+        public void updateProfiles(Vector<PredicateProfile> querySet,
+                                   Vector<PredicateProfile> profiles) {
+            profiles.removeAll(querySet);
+        }
+    }
+}
@@ -49,6 +49,17 @@ public class CaseExternalIdTest {
         Assert.assertTrue(CaseTestUtils.xpathEvalAndCompare(ec, "instance('casedb')/casedb/case[@case_id = 'case_two'][@external_id = '123']/case_name", "Two"));
     }
 
+    @Test
+    public void testNumericExternalIdComparison() throws Exception {
+        config.parseIntoSandbox(this.getClass().getResourceAsStream("/case_create_external_id.xml"), sandbox, false);
+        EvaluationContext ec =
+                MockDataUtils.buildContextWithInstance(this.sandbox, "casedb", CaseTestUtils.CASE_INSTANCE);
+        // Numeric literals compare as numbers, which indexed string lookups can't do
+        CaseTestUtils.xpathEvalAndAssert(ec, "count(instance('casedb')/casedb/case[@external_id != 123])", 2.0);
+        CaseTestUtils.xpathEvalAndAssert(ec, "count(instance('casedb')/casedb/case[@external_id != 123.0])", 2.0);
+        CaseTestUtils.xpathEvalAndAssert(ec, "count(instance('casedb')/casedb/case[@external_id != '123.0'])", 3.0);
+    }
+
     @Test
     public void testNoExternalIdFails() throws Exception {
         config.parseIntoSandbox(this.getClass().getResourceAsStream("/case_create_basic.xml"), sandbox, false);
@@ -0,0 +1,77 @@
+package org.commcare.cases.test;
+
+import org.commcare.cases.model.Case;
+import org.commcare.cases.model.CaseIndex;
+import org.javarosa.core.services.storage.util.DummyIndexedStorageUtility;
+import org.javarosa.core.util.externalizable.ExtUtil;
+import org.javarosa.core.util.externalizable.LivePrototypeFactory;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests reading cases whose indices and properties are only decoded once they're used
+ */
+public class CaseLazyReadTest {
+
+    private DummyIndexedStorageUtility<Case> storage;
+    private Case original;
+
+    @Before
+    public void setUp() {
+        storage = new DummyIndexedStorageUtility<>(Case.class, new LivePrototypeFactory());
+
+        original = new Case("Jane", "patient");
+        original.setCaseId("case_one");
+        original.setUserId("owner_one");
+        original.setProperty("age", "31");
+        original.setIndex(new CaseIndex("parent", "household", "household_one"));
+        storage.write(original);
+    }
+
+    @Test
+    public void testHeaderIsDecodedEagerly() {
+        Case read = storage.read(original.getID());
+        assertTrue(read.hasUndecodedFields());
+        assertEquals("case_one", read.getCaseId());
+        assertEquals("patient", read.getTypeId());
+        assertEquals("Jane", read.getName());
+        assertFalse(read.isClosed());
+        assertEquals(original.getID(), read.getID());
+        assertEquals("case_one", read.getProperty("case-id"));
+        assertTrue(read.hasUndecodedFields());
+    }
+
+    @Test
+    public void testPropertiesAndIndicesDecodeOnFirstUse() {
+        Case read = storage.read(original.getID());
+        assertEquals("31", read.getProperty("age"));
+        assertFalse(read.hasUndecodedFields());
+        assertEquals("owner_one", read.getUserId());
+        assertEquals("household_one", read.getMetaData(Case.INDEX_CASE_INDEX_PRE + "parent"));
+        assertEquals(original.getLastModified(), read.getLastModified());
+
+        read = storage.read(original.getID());
+        assertEquals(1, read.getIndices().size());
+        assertFalse(read.hasUndecodedFields());
+        assertEquals("owner_one", read.getMetaData(Case.INDEX_OWNER_ID));
+    }
+
+    @Test
+    public void testUndecodedCaseSerializesUnchanged() {
+        Case read = storage.read(original.getID());
+        assertTrue(Arrays.equals(ExtUtil.serialize(original), ExtUtil.serialize(read)));
+
+        read = storage.read(original.getID());
+        read.setProperty("age", "32");
+        storage.write(read);
+        Case updated = storage.read(original.getID());
+        assertEquals("32", updated.getProperty("age"));
+        assertEquals("owner_one", updated.getUserId());
+    }
+}
@@ -1,10 +1,12 @@
 package org.commcare.cases.test;
 
+import org.commcare.cases.query.AggregatePushdown;
 import org.commcare.test.utilities.CaseTestUtils;
 import org.commcare.test.utilities.TestProfileConfiguration;
 import org.commcare.util.mocks.MockDataUtils;
 import org.commcare.util.mocks.MockUserDataSandbox;
 import org.javarosa.core.model.condition.EvaluationContext;
+import org.javarosa.model.xform.XPathReference;
 import org.javarosa.xpath.parser.XPathSyntaxException;
 import org.junit.Assert;
 import org.junit.Before;
@@ -106,4 +108,58 @@ public class CaseXPathQueryTest {
         Assert.assertTrue(CaseTestUtils.xpathEvalAndCompare(ec,
                 "count(instance('casedb')/casedb/case[@case_id != 'case_one'])", 2.0));
     }
+
+    @Test
+    public void caseQueryIndexedComparisonTest() throws Exception {
+        config.parseIntoSandbox(
+                this.getClass().getResourceAsStream("/case_query_testing.xml"), sandbox);
+        EvaluationContext ec =
+                MockDataUtils.buildContextWithInstance(sandbox, "casedb",
+                        CaseTestUtils.CASE_INSTANCE);
+
+        CaseTestUtils.xpathEvalAndAssert(ec,
+                "count(instance('casedb')/casedb/case[@case_type = 'retain_test'][@case_id != 'case_one'])", 2.0);
+        CaseTestUtils.xpathEvalAndAssert(ec,
+                "join(' ', instance('casedb')/casedb/case[starts-with(@case_id, 'case_t')]/@case_id)",
+                "case_three case_two");
+        CaseTestUtils.xpathEvalAndAssert(ec,
+                "count(instance('casedb')/casedb/case[@case_id > 1])", 0.0);
+        CaseTestUtils.xpathEvalAndAssert(ec,
+                "count(instance('casedb')/casedb/case[@status != 'closed'][starts-with(@case_id, 'case_')][case_name = 'case'])", 2.0);
+    }
+
+    @Test
+    public void caseQueryIndexedCombinationTest() throws Exception {
+        config.parseIntoSandbox(
+                this.getClass().getResourceAsStream("/case_query_testing.xml"), sandbox);
+        EvaluationContext ec =
+                MockDataUtils.buildContextWithInstance(sandbox, "casedb",
+                        CaseTestUtils.CASE_INSTANCE);
+
+        CaseTestUtils.xpathEvalAndAssert(ec,
+                "count(instance('casedb')/casedb/case[@case_id = 'case_one' or @case_id = 'case_three'])", 2.0);
+        CaseTestUtils.xpathEvalAndAssert(ec,
+                "count(instance('casedb')/casedb/case[@case_type = 'retain_test' and @status = 'closed'])", 0.0);
+        CaseTestUtils.xpathEvalAndAssert(ec,
+                "count(instance('casedb')/casedb/case[@case_type = 'retain_test' and (@case_id = 'case_two' or starts-with(@owner_id, 'test'))])", 3.0);
+    }
+
+    @Test
+    public void caseCountAnsweredFromStorage() throws Exception {
+        config.parseIntoSandbox(
+                this.getClass().getResourceAsStream("/case_query_testing.xml"), sandbox);
+        EvaluationContext ec =
+                MockDataUtils.buildContextWithInstance(sandbox, "casedb",
+                        CaseTestUtils.CASE_INSTANCE);
+
+        String nodeset = "instance('casedb')/casedb/case[@case_type = 'retain_test'][@status = 'open']";
+        CaseTestUtils.xpathEvalAndAssert(ec, "count(" + nodeset + ")", 3.0);
+        Assert.assertEquals(3, AggregatePushdown.count(XPathReference.getPathExpr(nodeset).getReference(),
+                ec.getInstance("casedb"), ec));
+
+        // Positional predicates need the references, so aren't answered from storage
+        Assert.assertEquals(-1, AggregatePushdown.count(
+                XPathReference.getPathExpr("instance('casedb')/casedb/case[@case_type = 'retain_test'][1]").getReference(),
+                ec.getInstance("casedb"), ec));
+    }
 }
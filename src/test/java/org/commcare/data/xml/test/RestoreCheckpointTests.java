@@ -0,0 +1,239 @@
+package org.commcare.data.xml.test;
+
+import org.commcare.core.network.bitcache.BitCache;
+import org.commcare.core.network.bitcache.BitCacheFactory;
+import org.commcare.core.parse.CommCareTransactionParserFactory;
+import org.commcare.data.xml.DataModelPullParser;
+import org.commcare.data.xml.RestoreCheckpoint;
+import org.commcare.data.xml.RestoreCheckpointer;
+import org.commcare.util.mocks.MockDataUtils;
+import org.commcare.util.mocks.MockUserDataSandbox;
+import org.javarosa.core.io.StreamsUtil;
+import org.javarosa.core.services.storage.IStorageIterator;
+import org.javarosa.core.services.storage.IStorageUtilityIndexed;
+import org.javarosa.core.util.externalizable.ExtUtil;
+import org.javarosa.core.util.externalizable.PrototypeFactory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that a restore which fails partway through can be resumed from its last checkpoint
+ * and end up with the same storage as a restore which never failed.
+ */
+public class RestoreCheckpointTests {
+
+    private static final String RESTORE = "/app_performance/user_restore.xml";
+
+    @Rule
+    public TemporaryFolder cacheDir = new TemporaryFolder();
+
+    @Test
+    public void resumedRestoreMatchesUninterruptedRestore() throws Exception {
+        byte[] payload = StreamsUtil.inputStreamToByteArray(getClass().getResourceAsStream(RESTORE));
+        BitCache cache = cache(payload);
+
+        for (boolean bulk : new boolean[]{false, true}) {
+            MockUserDataSandbox uninterrupted = MockDataUtils.getStaticStorage();
+            parse(cache.retrieveCache(), uninterrupted, bulk, null);
+
+            MockUserDataSandbox interrupted = MockDataUtils.getStaticStorage();
+            ArrayList<RestoreCheckpoint> checkpoints = new ArrayList<>();
+            try {
+                parse(new FailingInputStream(cache.retrieveCache(), payload.length * 3 / 4),
+                        interrupted, bulk, new RestoreCheckpointer(checkpoints::add, 64 * 1024));
+                fail("Restore should have failed");
+            } catch (IOException e) {
+                // expected
+            }
+
+            assertTrue(checkpoints.size() > 1);
+            RestoreCheckpoint last = roundTrip(checkpoints.get(checkpoints.size() - 1));
+            assertTrue(last.getByteOffset() < payload.length * 3 / 4);
+            assertTrue(last.getTransactionCount() > 0);
+            assertEquals('>', payload[(int)last.getByteOffset() - 1]);
+
+            RestoreCheckpointer resumed = new RestoreCheckpointer(checkpoints::add, 64 * 1024, last);
+            parse(cache.retrieveCache(last.getByteOffset()), interrupted, bulk, resumed);
+            assertTrue(resumed.getCheckpointCount() > 0);
+
+            String description = bulk ? "bulk" : "not bulk";
+            assertSameRecords(description, uninterrupted.getCaseStorage(), interrupted.getCaseStorage());
+            assertSameRecords(description, uninterrupted.getUserStorage(), interrupted.getUserStorage());
+            assertSameRecords(description, uninterrupted.getUserFixtureStorage(), interrupted.getUserFixtureStorage());
+            assertEquals(description, uninterrupted.getSyncToken(), interrupted.getSyncToken());
+        }
+        cache.release();
+    }
+
+    @Test
+    public void checkpointsFallBetweenTopLevelElements() throws Exception {
+        String restore = "<?xml version=\"1.0\"?>\n" +
+                "<!-- <not-an-element> -->\n" +
+                "<OpenRosaResponse xmlns=\"http://openrosa.org/http/response\" note='a > b'>" +
+                "<message nature=\"x/y\">Restore <![CDATA[</message>]]> done</message>" +
+                "<!-- </message> -->" +
+                "<Sync xmlns=\"http://commcarehq.org/sync\"><restore_id>abc</restore_id></Sync>" +
+                "<empty attr=\"/\"/>" +
+                "<?instruction </Sync> ?>" +
+                "<Sync xmlns=\"http://commcarehq.org/sync\"><restore_id>def</restore_id></Sync>" +
+                "</OpenRosaResponse>";
+        byte[] payload = restore.getBytes("UTF-8");
+        ArrayList<RestoreCheckpoint> checkpoints = new ArrayList<>();
+        MockUserDataSandbox sandbox = MockDataUtils.getStaticStorage();
+        parse(new ByteArrayInputStream(payload), sandbox, false, new RestoreCheckpointer(checkpoints::add, 1));
+
+        assertEquals(4, checkpoints.size());
+        assertEquals(restore.indexOf("</message><!--") + "</message>".length(), checkpoints.get(0).getByteOffset());
+        assertEquals(restore.indexOf("</Sync>") + "</Sync>".length(), checkpoints.get(1).getByteOffset());
+        assertEquals(restore.indexOf("<?instruction"), checkpoints.get(2).getByteOffset());
+        assertEquals(restore.lastIndexOf("</OpenRosaResponse>"), checkpoints.get(3).getByteOffset());
+        assertEquals(1, checkpoints.get(1).getTransactionCount());
+        assertEquals("def", sandbox.getSyncToken());
+
+        // Picking up after the first Sync block only applies the second one
+        RestoreCheckpoint afterFirstSync = checkpoints.get(1);
+        MockUserDataSandbox resumed = MockDataUtils.getStaticStorage();
+        InputStream remainder = new ByteArrayInputStream(payload, (int)afterFirstSync.getByteOffset(),
+                payload.length - (int)afterFirstSync.getByteOffset());
+        RestoreCheckpointer checkpointer = new RestoreCheckpointer(checkpoints::add, 1, afterFirstSync);
+        parse(remainder, resumed, false, checkpointer);
+        assertEquals("def", resumed.getSyncToken());
+        assertEquals(2, checkpointer.getCheckpointCount());
+        RestoreCheckpoint last = checkpoints.get(checkpoints.size() - 1);
+        assertEquals(checkpoints.get(3).getByteOffset(), last.getByteOffset());
+        assertEquals(checkpoints.get(3).getTransactionCount(), last.getTransactionCount());
+        assertEquals(4, last.getElementCount());
+    }
+
+    @Test
+    public void fileCacheReadsFromAnyOffset() throws Exception {
+        byte[] payload = new byte[1000];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte)(i * 31);
+        }
+        BitCache cache = cache(payload);
+        for (int offset : new int[]{0, 1, 15, 16, 17, 500, 999, 1000}) {
+            byte[] read = StreamsUtil.inputStreamToByteArray(cache.retrieveCache(offset));
+            assertEquals(payload.length - offset, read.length);
+            for (int i = 0; i < read.length; i++) {
+                assertEquals(payload[offset + i], read[i]);
+            }
+        }
+        cache.release();
+    }
+
+    @Test
+    public void cachesWhichCantSeekReadFromAnyOffset() throws Exception {
+        final byte[] payload = new byte[100];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte)i;
+        }
+        BitCache cache = new BitCache() {
+            @Override
+            public void initializeCache() {
+            }
+
+            @Override
+            public OutputStream getCacheStream() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public InputStream retrieveCache() {
+                // Skips nothing, like some streams do
+                return new FilterInputStream(new ByteArrayInputStream(payload)) {
+                    @Override
+                    public long skip(long n) {
+                        return 0;
+                    }
+                };
+            }
+
+            @Override
+            public void release() {
+            }
+        };
+        for (int offset : new int[]{0, 1, 50, 100, 150}) {
+            byte[] read = StreamsUtil.inputStreamToByteArray(cache.retrieveCache(offset));
+            assertEquals(Math.max(0, payload.length - offset), read.length);
+            for (int i = 0; i < read.length; i++) {
+                assertEquals(payload[offset + i], read[i]);
+            }
+        }
+    }
+
+    private BitCache cache(byte[] payload) throws IOException {
+        BitCache cache = BitCacheFactory.getCache(cacheDir::getRoot, -1);
+        cache.initializeCache();
+        OutputStream out = cache.getCacheStream();
+        out.write(payload);
+        out.close();
+        return cache;
+    }
+
+    private static void parse(InputStream stream, MockUserDataSandbox sandbox, boolean bulk,
+                              RestoreCheckpointer checkpointer) throws Exception {
+        CommCareTransactionParserFactory factory = new CommCareTransactionParserFactory(sandbox, bulk);
+        new DataModelPullParser(stream, factory, true, true, null, checkpointer).parse();
+    }
+
+    private static RestoreCheckpoint roundTrip(RestoreCheckpoint checkpoint) throws Exception {
+        return (RestoreCheckpoint)ExtUtil.deserialize(ExtUtil.serialize(checkpoint),
+                RestoreCheckpoint.class, new PrototypeFactory());
+    }
+
+    private static void assertSameRecords(String description, IStorageUtilityIndexed expected,
+                                          IStorageUtilityIndexed actual) {
+        assertEquals(description, expected.getNumRecords(), actual.getNumRecords());
+        IStorageIterator actualRecords = actual.iterate();
+        for (IStorageIterator it = expected.iterate(); it.hasMore(); ) {
+            assertEquals(description, it.peekID(), actualRecords.peekID());
+            assertArrayEquals(description, ExtUtil.serialize(it.nextRecord()),
+                    ExtUtil.serialize(actualRecords.nextRecord()));
+        }
+    }
+
+    /**
+     * Fails once a given number of bytes have been read, as a dropped connection or a crash
+     * would cut a restore short
+     */
+    private static class FailingInputStream extends FilterInputStream {
+        private long remaining;
+
+        FailingInputStream(InputStream in, long failAfter) {
+            super(in);
+            this.remaining = failAfter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining-- <= 0) {
+                throw new IOException("Restore interrupted");
+            }
+            return super.read();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (remaining <= 0) {
+                throw new IOException("Restore interrupted");
+            }
+            int count = super.read(buffer, offset, (int)Math.min(length, remaining));
+            remaining -= count;
+            return count;
+        }
+    }
+}
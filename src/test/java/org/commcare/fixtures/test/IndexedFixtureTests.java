@@ -1,14 +1,22 @@
 package org.commcare.fixtures.test;
 
+import org.commcare.cases.model.StorageIndexedTreeElementModel;
+import org.commcare.cases.query.AggregatePushdown;
 import org.commcare.cases.query.QueryContext;
 import org.commcare.cases.query.ScopeLimitedReferenceRequestCache;
+import org.commcare.core.parse.CommCareTransactionParserFactory;
 import org.commcare.core.parse.ParseUtils;
 import org.commcare.test.utilities.CaseTestUtils;
 import org.commcare.util.mocks.MockDataUtils;
 import org.commcare.util.mocks.MockUserDataSandbox;
 import org.javarosa.core.model.condition.EvaluationContext;
+import org.javarosa.core.model.instance.TreeReference;
+import org.javarosa.core.services.storage.IStorageIterator;
+import org.javarosa.core.services.storage.IStorageUtilityIndexed;
+import org.javarosa.core.util.externalizable.ExtUtil;
 import org.javarosa.xml.util.InvalidStructureException;
 import org.javarosa.xml.util.UnfullfilledRequirementsException;
+import org.javarosa.model.xform.XPathReference;
 import org.javarosa.xpath.XPathParseTool;
 import org.javarosa.xpath.analysis.TreeReferenceAccumulatingAnalyzer;
 import org.javarosa.xpath.expr.XPathExpression;
@@ -19,7 +27,9 @@ import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 /**
  * @author Phillip Mates (pmates@dimagi.com)
@@ -83,6 +93,61 @@ public class IndexedFixtureTests {
         CaseTestUtils.xpathEvalAndAssert(ec, "count(instance('testfixture')/test/entry[@type = 'a'][value = 1])", 40.0);
     }
 
+    @Test
+    public void streamedFixtureMatchesParsedFixture() throws XPathSyntaxException, UnfullfilledRequirementsException,
+            XmlPullParserException, IOException, InvalidStructureException {
+        ParseUtils.parseIntoSandbox(getClass().getResourceAsStream("/indexed_fixture/large_body.xml"), sandbox);
+
+        MockUserDataSandbox streamedSandbox = MockDataUtils.getStaticStorage();
+        // a batch size that doesn't divide the number of entries
+        parseStreaming("/indexed_fixture/large_body.xml", streamedSandbox, 7, true);
+
+        assertSameRecords(sandbox.getIndexedFixtureStorage("testfixture"),
+                streamedSandbox.getIndexedFixtureStorage("testfixture"));
+        assertEquals(1, streamedSandbox.getUserFixtureStorage().getNumRecords());
+        assertArrayEquals(ExtUtil.serialize(sandbox.getUserFixtureStorage().iterate().nextRecord().getRoot()),
+                ExtUtil.serialize(streamedSandbox.getUserFixtureStorage().iterate().nextRecord().getRoot()));
+
+        EvaluationContext ec =
+                MockDataUtils.buildContextWithInstance(streamedSandbox, "testfixture", "jr://fixture/testfixture");
+        CaseTestUtils.xpathEvalAndAssert(ec, "count(instance('testfixture')/test/entry[@type = 'a'][value = 1])", 40.0);
+    }
+
+    @Test
+    public void streamedFixtureWithoutFullCopy() throws XPathSyntaxException, UnfullfilledRequirementsException,
+            XmlPullParserException, IOException, InvalidStructureException {
+        ParseUtils.parseIntoSandbox(getClass().getResourceAsStream("/indexed_fixture/indexed-fixture.xml"), sandbox);
+        assertEquals(1, sandbox.getUserFixtureStorage().getNumRecords());
+
+        parseStreaming("/indexed_fixture/indexed-fixture-delete.xml", sandbox, 2, false);
+        assertEquals(3, sandbox.getIndexedFixtureStorage("commtrack:products").getNumRecords());
+        // the copy stored by the first sync shouldn't outlive it
+        assertEquals(0, sandbox.getUserFixtureStorage().getNumRecords());
+
+        EvaluationContext ec =
+                MockDataUtils.buildContextWithInstance(sandbox, "products", CaseTestUtils.FIXTURE_INSTANCE_PRODUCT);
+        CaseTestUtils.xpathEvalAndAssert(ec, "instance('products')/products/product[@id = 'a6d16035b98f6f962a6538bd927cefb3']/name", "CU");
+        CaseTestUtils.xpathEvalAndAssert(ec, "instance('products')/products/product[@id = 'f895be4959f9a8a66f57c340aac461b4']/name", "");
+
+        parseStreaming("/indexed_fixture/indexed-fixture-empty.xml", sandbox, 2, false);
+        assertEquals(0, sandbox.getIndexedFixtureStorage("commtrack:products").getNumRecords());
+    }
+
+    private void parseStreaming(String resource, MockUserDataSandbox sandbox, int batchSize, boolean storeFullCopies)
+            throws UnfullfilledRequirementsException, XmlPullParserException, IOException, InvalidStructureException {
+        CommCareTransactionParserFactory factory = new CommCareTransactionParserFactory(sandbox);
+        factory.enableIndexedFixtureStreaming(batchSize, storeFullCopies);
+        ParseUtils.parseIntoSandbox(getClass().getResourceAsStream(resource), factory, false, false);
+    }
+
+    private static void assertSameRecords(IStorageUtilityIndexed<StorageIndexedTreeElementModel> expected,
+                                          IStorageUtilityIndexed<StorageIndexedTreeElementModel> actual) {
+        assertEquals(expected.getNumRecords(), actual.getNumRecords());
+        IStorageIterator<StorageIndexedTreeElementModel> actualRecords = actual.iterate();
+        for (IStorageIterator<StorageIndexedTreeElementModel> it = expected.iterate(); it.hasMore(); ) {
+            assertArrayEquals(ExtUtil.serialize(it.nextRecord()), ExtUtil.serialize(actualRecords.nextRecord()));
+        }
+    }
 
     @Test(expected = InvalidStructureException.class)
     public void errorOnSchemaAfterFixtureTest() throws XPathSyntaxException, UnfullfilledRequirementsException,
@@ -138,4 +203,36 @@ public class IndexedFixtureTests {
                 MockDataUtils.buildContextWithInstance(sandbox, "products", CaseTestUtils.FIXTURE_INSTANCE_PRODUCT);
         CaseTestUtils.xpathEvalAndAssert(ec, "sort(join(' ', instance('products')/products/product[selected('a6d16035b98f6f962a6538bd927cefb3 31ab899368d38c2d0207fe80c00fb8c1', @id)]/name))", "CU DIU");
     }
+
+    @Test
+    public void aggregatesAnsweredFromIndices() throws XPathSyntaxException, UnfullfilledRequirementsException,
+            XmlPullParserException, IOException, InvalidStructureException {
+        ParseUtils.parseIntoSandbox(getClass().getResourceAsStream("/indexed_fixture/aggregate_fixture.xml"), sandbox);
+
+        EvaluationContext ec =
+                MockDataUtils.buildContextWithInstance(sandbox, "prices", "jr://fixture/prices");
+        CaseTestUtils.xpathEvalAndAssert(ec, "count(instance('prices')/prices/price[@type = 'drug'])", 3.0);
+        CaseTestUtils.xpathEvalAndAssert(ec, "sum(instance('prices')/prices/price[@type = 'drug']/cost)", 42.5);
+        CaseTestUtils.xpathEvalAndAssert(ec, "min(instance('prices')/prices/price[@type = 'drug']/cost)", 2.5);
+        CaseTestUtils.xpathEvalAndAssert(ec, "max(instance('prices')/prices/price[cost > 5]/cost)", 45.0);
+        CaseTestUtils.xpathEvalAndAssert(ec, "sum(instance('prices')/prices/price[@type = 'device']/cost)", Double.NaN);
+
+        assertEquals(3, AggregatePushdown.count(ref("instance('prices')/prices/price[@type = 'drug']"),
+                ec.getInstance("prices"), ec));
+        assertEquals(3, AggregatePushdown.values(ref("instance('prices')/prices/price[@type = 'drug']/cost"),
+                ec.getInstance("prices"), ec).length);
+
+        // Name isn't indexed, so neither filtering nor reading on it can be answered from storage
+        assertEquals(-1, AggregatePushdown.count(ref("instance('prices')/prices/price[name = 'Zinc']"),
+                ec.getInstance("prices"), ec));
+        assertNull(AggregatePushdown.values(ref("instance('prices')/prices/price[@type = 'drug']/name"),
+                ec.getInstance("prices"), ec));
+        // A blank index value might be an empty element or a missing one, which sum treats differently
+        assertNull(AggregatePushdown.values(ref("instance('prices')/prices/price[@type = 'device']/cost"),
+                ec.getInstance("prices"), ec));
+    }
+
+    private static TreeReference ref(String path) {
+        return XPathReference.getPathExpr(path).getReference();
+    }
 }
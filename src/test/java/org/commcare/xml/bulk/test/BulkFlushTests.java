@@ -0,0 +1,153 @@
+package org.commcare.xml.bulk.test;
+
+import org.commcare.cases.model.Case;
+import org.commcare.core.parse.CommCareTransactionParserFactory;
+import org.commcare.core.parse.ParseUtils;
+import org.commcare.data.xml.TransactionParser;
+import org.commcare.data.xml.TransactionParserFactory;
+import org.commcare.modern.util.PerformanceTuningUtil;
+import org.commcare.util.mocks.MockDataUtils;
+import org.commcare.util.mocks.MockUserDataSandbox;
+import org.commcare.xml.bulk.BulkFlushStats;
+import org.commcare.xml.bulk.LinearBulkProcessingCaseXmlParser;
+import org.javarosa.core.services.storage.IStorageUtilityIndexed;
+import org.junit.Test;
+import org.kxml2.io.KXmlParser;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for when bulk parsers process their buffers, and how they size their batches.
+ */
+public class BulkFlushTests {
+
+    private static final String RESTORE = "/app_performance/user_restore.xml";
+
+    @Test
+    public void flushesOnMemory() throws Exception {
+        TimedParser[] created = new TimedParser[1];
+        MockUserDataSandbox sandbox = restore(created, parser -> {
+            parser.setMemoryTrigger(10 * 1024);
+            return parser;
+        });
+
+        BulkFlushStats stats = created[0].getFlushStats();
+        assertTrue(stats.getMemoryTriggeredFlushCount() > 1);
+        assertEquals(0, stats.getCountTriggeredFlushCount());
+        assertEquals(sandbox.getCaseStorage().getNumRecords(), stats.getFlushedElementCount());
+        assertTrue(stats.getLargestBacklogBytes() > 10 * 1024);
+        assertTrue(stats.getFlushedBytes() > stats.getLargestBacklogBytes());
+        assertEquals(sequentialCaseCount(), sandbox.getCaseStorage().getNumRecords());
+    }
+
+    @Test
+    public void growsBatchesWhileWritesAmortize() throws Exception {
+        TimedParser[] created = new TimedParser[1];
+        restore(created, parser -> {
+            parser.startAt(50);
+            // A fixed cost for each write, so larger batches cost less per case
+            parser.writeMillis = n -> 100;
+            return parser;
+        });
+
+        BulkFlushStats stats = created[0].getFlushStats();
+        assertTrue(stats.getCountTriggeredFlushCount() > 2);
+        assertTrue(stats.toString(), stats.getBatchSize() > 100);
+    }
+
+    @Test
+    public void shrinksBatchesWhenWritesSlowDown() throws Exception {
+        TimedParser[] created = new TimedParser[1];
+        restore(created, parser -> {
+            parser.startAt(100);
+            // A cost which grows faster than the batch, so smaller batches cost less per case
+            parser.writeMillis = n -> n * n / 100;
+            return parser;
+        });
+
+        // Batches first grow to 200, then turn around and shrink again
+        ArrayList<Integer> sizes = created[0].batchSizes;
+        assertTrue(created[0].getFlushStats().getCountTriggeredFlushCount() > 3);
+        assertTrue("Batch sizes were " + sizes, sizes.contains(201));
+        assertTrue("Batch sizes were " + sizes, created[0].getFlushStats().getBatchSize() <= 100);
+    }
+
+    @Test
+    public void heapGuessesUseMegabytes() {
+        long mb = 1024 * 1024;
+        assertEquals(2500, PerformanceTuningUtil.guessLargestSupportedBulkCaseFetchSizeFromHeap(64 * mb));
+        assertEquals(7500, PerformanceTuningUtil.guessLargestSupportedBulkCaseFetchSizeFromHeap(100 * mb));
+        assertEquals(15000, PerformanceTuningUtil.guessLargestSupportedBulkCaseFetchSizeFromHeap(1024 * mb));
+        assertEquals(50000, PerformanceTuningUtil.guessLargestSupportedBulkCaseFetchSizeFromHeap(1536 * mb));
+        assertEquals(2 * mb, PerformanceTuningUtil.guessLargestSupportedBulkBacklogFromHeap(64 * mb));
+        assertEquals(8 * mb, PerformanceTuningUtil.guessLargestSupportedBulkBacklogFromHeap(100 * mb));
+    }
+
+    private int sequentialCaseCount() throws Exception {
+        MockUserDataSandbox sandbox = MockDataUtils.getStaticStorage();
+        ParseUtils.parseIntoSandbox(getClass().getResourceAsStream(RESTORE), sandbox);
+        return sandbox.getCaseStorage().getNumRecords();
+    }
+
+    private MockUserDataSandbox restore(final TimedParser[] created, final ParserSetup setup)
+            throws Exception {
+        final MockUserDataSandbox sandbox = MockDataUtils.getStaticStorage();
+        CommCareTransactionParserFactory factory = new CommCareTransactionParserFactory(sandbox, true) {
+            @Override
+            public TransactionParserFactory getBulkCaseParser() {
+                return new TransactionParserFactory() {
+                    @Override
+                    public TransactionParser getParser(KXmlParser parser) {
+                        if (created[0] == null) {
+                            created[0] = setup.setUp(new TimedParser(parser, sandbox.getCaseStorage()));
+                        }
+                        return created[0];
+                    }
+                };
+            }
+        };
+        ParseUtils.parseIntoSandbox(getClass().getResourceAsStream(RESTORE), factory, true, true);
+        return sandbox;
+    }
+
+    private interface ParserSetup {
+        TimedParser setUp(TimedParser parser);
+    }
+
+    private interface WriteCost {
+        int millisFor(int caseCount);
+    }
+
+    private static class TimedParser extends LinearBulkProcessingCaseXmlParser {
+        WriteCost writeMillis = n -> 0;
+        final ArrayList<Integer> batchSizes = new ArrayList<>();
+
+        TimedParser(KXmlParser parser, IStorageUtilityIndexed storage) {
+            super(parser, storage);
+        }
+
+        void startAt(int batchSize) {
+            bulkTrigger = batchSize;
+        }
+
+        void setMemoryTrigger(long bytes) {
+            setBulkProcessMemoryTrigger(bytes);
+        }
+
+        @Override
+        protected void performBulkWrite(LinkedHashMap<String, Case> writeLog) throws IOException {
+            batchSizes.add(writeLog.size());
+            try {
+                Thread.sleep(writeMillis.millisFor(writeLog.size()));
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            super.performBulkWrite(writeLog);
+        }
+    }
+}
@@ -1,10 +1,16 @@
 package org.javarosa.core.model.instance.test;
 
 import org.javarosa.core.model.instance.TreeElement;
+import org.javarosa.core.model.instance.TreeReference;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.Random;
+import java.util.Vector;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 
 /**
  * Tests the functionality of TreeElements
@@ -35,4 +41,87 @@ public class TreeElementTests {
         assertEquals(childOne, getOne);
         assertEquals(childTwo, getTwo);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testWideNodeLookups() {
+        TreeElement items = new TreeElement("items");
+        TreeElement template = new TreeElement("item", TreeReference.INDEX_TEMPLATE);
+        items.addChild(new TreeElement("header"));
+        for (int i = 0; i < 1000; i++) {
+            items.addChild(new TreeElement("item", i));
+        }
+        items.addChild(template);
+        items.addChild(new TreeElement("footer"));
+
+        assertSame(template, items.getChild("item", TreeReference.INDEX_TEMPLATE));
+        assertSame(items.getChildAt(1), template);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, items.getChild("item", i).getMult());
+        }
+        assertNull(items.getChild("item", 1000));
+        assertNull(items.getChild("missing", 0));
+        assertEquals(1000, items.getChildMultiplicity("item"));
+        assertEquals(1000, items.getChildrenWithName("item").size());
+        assertSame(items.getChildAt(1002), items.getChild("footer", 0));
+    }
+
+    /**
+     * Changes a wide node every way its children can be changed, and checks that looking them
+     * up by name always agrees with scanning them.
+     */
+    @Test
+    public void testWideNodeLookupsFollowChanges() {
+        Random random = new Random(16);
+        String[] names = {"item", "item", "item", "other", "row"};
+        TreeElement node = new TreeElement("node");
+
+        for (int step = 0; step < 3000; step++) {
+            int action = random.nextInt(10);
+            if (action < 5 || node.getNumChildren() < 20) {
+                String name = names[random.nextInt(names.length)];
+                node.addChild(new TreeElement(name, node.getChildMultiplicity(name)));
+            } else if (action == 5) {
+                String name = names[random.nextInt(names.length)];
+                if (node.getChild(name, TreeReference.INDEX_TEMPLATE) == null) {
+                    node.addChild(new TreeElement(name, TreeReference.INDEX_TEMPLATE));
+                }
+            } else if (action == 6) {
+                TreeElement child = node.getChildAt(random.nextInt(node.getNumChildren()));
+                child.setMult(random.nextInt(5) == 0 ? child.getMult() + 1 : child.getMult());
+            } else if (action == 7) {
+                node.getChildAt(random.nextInt(node.getNumChildren())).setName(names[random.nextInt(names.length)]);
+            } else if (action == 8) {
+                node.removeChildAt(node.getNumChildren() - 1);
+            } else {
+                node.removeChildAt(random.nextInt(node.getNumChildren()));
+            }
+
+            for (String name : new String[]{"item", "other", "row", "missing"}) {
+                Vector<TreeElement> scanned = new Vector<>();
+                for (int i = 0; i < node.getNumChildren(); i++) {
+                    TreeElement child = node.getChildAt(i);
+                    if (child.getName().equals(name) && child.getMult() != TreeReference.INDEX_TEMPLATE) {
+                        scanned.addElement(child);
+                    }
+                }
+                assertEquals(scanned, node.getChildrenWithName(name));
+                assertEquals(scanned.size(), node.getChildMultiplicity(name));
+                int[] mults = {TreeReference.INDEX_TEMPLATE, 0, 1, random.nextInt(scanned.size() + 1),
+                        scanned.size() - 1, scanned.size()};
+                for (int mult : mults) {
+                    assertSame(name + "[" + mult + "] at step " + step, scan(node, name, mult), node.getChild(name, mult));
+                }
+            }
+        }
+    }
+
+    private static TreeElement scan(TreeElement node, String name, int mult) {
+        for (int i = 0; i < node.getNumChildren(); i++) {
+            TreeElement child = node.getChildAt(i);
+            if (child.getName().equals(name) && child.getMult() == mult) {
+                return child;
+            }
+        }
+        return null;
+    }
+}
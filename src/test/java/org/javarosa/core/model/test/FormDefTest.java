@@ -20,6 +20,7 @@ import org.javarosa.core.model.instance.test.DummyInstanceInitializationFactory;
 import org.javarosa.core.model.utils.test.PersistableSandbox;
 import org.javarosa.core.test.FormParseInit;
 import org.javarosa.form.api.FormEntryController;
+import org.javarosa.model.xform.XPathReference;
 import org.javarosa.test_utils.ExprEvalUtils;
 import org.javarosa.xpath.parser.XPathSyntaxException;
 import org.junit.Assert;
@@ -615,6 +616,97 @@ public class FormDefTest {
         } while (fec.stepToNextEvent() != FormEntryController.EVENT_END_OF_FORM);
     }
 
+    /**
+     * With dependency tracking enabled, a change should only re-run a calculation at the repeat
+     * entries which read the changed value, and the results should match re-running it
+     * everywhere.
+     */
+    @Test
+    public void testDependencyTracking() throws Exception {
+        int[] untrackedCount = new int[1];
+        FormDef untracked = initCountingForm(false, untrackedCount);
+        int[] trackedCount = new int[1];
+        FormDef tracked = initCountingForm(true, trackedCount);
+        assertEquals(3, untrackedCount[0]);
+        assertEquals(3, trackedCount[0]);
+
+        // Every row's cost is triggered by a price change, but only one row reads the price
+        setValueAt(untracked, "/data/prices/item", 1, "5");
+        setValueAt(tracked, "/data/prices/item", 1, "5");
+        assertEquals(6, untrackedCount[0]);
+        assertEquals(4, trackedCount[0]);
+        assertTotals(9.0, untracked, tracked);
+
+        // Pointing a row at another price re-reads the price for that row
+        setValueAt(untracked, "/data/rows/code", 0, "c");
+        setValueAt(tracked, "/data/rows/code", 0, "c");
+        assertEquals(7, untrackedCount[0]);
+        assertEquals(5, trackedCount[0]);
+        assertTotals(11.0, untracked, tracked);
+
+        // The first price is no longer read by any row
+        setValueAt(untracked, "/data/prices/item", 0, "7");
+        setValueAt(tracked, "/data/prices/item", 0, "7");
+        assertEquals(10, untrackedCount[0]);
+        assertEquals(5, trackedCount[0]);
+        assertTotals(11.0, untracked, tracked);
+
+        // Relevancy changes still reach the nodesets which read the affected nodes
+        setValueAt(untracked, "/data/show_costs", 0, "no");
+        setValueAt(tracked, "/data/show_costs", 0, "no");
+        assertTotals(0.0, untracked, tracked);
+        setValueAt(untracked, "/data/show_costs", 0, "yes");
+        setValueAt(tracked, "/data/show_costs", 0, "yes");
+        assertTotals(11.0, untracked, tracked);
+    }
+
+    private static FormDef initCountingForm(boolean trackDependencies, final int[] evaluationCount) {
+        FormParseInit fpi = new FormParseInit("/xform_tests/test_dependency_tracking.xml");
+        FormDef fd = fpi.getFormDef();
+        fd.exprEvalContext.addFunctionHandler(new IFunctionHandler() {
+            @Override
+            public String getName() {
+                return "counted";
+            }
+
+            @Override
+            public Object eval(Object[] args, EvaluationContext ec) {
+                evaluationCount[0]++;
+                return args[0];
+            }
+
+            @Override
+            public Vector getPrototypes() {
+                Vector<Class[]> p = new Vector<>();
+                p.addElement(new Class[]{Double.class});
+                return p;
+            }
+
+            @Override
+            public boolean rawArgs() {
+                return false;
+            }
+        });
+        if (trackDependencies) {
+            fd.enableDependencyTracking();
+        }
+        fd.initialize(true, null);
+        return fd;
+    }
+
+    private static void setValueAt(FormDef fd, String path, int index, String value) {
+        TreeReference ref = fd.getEvaluationContext()
+                .expandReference(XPathReference.getPathExpr(path).getReference()).elementAt(index);
+        fd.setValue(new StringData(value), ref);
+    }
+
+    private static void assertTotals(double expected, FormDef... forms) throws XPathSyntaxException {
+        for (FormDef fd : forms) {
+            ExprEvalUtils.assertEqualsXpathEval("Check total cost",
+                    expected, "/data/total", fd.getEvaluationContext());
+        }
+    }
+
     @Test
     public void testItemsetPopulationAndFilter() {
         FormParseInit fpi = new FormParseInit("/xform_tests/itemset_population_test.xhtml");
@@ -0,0 +1,552 @@
+package org.javarosa.core.model.utils.test;
+
+import org.javarosa.core.model.utils.DateUtils;
+import org.javarosa.core.model.utils.DateUtils.DateFields;
+import org.javarosa.core.util.DataUtil;
+import org.javarosa.core.util.MathUtils;
+import org.javarosa.test_utils.MockTimezoneProvider;
+import org.junit.After;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares DateUtils against the Calendar and String.split based implementation it replaced,
+ * over randomly generated times and strings, in timezones with awkward transitions.
+ */
+public class DateUtilsCompatibilityTest {
+
+    private static final String[] ZONES = {
+            "UTC", "GMT+0230", "America/New_York", "America/Sao_Paulo", "Europe/London",
+            "Asia/Kolkata", "Asia/Kathmandu", "Australia/Lord_Howe", "Pacific/Apia", "Pacific/Kiritimati"
+    };
+
+    private static final int[] PROVIDER_OFFSETS = {-1, 0, 3600000, -5 * 3600000 - 1800000};
+
+    private static final long YEAR_IN_MS = 365L * DateUtils.DAY_IN_MS;
+
+    private final Random random = new Random(20181017);
+
+    @After
+    public void tearDown() {
+        TimeZone.setDefault(null);
+        DateUtils.resetTimezoneProvider();
+    }
+
+    @Test
+    public void testFieldsAndDates() {
+        forEachSetting(new Check() {
+            @Override
+            public void run(String zone) {
+                for (int i = 0; i < 500; i++) {
+                    Date d = new Date(randomTime());
+                    assertFieldsEqual(d, Legacy.getFields(d, null), DateUtils.getFields(d));
+                    assertFieldsEqual(d, Legacy.getFields(d, zone), DateUtils.getFields(d, zone));
+
+                    DateFields fields = randomFields();
+                    assertEquals(describe(fields), Legacy.getDate(fields, null), DateUtils.getDate(fields));
+                    assertEquals(Legacy.roundDate(d), DateUtils.roundDate(d));
+                }
+            }
+        });
+    }
+
+    @Test
+    public void testDayArithmetic() {
+        forEachSetting(new Check() {
+            @Override
+            public void run(String zone) {
+                for (int i = 0; i < 300; i++) {
+                    Date a = new Date(randomTime());
+                    Date b = new Date(randomTime());
+                    int n = random.nextInt(2000) - 1000;
+                    assertEquals(a.toString(), Legacy.daysSinceEpoch(a), DateUtils.daysSinceEpoch(a));
+                    assertEquals(a + " + " + n, Legacy.dateAdd(a, n), DateUtils.dateAdd(a, n));
+                    assertEquals(a + " to " + b, Legacy.dateDiff(a, b), DateUtils.dateDiff(a, b));
+                }
+            }
+        });
+    }
+
+    @Test
+    public void testParsing() {
+        forEachSetting(new Check() {
+            @Override
+            public void run(String zone) {
+                for (int i = 0; i < 500; i++) {
+                    String date = mutate(randomDateString());
+                    String time = mutate(randomTimeString());
+                    String dateTime = mutate(randomDateString() + "T" + randomTimeString());
+
+                    assertSameResult(date, Legacy.parseDate(date), parse(date, DATE));
+                    assertSameResult(time, Legacy.parseTime(time), parse(time, TIME));
+                    assertSameResult(dateTime, Legacy.parseDateTime(dateTime), parse(dateTime, DATE_TIME));
+                }
+            }
+        });
+    }
+
+    @Test
+    public void testFormatting() {
+        forEachSetting(new Check() {
+            @Override
+            public void run(String zone) {
+                for (int i = 0; i < 300; i++) {
+                    Date d = new Date(randomTime());
+                    assertEquals(Legacy.formatDateTime(d), DateUtils.formatDateTime(d, DateUtils.FORMAT_ISO8601));
+                    int n = random.nextInt(20000) - 10000;
+                    int pad = random.nextInt(6);
+                    assertEquals(Legacy.intPad(n, pad), DateUtils.intPad(n, pad));
+                }
+            }
+        });
+    }
+
+    private static final int DATE = 0;
+    private static final int TIME = 1;
+    private static final int DATE_TIME = 2;
+
+    /**
+     * @return The parsed date, or the type of exception parsing it threw
+     */
+    private static Object parse(String s, int type) {
+        try {
+            switch (type) {
+                case DATE:
+                    return DateUtils.parseDate(s);
+                case TIME:
+                    return DateUtils.parseTime(s);
+                default:
+                    return DateUtils.parseDateTime(s);
+            }
+        } catch (RuntimeException e) {
+            return e.getClass();
+        }
+    }
+
+    private interface Check {
+        void run(String zone);
+    }
+
+    private void forEachSetting(Check check) {
+        for (String zone : ZONES) {
+            TimeZone.setDefault(TimeZone.getTimeZone(zone));
+            for (int offset : PROVIDER_OFFSETS) {
+                MockTimezoneProvider provider = new MockTimezoneProvider();
+                provider.setOffset(offset);
+                DateUtils.setTimezoneProvider(provider);
+                Legacy.providerOffset = offset;
+                check.run(ZONES[random.nextInt(ZONES.length)]);
+            }
+        }
+    }
+
+    /**
+     * @return A time which is often close to a DST transition, and occasionally far enough in
+     * the past or future to fall outside of the years DateUtils works out arithmetically
+     */
+    private long randomTime() {
+        switch (random.nextInt(4)) {
+            case 0:
+                return (long)(random.nextDouble() * 1200 * YEAR_IN_MS) - 600 * YEAR_IN_MS;
+            case 1:
+                // Within a few hours of a March, April, October, or November weekend night
+                long year = (random.nextInt(80) - 30) * YEAR_IN_MS;
+                int[] transitionDays = {69, 90, 97, 279, 300, 307};
+                long day = transitionDays[random.nextInt(transitionDays.length)] + random.nextInt(8);
+                return year + day * DateUtils.DAY_IN_MS + random.nextInt(6 * 3600) * 1000L - 3 * 3600 * 1000L;
+            default:
+                return (long)(random.nextDouble() * 80 * YEAR_IN_MS) - 20 * YEAR_IN_MS;
+        }
+    }
+
+    private DateFields randomFields() {
+        DateFields fields = new DateFields();
+        boolean outOfRange = random.nextInt(10) == 0;
+        fields.year = random.nextInt(10) == 0 ? 1400 + random.nextInt(300) : 1950 + random.nextInt(100);
+        fields.month = outOfRange ? random.nextInt(15) - 1 : 1 + random.nextInt(12);
+        fields.day = outOfRange ? random.nextInt(35) - 1 : 1 + random.nextInt(28);
+        fields.hour = outOfRange ? random.nextInt(26) - 1 : random.nextInt(24);
+        fields.minute = random.nextInt(60);
+        fields.second = random.nextInt(60);
+        fields.secTicks = random.nextInt(1000);
+        return fields;
+    }
+
+    private String randomDateString() {
+        return (1550 + random.nextInt(500)) + "-" + pad(1 + random.nextInt(12)) + "-" + pad(1 + random.nextInt(31));
+    }
+
+    private String randomTimeString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(pad(random.nextInt(24))).append(':').append(pad(random.nextInt(60)));
+        if (random.nextBoolean()) {
+            sb.append(':').append(pad(random.nextInt(60)));
+            if (random.nextBoolean()) {
+                sb.append('.');
+                int digits = 1 + random.nextInt(9);
+                for (int i = 0; i < digits; i++) {
+                    sb.append(random.nextInt(10));
+                }
+            }
+        }
+        switch (random.nextInt(4)) {
+            case 0:
+                sb.append('Z');
+                break;
+            case 1:
+                sb.append(random.nextBoolean() ? '+' : '-').append(pad(random.nextInt(15)));
+                if (random.nextBoolean()) {
+                    sb.append(':').append(pad(random.nextInt(4) * 15));
+                }
+                break;
+            default:
+                break;
+        }
+        return sb.toString();
+    }
+
+    private String pad(int n) {
+        return random.nextInt(10) == 0 ? String.valueOf(n) : DateUtils.intPad(n, 2);
+    }
+
+    /**
+     * Usually leave the string alone, but otherwise damage it in one of the ways real input
+     * tends to be damaged, or in ways only the original parsing would tolerate
+     */
+    private String mutate(String s) {
+        if (random.nextInt(3) != 0 || s.isEmpty()) {
+            return s;
+        }
+        String[] insertions = {"-", ":", "+", ".", "Z", "T", " ", "0", "\u0664", "", "99999999999"};
+        int at = random.nextInt(s.length() + 1);
+        String insertion = insertions[random.nextInt(insertions.length)];
+        if (random.nextBoolean() && at < s.length()) {
+            return s.substring(0, at) + insertion + s.substring(at + 1);
+        }
+        return s.substring(0, at) + insertion + s.substring(at);
+    }
+
+    private static void assertSameResult(String input, Object expected, Object actual) {
+        assertEquals("Parsing '" + input + "' in " + TimeZone.getDefault().getID(), expected, actual);
+    }
+
+    private static void assertFieldsEqual(Date d, DateFields expected, DateFields actual) {
+        assertEquals(d.getTime() + " in " + TimeZone.getDefault().getID(), describe(expected), describe(actual));
+    }
+
+    private static String describe(DateFields f) {
+        return f.year + "-" + f.month + "-" + f.day + " " + f.hour + ":" + f.minute + ":" + f.second +
+                "." + f.secTicks + " dow " + f.dow;
+    }
+
+    /**
+     * DateUtils as it was before parsing was done in place and dates were worked out without
+     * a Calendar, trimmed down to what's compared here. Anything thrown is turned into a result
+     * so that failures can be compared as well.
+     */
+    private static class Legacy {
+        private static final int MONTH_OFFSET = (1 - Calendar.JANUARY);
+        private static final long DAY_IN_MS = DateUtils.DAY_IN_MS;
+
+        static int providerOffset = -1;
+
+        private static final long EPOCH_TIME = epochTime();
+
+        /**
+         * DateUtils fixes its epoch in whatever timezone was the default when it was loaded, so
+         * share it rather than working it out again in a different one
+         */
+        private static long epochTime() {
+            try {
+                Field epochTime = DateUtils.class.getDeclaredField("EPOCH_TIME");
+                epochTime.setAccessible(true);
+                return epochTime.getLong(null);
+            } catch (ReflectiveOperationException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        static DateFields getFields(Date d, String timezone) {
+            Calendar cd = Calendar.getInstance();
+            cd.setTime(d);
+            if (timezone != null) {
+                cd.setTimeZone(TimeZone.getTimeZone(timezone));
+            } else if (providerOffset != -1) {
+                return getFields(d, providerOffset);
+            }
+            return getFields(cd);
+        }
+
+        private static DateFields getFields(Date d, int timezoneOffset) {
+            Calendar cd = Calendar.getInstance();
+            cd.setTimeZone(TimeZone.getTimeZone("UTC"));
+            cd.setTime(d);
+            cd.add(Calendar.MILLISECOND, timezoneOffset);
+            return getFields(cd);
+        }
+
+        private static DateFields getFields(Calendar cal) {
+            DateFields fields = new DateFields();
+            fields.year = cal.get(Calendar.YEAR);
+            fields.month = cal.get(Calendar.MONTH) + MONTH_OFFSET;
+            fields.day = cal.get(Calendar.DAY_OF_MONTH);
+            fields.hour = cal.get(Calendar.HOUR_OF_DAY);
+            fields.minute = cal.get(Calendar.MINUTE);
+            fields.second = cal.get(Calendar.SECOND);
+            fields.secTicks = cal.get(Calendar.MILLISECOND);
+            fields.dow = cal.get(Calendar.DAY_OF_WEEK);
+            return fields;
+        }
+
+        static Date getDate(int year, int month, int day) {
+            DateFields f = new DateFields();
+            f.year = year;
+            f.month = month;
+            f.day = day;
+            return (f.check() ? getDate(f, null) : null);
+        }
+
+        static Date getDate(DateFields df, String timezone) {
+            Calendar cd = Calendar.getInstance();
+
+            if (timezone != null) {
+                cd.setTimeZone(TimeZone.getTimeZone(timezone));
+            } else if (providerOffset != -1) {
+                return getDate(df, providerOffset);
+            }
+
+            cd.set(Calendar.YEAR, df.year);
+            cd.set(Calendar.MONTH, df.month - MONTH_OFFSET);
+            cd.set(Calendar.DAY_OF_MONTH, df.day);
+            cd.set(Calendar.HOUR_OF_DAY, df.hour);
+            cd.set(Calendar.MINUTE, df.minute);
+            cd.set(Calendar.SECOND, df.second);
+            cd.set(Calendar.MILLISECOND, df.secTicks);
+
+            return cd.getTime();
+        }
+
+        private static Date getDate(DateFields df, int timezoneOffset) {
+            Calendar cd = Calendar.getInstance();
+            cd.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+            cd.set(Calendar.YEAR, df.year);
+            cd.set(Calendar.MONTH, df.month - MONTH_OFFSET);
+            cd.set(Calendar.DAY_OF_MONTH, df.day);
+            cd.set(Calendar.HOUR_OF_DAY, df.hour);
+            cd.set(Calendar.MINUTE, df.minute);
+            cd.set(Calendar.SECOND, df.second);
+            cd.set(Calendar.MILLISECOND, df.secTicks);
+
+            cd.add(Calendar.MILLISECOND, -1 * timezoneOffset);
+
+            return cd.getTime();
+        }
+
+        static String formatDateTime(Date d) {
+            DateFields f = getFields(d, null);
+            String date = f.year + "-" + intPad(f.month, 2) + "-" + intPad(f.day, 2);
+            String time = intPad(f.hour, 2) + ":" + intPad(f.minute, 2) + ":" + intPad(f.second, 2) + "." + intPad(f.secTicks, 3);
+
+            int offset;
+            if (providerOffset != -1) {
+                offset = providerOffset;
+            } else {
+                offset = TimeZone.getDefault().getOffset(1, f.year, f.month - 1, f.day, f.dow, 0);
+            }
+
+            if (offset == 0) {
+                time += "Z";
+            } else {
+                String offsetSign = offset > 0 ? "+" : "-";
+                int value = Math.abs(offset) / 1000 / 60;
+                String hrs = intPad(value / 60, 2);
+                String mins = value % 60 != 0 ? ":" + intPad(value % 60, 2) : "";
+                time += offsetSign + hrs + mins;
+            }
+            return date + "T" + time;
+        }
+
+        static Object parseDateTime(String str) {
+            try {
+                DateFields fields = new DateFields();
+                int i = str.indexOf("T");
+                if (i != -1) {
+                    if (!parseDateAndStore(str.substring(0, i), fields) || !parseTimeAndStore(str.substring(i + 1), fields)) {
+                        return null;
+                    }
+                } else {
+                    if (!parseDateAndStore(str, fields)) {
+                        return null;
+                    }
+                }
+                return getDate(fields, null);
+            } catch (RuntimeException e) {
+                return e.getClass();
+            }
+        }
+
+        static Object parseDate(String str) {
+            try {
+                DateFields fields = new DateFields();
+                if (!parseDateAndStore(str, fields)) {
+                    return null;
+                }
+                return getDate(fields, null);
+            } catch (RuntimeException e) {
+                return e.getClass();
+            }
+        }
+
+        private static boolean parseDateAndStore(String dateStr, DateFields df) {
+            String[] pieces = DataUtil.splitOnDash(dateStr);
+            if (pieces.length != 3) {
+                return false;
+            }
+
+            try {
+                df.year = Integer.parseInt(pieces[0]);
+                df.month = Integer.parseInt(pieces[1]);
+                df.day = Integer.parseInt(pieces[2]);
+            } catch (NumberFormatException nfe) {
+                return false;
+            }
+
+            return df.check();
+        }
+
+        static Object parseTime(String str) {
+            try {
+                if (providerOffset != -1 && !str.contains("+") && !str.contains("-") && !str.contains("Z")) {
+                    str = str + DateUtils.getOffsetInStandardFormat(providerOffset);
+                }
+
+                DateFields fields = new DateFields();
+                if (!parseTimeAndStore(str, fields)) {
+                    return null;
+                }
+                return getDate(fields, null);
+            } catch (RuntimeException e) {
+                return e.getClass();
+            }
+        }
+
+        private static boolean parseTimeAndStore(String timeStr, DateFields df) {
+            DateFields timeOffset = null;
+
+            if (timeStr.charAt(timeStr.length() - 1) == 'Z') {
+                timeStr = timeStr.substring(0, timeStr.length() - 1);
+                timeOffset = new DateFields();
+            } else if (timeStr.contains("+") || timeStr.contains("-")) {
+                timeOffset = new DateFields();
+
+                String[] pieces = DataUtil.splitOnPlus(timeStr);
+                int offsetSign = -1;
+
+                if (pieces.length <= 1) {
+                    pieces = DataUtil.splitOnDash(timeStr);
+                    offsetSign = 1;
+                }
+
+                timeStr = pieces[0];
+
+                String offset = pieces[1];
+                String hours = offset;
+                if (offset.contains(":")) {
+                    String[] tzPieces = DataUtil.splitOnColon(offset);
+                    hours = tzPieces[0];
+                    int mins = Integer.parseInt(tzPieces[1]);
+                    timeOffset.minute = mins * offsetSign;
+                }
+                timeOffset.hour = Integer.parseInt(hours) * offsetSign;
+            }
+
+            if (!parseRawTime(timeStr, df)) {
+                return false;
+            }
+
+            if (!(df.check())) {
+                return false;
+            }
+
+            if (timeOffset == null) {
+                return true;
+            }
+
+            Calendar c = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+            c.setTime(new Date(getDate(df, "UTC").getTime() + (((60 * timeOffset.hour) + timeOffset.minute) * 60 * 1000)));
+            c.setTimeZone(TimeZone.getDefault());
+
+            DateFields adjusted = getFields(c.getTime(), null);
+
+            df.hour = adjusted.hour;
+            df.minute = adjusted.minute;
+            df.second = adjusted.second;
+            df.secTicks = adjusted.secTicks;
+
+            return df.check();
+        }
+
+        private static boolean parseRawTime(String timeStr, DateFields df) {
+            String[] pieces = DataUtil.splitOnColon(timeStr);
+
+            if (pieces.length != 2 && pieces.length != 3) {
+                return false;
+            }
+
+            try {
+                df.hour = Integer.parseInt(pieces[0]);
+                df.minute = Integer.parseInt(pieces[1]);
+
+                if (pieces.length == 3) {
+                    String secStr = pieces[2];
+                    int i;
+                    for (i = 0; i < secStr.length(); i++) {
+                        char c = secStr.charAt(i);
+                        if (!Character.isDigit(c) && c != '.')
+                            break;
+                    }
+                    secStr = secStr.substring(0, i);
+                    double fsec = Double.parseDouble(secStr);
+                    df.second = (int)fsec;
+                    df.secTicks = (int)(1000.0 * (fsec - df.second));
+                }
+            } catch (NumberFormatException nfe) {
+                return false;
+            }
+
+            return df.check();
+        }
+
+        static Date roundDate(Date d) {
+            DateFields f = getFields(d, null);
+            return getDate(f.year, f.month, f.day);
+        }
+
+        static int daysSinceEpoch(Date date) {
+            return (int)MathUtils.divLongNotSuck(roundDate(date).getTime() - EPOCH_TIME + DAY_IN_MS / 2, DAY_IN_MS);
+        }
+
+        static Date dateAdd(Date d, int n) {
+            return roundDate(new Date(roundDate(d).getTime() + DAY_IN_MS * n + DAY_IN_MS / 2));
+        }
+
+        static int dateDiff(Date a, Date b) {
+            return (int)MathUtils.divLongNotSuck(roundDate(b).getTime() - roundDate(a).getTime() + DAY_IN_MS / 2, DAY_IN_MS);
+        }
+
+        static String intPad(int n, int pad) {
+            String s = String.valueOf(n);
+            while (s.length() < pad)
+                s = "0" + s;
+            return s;
+        }
+    }
+}
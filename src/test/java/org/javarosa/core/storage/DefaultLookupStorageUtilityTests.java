@@ -0,0 +1,156 @@
+package org.javarosa.core.storage;
+
+import org.javarosa.core.services.storage.EntityFilter;
+import org.javarosa.core.services.storage.IStorageIterator;
+import org.javarosa.core.services.storage.IStorageUtilityIndexed;
+import org.javarosa.core.services.storage.Persistable;
+import org.javarosa.core.services.storage.util.DummyIndexedStorageUtility;
+import org.javarosa.core.util.InvalidIndexException;
+import org.javarosa.core.util.externalizable.LivePrototypeFactory;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Vector;
+
+/**
+ * Runs the storage tests against the interface's default lookups, which storage implementations
+ * that only provide the basic operations fall back on
+ */
+public class DefaultLookupStorageUtilityTests extends IndexedStorageUtilityTests {
+
+    @Override
+    protected IStorageUtilityIndexed<Shoe> createStorageUtility() {
+        return new BasicStorage(new DummyIndexedStorageUtility<>(Shoe.class, new LivePrototypeFactory()));
+    }
+
+    /**
+     * Passes the basic operations on to another storage, leaving the rest to the defaults
+     */
+    private static class BasicStorage implements IStorageUtilityIndexed<Shoe> {
+        private final IStorageUtilityIndexed<Shoe> storage;
+
+        private BasicStorage(IStorageUtilityIndexed<Shoe> storage) {
+            this.storage = storage;
+        }
+
+        @Override
+        public Shoe read(int id) {
+            return storage.read(id);
+        }
+
+        @Override
+        public byte[] readBytes(int id) {
+            return storage.readBytes(id);
+        }
+
+        @Override
+        public void write(Persistable p) {
+            storage.write(p);
+        }
+
+        @Override
+        public int add(Shoe e) {
+            return storage.add(e);
+        }
+
+        @Override
+        public void update(int id, Shoe e) {
+            storage.update(id, e);
+        }
+
+        @Override
+        public void remove(int id) {
+            storage.remove(id);
+        }
+
+        @Override
+        public void remove(Persistable p) {
+            storage.remove(p);
+        }
+
+        @Override
+        public void removeAll() {
+            storage.removeAll();
+        }
+
+        @Override
+        public Vector<Integer> removeAll(EntityFilter ef) {
+            return storage.removeAll(ef);
+        }
+
+        @Override
+        public int getNumRecords() {
+            return storage.getNumRecords();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return storage.isEmpty();
+        }
+
+        @Override
+        public boolean exists(int id) {
+            return storage.exists(id);
+        }
+
+        @Override
+        public IStorageIterator<Shoe> iterate() {
+            return storage.iterate();
+        }
+
+        @Override
+        public IStorageIterator<Shoe> iterate(boolean includeData) {
+            return storage.iterate(includeData);
+        }
+
+        @Override
+        public void close() {
+            storage.close();
+        }
+
+        @Override
+        public Object getAccessLock() {
+            return storage.getAccessLock();
+        }
+
+        @Override
+        public Vector<Integer> getIDsForValue(String metaFieldName, Object value) {
+            return storage.getIDsForValue(metaFieldName, value);
+        }
+
+        @Override
+        public List<Integer> getIDsForValues(String[] metaFieldNames, Object[] values) {
+            return storage.getIDsForValues(metaFieldNames, values);
+        }
+
+        @Override
+        public List<Integer> getIDsForValues(String[] metaFieldNames, Object[] values,
+                                             LinkedHashSet<Integer> returnSet) {
+            return storage.getIDsForValues(metaFieldNames, values, returnSet);
+        }
+
+        @Override
+        public Shoe getRecordForValue(String metaFieldName, Object value)
+                throws NoSuchElementException, InvalidIndexException {
+            return storage.getRecordForValue(metaFieldName, value);
+        }
+
+        @Override
+        public void bulkRead(LinkedHashSet<Integer> cuedCases, HashMap<Integer, Shoe> recordMap) {
+            storage.bulkRead(cuedCases, recordMap);
+        }
+
+        @Override
+        public String[] getMetaDataForRecord(int recordId, String[] metaFieldNames) {
+            return storage.getMetaDataForRecord(recordId, metaFieldNames);
+        }
+
+        @Override
+        public void bulkReadMetadata(LinkedHashSet<Integer> recordIds, String[] metaFieldNames,
+                                     HashMap<Integer, String[]> metadataMap) {
+            storage.bulkReadMetadata(recordIds, metaFieldNames, metadataMap);
+        }
+    }
+}
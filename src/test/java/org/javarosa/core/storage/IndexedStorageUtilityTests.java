@@ -3,6 +3,7 @@ package org.javarosa.core.storage;
 import org.javarosa.core.services.storage.IStorageUtilityIndexed;
 import org.javarosa.core.services.storage.util.DummyIndexedStorageUtility;
 import org.javarosa.core.util.Interner;
+import org.javarosa.core.util.RecordIdSet;
 import org.javarosa.core.util.externalizable.LivePrototypeFactory;
 import org.javarosa.core.util.externalizable.PrototypeFactory;
 import org.junit.Assert;
@@ -127,10 +128,46 @@ public abstract class IndexedStorageUtilityTests {
 
         Assert.assertEquals("Failed index match [brand,style][nike,mens]", new HashSet<>(matches), newResultPath);
 
+        RecordIdSet idSet = storage.getIDSetForValues(new String[] {Shoe.META_BRAND, Shoe.META_STYLE}, new String[] {"nike", "mens"});
+        Assert.assertEquals("Failed index set match [brand,style][nike,mens]", new HashSet<>(matches), new HashSet<>(idSet.asList()));
 
     }
 
-    private void writeBulkSets() {
+    @Test
+    public void testRangeMatching() {
+        writeBulkSets();
+
+        Set<Integer> sizeMatch = new HashSet<>();
+        for (Shoe[] shoes : new Shoe[][]{tenSizesOfMensNikes, eightSizesOfWomensNikes, fiveSizesOfMensVans}) {
+            sizeMatch.add(shoes[2].getID());
+            sizeMatch.add(shoes[3].getID());
+        }
+
+        List<Integer> matches =
+                storage.getIDsForRange(Shoe.META_SIZE, "3", true, "5", false);
+        Assert.assertEquals("Failed range match [size][3,5)", sizeMatch, new HashSet<>(matches));
+
+        List<Integer> openMatches =
+                storage.getIDsForRange(Shoe.META_BRAND, null, false, "nike", true);
+        Assert.assertEquals("Failed open range match [brand][,nike]", 18, openMatches.size());
+    }
+
+    @Test
+    public void testOrderedPrefixMatching() {
+        writeBulkSets();
+
+        List<Integer> matches = storage.getIDsInOrder(Shoe.META_SIZE, "1");
+        Assert.assertEquals("Failed prefix match [size][1]", 4, matches.size());
+        Assert.assertEquals("Prefix match out of order", "10",
+                storage.read(matches.get(matches.size() - 1)).getMetaData(Shoe.META_SIZE));
+
+        List<Integer> allInOrder = storage.getIDsInOrder(Shoe.META_BRAND, null);
+        Assert.assertEquals("Failed ordered lookup [brand]", 23, allInOrder.size());
+        Assert.assertEquals("Ordered lookup out of order", getIdsFromModels(fiveSizesOfMensVans),
+                new HashSet<>(allInOrder.subList(18, 23)));
+    }
+
+    void writeBulkSets() {
         writeAll(tenSizesOfMensNikes);
         writeAll(eightSizesOfWomensNikes);
         writeAll(fiveSizesOfMensVans);
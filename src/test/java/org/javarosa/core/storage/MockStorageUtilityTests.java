@@ -2,7 +2,12 @@ package org.javarosa.core.storage;
 
 import org.javarosa.core.services.storage.IStorageUtilityIndexed;
 import org.javarosa.core.services.storage.util.DummyIndexedStorageUtility;
+import org.javarosa.core.services.storage.util.MetadataPostingIndex;
 import org.javarosa.core.util.externalizable.LivePrototypeFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
 
 /**
  * Tests for the mock object, important since it's used in various in-memory implementations
@@ -16,4 +21,48 @@ public class MockStorageUtilityTests extends IndexedStorageUtilityTests{
     protected IStorageUtilityIndexed<Shoe> createStorageUtility() {
         return new DummyIndexedStorageUtility<>(Shoe.class, new LivePrototypeFactory());
     }
+
+    @Test
+    public void testSortedIndexMatchesUnsortedLookups() {
+        writeBulkSets();
+        List<Integer> unsortedRange = storage.getIDsForRange(Shoe.META_SIZE, "2", false, "8", true);
+        List<Integer> unsortedPrefix = storage.getIDsInOrder(Shoe.META_SIZE, "1");
+
+        ((DummyIndexedStorageUtility<Shoe>)storage).enableSortedIndex(Shoe.META_SIZE);
+        Assert.assertEquals(unsortedRange, storage.getIDsForRange(Shoe.META_SIZE, "2", false, "8", true));
+        Assert.assertEquals(unsortedPrefix, storage.getIDsInOrder(Shoe.META_SIZE, "1"));
+
+        Shoe newShoe = new Shoe("vans", "womens", "11");
+        storage.write(newShoe);
+        Assert.assertEquals("Sorted index not updated on write", newShoe.getID(),
+                (int)storage.getIDsInOrder(Shoe.META_SIZE, "11").get(0));
+    }
+
+    @Test
+    public void testPostingIndexTracksUpdates() {
+        Shoe nike = new Shoe("nike", "mens", "10");
+        storage.write(nike);
+        Shoe adidas = new Shoe("adidas", "mens", "10");
+        storage.write(adidas);
+
+        Shoe replacement = new Shoe("puma", "womens", "10");
+        replacement.setID(nike.getID());
+        storage.write(replacement);
+
+        Assert.assertTrue(storage.getIDsForValue(Shoe.META_BRAND, "nike").isEmpty());
+        Assert.assertEquals(replacement.getID(), (int)storage.getIDsForValue(Shoe.META_BRAND, "puma").get(0));
+        Assert.assertEquals(1, storage.getIDsForValues(new String[]{Shoe.META_STYLE, Shoe.META_SIZE},
+                new String[]{"mens", "10"}).size());
+
+        MetadataPostingIndex index = ((DummyIndexedStorageUtility<Shoe>)storage).getPostingIndex();
+        Assert.assertEquals(2, index.matchAny(Shoe.META_BRAND, new String[]{"puma", "adidas", "nike"}).cardinality());
+
+        storage.remove(adidas);
+        Assert.assertTrue(storage.getIDsForValue(Shoe.META_BRAND, "adidas").isEmpty());
+        Assert.assertEquals(1, index.getRecords().cardinality());
+
+        storage.removeAll();
+        Assert.assertTrue(storage.getIDsForValue(Shoe.META_SIZE, "10").isEmpty());
+        Assert.assertTrue(index.getRecords().isEmpty());
+    }
 }
@@ -0,0 +1,40 @@
+package org.javarosa.core.util.test;
+
+import org.javarosa.core.util.CacheTable;
+import org.javarosa.core.util.Interner;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the weak reference backed cache tables
+ */
+public class CacheTableTest {
+
+    @Test
+    public void retrieveAndStatisticsTest() {
+        CacheTable<String, String> table = new CacheTable<>();
+        String value = "cached value";
+        table.register("key", value);
+
+        Assert.assertSame(value, table.retrieve("key"));
+        Assert.assertNull(table.retrieve("missing"));
+        Assert.assertEquals(1, table.getHitCount());
+        Assert.assertEquals(1, table.getMissCount());
+        Assert.assertEquals(1, table.size());
+
+        table.clear();
+        Assert.assertEquals(0, table.size());
+        Assert.assertNull(table.retrieve("key"));
+    }
+
+    @Test
+    public void internTest() {
+        Interner<String> interner = new Interner<>();
+        String first = new String("interned");
+        String second = new String("interned");
+
+        Assert.assertSame(first, interner.intern(first));
+        Assert.assertSame(first, interner.intern(second));
+        Assert.assertEquals(1, interner.getHitCount());
+    }
+}
@@ -0,0 +1,134 @@
+package org.javarosa.core.util.test;
+
+import org.javarosa.core.model.data.IntegerData;
+import org.javarosa.core.model.data.StringData;
+import org.javarosa.core.model.instance.FormInstance;
+import org.javarosa.core.model.instance.TreeElement;
+import org.javarosa.core.util.externalizable.CompactDataOutputStream;
+import org.javarosa.core.util.externalizable.DeserializationException;
+import org.javarosa.core.util.externalizable.ExtUtil;
+import org.javarosa.core.util.externalizable.ExtWrapListPoly;
+import org.javarosa.core.util.externalizable.Externalizable;
+import org.javarosa.core.util.externalizable.LivePrototypeFactory;
+import org.javarosa.core.util.externalizable.PrototypeFactory;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Vector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CompactSerializationTest {
+
+    @Test
+    public void testInstanceRoundTrip() throws Exception {
+        PrototypeFactory factory = new LivePrototypeFactory();
+        TreeElement root = new TreeElement("data");
+        for (int i = 0; i < 50; i++) {
+            TreeElement item = new TreeElement("item", i);
+            item.setAttribute(null, "id", "item_" + i);
+            TreeElement name = new TreeElement("name");
+            name.setValue(new StringData("Item " + i));
+            item.addChild(name);
+            TreeElement count = new TreeElement("count");
+            count.setValue(new IntegerData(i * 1000));
+            item.addChild(count);
+            root.addChild(item);
+        }
+        FormInstance instance = new FormInstance(root, "fixture");
+
+        byte[] compact = ExtUtil.serializeCompact(instance);
+        FormInstance read = (FormInstance)ExtUtil.deserializeCompact(compact, FormInstance.class, factory);
+
+        assertEquals(instance.getRoot(), read.getRoot());
+        assertEquals("Item 49", read.getRoot().getChild("item", 49).getChild("name", 0).getValue().getDisplayText());
+        assertTrue(compact.length * 2 < ExtUtil.serialize(instance).length);
+    }
+
+    @Test
+    public void testFieldsFromNewerVersionsAreSkipped() throws Exception {
+        // Records are read back as though only the older version of the class were available
+        PrototypeFactory olderFactory = new LivePrototypeFactory() {
+            @Override
+            public Class getClass(byte[] hash) {
+                Class type = super.getClass(hash);
+                return type == NewerSample.class ? OlderSample.class : type;
+            }
+        };
+        olderFactory.addClass(NewerSample.class);
+
+        Vector<Object> values = new Vector<>();
+        values.addElement(new NewerSample("first", "added later"));
+        values.addElement("after");
+        values.addElement(new NewerSample("second", "added later"));
+
+        byte[] compact = ExtUtil.serializeCompact(new ExtWrapListPoly(values));
+        Vector read = (Vector)ExtUtil.unwrap(readCompact(compact, olderFactory));
+        assertEquals("first", ((OlderSample)read.elementAt(0)).name);
+        assertEquals("after", read.elementAt(1));
+        assertEquals("second", ((OlderSample)read.elementAt(2)).name);
+    }
+
+    @Test
+    public void testFinishWritesTablesAheadOfContent() throws IOException {
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        CompactDataOutputStream out = new CompactDataOutputStream(target);
+        for (int i = 0; i < 100; i++) {
+            ExtUtil.writeString(out, "repeated");
+        }
+        assertEquals(0, target.size());
+
+        out.finish();
+        // The string is written once, and every use of it is a single byte
+        assertTrue(target.size() < "repeated".length() + 100 + 10);
+    }
+
+    private static Object readCompact(byte[] compact, PrototypeFactory pf) throws IOException, DeserializationException {
+        return ExtUtil.deserializeCompact(compact, ExtWrapListPoly.class, pf);
+    }
+
+    public static class OlderSample implements Externalizable {
+        String name;
+
+        public OlderSample() {
+        }
+
+        @Override
+        public void readExternal(DataInputStream in, PrototypeFactory pf) throws IOException {
+            name = ExtUtil.readString(in);
+        }
+
+        @Override
+        public void writeExternal(DataOutputStream out) throws IOException {
+            ExtUtil.writeString(out, name);
+        }
+    }
+
+    public static class NewerSample extends OlderSample {
+        String addition;
+
+        public NewerSample() {
+        }
+
+        NewerSample(String name, String addition) {
+            this.name = name;
+            this.addition = addition;
+        }
+
+        @Override
+        public void readExternal(DataInputStream in, PrototypeFactory pf) throws IOException {
+            super.readExternal(in, pf);
+            addition = ExtUtil.readString(in);
+        }
+
+        @Override
+        public void writeExternal(DataOutputStream out) throws IOException {
+            super.writeExternal(out);
+            ExtUtil.writeString(out, addition);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package org.javarosa.core.util.test;
+
+import org.javarosa.core.util.RecordIdBitmap;
+import org.javarosa.core.util.RecordIdSet;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Tests for the compressed record id bitmaps used as metadata posting lists
+ */
+public class RecordIdBitmapTest {
+
+    @Test
+    public void addAndRemoveTest() {
+        RecordIdBitmap bitmap = new RecordIdBitmap();
+        Assert.assertTrue(bitmap.add(3));
+        Assert.assertFalse(bitmap.add(3));
+        Assert.assertTrue(bitmap.add(70000));
+        Assert.assertTrue(bitmap.contains(70000));
+        Assert.assertFalse(bitmap.contains(4));
+        Assert.assertEquals(RecordIdSet.fromArray(3, 70000), bitmap.toRecordIdSet());
+
+        Assert.assertTrue(bitmap.remove(3));
+        Assert.assertFalse(bitmap.remove(3));
+        Assert.assertTrue(bitmap.remove(70000));
+        Assert.assertTrue(bitmap.isEmpty());
+    }
+
+    @Test
+    public void denseChunksTest() {
+        // Fill a chunk well past the point where it switches to a bitmap, then empty it again
+        RecordIdBitmap bitmap = new RecordIdBitmap();
+        for (int i = 0; i < 10000; ++i) {
+            bitmap.add(i * 2);
+        }
+        Assert.assertEquals(10000, bitmap.cardinality());
+        Assert.assertTrue(bitmap.contains(19998));
+        Assert.assertFalse(bitmap.contains(19999));
+
+        for (int i = 0; i < 10000; i += 2) {
+            bitmap.remove(i * 2);
+        }
+        Assert.assertEquals(5000, bitmap.cardinality());
+        Assert.assertTrue(bitmap.contains(2));
+        Assert.assertFalse(bitmap.contains(4));
+    }
+
+    @Test
+    public void setOperationsMatchBoxedSetsTest() {
+        Random random = new Random(7);
+        // Cover sparse and dense chunks on each side of the operations
+        int[][] shapes = {{200, 300, 200000}, {20000, 300, 65536}, {30000, 25000, 100000}};
+        for (int[] shape : shapes) {
+            Set<Integer> first = randomIds(random, shape[0], shape[2]);
+            Set<Integer> second = randomIds(random, shape[1], shape[2]);
+            RecordIdBitmap firstBitmap = toBitmap(first);
+            RecordIdBitmap secondBitmap = toBitmap(second);
+
+            Set<Integer> expected = new HashSet<>(first);
+            expected.retainAll(second);
+            assertMatches(expected, RecordIdBitmap.and(firstBitmap, secondBitmap));
+            assertMatches(expected, RecordIdBitmap.and(secondBitmap, firstBitmap));
+
+            expected = new HashSet<>(first);
+            expected.addAll(second);
+            assertMatches(expected, RecordIdBitmap.or(firstBitmap, secondBitmap));
+
+            expected = new HashSet<>(first);
+            expected.removeAll(second);
+            assertMatches(expected, RecordIdBitmap.andNot(firstBitmap, secondBitmap));
+
+            // The operands themselves should be left alone
+            assertMatches(first, firstBitmap);
+            assertMatches(second, secondBitmap);
+        }
+    }
+
+    private static void assertMatches(Set<Integer> expected, RecordIdBitmap bitmap) {
+        Assert.assertEquals(expected.size(), bitmap.cardinality());
+        Assert.assertEquals(expected, new HashSet<>(bitmap.toRecordIdSet().asList()));
+    }
+
+    private static Set<Integer> randomIds(Random random, int count, int bound) {
+        Set<Integer> ids = new HashSet<>();
+        for (int i = 0; i < count; ++i) {
+            ids.add(random.nextInt(bound));
+        }
+        return ids;
+    }
+
+    private static RecordIdBitmap toBitmap(Set<Integer> ids) {
+        RecordIdBitmap bitmap = new RecordIdBitmap();
+        for (int id : ids) {
+            bitmap.add(id);
+        }
+        return bitmap;
+    }
+}
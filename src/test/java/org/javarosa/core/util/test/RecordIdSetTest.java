@@ -0,0 +1,82 @@
+package org.javarosa.core.util.test;
+
+import org.javarosa.core.util.RecordIdSet;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Tests for the primitive record id sets used by storage queries
+ */
+public class RecordIdSetTest {
+
+    @Test
+    public void constructionTest() {
+        RecordIdSet set = RecordIdSet.fromArray(5, 1, 3, 5, 1);
+        Assert.assertEquals(3, set.size());
+        Assert.assertArrayEquals(new int[]{1, 3, 5}, set.toArray());
+        Assert.assertTrue(set.contains(3));
+        Assert.assertFalse(set.contains(4));
+
+        Assert.assertEquals(set, RecordIdSet.fromCollection(Arrays.asList(3, 5, 1)));
+        Assert.assertTrue(RecordIdSet.fromArray().isEmpty());
+
+        List<Integer> view = set.asList();
+        Assert.assertEquals(Arrays.asList(1, 3, 5), view);
+        Assert.assertSame(set, RecordIdSet.fromCollection(view));
+    }
+
+    @Test
+    public void setOperationsTest() {
+        RecordIdSet first = RecordIdSet.fromArray(1, 2, 3, 7, 9);
+        RecordIdSet second = RecordIdSet.fromArray(2, 4, 7, 10);
+
+        Assert.assertArrayEquals(new int[]{2, 7}, first.intersect(second).toArray());
+        Assert.assertArrayEquals(new int[]{1, 2, 3, 4, 7, 9, 10}, first.union(second).toArray());
+        Assert.assertTrue(first.intersect(RecordIdSet.EMPTY).isEmpty());
+        Assert.assertEquals(first, first.union(RecordIdSet.EMPTY));
+    }
+
+    @Test
+    public void setOperationsMatchBoxedSetsTest() {
+        Random random = new Random(42);
+        // Cover both the merge and the search based intersections
+        int[][] sizes = {{500, 400}, {2000, 20}, {10, 5000}};
+        for (int[] size : sizes) {
+            int[] first = randomIds(random, size[0]);
+            int[] second = randomIds(random, size[1]);
+
+            Set<Integer> expectedIntersection = toSet(first);
+            expectedIntersection.retainAll(toSet(second));
+            Set<Integer> expectedUnion = toSet(first);
+            expectedUnion.addAll(toSet(second));
+
+            RecordIdSet firstSet = RecordIdSet.fromArray(first);
+            RecordIdSet secondSet = RecordIdSet.fromArray(second);
+            Assert.assertEquals(expectedIntersection, new HashSet<>(firstSet.intersect(secondSet).asList()));
+            Assert.assertEquals(expectedIntersection, new HashSet<>(secondSet.intersect(firstSet).asList()));
+            Assert.assertEquals(expectedUnion, new HashSet<>(firstSet.union(secondSet).asList()));
+        }
+    }
+
+    private static int[] randomIds(Random random, int count) {
+        int[] ids = new int[count];
+        for (int i = 0; i < count; ++i) {
+            ids[i] = random.nextInt(10000);
+        }
+        return ids;
+    }
+
+    private static Set<Integer> toSet(int[] ids) {
+        Set<Integer> set = new HashSet<>();
+        for (int id : ids) {
+            set.add(id);
+        }
+        return set;
+    }
+}
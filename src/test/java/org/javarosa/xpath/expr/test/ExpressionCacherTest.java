@@ -0,0 +1,47 @@
+package org.javarosa.xpath.expr.test;
+
+import org.javarosa.core.model.condition.EvaluationContext;
+import org.javarosa.core.model.instance.DataInstance;
+import org.javarosa.xpath.XPathParseTool;
+import org.javarosa.xpath.expr.ExpressionCacher;
+import org.javarosa.xpath.expr.XPathExpression;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Hashtable;
+
+/**
+ * Tests for the bounds and metrics of the in-form expression cache
+ */
+public class ExpressionCacherTest {
+
+    @Test
+    public void cacheHitsAreCounted() throws Exception {
+        EvaluationContext ec = new EvaluationContext(null, new Hashtable<String, DataInstance>());
+        ec.enableExpressionCaching();
+        XPathExpression expr = XPathParseTool.parseXPath("concat('a', 'b')");
+
+        Assert.assertEquals("ab", expr.eval(ec));
+        Assert.assertEquals("ab", expr.eval(ec));
+
+        ExpressionCacher cacher = ec.expressionCacher();
+        Assert.assertTrue(cacher.getHitCount() > 0);
+        Assert.assertTrue(cacher.getMissCount() > 0);
+        Assert.assertEquals(0, cacher.getEvictionCount());
+    }
+
+    @Test
+    public void cacheIsBounded() throws Exception {
+        int maxWeight = 2048;
+        EvaluationContext ec = new EvaluationContext(null, new Hashtable<String, DataInstance>());
+        ec.enableExpressionCaching(maxWeight);
+
+        for (int i = 0; i < 100; ++i) {
+            XPathParseTool.parseXPath("concat('value', " + i + ")").eval(ec);
+        }
+
+        ExpressionCacher cacher = ec.expressionCacher();
+        Assert.assertTrue(cacher.getEvictionCount() > 0);
+        Assert.assertTrue(cacher.getCacheWeight() <= maxWeight);
+    }
+}
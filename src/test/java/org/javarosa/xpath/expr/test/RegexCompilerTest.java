@@ -0,0 +1,150 @@
+package org.javarosa.xpath.expr.test;
+
+import org.javarosa.core.model.condition.EvaluationContext;
+import org.javarosa.xpath.XPathException;
+import org.javarosa.xpath.XPathParseTool;
+import org.javarosa.xpath.expr.RegexCompiler;
+import org.javarosa.xpath.expr.XPathExpression;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that regex() patterns match the same under java.util.regex as they do under the
+ * Jakarta engine, and that compiled patterns are cached and shared.
+ */
+public class RegexCompilerTest {
+
+    private static final String[] PATTERNS = {
+            "[0-9]+", "^[0-9]{3}$", "a*b", "^is", "^Is this right\\?$", "sign$", "newlines$",
+            "^$", "abc$", "a.c", "^.*$", "a|", "(ab)+c", "(a)(b)\\2\\1", "a{2,}", "a{1,3}b",
+            "(?:ab)+", "a*?b", "\\x41", "\\u00e9", "\\n", "\\t", "\\/", "\\-", "\\d+", "\\D",
+            "[\\d]+", "\\s", "[\\s]", "\\S+", "\\w+", "\\W", "[\\w.]+@[\\w.]+", "[^\\w]",
+            "\\bis\\b", "\\Bhi", "\\bx\\b", "\\Bx", "\\bt\\B", "\\b",
+            "[:digit:]+", "^[:alpha:][:alnum:]*$", "[:space:]", "[:punct:]", "[:upper:]",
+            "[:xdigit:]+", "[^:digit:]", "\\e", "\\a", "\\cA", "\\Q", "\\z", "\\0", "\\012",
+            "\\0101", "[a[]", "[a&&b]", "[\\]]", "^[b-]$", "^[^b-]$", "^[-b]$",
+            "^[A-Za-z ]+$", "^\\+?[0-9 ()-]{7,}$", "[^aeiou]{3}", "^[0-9]{10}$",
+            "^\\d{4}-\\d{2}-\\d{2}$", "^(\\+91)?[6-9]\\d{9}$",
+            "^[a-zA-Z0-9._%+-]+@[a-z]+\\.[a-z]{2,}$", "^\\s*$", "([a-z])\\1", "a+b*c?", ".+",
+            "[.]",
+    };
+
+    private static final String[] INPUTS = {
+            "", "12345", "123", "aaaabfooaaabgarplyaaabwackyb", "photo", "Is this right?",
+            "Dollar sign\ndoes not match newlines", "abc\n", "abc", "a\rc", "a\nc", "a c", "abab",
+            "abbac", "aaab", "This is it", "hi ahi", "A", "\u00e9t\u00e9", "line\nbreak",
+            "tab\there", "a/b-c", "\u0663\u0664", "x y", "_x_", "na\u00efve caf\u00e9",
+            "me@example.com", "!?", "DEADbeef", "e", "cA", "Q", "z", "\u0000", "\u0000101", "[",
+            "&", "]", "b", "-", "\uffff", "\u4e00", "x\u000by", "\u00a0", "\u2003", "\u001c",
+            "rhythm", "  ", " \n ", "a.b", "+1 (555) 123-4567", "+919876543210",
+            "9876543210\n", "2024-01-31",
+    };
+
+    @After
+    public void tearDown() {
+        RegexCompiler.setJavaRegexEnabled(false);
+        RegexCompiler.clearCache();
+    }
+
+    @Test
+    public void javaRegexMatchesLikeJakarta() {
+        for (String pattern : PATTERNS) {
+            RegexCompiler.CompiledRegex jakarta = RegexCompiler.compile(pattern, false);
+            RegexCompiler.CompiledRegex java = RegexCompiler.compile(pattern, true);
+            for (String input : INPUTS) {
+                assertEquals("'" + pattern + "' on '" + input + "'",
+                        jakarta.find(input), java.find(input));
+            }
+        }
+    }
+
+    @Test
+    public void invalidPatternsAreRejectedByBoth() {
+        for (String pattern : new String[]{"[", "a{2", "(ab", "a{,2}"}) {
+            for (boolean javaRegex : new boolean[]{false, true}) {
+                try {
+                    RegexCompiler.compile(pattern, javaRegex);
+                    fail("'" + pattern + "' should be invalid");
+                } catch (IllegalArgumentException e) {
+                    // expected
+                }
+            }
+        }
+    }
+
+    @Test
+    public void compiledPatternsAreShared() {
+        RegexCompiler.clearCache();
+        RegexCompiler.CompiledRegex first = RegexCompiler.compile("[0-9]+", false);
+        assertSame(first, RegexCompiler.compile("[0-9]+", false));
+        assertTrue(first != RegexCompiler.compile("[0-9]+", true));
+        assertEquals(2, RegexCompiler.getCacheSize());
+
+        for (int i = 0; i < RegexCompiler.DEFAULT_MAX_PATTERNS * 2; i++) {
+            RegexCompiler.compile("a{" + i + "}", false);
+        }
+        assertEquals(RegexCompiler.DEFAULT_MAX_PATTERNS + 1, RegexCompiler.getCacheSize());
+    }
+
+    @Test
+    public void compiledPatternsCanBeSharedAcrossThreads() throws InterruptedException {
+        final RegexCompiler.CompiledRegex regex = RegexCompiler.compile("^(a|b)*c[0-9]+$", false);
+        final boolean[] failed = {false};
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 2000; i++) {
+                    boolean matching = (i + offset) % 2 == 0;
+                    String input = matching ? "abab" + "c" + i : "abab" + i + "c";
+                    if (regex.find(input) != matching) {
+                        failed[0] = true;
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(!failed[0]);
+    }
+
+    @Test
+    public void literalPatternsAreCompiledWhenParsed() throws Exception {
+        EvaluationContext ec = new EvaluationContext(null);
+        XPathExpression expr = XPathParseTool.parseUnsharedXPath("regex('12345', '^[0-9]+$')");
+
+        RegexCompiler.clearCache();
+        assertEquals(Boolean.TRUE, expr.eval(null, ec));
+        assertEquals(0, RegexCompiler.getCacheSize());
+
+        // Switching engines recompiles the pattern for the new one
+        RegexCompiler.setJavaRegexEnabled(true);
+        assertEquals(Boolean.TRUE, expr.eval(null, ec));
+        assertEquals(1, RegexCompiler.getCacheSize());
+
+        XPathExpression computed = XPathParseTool.parseUnsharedXPath("regex('12345', concat('^[0-9]', '+$'))");
+        assertEquals(Boolean.TRUE, computed.eval(null, ec));
+        assertEquals(1, RegexCompiler.getCacheSize());
+    }
+
+    @Test
+    public void invalidPatternsFailOnEvaluation() throws Exception {
+        for (boolean javaRegex : new boolean[]{false, true}) {
+            RegexCompiler.setJavaRegexEnabled(javaRegex);
+            XPathExpression expr = XPathParseTool.parseUnsharedXPath("regex('12345', '[')");
+            try {
+                expr.eval(null, new EvaluationContext(null));
+                fail("Invalid pattern should fail to evaluate");
+            } catch (XPathException e) {
+                // expected
+            }
+        }
+    }
+}
@@ -17,10 +17,15 @@ import org.javarosa.xpath.XPathParseTool;
 import org.javarosa.xpath.XPathTypeMismatchException;
 import org.javarosa.xpath.XPathUnhandledException;
 import org.javarosa.xpath.XPathUnsupportedException;
+import org.javarosa.xpath.expr.ExpressionCompiler;
+import org.javarosa.xpath.expr.XPathArithExpr;
 import org.javarosa.xpath.expr.XPathEqExpr;
 import org.javarosa.xpath.expr.XPathExpression;
+import org.javarosa.xpath.expr.XPathFalseFunc;
+import org.javarosa.xpath.expr.XPathFuncExpr;
 import org.javarosa.xpath.expr.XPathNumericLiteral;
 import org.javarosa.xpath.expr.XPathPathExpr;
+import org.javarosa.xpath.expr.XPathStringLiteral;
 import org.javarosa.xpath.expr.FunctionUtils;
 import org.javarosa.xpath.parser.XPathSyntaxException;
 import org.junit.Assert;
@@ -53,6 +58,19 @@ public class XPathEvalTest {
             fail("Null expression or syntax error " + expr);
         }
 
+        checkEval(expr, xpe, model, ec, expected, exceptionExpected);
+
+        // Compiling the expression must not change its result
+        try {
+            xpe = ExpressionCompiler.compile(XPathParseTool.parseUnsharedXPath(expr), ec);
+        } catch (XPathSyntaxException e) {
+            fail("Expression failed to parse a second time: " + expr);
+        }
+        checkEval(expr, xpe, model, ec, expected, exceptionExpected);
+    }
+
+    private void checkEval(String expr, XPathExpression xpe, FormInstance model,
+                           EvaluationContext ec, Object expected, boolean exceptionExpected) {
         try {
             Object result = FunctionUtils.unpack(xpe.eval(model, ec));
 
@@ -720,6 +738,54 @@ public class XPathEvalTest {
         testEval("now()", null, ec, "pass");
     }
 
+    @Test
+    public void testCompileFoldsConstants() throws XPathSyntaxException {
+        Assert.assertEquals(new XPathNumericLiteral(7.0), compile("1 + 2 * 3", null));
+        Assert.assertEquals(new XPathStringLiteral("ab"), compile("concat('a', 'b')", null));
+        Assert.assertTrue(compile("false() and /data/a", null) instanceof XPathFalseFunc);
+
+        XPathPathExpr path = (XPathPathExpr)compile("/data/item[@id = concat('a', 'b')]", null);
+        XPathEqExpr predicate = (XPathEqExpr)path.steps[1].predicates[0];
+        Assert.assertEquals(new XPathStringLiteral("ab"), predicate.b);
+
+        // Anything depending on the context, instances, or the clock stays as it is
+        Assert.assertTrue(compile("concat('a', /data/a)", null) instanceof XPathFuncExpr);
+        Assert.assertTrue(compile("position()", null) instanceof XPathFuncExpr);
+        Assert.assertTrue(compile("today() + 1", null) instanceof XPathArithExpr);
+
+        EvaluationContext ec = new EvaluationContext(null);
+        ec.addFunctionHandler(new IFunctionHandler() {
+            @Override
+            public String getName() {
+                return "upper-case";
+            }
+
+            @Override
+            public Vector getPrototypes() {
+                Vector<Class[]> p = new Vector<>();
+                p.addElement(new Class[]{String.class});
+                return p;
+            }
+
+            @Override
+            public boolean rawArgs() {
+                return false;
+            }
+
+            @Override
+            public Object eval(Object[] args, EvaluationContext ec) {
+                return "pass";
+            }
+        });
+        Assert.assertTrue(compile("upper-case('a')", ec) instanceof XPathFuncExpr);
+        testEval("upper-case('a')", null, ec, "pass");
+    }
+
+    private static XPathExpression compile(String expr, EvaluationContext ec)
+            throws XPathSyntaxException {
+        return ExpressionCompiler.compile(XPathParseTool.parseUnsharedXPath(expr), ec);
+    }
+
     protected void addDataRef(FormInstance dm, String ref, IAnswerData data) {
         TreeReference treeRef = XPathReference.getPathExpr(ref).getReference();
         treeRef = inlinePositionArgs(treeRef);
@@ -0,0 +1,85 @@
+package org.javarosa.xpath.test;
+
+import org.javarosa.core.model.instance.TreeReference;
+import org.javarosa.xpath.XPathParseCache;
+import org.javarosa.xpath.XPathParseTool;
+import org.javarosa.xpath.expr.XPathExpression;
+import org.javarosa.xpath.expr.XPathPathExpr;
+import org.javarosa.xpath.parser.XPathSyntaxException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class XPathParseCacheTest {
+
+    private XPathParseCache originalCache;
+
+    @Before
+    public void setUp() {
+        originalCache = XPathParseTool.getParseCache();
+    }
+
+    @After
+    public void tearDown() {
+        XPathParseTool.setParseCache(originalCache);
+    }
+
+    @Test
+    public void testTreesAreShared() throws XPathSyntaxException {
+        XPathParseCache cache = new XPathParseCache(2);
+        XPathParseTool.setParseCache(cache);
+
+        final ArrayList<String> misses = new ArrayList<>();
+        final ArrayList<String> hits = new ArrayList<>();
+        cache.setListener(new XPathParseCache.ParseCacheListener() {
+            @Override
+            public void onHit(String xpath) {
+                hits.add(xpath);
+            }
+
+            @Override
+            public void onMiss(String xpath, long parseTimeNanos) {
+                misses.add(xpath);
+            }
+        });
+
+        XPathExpression first = XPathParseTool.parseXPath("/data/a + 1");
+        assertSame(first, XPathParseTool.parseXPath("/data/a + 1"));
+        assertNotSame(first, XPathParseTool.parseUnsharedXPath("/data/a + 1"));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, hits.size());
+        assertEquals(1, misses.size());
+
+        // The cache is bounded, evicting the least recently used trees
+        XPathParseTool.parseXPath("/data/b");
+        XPathParseTool.parseXPath("/data/c");
+        assertEquals(1, cache.getEvictionCount());
+        assertNotSame(first, XPathParseTool.parseXPath("/data/a + 1"));
+    }
+
+    @Test
+    public void testSharedReferencesCantBeModified() throws XPathSyntaxException {
+        XPathParseTool.setParseCache(new XPathParseCache());
+
+        XPathPathExpr path = (XPathPathExpr)XPathParseTool.parseXPath("/data/repeat/item");
+        TreeReference ref = path.getReference();
+        ref.setMultiplicity(1, 0);
+
+        XPathPathExpr samePath = (XPathPathExpr)XPathParseTool.parseXPath("/data/repeat/item");
+        assertSame(path, samePath);
+        assertEquals(TreeReference.INDEX_UNBOUND, samePath.getReference().getMultiplicity(1));
+    }
+
+    @Test
+    public void testCacheCanBeDisabled() throws XPathSyntaxException {
+        XPathParseTool.setParseCache(null);
+        assertNotSame(XPathParseTool.parseXPath("/data/a"), XPathParseTool.parseXPath("/data/a"));
+    }
+}